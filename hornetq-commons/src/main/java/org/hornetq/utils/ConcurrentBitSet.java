@@ -0,0 +1,150 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A set of non negative ints kept as bits, which many threads can set concurrently.
+ * <p>
+ * The bits are kept on chunks of {@link #CHUNK_BITS} bits, allocated as the first bit on each is
+ * set, so a sparse set only takes the chunks it uses. Setting and testing a bit on an allocated
+ * chunk is lock free; only allocating a chunk takes a lock.
+ */
+public final class ConcurrentBitSet
+{
+   public static final int CHUNK_BITS = 4096;
+
+   private static final int WORDS_PER_CHUNK = ConcurrentBitSet.CHUNK_BITS / Long.SIZE;
+
+   // grown by copying the references only, so a bit set on a chunk is never lost on a copy
+   private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+   /**
+    * @return true if the bit wasn't set before
+    */
+   public boolean set(final int index)
+   {
+      checkIndex(index);
+
+      AtomicLongArray chunk = getChunk(index / ConcurrentBitSet.CHUNK_BITS);
+
+      int word = index % ConcurrentBitSet.CHUNK_BITS / Long.SIZE;
+
+      long mask = 1L << index;
+
+      while (true)
+      {
+         long current = chunk.get(word);
+
+         if ((current & mask) != 0)
+         {
+            return false;
+         }
+
+         if (chunk.compareAndSet(word, current, current | mask))
+         {
+            return true;
+         }
+      }
+   }
+
+   public boolean get(final int index)
+   {
+      if (index < 0)
+      {
+         return false;
+      }
+
+      AtomicLongArray[] current = chunks;
+
+      int chunkIndex = index / ConcurrentBitSet.CHUNK_BITS;
+
+      if (chunkIndex >= current.length || current[chunkIndex] == null)
+      {
+         return false;
+      }
+
+      return (current[chunkIndex].get(index % ConcurrentBitSet.CHUNK_BITS / Long.SIZE) & 1L << index) != 0;
+   }
+
+   /**
+    * @return the number of bits set, which is only exact if no bit is being set concurrently
+    */
+   public int cardinality()
+   {
+      int count = 0;
+
+      for (AtomicLongArray chunk : chunks)
+      {
+         for (int i = 0; chunk != null && i < ConcurrentBitSet.WORDS_PER_CHUNK; i++)
+         {
+            count += Long.bitCount(chunk.get(i));
+         }
+      }
+
+      return count;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ConcurrentBitSet[cardinality=" + cardinality() + "]";
+   }
+
+   private AtomicLongArray getChunk(final int chunkIndex)
+   {
+      AtomicLongArray[] current = chunks;
+
+      if (chunkIndex < current.length && current[chunkIndex] != null)
+      {
+         return current[chunkIndex];
+      }
+
+      synchronized (this)
+      {
+         current = chunks;
+
+         if (chunkIndex >= current.length)
+         {
+            current = Arrays.copyOf(current, chunkIndex + 1);
+         }
+         else if (current[chunkIndex] != null)
+         {
+            return current[chunkIndex];
+         }
+         else
+         {
+            current = current.clone();
+         }
+
+         AtomicLongArray chunk = new AtomicLongArray(ConcurrentBitSet.WORDS_PER_CHUNK);
+
+         current[chunkIndex] = chunk;
+
+         chunks = current;
+
+         return chunk;
+      }
+   }
+
+   private static void checkIndex(final int index)
+   {
+      if (index < 0)
+      {
+         throw new IndexOutOfBoundsException("index < 0: " + index);
+      }
+   }
+}
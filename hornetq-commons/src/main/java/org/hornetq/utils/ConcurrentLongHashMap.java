@@ -0,0 +1,451 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A concurrent map of primitive long keys.
+ * <p>
+ * This is meant for the large ID indexes (like the records on the journal), where a
+ * {@code ConcurrentHashMap<Long, V>} costs a boxed key and an entry object per mapping. Here each
+ * segment is an open addressing table (linear probing) made of a {@code long[]} for the keys and
+ * an {@code Object[]} for the values, so a mapping takes 12 bytes (with compressed oops) per slot
+ * and nothing is allocated on put or get.
+ * <p>
+ * Every operation takes the lock of its segment. Null values are not supported, as a null value
+ * marks a free slot.
+ */
+public class ConcurrentLongHashMap<V>
+{
+   private static final int DEFAULT_EXPECTED_SIZE = 256;
+
+   private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+   private static final float LOAD_FACTOR = 0.75f;
+
+   private static final int MIN_SEGMENT_CAPACITY = 4;
+
+   private final Segment<V>[] segments;
+
+   private final int segmentShift;
+
+   /**
+    * Receives the mappings on {@link ConcurrentLongHashMap#forEach(EntryVisitor)}.
+    */
+   public interface EntryVisitor<V>
+   {
+      void visit(long key, V value);
+   }
+
+   public ConcurrentLongHashMap()
+   {
+      this(ConcurrentLongHashMap.DEFAULT_EXPECTED_SIZE, ConcurrentLongHashMap.DEFAULT_CONCURRENCY_LEVEL);
+   }
+
+   public ConcurrentLongHashMap(final int expectedSize)
+   {
+      this(expectedSize, ConcurrentLongHashMap.DEFAULT_CONCURRENCY_LEVEL);
+   }
+
+   @SuppressWarnings("unchecked")
+   public ConcurrentLongHashMap(final int expectedSize, final int concurrencyLevel)
+   {
+      if (expectedSize < 0)
+      {
+         throw new IllegalArgumentException("Invalid expected size " + expectedSize);
+      }
+
+      if (concurrencyLevel <= 0)
+      {
+         throw new IllegalArgumentException("Invalid concurrency level " + concurrencyLevel);
+      }
+
+      int numberOfSegments = 1;
+      int bits = 0;
+      while (numberOfSegments < concurrencyLevel)
+      {
+         numberOfSegments <<= 1;
+         bits++;
+      }
+
+      segmentShift = 64 - bits;
+
+      int segmentCapacity = ConcurrentLongHashMap.tableSizeFor((int)(expectedSize /
+         (numberOfSegments * ConcurrentLongHashMap.LOAD_FACTOR)) + 1);
+
+      segments = new Segment[numberOfSegments];
+      for (int i = 0; i < numberOfSegments; i++)
+      {
+         segments[i] = new Segment<V>(segmentCapacity);
+      }
+   }
+
+   public V get(final long key)
+   {
+      final long hash = ConcurrentLongHashMap.hash(key);
+      return segmentFor(hash).get(key, hash);
+   }
+
+   public boolean containsKey(final long key)
+   {
+      return get(key) != null;
+   }
+
+   /**
+    * @return the previous value, or null if there was no mapping for the key
+    */
+   public V put(final long key, final V value)
+   {
+      checkValue(value);
+      final long hash = ConcurrentLongHashMap.hash(key);
+      return segmentFor(hash).put(key, hash, value, false);
+   }
+
+   /**
+    * @return the current value, or null if the value was added
+    */
+   public V putIfAbsent(final long key, final V value)
+   {
+      checkValue(value);
+      final long hash = ConcurrentLongHashMap.hash(key);
+      return segmentFor(hash).put(key, hash, value, true);
+   }
+
+   /**
+    * @return the removed value, or null if there was no mapping for the key
+    */
+   public V remove(final long key)
+   {
+      final long hash = ConcurrentLongHashMap.hash(key);
+      return segmentFor(hash).remove(key, hash);
+   }
+
+   public int size()
+   {
+      int size = 0;
+      for (Segment<V> segment : segments)
+      {
+         size += segment.size;
+      }
+      return size;
+   }
+
+   public boolean isEmpty()
+   {
+      for (Segment<V> segment : segments)
+      {
+         if (segment.size != 0)
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   public void clear()
+   {
+      for (Segment<V> segment : segments)
+      {
+         segment.clear();
+      }
+   }
+
+   /**
+    * Visits every mapping without copying the map. Each segment is locked while its mappings are
+    * visited, so the visitor must not change the map and should not block.
+    */
+   public void forEach(final EntryVisitor<V> visitor)
+   {
+      for (Segment<V> segment : segments)
+      {
+         segment.forEach(visitor);
+      }
+   }
+
+   /**
+    * @return a copy of the keys, for callers that need to change the map as they go
+    */
+   public long[] keys()
+   {
+      final List<long[]> segmentKeys = new ArrayList<long[]>(segments.length);
+      int size = 0;
+      for (Segment<V> segment : segments)
+      {
+         long[] keys = segment.keys();
+         segmentKeys.add(keys);
+         size += keys.length;
+      }
+
+      long[] keys = new long[size];
+      int position = 0;
+      for (long[] segmentKey : segmentKeys)
+      {
+         System.arraycopy(segmentKey, 0, keys, position, segmentKey.length);
+         position += segmentKey.length;
+      }
+      return keys;
+   }
+
+   /**
+    * @return a copy of the values, for callers that need to change the map (or block) as they go
+    */
+   public List<V> values()
+   {
+      final List<V> values = new ArrayList<V>(size());
+      for (Segment<V> segment : segments)
+      {
+         segment.values(values);
+      }
+      return values;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ConcurrentLongHashMap(size=" + size() + ")";
+   }
+
+   private Segment<V> segmentFor(final long hash)
+   {
+      // the segment takes the high bits, the slot on the segment takes the low ones
+      return segments.length == 1 ? segments[0] : segments[(int)(hash >>> segmentShift)];
+   }
+
+   private static void checkValue(final Object value)
+   {
+      if (value == null)
+      {
+         throw new NullPointerException("null values are not supported");
+      }
+   }
+
+   private static long hash(final long key)
+   {
+      // the finalizer of MurmurHash3, IDs are usually sequential
+      long h = key;
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+   }
+
+   private static int tableSizeFor(final int size)
+   {
+      int capacity = ConcurrentLongHashMap.MIN_SEGMENT_CAPACITY;
+      while (capacity < size)
+      {
+         capacity <<= 1;
+      }
+      return capacity;
+   }
+
+   private static final class Segment<V>
+   {
+      private long[] keys;
+
+      private Object[] values;
+
+      private int mask;
+
+      private int threshold;
+
+      volatile int size;
+
+      Segment(final int capacity)
+      {
+         allocate(capacity);
+      }
+
+      private void allocate(final int capacity)
+      {
+         keys = new long[capacity];
+         values = new Object[capacity];
+         mask = capacity - 1;
+         threshold = (int)(capacity * ConcurrentLongHashMap.LOAD_FACTOR);
+      }
+
+      @SuppressWarnings("unchecked")
+      synchronized V get(final long key, final long hash)
+      {
+         for (int slot = (int)hash & mask;; slot = (slot + 1) & mask)
+         {
+            final Object value = values[slot];
+            if (value == null)
+            {
+               return null;
+            }
+            if (keys[slot] == key)
+            {
+               return (V)value;
+            }
+         }
+      }
+
+      @SuppressWarnings("unchecked")
+      synchronized V put(final long key, final long hash, final V value, final boolean onlyIfAbsent)
+      {
+         int slot = (int)hash & mask;
+         for (;; slot = (slot + 1) & mask)
+         {
+            final Object current = values[slot];
+            if (current == null)
+            {
+               break;
+            }
+            if (keys[slot] == key)
+            {
+               if (!onlyIfAbsent)
+               {
+                  values[slot] = value;
+               }
+               return (V)current;
+            }
+         }
+
+         keys[slot] = key;
+         values[slot] = value;
+
+         if (++size > threshold)
+         {
+            rehash();
+         }
+
+         return null;
+      }
+
+      @SuppressWarnings("unchecked")
+      synchronized V remove(final long key, final long hash)
+      {
+         for (int slot = (int)hash & mask;; slot = (slot + 1) & mask)
+         {
+            final Object value = values[slot];
+            if (value == null)
+            {
+               return null;
+            }
+            if (keys[slot] == key)
+            {
+               shiftBack(slot);
+               size--;
+               return (V)value;
+            }
+         }
+      }
+
+      /**
+       * Removes the slot, moving back the entries after it on the same probe sequence, so there's
+       * no need for tombstones.
+       */
+      private void shiftBack(int free)
+      {
+         int slot = free;
+         while (true)
+         {
+            slot = (slot + 1) & mask;
+
+            if (values[slot] == null)
+            {
+               break;
+            }
+
+            final int ideal = (int)ConcurrentLongHashMap.hash(keys[slot]) & mask;
+
+            // can the entry at slot be moved to free without breaking its probe sequence?
+            final boolean movable = free <= slot ? ideal <= free || ideal > slot : ideal <= free && ideal > slot;
+
+            if (movable)
+            {
+               keys[free] = keys[slot];
+               values[free] = values[slot];
+               free = slot;
+            }
+         }
+
+         values[free] = null;
+      }
+
+      private void rehash()
+      {
+         final long[] oldKeys = keys;
+         final Object[] oldValues = values;
+
+         allocate(oldKeys.length << 1);
+
+         for (int i = 0; i < oldKeys.length; i++)
+         {
+            if (oldValues[i] != null)
+            {
+               int slot = (int)ConcurrentLongHashMap.hash(oldKeys[i]) & mask;
+               while (values[slot] != null)
+               {
+                  slot = (slot + 1) & mask;
+               }
+               keys[slot] = oldKeys[i];
+               values[slot] = oldValues[i];
+            }
+         }
+      }
+
+      synchronized void clear()
+      {
+         for (int i = 0; i < values.length; i++)
+         {
+            values[i] = null;
+         }
+         size = 0;
+      }
+
+      @SuppressWarnings("unchecked")
+      synchronized void forEach(final EntryVisitor<V> visitor)
+      {
+         for (int i = 0; i < values.length; i++)
+         {
+            if (values[i] != null)
+            {
+               visitor.visit(keys[i], (V)values[i]);
+            }
+         }
+      }
+
+      synchronized long[] keys()
+      {
+         final long[] copy = new long[size];
+         int position = 0;
+         for (int i = 0; i < values.length; i++)
+         {
+            if (values[i] != null)
+            {
+               copy[position++] = keys[i];
+            }
+         }
+         return copy;
+      }
+
+      @SuppressWarnings("unchecked")
+      synchronized void values(final List<V> list)
+      {
+         for (int i = 0; i < values.length; i++)
+         {
+            if (values[i] != null)
+            {
+               list.add((V)values[i]);
+            }
+         }
+      }
+   }
+}
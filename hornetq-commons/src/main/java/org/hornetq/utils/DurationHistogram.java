@@ -0,0 +1,158 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations in milliseconds, with power of two buckets.
+ * <p>
+ * Bucket {@code i} counts the durations up to {@code 2^i} milliseconds (bucket 0 counts the ones
+ * up to 1 millisecond), and the last bucket counts everything above the previous one. Recording
+ * is lock free, so it can be called from the path being measured.
+ */
+public class DurationHistogram
+{
+   public static final int DEFAULT_BUCKETS = 20;
+
+   private final AtomicLongArray buckets;
+
+   private final AtomicLong count = new AtomicLong(0);
+
+   private final AtomicLong total = new AtomicLong(0);
+
+   private final AtomicLong max = new AtomicLong(0);
+
+   public DurationHistogram()
+   {
+      this(DurationHistogram.DEFAULT_BUCKETS);
+   }
+
+   public DurationHistogram(final int numberOfBuckets)
+   {
+      if (numberOfBuckets < 1 || numberOfBuckets > 63)
+      {
+         throw new IllegalArgumentException("Invalid number of buckets " + numberOfBuckets);
+      }
+      buckets = new AtomicLongArray(numberOfBuckets);
+   }
+
+   public void record(final long millis)
+   {
+      final long duration = Math.max(0, millis);
+
+      buckets.incrementAndGet(bucketFor(duration));
+
+      count.incrementAndGet();
+
+      total.addAndGet(duration);
+
+      long currentMax;
+      while ((currentMax = max.get()) < duration && !max.compareAndSet(currentMax, duration))
+      {
+         // retry
+      }
+   }
+
+   /**
+    * Adds the durations recorded by another histogram with at least as many buckets, its buckets
+    * past the last one of this histogram counting in the last one.
+    */
+   public void add(final DurationHistogram other)
+   {
+      long[] counts = other.getCounts();
+      for (int i = 0; i < counts.length; i++)
+      {
+         buckets.addAndGet(Math.min(i, buckets.length() - 1), counts[i]);
+      }
+
+      count.addAndGet(other.getCount());
+
+      total.addAndGet(other.getTotal());
+
+      long otherMax = other.getMax();
+      long currentMax;
+      while ((currentMax = max.get()) < otherMax && !max.compareAndSet(currentMax, otherMax))
+      {
+         // retry
+      }
+   }
+
+   /**
+    * @return the upper bound (inclusive) of the bucket in milliseconds, or {@link Long#MAX_VALUE}
+    *         for the last bucket
+    */
+   public long getUpperBound(final int bucket)
+   {
+      return bucket == buckets.length() - 1 ? Long.MAX_VALUE : 1L << bucket;
+   }
+
+   public int getNumberOfBuckets()
+   {
+      return buckets.length();
+   }
+
+   /**
+    * @return a copy of the counts of each bucket
+    */
+   public long[] getCounts()
+   {
+      long[] counts = new long[buckets.length()];
+      for (int i = 0; i < counts.length; i++)
+      {
+         counts[i] = buckets.get(i);
+      }
+      return counts;
+   }
+
+   public long getCount()
+   {
+      return count.get();
+   }
+
+   public long getTotal()
+   {
+      return total.get();
+   }
+
+   public long getMax()
+   {
+      return max.get();
+   }
+
+   public void reset()
+   {
+      for (int i = 0; i < buckets.length(); i++)
+      {
+         buckets.set(i, 0);
+      }
+      count.set(0);
+      total.set(0);
+      max.set(0);
+   }
+
+   @Override
+   public String toString()
+   {
+      return "DurationHistogram(count=" + getCount() + ", total=" + getTotal() + ", max=" + getMax() + ")";
+   }
+
+   private int bucketFor(final long duration)
+   {
+      // the smallest i where duration <= 2^i
+      int bucket = duration <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(duration - 1);
+      return Math.min(bucket, buckets.length() - 1);
+   }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrentLongHashMapTest extends Assert
+{
+
+   @Test
+   public void testPutGetRemove()
+   {
+      ConcurrentLongHashMap<String> map = new ConcurrentLongHashMap<String>(1, 1);
+
+      assertTrue(map.isEmpty());
+      assertNull(map.get(1));
+
+      assertNull(map.put(1, "one"));
+      assertNull(map.put(Long.MIN_VALUE, "min"));
+      assertNull(map.put(0, "zero"));
+
+      assertEquals("one", map.put(1, "uno"));
+      assertEquals("uno", map.putIfAbsent(1, "one"));
+      assertEquals("uno", map.get(1));
+      assertEquals("min", map.get(Long.MIN_VALUE));
+      assertTrue(map.containsKey(0));
+      assertEquals(3, map.size());
+
+      assertEquals("zero", map.remove(0));
+      assertNull(map.remove(0));
+      assertFalse(map.containsKey(0));
+      assertEquals(2, map.size());
+
+      map.clear();
+      assertTrue(map.isEmpty());
+      assertNull(map.get(1));
+   }
+
+   @Test
+   public void testAgainstHashMap()
+   {
+      final ConcurrentLongHashMap<Long> map = new ConcurrentLongHashMap<Long>(4, 4);
+
+      Map<Long, Long> expected = new HashMap<Long, Long>();
+
+      java.util.Random random = new java.util.Random(1);
+
+      for (int i = 0; i < 200000; i++)
+      {
+         // a small key range, so removes hit existing keys and probe sequences collide
+         long key = random.nextInt(5000) * 31L;
+         switch (random.nextInt(3))
+         {
+            case 0:
+               assertEquals(expected.put(key, (long)i), map.put(key, (long)i));
+               break;
+            case 1:
+               assertEquals(expected.remove(key), map.remove(key));
+               break;
+            default:
+               assertEquals(expected.get(key), map.get(key));
+         }
+      }
+
+      assertEquals(expected.size(), map.size());
+
+      final AtomicInteger visited = new AtomicInteger(0);
+
+      final Map<Long, Long> expectedToVisit = expected;
+
+      map.forEach(new ConcurrentLongHashMap.EntryVisitor<Long>()
+      {
+         public void visit(final long key, final Long value)
+         {
+            assertEquals(expectedToVisit.get(key), value);
+            visited.incrementAndGet();
+         }
+      });
+
+      assertEquals(expected.size(), visited.get());
+
+      long[] keys = map.keys();
+      assertEquals(expected.size(), keys.length);
+      for (long key : keys)
+      {
+         assertTrue(expected.containsKey(key));
+      }
+
+      assertEquals(expected.size(), map.values().size());
+   }
+
+   @Test
+   public void testConcurrentUpdates() throws Exception
+   {
+      final int numberOfThreads = 8;
+
+      final int keysPerThread = 20000;
+
+      final ConcurrentLongHashMap<Integer> map = new ConcurrentLongHashMap<Integer>();
+
+      final CountDownLatch start = new CountDownLatch(1);
+
+      final AtomicInteger errors = new AtomicInteger(0);
+
+      Thread[] threads = new Thread[numberOfThreads];
+
+      for (int t = 0; t < numberOfThreads; t++)
+      {
+         final int threadID = t;
+         threads[t] = new Thread()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  start.await();
+                  for (int i = 0; i < keysPerThread; i++)
+                  {
+                     long key = (long)i * numberOfThreads + threadID;
+                     map.put(key, threadID);
+                  }
+                  for (int i = 0; i < keysPerThread; i += 2)
+                  {
+                     long key = (long)i * numberOfThreads + threadID;
+                     if (map.remove(key) != threadID)
+                     {
+                        errors.incrementAndGet();
+                     }
+                  }
+               }
+               catch (Throwable e)
+               {
+                  e.printStackTrace();
+                  errors.incrementAndGet();
+               }
+            }
+         };
+         threads[t].start();
+      }
+
+      start.countDown();
+
+      for (Thread thread : threads)
+      {
+         thread.join();
+      }
+
+      assertEquals(0, errors.get());
+
+      assertEquals(numberOfThreads * keysPerThread / 2, map.size());
+
+      for (int t = 0; t < numberOfThreads; t++)
+      {
+         for (int i = 0; i < keysPerThread; i++)
+         {
+            long key = (long)i * numberOfThreads + t;
+            if (i % 2 == 0)
+            {
+               assertNull(map.get(key));
+            }
+            else
+            {
+               assertEquals(Integer.valueOf(t), map.get(key));
+            }
+         }
+      }
+   }
+}
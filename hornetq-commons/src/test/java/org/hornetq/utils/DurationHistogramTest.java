@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DurationHistogramTest extends Assert
+{
+
+   @Test
+   public void testBuckets()
+   {
+      DurationHistogram histogram = new DurationHistogram(4);
+
+      histogram.record(-5);
+      histogram.record(1);
+      histogram.record(2);
+      histogram.record(3);
+      histogram.record(4);
+      histogram.record(8);
+      histogram.record(1000);
+
+      assertArrayEquals(new long[]{2, 1, 2, 2}, histogram.getCounts());
+
+      assertEquals(1, histogram.getUpperBound(0));
+      assertEquals(4, histogram.getUpperBound(2));
+      assertEquals(Long.MAX_VALUE, histogram.getUpperBound(3));
+
+      assertEquals(7, histogram.getCount());
+      assertEquals(1018, histogram.getTotal());
+      assertEquals(1000, histogram.getMax());
+
+      histogram.reset();
+
+      assertEquals(0, histogram.getCount());
+      assertEquals(0, histogram.getMax());
+      assertArrayEquals(new long[4], histogram.getCounts());
+   }
+
+   @Test
+   public void testAdd()
+   {
+      DurationHistogram histogram = new DurationHistogram(4);
+      histogram.record(1);
+      histogram.record(3);
+
+      DurationHistogram other = new DurationHistogram(6);
+      other.record(2);
+      other.record(20);
+
+      histogram.add(other);
+
+      assertArrayEquals(new long[]{1, 1, 1, 1}, histogram.getCounts());
+      assertEquals(4, histogram.getCount());
+      assertEquals(26, histogram.getTotal());
+      assertEquals(20, histogram.getMax());
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void testInvalidBuckets()
+   {
+      new DurationHistogram(0);
+   }
+}
@@ -60,6 +60,37 @@ public interface AddressControl
     */
    long getNumberOfBytesPerPage() throws Exception;
 
+   /**
+    * Returns how many times a page of this address was found on the page cache.
+    */
+   long getPageCacheHits() throws Exception;
+
+   /**
+    * Returns how many times a page of this address had to be read into the page cache.
+    */
+   long getPageCacheMisses() throws Exception;
+
+   /**
+    * Returns how many pages of this address were evicted from the page cache.
+    */
+   long getPageCacheEvictions() throws Exception;
+
+   /**
+    * Returns how many pages of this address are read ahead of its queues as they consume.
+    */
+   int getPagePrefetchDepth() throws Exception;
+
+   /**
+    * Returns the fraction of the pages of this address the queues got to that were already read ahead,
+    * instead of having to wait for them to be read.
+    */
+   double getPagePrefetchHitRate() throws Exception;
+
+   /**
+    * Returns the milliseconds the queues of this address waited for pages to be read.
+    */
+   long getPageReadStallTime() throws Exception;
+
    /**
     * Returns the names of all bindings (both queues and diverts) bound to this address
     */
@@ -37,6 +37,35 @@ public interface HornetQServerControl
     */
    boolean isStarted();
 
+   /**
+    * Returns the time (in milliseconds) the last start of this server spent reading the message journal files.
+    */
+   long getJournalScanTime();
+
+   /**
+    * Returns the time (in milliseconds) the last start of this server spent applying the records read from the message journal.
+    */
+   long getJournalMergeTime();
+
+   /**
+    * Returns the time (in milliseconds) the last start of this server spent rebuilding the queues from the message journal.
+    */
+   long getQueueRebuildTime();
+
+   /**
+    * Returns the histogram of the durations of the compacting passes on the message journal using JSON serialization.
+    * <br>
+    * Each bucket counts the passes up to its {@code upTo} milliseconds, the last one ({@code upTo} -1) counts the longer ones.
+    */
+   String getJournalCompactTimesAsJSON() throws Exception;
+
+   /**
+    * Returns the usage of the pool of native buffers shared by the journal, paging and large messages using JSON serialization.
+    * <br>
+    * The buffers still borrowed are listed by the place they were borrowed from ({@code borrowedBySite}) only while leaks are tracked.
+    */
+   String getBufferPoolUsageAsJSON() throws Exception;
+
    /**
     * Returns the list of interceptors used by this server. Invoking this method is the same as invoking
     * <code>getIncomingInterceptorClassNames().</code>
@@ -358,6 +387,24 @@ public interface HornetQServerControl
                     @Parameter(name = "name", desc = "Name of the queue") String name,
                     @Parameter(name = "durable", desc = "Is the queue durable?") boolean durable) throws Exception;
 
+   /**
+    * Create a queue made of several shards, each delivering on its own thread.
+    * <br>
+    * This method throws a {@link org.hornetq.api.core.HornetQQueueExistsException}) exception if the queue already exits.
+    *
+    * @param address address to bind the queue to
+    * @param name name of the queue
+    * @param filter of the queue
+    * @param durable whether the queue is durable
+    * @param shards number of shards of the queue
+    */
+   @Operation(desc = "Create a sharded queue", impact = MBeanOperationInfo.ACTION)
+   void createShardedQueue(@Parameter(name = "address", desc = "Address of the queue") String address,
+                           @Parameter(name = "name", desc = "Name of the queue") String name,
+                           @Parameter(name = "filter", desc = "Filter of the queue") String filter,
+                           @Parameter(name = "durable", desc = "Is the queue durable?") boolean durable,
+                           @Parameter(name = "shards", desc = "Number of shards of the queue") int shards) throws Exception;
+
    /**
     * Deploy a durable queue.
     * <br>
@@ -67,6 +67,21 @@ public interface QueueControl
     */
    long getScheduledCount();
 
+   /**
+    * Returns the number of scheduled messages delivered to this queue since it was created.
+    */
+   long getScheduledDeliveredCount();
+
+   /**
+    * Returns how late, in milliseconds, the last scheduled messages were delivered to this queue.
+    */
+   long getScheduledDeliveryLag();
+
+   /**
+    * Returns how late, in milliseconds, scheduled messages were delivered to this queue at most.
+    */
+   long getMaxScheduledDeliveryLag();
+
    /**
     * Returns the number of consumers consuming messages from this queue.
     */
@@ -0,0 +1,890 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.filter.impl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.hornetq.api.core.SimpleString;
+
+/**
+ * Compiles the tree built by {@link FilterParser} into an immutable expression.
+ * <p>
+ * {@link Operator} evaluates by storing the values of the message into the shared
+ * {@link Identifier}s and its own fields, so one tree can only evaluate one message at a time.
+ * The compiled expression reads the values straight from the message it is given and keeps no
+ * state between evaluations, so any number of threads can evaluate it at the same time.
+ * <p>
+ * Identifiers are resolved once, at compile time, into a {@link ValueReader}. Comparisons against
+ * a numeric literal compare primitives, and LIKE patterns are compiled once.
+ * <p>
+ * The results follow the ones of {@link Operator}: expressions evaluate to a {@link Boolean}, a
+ * {@link Long}, a {@link Double}, a {@link SimpleString} or null when unknown, and values of the
+ * wrong type raise an exception.
+ */
+public final class SelectorCompiler
+{
+   /**
+    * Reads the value of one identifier from a message.
+    */
+   public interface ValueReader<M>
+   {
+      /**
+       * @return the value, or null if the message doesn't have it
+       */
+      Object read(M message);
+   }
+
+   /**
+    * Creates the readers of the identifiers used on a selector.
+    */
+   public interface ValueReaderFactory<M>
+   {
+      ValueReader<M> createReader(SimpleString identifier);
+   }
+
+   /**
+    * A compiled selector, or one of its sub expressions.
+    */
+   public abstract static class Expression<M>
+   {
+      public abstract Object evaluate(M message) throws Exception;
+
+      /**
+       * @return true only if the selector evaluates to true
+       */
+      public final boolean matches(final M message) throws Exception
+      {
+         Object result = evaluate(message);
+
+         // an unknown result doesn't match
+         return result != null && (Boolean)result;
+      }
+   }
+
+   private static final int NULL = 0;
+
+   private SelectorCompiler()
+   {
+   }
+
+   /**
+    * @param parsed the result of {@link FilterParser#parse(SimpleString, Map)}
+    */
+   public static <M> Expression<M> compile(final Object parsed, final ValueReaderFactory<M> readers) throws Exception
+   {
+      return new Compilation<M>(readers).compile(parsed);
+   }
+
+   // Private -------------------------------------------------------
+
+   private static final class Compilation<M>
+   {
+      private final ValueReaderFactory<M> factory;
+
+      /** the same identifier shares its reader across the selector */
+      private final Map<SimpleString, ValueReader<M>> readers = new HashMap<SimpleString, ValueReader<M>>();
+
+      Compilation(final ValueReaderFactory<M> factory)
+      {
+         this.factory = factory;
+      }
+
+      Expression<M> compile(final Object node) throws Exception
+      {
+         if (node instanceof Identifier)
+         {
+            SimpleString name = ((Identifier)node).getName();
+
+            ValueReader<M> reader = readers.get(name);
+
+            if (reader == null)
+            {
+               reader = factory.createReader(name);
+               readers.put(name, reader);
+            }
+
+            return new Read<M>(reader);
+         }
+         else if (node instanceof Operator)
+         {
+            return compileOperator((Operator)node);
+         }
+         else
+         {
+            return new Constant<M>(node);
+         }
+      }
+
+      private Expression<M> compileOperator(final Operator op) throws Exception
+      {
+         switch (op.operation)
+         {
+            case Operator.EQUAL:
+            case Operator.DIFFERENT:
+            case Operator.GT:
+            case Operator.GE:
+            case Operator.LT:
+            case Operator.LE:
+               return compileComparison(op, op.operation, compile(op.oper1), op.oper2);
+            case Operator.BETWEEN:
+               return new Between<M>(op,
+                                     false,
+                                     compile(op.oper1),
+                                     compileComparison(op, Operator.GE, null, op.oper2),
+                                     compileComparison(op, Operator.LE, null, op.oper3));
+            case Operator.NOT_BETWEEN:
+               return new Between<M>(op,
+                                     true,
+                                     compile(op.oper1),
+                                     compileComparison(op, Operator.LT, null, op.oper2),
+                                     compileComparison(op, Operator.GT, null, op.oper3));
+            case Operator.NOT:
+               return new Not<M>(op, compile(op.oper1));
+            case Operator.AND:
+               return new And<M>(op, compile(op.oper1), compile(op.oper2));
+            case Operator.OR:
+               return new Or<M>(op, compile(op.oper1), compile(op.oper2));
+            case Operator.ADD:
+            case Operator.SUB:
+            case Operator.MUL:
+            case Operator.DIV:
+               return new Arithmetic<M>(op, compile(op.oper1), compile(op.oper2));
+            case Operator.NEG:
+               return new Negate<M>(op, compile(op.oper1));
+            case Operator.LIKE:
+            case Operator.NOT_LIKE:
+            case Operator.LIKE_ESCAPE:
+            case Operator.NOT_LIKE_ESCAPE:
+               return new Like<M>(op, compile(op.oper1));
+            case Operator.IN:
+            case Operator.NOT_IN:
+               return new In<M>(op, compile(op.oper1));
+            case Operator.IS_NULL:
+            case Operator.IS_NOT_NULL:
+               return new IsNull<M>(op, compile(op.oper1));
+            default:
+               throw new Exception("Unknown operation " + op.operation + " on " + op);
+         }
+      }
+
+      /**
+       * @param left null when the left operand is given at evaluation, as on BETWEEN
+       */
+      private Comparison<M> compileComparison(final Operator op,
+                                              final int operation,
+                                              final Expression<M> left,
+                                              final Object right) throws Exception
+      {
+         if (right instanceof Number)
+         {
+            return new LiteralComparison<M>(op, operation, left, (Number)right);
+         }
+
+         return new Comparison<M>(op, operation, left, compile(right));
+      }
+   }
+
+   /**
+    * @return the class of the value as {@link Operator} names them, or {@link #NULL}
+    */
+   static int classOf(final Expression<?> node, final Object value) throws Exception
+   {
+      if (value == null)
+      {
+         return NULL;
+      }
+
+      Class<?> clazz = value.getClass();
+
+      if (clazz == SimpleString.class)
+      {
+         return Operator.SIMPLE_STRING;
+      }
+      else if (clazz == Long.class || clazz == Integer.class || clazz == Short.class || clazz == Byte.class)
+      {
+         return Operator.LONG;
+      }
+      else if (clazz == Double.class || clazz == Float.class)
+      {
+         return Operator.DOUBLE;
+      }
+      else if (clazz == Boolean.class)
+      {
+         return Operator.BOOLEAN;
+      }
+
+      throw new Exception("Bad Object: '" + clazz.getName() + "' for operation: " + node);
+   }
+
+   static boolean isNumber(final int clazz)
+   {
+      return clazz == Operator.LONG || clazz == Operator.DOUBLE;
+   }
+
+   /**
+    * Compares two numbers, as longs when both are integral, as doubles otherwise.
+    */
+   static boolean compare(final int operation,
+                          final Object a,
+                          final int classA,
+                          final Object b,
+                          final int classB)
+   {
+      if (classA == Operator.LONG && classB == Operator.LONG)
+      {
+         return compare(operation, ((Number)a).longValue(), ((Number)b).longValue());
+      }
+
+      return compare(operation, ((Number)a).doubleValue(), ((Number)b).doubleValue());
+   }
+
+   static boolean compare(final int operation, final long a, final long b)
+   {
+      switch (operation)
+      {
+         case Operator.EQUAL:
+            return a == b;
+         case Operator.DIFFERENT:
+            return a != b;
+         case Operator.GT:
+            return a > b;
+         case Operator.GE:
+            return a >= b;
+         case Operator.LT:
+            return a < b;
+         default:
+            return a <= b;
+      }
+   }
+
+   static boolean compare(final int operation, final double a, final double b)
+   {
+      switch (operation)
+      {
+         case Operator.EQUAL:
+            return a == b;
+         case Operator.DIFFERENT:
+            return a != b;
+         case Operator.GT:
+            return a > b;
+         case Operator.GE:
+            return a >= b;
+         case Operator.LT:
+            return a < b;
+         default:
+            return a <= b;
+      }
+   }
+
+   /**
+    * The base of the compiled operators, which print as the operator they came from.
+    */
+   private abstract static class Node<M> extends Expression<M>
+   {
+      private final Operator source;
+
+      Node(final Operator source)
+      {
+         this.source = source;
+      }
+
+      final Exception badObject(final int clazz)
+      {
+         return new Exception("Bad Object: '" + Operator.getClassName(clazz) + "' for operation: " + this);
+      }
+
+      @Override
+      public String toString()
+      {
+         return source.toString();
+      }
+   }
+
+   private static final class Constant<M> extends Expression<M>
+   {
+      private final Object value;
+
+      Constant(final Object value)
+      {
+         this.value = value;
+      }
+
+      @Override
+      public Object evaluate(final M message)
+      {
+         return value;
+      }
+
+      @Override
+      public String toString()
+      {
+         return String.valueOf(value);
+      }
+   }
+
+   private static final class Read<M> extends Expression<M>
+   {
+      private final ValueReader<M> reader;
+
+      Read(final ValueReader<M> reader)
+      {
+         this.reader = reader;
+      }
+
+      @Override
+      public Object evaluate(final M message)
+      {
+         return reader.read(message);
+      }
+   }
+
+   /**
+    * =, &lt;&gt;, &gt;, &gt;=, &lt; and &lt;=.
+    */
+   private static class Comparison<M> extends Node<M>
+   {
+      final int operation;
+
+      private final Expression<M> left;
+
+      private final Expression<M> right;
+
+      Comparison(final Operator source, final int operation, final Expression<M> left, final Expression<M> right)
+      {
+         super(source);
+         this.operation = operation;
+         this.left = left;
+         this.right = right;
+      }
+
+      @Override
+      public final Object evaluate(final M message) throws Exception
+      {
+         Object a = left.evaluate(message);
+
+         return compareTo(message, a, classOf(this, a));
+      }
+
+      /**
+       * Compares an already evaluated left operand to the right one.
+       */
+      Object compareTo(final M message, final Object a, final int classA) throws Exception
+      {
+         if (classA == NULL)
+         {
+            if (operation == Operator.EQUAL)
+            {
+               return Boolean.FALSE;
+            }
+            else if (operation == Operator.DIFFERENT)
+            {
+               return classOf(this, right.evaluate(message)) == NULL ? Boolean.FALSE : Boolean.TRUE;
+            }
+            return null;
+         }
+
+         boolean ordering = operation != Operator.EQUAL && operation != Operator.DIFFERENT;
+
+         if (ordering && !isNumber(classA))
+         {
+            return Boolean.FALSE;
+         }
+
+         Object b = right.evaluate(message);
+         int classB = classOf(this, b);
+
+         if (isNumber(classA))
+         {
+            if (classB == NULL)
+            {
+               return null;
+            }
+            if (!isNumber(classB))
+            {
+               return Boolean.FALSE;
+            }
+            return compare(operation, a, classA, b, classB);
+         }
+
+         if (classA == Operator.SIMPLE_STRING || classA == Operator.BOOLEAN)
+         {
+            if (classB == NULL)
+            {
+               return operation == Operator.EQUAL ? Boolean.FALSE : null;
+            }
+            if (classB != classA)
+            {
+               throw new Exception("Bad Object: expected '" + Operator.getClassName(classA) +
+                                   "' got '" +
+                                   Operator.getClassName(classB) +
+                                   "' for operation: " +
+                                   this);
+            }
+            return a.equals(b) == (operation == Operator.EQUAL);
+         }
+
+         throw badObject(classA);
+      }
+   }
+
+   /**
+    * A comparison against a numeric literal, the most common shape of selector, which doesn't
+    * need to classify nor unbox the right operand on every message.
+    */
+   private static final class LiteralComparison<M> extends Comparison<M>
+   {
+      private final boolean integral;
+
+      private final long longValue;
+
+      private final double doubleValue;
+
+      LiteralComparison(final Operator source, final int operation, final Expression<M> left, final Number literal) throws Exception
+      {
+         super(source, operation, left, new Constant<M>(literal));
+         integral = classOf(this, literal) == Operator.LONG;
+         longValue = literal.longValue();
+         doubleValue = literal.doubleValue();
+      }
+
+      @Override
+      Object compareTo(final M message, final Object a, final int classA) throws Exception
+      {
+         if (!isNumber(classA))
+         {
+            return super.compareTo(message, a, classA);
+         }
+
+         if (classA == Operator.LONG && integral)
+         {
+            return compare(operation, ((Number)a).longValue(), longValue);
+         }
+
+         return compare(operation, ((Number)a).doubleValue(), doubleValue);
+      }
+   }
+
+   private static final class Between<M> extends Node<M>
+   {
+      private final boolean not;
+
+      private final Expression<M> value;
+
+      private final Comparison<M> lower;
+
+      private final Comparison<M> upper;
+
+      Between(final Operator source,
+              final boolean not,
+              final Expression<M> value,
+              final Comparison<M> lower,
+              final Comparison<M> upper)
+      {
+         super(source);
+         this.not = not;
+         this.value = value;
+         this.lower = lower;
+         this.upper = upper;
+      }
+
+      @Override
+      public Object evaluate(final M message) throws Exception
+      {
+         Object a = value.evaluate(message);
+         int classA = classOf(this, a);
+
+         Object result = lower.compareTo(message, a, classA);
+
+         // below the lower bound BETWEEN is false and NOT BETWEEN is true, whatever the upper one
+         if (result == null || (Boolean)result == not)
+         {
+            return result;
+         }
+
+         return upper.compareTo(message, a, classA);
+      }
+   }
+
+   private static final class Not<M> extends Node<M>
+   {
+      private final Expression<M> operand;
+
+      Not(final Operator source, final Expression<M> operand)
+      {
+         super(source);
+         this.operand = operand;
+      }
+
+      @Override
+      public Object evaluate(final M message) throws Exception
+      {
+         Object a = operand.evaluate(message);
+         int classA = classOf(this, a);
+
+         if (classA == NULL)
+         {
+            return null;
+         }
+         if (classA != Operator.BOOLEAN)
+         {
+            throw badObject(classA);
+         }
+
+         return (Boolean)a ? Boolean.FALSE : Boolean.TRUE;
+      }
+   }
+
+   private static final class And<M> extends Node<M>
+   {
+      private final Expression<M> left;
+
+      private final Expression<M> right;
+
+      And(final Operator source, final Expression<M> left, final Expression<M> right)
+      {
+         super(source);
+         this.left = left;
+         this.right = right;
+      }
+
+      @Override
+      public Object evaluate(final M message) throws Exception
+      {
+         Object a = left.evaluate(message);
+         int classA = classOf(this, a);
+
+         if (classA == Operator.BOOLEAN && !(Boolean)a)
+         {
+            return Boolean.FALSE;
+         }
+         if (classA != NULL && classA != Operator.BOOLEAN)
+         {
+            throw badObject(classA);
+         }
+
+         Object b = right.evaluate(message);
+         int classB = classOf(this, b);
+
+         if (classB == NULL)
+         {
+            return null;
+         }
+         if (classB != Operator.BOOLEAN)
+         {
+            throw badObject(classB);
+         }
+
+         if (classA == NULL)
+         {
+            // unknown AND true is unknown
+            return (Boolean)b ? null : Boolean.FALSE;
+         }
+
+         return b;
+      }
+   }
+
+   /**
+    * | OR   |   T   |   F   |   U
+    * +------+-------+-------+--------
+    * |  T   |   T   |   T   |   T
+    * |  F   |   T   |   F   |   U
+    * |  U   |   T   |   U   |   U
+    * +------+-------+-------+-------
+    */
+   private static final class Or<M> extends Node<M>
+   {
+      private final Expression<M> left;
+
+      private final Expression<M> right;
+
+      Or(final Operator source, final Expression<M> left, final Expression<M> right)
+      {
+         super(source);
+         this.left = left;
+         this.right = right;
+      }
+
+      @Override
+      public Object evaluate(final M message) throws Exception
+      {
+         Object a = left.evaluate(message);
+         int classA = classOf(this, a);
+
+         if (classA != NULL)
+         {
+            if (classA != Operator.BOOLEAN)
+            {
+               throw badObject(classA);
+            }
+            if ((Boolean)a)
+            {
+               return Boolean.TRUE;
+            }
+         }
+
+         Object b = right.evaluate(message);
+         int classB = classOf(this, b);
+
+         if (classB == NULL)
+         {
+            return null;
+         }
+         if (classB != Operator.BOOLEAN)
+         {
+            throw badObject(classB);
+         }
+         if ((Boolean)b)
+         {
+            return Boolean.TRUE;
+         }
+
+         return classA == NULL ? null : Boolean.FALSE;
+      }
+   }
+
+   private static final class Arithmetic<M> extends Node<M>
+   {
+      private final int operation;
+
+      private final Expression<M> left;
+
+      private final Expression<M> right;
+
+      Arithmetic(final Operator source, final Expression<M> left, final Expression<M> right)
+      {
+         super(source);
+         operation = source.operation;
+         this.left = left;
+         this.right = right;
+      }
+
+      @Override
+      public Object evaluate(final M message) throws Exception
+      {
+         Object a = left.evaluate(message);
+         int classA = classOf(this, a);
+         Object b = right.evaluate(message);
+         int classB = classOf(this, b);
+
+         if (classA == NULL || classB == NULL)
+         {
+            return null;
+         }
+         if (!isNumber(classA))
+         {
+            throw badObject(classA);
+         }
+         if (!isNumber(classB))
+         {
+            throw badObject(classB);
+         }
+
+         if (classA == Operator.LONG && classB == Operator.LONG)
+         {
+            long x = ((Number)a).longValue();
+            long y = ((Number)b).longValue();
+
+            switch (operation)
+            {
+               case Operator.ADD:
+                  return x + y;
+               case Operator.SUB:
+                  return x - y;
+               case Operator.MUL:
+                  return x * y;
+               default:
+                  return x / y;
+            }
+         }
+
+         double x = ((Number)a).doubleValue();
+         double y = ((Number)b).doubleValue();
+
+         switch (operation)
+         {
+            case Operator.ADD:
+               return x + y;
+            case Operator.SUB:
+               return x - y;
+            case Operator.MUL:
+               return x * y;
+            default:
+               return x / y;
+         }
+      }
+   }
+
+   private static final class Negate<M> extends Node<M>
+   {
+      private final Expression<M> operand;
+
+      Negate(final Operator source, final Expression<M> operand)
+      {
+         super(source);
+         this.operand = operand;
+      }
+
+      @Override
+      public Object evaluate(final M message) throws Exception
+      {
+         Object a = operand.evaluate(message);
+
+         switch (classOf(this, a))
+         {
+            case NULL:
+               return null;
+            case Operator.LONG:
+               return -((Number)a).longValue();
+            case Operator.DOUBLE:
+               return -((Number)a).doubleValue();
+            default:
+               throw badObject(classOf(this, a));
+         }
+      }
+   }
+
+   private static final class Like<M> extends Node<M>
+   {
+      private final Expression<M> operand;
+
+      private final boolean not;
+
+      private final RegExp re;
+
+      /** an invalid pattern fails the evaluations, as it did before selectors were compiled */
+      private final Exception invalid;
+
+      Like(final Operator source, final Expression<M> operand)
+      {
+         super(source);
+         this.operand = operand;
+
+         not = source.operation == Operator.NOT_LIKE || source.operation == Operator.NOT_LIKE_ESCAPE;
+
+         boolean escape = source.operation == Operator.LIKE_ESCAPE || source.operation == Operator.NOT_LIKE_ESCAPE;
+
+         RegExp pattern = null;
+         Exception error = null;
+
+         try
+         {
+            Character escapeChar = null;
+
+            if (escape)
+            {
+               SimpleString escapeString = (SimpleString)source.oper3;
+
+               if (escapeString.length() != 1)
+               {
+                  throw new Exception("LIKE ESCAPE: Bad escape character " + escapeString.toString());
+               }
+
+               escapeChar = Character.valueOf(escapeString.charAt(0));
+            }
+
+            pattern = new RegExp(source.oper2.toString(), escapeChar);
+         }
+         catch (Exception e)
+         {
+            error = e;
+         }
+
+         re = pattern;
+         invalid = error;
+      }
+
+      @Override
+      public Object evaluate(final M message) throws Exception
+      {
+         Object a = operand.evaluate(message);
+         int classA = classOf(this, a);
+
+         if (classA == NULL)
+         {
+            return null;
+         }
+         if (classA != Operator.SIMPLE_STRING)
+         {
+            throw badObject(classA);
+         }
+         if (invalid != null)
+         {
+            throw invalid;
+         }
+
+         return re.isMatch(a) != not;
+      }
+   }
+
+   private static final class In<M> extends Node<M>
+   {
+      private final Expression<M> operand;
+
+      private final boolean not;
+
+      private final Set<?> values;
+
+      In(final Operator source, final Expression<M> operand)
+      {
+         super(source);
+         this.operand = operand;
+         not = source.operation == Operator.NOT_IN;
+         values = new HashSet<Object>((Set<?>)source.oper2);
+      }
+
+      @Override
+      public Object evaluate(final M message) throws Exception
+      {
+         Object a = operand.evaluate(message);
+         int classA = classOf(this, a);
+
+         if (classA == NULL)
+         {
+            return not ? null : Boolean.FALSE;
+         }
+         if (classA != Operator.SIMPLE_STRING)
+         {
+            throw badObject(classA);
+         }
+
+         return values.contains(a) != not;
+      }
+   }
+
+   private static final class IsNull<M> extends Node<M>
+   {
+      private final Expression<M> operand;
+
+      private final boolean not;
+
+      IsNull(final Operator source, final Expression<M> operand)
+      {
+         super(source);
+         this.operand = operand;
+         not = source.operation == Operator.IS_NOT_NULL;
+      }
+
+      @Override
+      public Object evaluate(final M message) throws Exception
+      {
+         boolean isNull = classOf(this, operand.evaluate(message)) == NULL;
+
+         return isNull != not;
+      }
+   }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.filter.impl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.hornetq.api.core.SimpleString;
+
+/**
+ * A condition on one identifier that a message has to meet for a selector to match it: the
+ * identifier is one of a set of values, or a number within a range.
+ * <p>
+ * It is taken from the comparisons and IN lists ANDed at the top of the selector, so an index can
+ * skip the selectors whose condition a message doesn't meet without evaluating them. The selector
+ * still has to be evaluated on the messages meeting the condition.
+ */
+public final class SelectorCondition
+{
+   private final SimpleString identifier;
+
+   /** the keys of the values, see {@link #keyOf(Object)}, null on a range */
+   private final Set<Object> values;
+
+   private final double lower;
+
+   private final double upper;
+
+   private SelectorCondition(final SimpleString identifier, final Set<Object> values)
+   {
+      this.identifier = identifier;
+      this.values = Collections.unmodifiableSet(values);
+      lower = Double.NEGATIVE_INFINITY;
+      upper = Double.POSITIVE_INFINITY;
+   }
+
+   private SelectorCondition(final SimpleString identifier, final double lower, final double upper)
+   {
+      this.identifier = identifier;
+      values = null;
+      this.lower = lower;
+      this.upper = upper;
+   }
+
+   /**
+    * @param parsed the result of {@link FilterParser}
+    * @return the condition on the selector, or null if it hasn't one. An equality or IN list is
+    *         preferred over a range
+    */
+   public static SelectorCondition find(final Object parsed)
+   {
+      if (parsed instanceof Identifier)
+      {
+         // a boolean property
+         return new SelectorCondition(((Identifier)parsed).getName(), Collections.<Object>singleton(Boolean.TRUE));
+      }
+
+      if (!(parsed instanceof Operator))
+      {
+         return null;
+      }
+
+      Operator op = (Operator)parsed;
+
+      switch (op.operation)
+      {
+         case Operator.AND:
+         {
+            SelectorCondition left = find(op.oper1);
+            SelectorCondition right = find(op.oper2);
+
+            if (left == null || (left.isRange() && right != null))
+            {
+               return right;
+            }
+            return left;
+         }
+         case Operator.EQUAL:
+         {
+            if (op.oper1 instanceof Identifier && isLiteral(op.oper2))
+            {
+               return equal((Identifier)op.oper1, op.oper2);
+            }
+            if (op.oper2 instanceof Identifier && isLiteral(op.oper1))
+            {
+               return equal((Identifier)op.oper2, op.oper1);
+            }
+            return null;
+         }
+         case Operator.IN:
+         {
+            Set<Object> keys = new HashSet<Object>();
+
+            for (Object value : (Set<?>)op.oper2)
+            {
+               keys.add(keyOf(value));
+            }
+
+            return new SelectorCondition(((Identifier)op.oper1).getName(), keys);
+         }
+         case Operator.GT:
+         case Operator.GE:
+            return range(op.oper1, op.oper2, true);
+         case Operator.LT:
+         case Operator.LE:
+            return range(op.oper1, op.oper2, false);
+         case Operator.BETWEEN:
+         {
+            if (op.oper1 instanceof Identifier && op.oper2 instanceof Number && op.oper3 instanceof Number)
+            {
+               return new SelectorCondition(((Identifier)op.oper1).getName(),
+                                            ((Number)op.oper2).doubleValue(),
+                                            ((Number)op.oper3).doubleValue());
+            }
+            return null;
+         }
+         default:
+            return null;
+      }
+   }
+
+   /**
+    * The key a value is compared with on {@link #getValues()}.
+    * <p>
+    * Selectors compare integral and floating numbers by their numeric value, so numbers are keyed
+    * by their double value: numbers a selector sees as equal always have the same key.
+    *
+    * @return the key, or null if the value can't meet any condition
+    */
+   public static Object keyOf(final Object value)
+   {
+      if (value == null)
+      {
+         return null;
+      }
+
+      Class<?> clazz = value.getClass();
+
+      if (clazz == SimpleString.class || clazz == Boolean.class)
+      {
+         return value;
+      }
+
+      if (clazz == Long.class || clazz == Integer.class ||
+          clazz == Short.class ||
+          clazz == Byte.class ||
+          clazz == Double.class ||
+          clazz == Float.class)
+      {
+         double number = ((Number)value).doubleValue();
+
+         if (Double.isNaN(number))
+         {
+            // NaN is never equal, smaller nor greater than anything
+            return null;
+         }
+
+         // -0.0 == 0.0, but not as a key
+         return number + 0.0d;
+      }
+
+      return null;
+   }
+
+   public SimpleString getIdentifier()
+   {
+      return identifier;
+   }
+
+   public boolean isRange()
+   {
+      return values == null;
+   }
+
+   /**
+    * @return the keys of the values the identifier has to be one of, or null on a range
+    */
+   public Set<Object> getValues()
+   {
+      return values;
+   }
+
+   /**
+    * @return the lower bound of the range, inclusive, which may be -Infinity
+    */
+   public double getLower()
+   {
+      return lower;
+   }
+
+   /**
+    * @return the upper bound of the range, inclusive, which may be +Infinity
+    */
+   public double getUpper()
+   {
+      return upper;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "SelectorCondition [identifier=" + identifier +
+             (isRange() ? ", lower=" + lower + ", upper=" + upper : ", values=" + values) +
+             "]";
+   }
+
+   // Private -------------------------------------------------------
+
+   private static boolean isLiteral(final Object operand)
+   {
+      return operand instanceof SimpleString || operand instanceof Boolean || operand instanceof Number;
+   }
+
+   private static SelectorCondition equal(final Identifier identifier, final Object literal)
+   {
+      Object key = keyOf(literal);
+
+      if (key == null)
+      {
+         return null;
+      }
+
+      return new SelectorCondition(identifier.getName(), Collections.singleton(key));
+   }
+
+   /**
+    * The bounds are kept inclusive: the range may hold a few messages the selector doesn't match,
+    * as when comparing longs beyond the precision of a double, but never misses one.
+    *
+    * @param greater true for &gt; and &gt;=, false for &lt; and &lt;=
+    */
+   private static SelectorCondition range(final Object left, final Object right, final boolean greater)
+   {
+      if (left instanceof Identifier && right instanceof Number)
+      {
+         double bound = ((Number)right).doubleValue();
+
+         return greater ? new SelectorCondition(((Identifier)left).getName(), bound, Double.POSITIVE_INFINITY)
+                       : new SelectorCondition(((Identifier)left).getName(), Double.NEGATIVE_INFINITY, bound);
+      }
+
+      if (right instanceof Identifier && left instanceof Number)
+      {
+         // 5 < weight is weight > 5
+         return range(right, left, !greater);
+      }
+
+      return null;
+   }
+}
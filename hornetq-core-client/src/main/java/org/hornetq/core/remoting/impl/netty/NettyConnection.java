@@ -16,6 +16,7 @@ package org.hornetq.core.remoting.impl.netty;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.hornetq.api.core.HornetQBuffer;
 import org.hornetq.api.core.HornetQBuffers;
@@ -58,6 +59,9 @@ public class NettyConnection implements Connection
 
    private volatile HornetQBuffer batchBuffer;
 
+   // the batched writes are held while positive, see holdBatch
+   private final AtomicInteger batchHolds = new AtomicInteger(0);
+
    private final Map<String, Object> configuration;
 
    private final Semaphore writeLock = new Semaphore(1);
@@ -162,6 +166,43 @@ public class NettyConnection implements Connection
       }
    }
 
+   public void holdBatch()
+   {
+      batchHolds.incrementAndGet();
+   }
+
+   public void releaseBatch()
+   {
+      if (batchHolds.decrementAndGet() > 0)
+      {
+         // an outer hold flushes it
+         return;
+      }
+
+      try
+      {
+         writeLock.acquire();
+
+         try
+         {
+            if (batchBuffer != null && batchBuffer.readable())
+            {
+               channel.write(batchBuffer.channelBuffer());
+
+               batchBuffer = batchingEnabled ? HornetQBuffers.dynamicBuffer(BATCHING_BUFFER_SIZE) : null;
+            }
+         }
+         finally
+         {
+            writeLock.release();
+         }
+      }
+      catch (InterruptedException e)
+      {
+         throw new HornetQInterruptedException(e);
+      }
+   }
+
    public void write(final HornetQBuffer buffer)
    {
       write(buffer, false, false);
@@ -176,7 +217,7 @@ public class NettyConnection implements Connection
 
          try
          {
-            if (batchBuffer == null && batchingEnabled && batched && !flush)
+            if (batchBuffer == null && (batchingEnabled || batchHolds.get() > 0) && batched && !flush)
             {
                // Lazily create batch buffer
 
@@ -198,7 +239,7 @@ public class NettyConnection implements Connection
                   return;
                }
 
-               if (!batched || flush)
+               if (!batched || flush || !batchingEnabled && batchHolds.get() == 0)
                {
                   batchBuffer = null;
                }
@@ -71,6 +71,17 @@ public interface Connection
     */
    void checkFlushBatchBuffer();
 
+   /**
+    * Holds the batched writes in the batch buffer even if batching isn't enabled on this connection, until
+    * {@link #releaseBatch()} is called as many times as this.
+    */
+   void holdBatch();
+
+   /**
+    * Releases a {@link #holdBatch()}, flushing the batch buffer once no hold is left.
+    */
+   void releaseBatch();
+
    void addReadyListener(ReadyListener listener);
 
    void removeReadyListener(ReadyListener listener);
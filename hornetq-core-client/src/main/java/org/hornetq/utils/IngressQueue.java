@@ -0,0 +1,154 @@
+/*
+ * Copyright 2010 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A lock free queue many threads add to, and a single thread takes all the elements from at once.
+ * <p>
+ * The elements added are pushed on a stack, which is taken whole and reversed to the order they were added in. The
+ * elements extending {@link Node} are linked through themselves, so adding them doesn't allocate; other elements are
+ * wrapped on a node.
+ * <p>
+ * An element extending Node can only be on one IngressQueue at a time, and can only be added again after it is
+ * drained.
+ */
+public final class IngressQueue<E>
+{
+   private final AtomicReference<Node<E>> top = new AtomicReference<Node<E>>();
+
+   /**
+    * The link of an element to the one added before it on an IngressQueue.
+    */
+   public abstract static class Node<E>
+   {
+      // set before the node is pushed and cleared when it is drained; volatile as snapshot and size walk the links
+      // while a drain may be clearing them
+      private volatile Node<E> next;
+
+      /**
+       * @return the element this node links, usually the node itself
+       */
+      protected abstract E getIngressElement();
+   }
+
+   private static final class Wrapper<E> extends Node<E>
+   {
+      private final E element;
+
+      Wrapper(final E element)
+      {
+         this.element = element;
+      }
+
+      @Override
+      protected E getIngressElement()
+      {
+         return element;
+      }
+   }
+
+   @SuppressWarnings("unchecked")
+   public void add(final E element)
+   {
+      Node<E> node = element instanceof Node ? (Node<E>)element : new Wrapper<E>(element);
+
+      Node<E> current;
+
+      do
+      {
+         current = top.get();
+
+         node.next = current;
+      }
+      while (!top.compareAndSet(current, node));
+   }
+
+   public boolean isEmpty()
+   {
+      return top.get() == null;
+   }
+
+   /**
+    * Takes all the elements added, appending them to elements in the order they were added.
+    * Only one thread may drain at a time.
+    *
+    * @return the number of elements taken
+    */
+   public int drainTo(final List<E> elements)
+   {
+      Node<E> node = top.getAndSet(null);
+
+      if (node == null)
+      {
+         return 0;
+      }
+
+      int start = elements.size();
+
+      while (node != null)
+      {
+         elements.add(node.getIngressElement());
+
+         // a drained node doesn't keep the ones added before it reachable
+         Node<E> next = node.next;
+
+         node.next = null;
+
+         node = next;
+      }
+
+      Collections.reverse(elements.subList(start, elements.size()));
+
+      return elements.size() - start;
+   }
+
+   /**
+    * @return the elements currently on the queue, in the order they were added. Elements being drained may or may not
+    *         be included, as the walk stops at a node the drain already unlinked
+    */
+   public List<E> snapshot()
+   {
+      List<E> elements = new ArrayList<E>();
+
+      for (Node<E> node = top.get(); node != null; node = node.next)
+      {
+         elements.add(node.getIngressElement());
+      }
+
+      Collections.reverse(elements);
+
+      return elements;
+   }
+
+   /**
+    * @return the number of elements on the queue, counted walking it. Like {@link #snapshot()}, elements being
+    *         drained may or may not be counted
+    */
+   public int size()
+   {
+      int size = 0;
+
+      for (Node<E> node = top.get(); node != null; node = node.next)
+      {
+         size++;
+      }
+
+      return size;
+   }
+}
@@ -14,6 +14,10 @@
 package org.hornetq.utils;
 
 import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 
@@ -23,6 +27,9 @@ import java.util.NoSuchElementException;
  *
  * This class is not thread safe.
  *
+ * The elements can also be indexed by an ID given by an {@link IDSupplier}, and then removed by that
+ * ID without walking the list.
+ *
  * @author Tim Fox
  *
  *
@@ -44,6 +51,13 @@ public class LinkedListImpl<E> implements LinkedList<E>
 
    private int nextIndex;
 
+   private IDSupplier<E> idSupplier;
+
+   private Map<Long, Node<E>> nodesByID;
+
+   /** The nodes indexed by an ID already taken by an older node, which take its place once it is removed */
+   private Map<Long, List<Node<E>>> duplicatesByID;
+
    public LinkedListImpl()
    {
       iters = createIteratorArray(INITIAL_ITERATOR_ARRAY_SIZE);
@@ -70,6 +84,8 @@ public class LinkedListImpl<E> implements LinkedList<E>
       }
 
       size++;
+
+      index(node);
    }
 
    public void addTail(E e)
@@ -89,6 +105,8 @@ public class LinkedListImpl<E> implements LinkedList<E>
          tail = node;
 
          size++;
+
+         index(node);
       }
    }
 
@@ -113,6 +131,76 @@ public class LinkedListImpl<E> implements LinkedList<E>
       tail = head.next = null;
 
       size = 0;
+
+      if (nodesByID != null)
+      {
+         nodesByID.clear();
+         duplicatesByID = null;
+      }
+   }
+
+   /**
+    * Indexes the elements by the IDs given by supplier, including the ones already on the list.
+    * A null supplier drops the index.
+    */
+   public void setIDSupplier(final IDSupplier<E> supplier)
+   {
+      idSupplier = supplier;
+
+      duplicatesByID = null;
+
+      if (supplier == null)
+      {
+         nodesByID = null;
+      }
+      else
+      {
+         nodesByID = new HashMap<Long, Node<E>>();
+
+         for (Node<E> node = head.next; node != null; node = node.next)
+         {
+            index(node);
+         }
+      }
+   }
+
+   /**
+    * Removes the element indexed by id, as if it was removed by an iterator.
+    *
+    * @return the element removed, or null if there is no element indexed by id
+    */
+   public E removeWithID(final long id)
+   {
+      if (nodesByID == null)
+      {
+         return null;
+      }
+
+      Node<E> node = nodesByID.get(id);
+
+      if (node == null)
+      {
+         return null;
+      }
+
+      removeAfter(node.prev);
+
+      return node.val;
+   }
+
+   /**
+    * @return the element indexed by id, or null if there is no element indexed by id
+    */
+   public E getWithID(final long id)
+   {
+      if (nodesByID == null)
+      {
+         return null;
+      }
+
+      Node<E> node = nodesByID.get(id);
+
+      return node == null ? null : node.val;
    }
 
    public int size()
@@ -174,6 +262,8 @@ public class LinkedListImpl<E> implements LinkedList<E>
 
       size--;
 
+      unindex(toRemove);
+
       if (toRemove.iterCount != 0)
       {
          LinkedListImpl.this.nudgeIterators(toRemove);
@@ -184,6 +274,78 @@ public class LinkedListImpl<E> implements LinkedList<E>
       toRemove.next = toRemove.prev = null;
    }
 
+   private void index(final Node<E> node)
+   {
+      if (idSupplier != null)
+      {
+         node.id = idSupplier.getID(node.val);
+
+         if (node.id >= 0)
+         {
+            Node<E> indexed = nodesByID.put(node.id, node);
+
+            if (indexed != null)
+            {
+               // the oldest keeps the ID
+               nodesByID.put(node.id, indexed);
+
+               if (duplicatesByID == null)
+               {
+                  duplicatesByID = new HashMap<Long, List<Node<E>>>();
+               }
+
+               List<Node<E>> duplicates = duplicatesByID.get(node.id);
+
+               if (duplicates == null)
+               {
+                  duplicates = new ArrayList<Node<E>>(1);
+                  duplicatesByID.put(node.id, duplicates);
+               }
+
+               duplicates.add(node);
+            }
+         }
+      }
+   }
+
+   private void unindex(final Node<E> node)
+   {
+      if (node.id < 0 || nodesByID == null)
+      {
+         return;
+      }
+
+      List<Node<E>> duplicates = duplicatesByID == null ? null : duplicatesByID.get(node.id);
+
+      if (nodesByID.get(node.id) == node)
+      {
+         if (duplicates == null)
+         {
+            nodesByID.remove(node.id);
+         }
+         else
+         {
+            nodesByID.put(node.id, duplicates.remove(0));
+         }
+      }
+      else if (duplicates != null)
+      {
+         for (int i = 0; i < duplicates.size(); i++)
+         {
+            if (duplicates.get(i) == node)
+            {
+               duplicates.remove(i);
+               break;
+            }
+         }
+      }
+
+      if (duplicates != null && duplicates.isEmpty())
+      {
+         duplicatesByID.remove(node.id);
+      }
+   }
+
    private synchronized void nudgeIterators(Node<E> node)
    {
       for (int i = 0; i < numIters; i++)
@@ -258,6 +420,9 @@ public class LinkedListImpl<E> implements LinkedList<E>
 
       int iterCount;
 
+      /** The ID it is indexed by, kept as the ID given by the element may change */
+      long id = -1;
+
       Node(E e)
       {
          val = e;
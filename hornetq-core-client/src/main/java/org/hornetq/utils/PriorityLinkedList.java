@@ -37,4 +37,19 @@ public interface PriorityLinkedList<T>
    LinkedListIterator<T> iterator();
 
    boolean isEmpty();
+
+   /**
+    * Indexes the elements of every priority by the IDs given by supplier.
+    */
+   void setIDSupplier(IDSupplier<T> supplier);
+
+   /**
+    * @return the element removed, or null if there is no element indexed by id
+    */
+   T removeWithID(long id);
+
+   /**
+    * @return the element indexed by id, or null if there is no element indexed by id
+    */
+   T getWithID(long id);
 }
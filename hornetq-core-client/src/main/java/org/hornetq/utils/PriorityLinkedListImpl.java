@@ -150,6 +150,52 @@ public class PriorityLinkedListImpl<T> implements PriorityLinkedList<T>
       return new PriorityLinkedListIterator();
    }
 
+   public void setIDSupplier(final IDSupplier<T> supplier)
+   {
+      for (LinkedListImpl<T> list : levels)
+      {
+         list.setIDSupplier(supplier);
+      }
+   }
+
+   public T removeWithID(final long id)
+   {
+      for (int i = levels.length - 1; i >= 0; i--)
+      {
+         T t = levels[i].removeWithID(id);
+
+         if (t != null)
+         {
+            size--;
+
+            // same as on the iterator, the highest priority may have to go down more than one level
+            while (highestPriority >= 0 && levels[highestPriority].size() == 0)
+            {
+               highestPriority--;
+            }
+
+            return t;
+         }
+      }
+
+      return null;
+   }
+
+   public T getWithID(final long id)
+   {
+      for (int i = levels.length - 1; i >= 0; i--)
+      {
+         T t = levels[i].getWithID(id);
+
+         if (t != null)
+         {
+            return t;
+         }
+      }
+
+      return null;
+   }
+
    private class PriorityLinkedListIterator implements LinkedListIterator<T>
    {
       private int index;
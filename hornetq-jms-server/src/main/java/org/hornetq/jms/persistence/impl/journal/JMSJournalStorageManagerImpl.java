@@ -82,9 +82,10 @@ public final class JMSJournalStorageManagerImpl implements JMSStorageManager
                                        final Configuration config,
                                 final ReplicationManager replicator)
    {
-      if (config.getJournalType() != JournalType.NIO && config.getJournalType() != JournalType.ASYNCIO)
+      if (config.getJournalType() != JournalType.NIO && config.getJournalType() != JournalType.ASYNCIO &&
+          config.getJournalType() != JournalType.MAPPED)
       {
-         throw new IllegalArgumentException("Only NIO and AsyncIO are supported journals");
+         throw new IllegalArgumentException("Only NIO, AsyncIO and Mapped are supported journals");
       }
 
       // Will use the same place as the bindings directory from the core journal
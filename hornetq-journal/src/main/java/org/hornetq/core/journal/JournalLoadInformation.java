@@ -24,6 +24,11 @@ public class JournalLoadInformation
 
    private long maxID = -1;
 
+   /** Timing of the load, not part of {@link #equals(Object)} as it's not a property of the data */
+   private long scanTime;
+
+   private long mergeTime;
+
    public JournalLoadInformation()
    {
       super();
@@ -72,6 +77,32 @@ public class JournalLoadInformation
       this.maxID = maxID;
    }
 
+   /**
+    * @return the milliseconds spent reading the journal files, or waiting for them to be read
+    */
+   public long getScanTime()
+   {
+      return scanTime;
+   }
+
+   public void setScanTime(final long scanTime)
+   {
+      this.scanTime = scanTime;
+   }
+
+   /**
+    * @return the milliseconds spent applying the records read from the files
+    */
+   public long getMergeTime()
+   {
+      return mergeTime;
+   }
+
+   public void setMergeTime(final long mergeTime)
+   {
+      this.mergeTime = mergeTime;
+   }
+
    @Override
    public int hashCode()
    {
@@ -55,6 +55,16 @@ public interface TestableJournal extends Journal
 
    void testCompact();
 
+   /**
+    * Runs a single incremental compacting pass, over the oldest files.
+    */
+   void testCompactIncremental();
+
+   /**
+    * Writes a checkpoint of the files before the current one.
+    */
+   void testCheckpoint();
+
    JournalFile getCurrentFile();
 
    /**
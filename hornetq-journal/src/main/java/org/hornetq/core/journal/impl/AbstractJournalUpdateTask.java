@@ -16,7 +16,6 @@ package org.hornetq.core.journal.impl;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import org.hornetq.api.core.HornetQBuffer;
 import org.hornetq.api.core.HornetQBuffers;
@@ -27,6 +26,7 @@ import org.hornetq.core.journal.impl.dataformat.ByteArrayEncoding;
 import org.hornetq.core.journal.impl.dataformat.JournalAddRecord;
 import org.hornetq.core.journal.impl.dataformat.JournalInternalRecord;
 import org.hornetq.utils.ConcurrentHashSet;
+import org.hornetq.utils.ConcurrentLongHashMap;
 
 /**
  *
@@ -56,9 +56,16 @@ public abstract class AbstractJournalUpdateTask implements JournalReaderCallback
 
    protected long nextOrderingID;
 
+   /** The format of the files written by the task, taken when it starts so all its files share it */
+   protected final int formatVersion;
+
    private HornetQBuffer writingChannel;
 
-   private final Set<Long> recordsSnapshot = new ConcurrentHashSet<Long>();
+   /** The records of the journal when the task started, they are not changed after that */
+   private final ConcurrentLongHashMap<JournalRecord> recordsSnapshot;
+
+   /** Records added while the task was running, which still have to be known by {@link #lookupRecord(long)} */
+   private final ConcurrentHashSet<Long> recordsAdded = new ConcurrentHashSet<Long>();
 
    protected final List<JournalFile> newDataFiles = new ArrayList<JournalFile>();
 
@@ -69,7 +76,7 @@ public abstract class AbstractJournalUpdateTask implements JournalReaderCallback
    protected AbstractJournalUpdateTask(final SequentialFileFactory fileFactory,
                                        final JournalImpl journal,
                                        final JournalFilesRepository filesRepository,
-                                       final Set<Long> recordsSnapshot,
+                                       final ConcurrentLongHashMap<JournalRecord> recordsSnapshot,
                                        final long nextOrderingID)
    {
       super();
@@ -77,7 +84,8 @@ public abstract class AbstractJournalUpdateTask implements JournalReaderCallback
       this.filesRepository = filesRepository;
       this.fileFactory = fileFactory;
       this.nextOrderingID = nextOrderingID;
-      this.recordsSnapshot.addAll(recordsSnapshot);
+      this.recordsSnapshot = recordsSnapshot;
+      this.formatVersion = journal.getFormatVersion();
    }
 
    // Public --------------------------------------------------------
@@ -193,7 +201,7 @@ public abstract class AbstractJournalUpdateTask implements JournalReaderCallback
 
    public boolean lookupRecord(final long id)
    {
-      return recordsSnapshot.contains(id);
+      return recordsSnapshot.containsKey(id) || recordsAdded.contains(id);
    }
 
    // Package protected ---------------------------------------------
@@ -217,14 +225,14 @@ public abstract class AbstractJournalUpdateTask implements JournalReaderCallback
 
       sequentialFile.open(1, false);
 
-      currentFile = new JournalFileImpl(sequentialFile, nextOrderingID++, JournalImpl.FORMAT_VERSION);
+      currentFile = new JournalFileImpl(sequentialFile, nextOrderingID++, formatVersion);
 
-      JournalImpl.writeHeader(writingChannel, journal.getUserVersion(), currentFile.getFileID());
+      JournalImpl.writeHeader(writingChannel, formatVersion, journal.getUserVersion(), currentFile.getFileID());
    }
 
    protected void addToRecordsSnaptshot(final long id)
    {
-      recordsSnapshot.add(id);
+      recordsAdded.add(id);
    }
 
    /**
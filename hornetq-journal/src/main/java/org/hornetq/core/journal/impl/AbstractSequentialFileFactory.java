@@ -72,7 +72,12 @@ abstract class AbstractSequentialFileFactory implements SequentialFileFactory
    {
       this.journalDir = journalDir;
 
-      if (buffered)
+      if (buffered && Boolean.getBoolean(RingTimedBuffer.RING_BUFFER_PROPERTY))
+      {
+         // the factories only return a constant alignment, so it can be asked for while constructing
+         timedBuffer = new RingTimedBuffer(bufferSize, bufferTimeout, getAlignment());
+      }
+      else if (buffered)
       {
          timedBuffer = new TimedBuffer(bufferSize, bufferTimeout, logRates);
       }
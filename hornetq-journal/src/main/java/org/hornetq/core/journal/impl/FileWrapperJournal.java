@@ -97,7 +97,13 @@ public final class FileWrapperJournal extends JournalBase
          {
             callback.storeLineUp();
          }
+         encoder.setChecksum(JournalImpl.hasChecksum(currentFile));
          currentFile = journal.switchFileIfNecessary(encoder.getEncodeSize());
+         if (encoder.isChecksum() != JournalImpl.hasChecksum(currentFile))
+         {
+            encoder.setChecksum(JournalImpl.hasChecksum(currentFile));
+            currentFile = journal.switchFileIfNecessary(encoder.getEncodeSize());
+         }
          encoder.setFileID(currentFile.getRecordID());
 
          if (callback != null)
@@ -0,0 +1,1601 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.journal.impl;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.hornetq.api.core.Pair;
+import org.hornetq.core.journal.RecordInfo;
+import org.hornetq.core.journal.SequentialFile;
+import org.hornetq.core.journal.SequentialFileFactory;
+import org.hornetq.utils.ConcurrentLongHashMap;
+
+/**
+ * The state of the journal after loading all the data files older than a given file (the cut).
+ * <p>
+ * A checkpoint holds the positions of the live records, the transactions still open at the cut
+ * and the reference counters of each file, which is what {@link JournalImpl#load(LoaderCallback)}
+ * would have built by reading those files. Loading then starts from the checkpoint, reads the live
+ * records at their positions and only reads the files from the cut on, so the time to restart
+ * depends on the live data and not on the history of the journal.
+ * <p>
+ * The files covered by the checkpoint are identified by their ID and name. Files reclaimed after
+ * the checkpoint was taken are simply missing when loading: everything that happened on them is
+ * ignored, the same way a regular load ignores it. Compacting rewrites the covered files, so it
+ * invalidates the checkpoint. An incremental compacting pass then writes it again from the previous
+ * one, only reading the files the pass wrote.
+ */
+final class JournalCheckpoint
+{
+   static final String EXTENSION = "checkpoint";
+
+   private static final String TMP_EXTENSION = ".tmp";
+
+   // "HQCP"
+   private static final int MAGIC = 0x48514350;
+
+   private static final int FORMAT_VERSION = 2;
+
+   // magic, format version, user version, body size and the CRC of the body
+   private static final int SIZE_HEADER = 28;
+
+   // The checkpoint is written and read through a buffer of this size
+   private static final int BUFFER_SIZE = 128 * 1024;
+
+   private final long cutFileID;
+
+   private final long maxID;
+
+   private final List<FileEntry> files;
+
+   private final List<RecordEntry> records;
+
+   private final List<LoadedRecord> loadedRecords;
+
+   private final List<TransactionEvent> transactionEvents;
+
+   private JournalCheckpoint(final long cutFileID,
+                             final long maxID,
+                             final List<FileEntry> files,
+                             final List<RecordEntry> records,
+                             final List<LoadedRecord> loadedRecords,
+                             final List<TransactionEvent> transactionEvents)
+   {
+      this.cutFileID = cutFileID;
+      this.maxID = maxID;
+      this.files = files;
+      this.records = records;
+      this.loadedRecords = loadedRecords;
+      this.transactionEvents = transactionEvents;
+   }
+
+   /**
+    * @return the ID of the first file not covered by the checkpoint
+    */
+   long getCutFileID()
+   {
+      return cutFileID;
+   }
+
+   /**
+    * @return the highest record ID seen on the covered files
+    */
+   long getMaxID()
+   {
+      return maxID;
+   }
+
+   /**
+    * @return the covered files, in the journal order
+    */
+   List<FileEntry> getFiles()
+   {
+      return files;
+   }
+
+   /**
+    * @return the reference counting of the live records
+    */
+   List<RecordEntry> getRecords()
+   {
+      return records;
+   }
+
+   /**
+    * @return the adds and updates given to the loader, in the order they were given
+    */
+   List<LoadedRecord> getLoadedRecords()
+   {
+      return loadedRecords;
+   }
+
+   /**
+    * @return the records of the transactions open at the cut, grouped by transaction
+    */
+   List<TransactionEvent> getTransactionEvents()
+   {
+      return transactionEvents;
+   }
+
+   /**
+    * Restores the reference counting of the covered files still there, and of the records added
+    * on them. The transactions have to be restored before, as the counters of the files already
+    * account for them.
+    *
+    * @param coveredFiles the covered files with data that were not reclaimed, by ID
+    * @param liveRecords receives the live records. The ones it already has were moved by
+    *           compacting to a file read before, and only take their updates on the covered files
+    * @return the records added on a reclaimed file, which are dead even if their delete was
+    *         reclaimed as well
+    */
+   Set<Long> restore(final Map<Long, JournalFile> coveredFiles, final ConcurrentLongHashMap<JournalRecord> liveRecords)
+   {
+      final Set<Long> droppedRecords = new HashSet<Long>();
+
+      final List<RecordEntry> droppedEntries = new ArrayList<RecordEntry>();
+
+      for (RecordEntry entry : records)
+      {
+         JournalFile addFile = coveredFiles.get(entry.addFileID);
+
+         JournalRecord moved = addFile == null ? liveRecords.get(entry.id) : null;
+
+         if (moved != null)
+         {
+            for (int i = 0; i < entry.updateFileIDs.length; i++)
+            {
+               JournalFile updateFile = coveredFiles.get(entry.updateFileIDs[i]);
+
+               if (updateFile != null)
+               {
+                  moved.addUpdateFile(updateFile, entry.updateSizes[i]);
+               }
+            }
+            continue;
+         }
+
+         if (addFile == null)
+         {
+            droppedRecords.add(entry.id);
+            droppedEntries.add(entry);
+            continue;
+         }
+
+         JournalRecord record = new JournalRecord(addFile, entry.size);
+
+         for (int i = 0; i < entry.updateFileIDs.length; i++)
+         {
+            JournalFile updateFile = coveredFiles.get(entry.updateFileIDs[i]);
+
+            if (updateFile != null)
+            {
+               record.addUpdateFile(updateFile, entry.updateSizes[i]);
+            }
+         }
+
+         liveRecords.put(entry.id, record);
+      }
+
+      // The counters are the ones of the whole files, not only of what was restored
+      for (FileEntry entry : files)
+      {
+         JournalFile file = coveredFiles.get(entry.fileID);
+
+         if (file != null)
+         {
+            Map<JournalFile, Integer> negatives = new HashMap<JournalFile, Integer>();
+
+            for (int i = 0; i < entry.negFileIDs.length; i++)
+            {
+               JournalFile negFile = coveredFiles.get(entry.negFileIDs[i]);
+
+               if (negFile != null)
+               {
+                  negatives.put(negFile, entry.negCounts[i]);
+               }
+            }
+
+            ((JournalFileImpl)file).restoreCounters(entry.posCount, entry.liveSize, negatives);
+         }
+      }
+
+      // Except for the updates of the dropped records, which were counted as live
+      for (RecordEntry entry : droppedEntries)
+      {
+         for (int i = 0; i < entry.updateFileIDs.length; i++)
+         {
+            JournalFile updateFile = coveredFiles.get(entry.updateFileIDs[i]);
+
+            if (updateFile != null)
+            {
+               updateFile.decPosCount();
+               updateFile.decSize(entry.updateSizes[i]);
+            }
+         }
+      }
+
+      return droppedRecords;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "JournalCheckpoint(cut=" + cutFileID + ", files=" + files.size() + ", records=" + records.size() +
+             ", transactionEvents=" + transactionEvents.size() + ")";
+   }
+
+   // Persistence ---------------------------------------------------
+
+   static String getFileName(final String filePrefix)
+   {
+      return filePrefix + "." + JournalCheckpoint.EXTENSION;
+   }
+
+   /**
+    * Writes the checkpoint on a temporary file first, with its header last, and then renames it
+    * over the previous one. A crash while writing leaves the previous checkpoint (or none) in place.
+    */
+   void write(final SequentialFileFactory fileFactory, final String fileName, final int userVersion) throws Exception
+   {
+      SequentialFile tmpFile = fileFactory.createSequentialFile(fileName + JournalCheckpoint.TMP_EXTENSION, 1);
+
+      if (tmpFile.exists())
+      {
+         tmpFile.delete();
+      }
+
+      final int headerSize = fileFactory.calculateBlockSize(JournalCheckpoint.SIZE_HEADER);
+
+      tmpFile.open(1, false);
+      try
+      {
+         tmpFile.position(headerSize);
+
+         CheckpointOutput output = new CheckpointOutput(fileFactory, tmpFile);
+         try
+         {
+            encode(new DataOutputStream(output));
+         }
+         finally
+         {
+            output.close();
+         }
+
+         ByteBuffer header = fileFactory.newBuffer(headerSize);
+         header.putInt(JournalCheckpoint.MAGIC);
+         header.putInt(JournalCheckpoint.FORMAT_VERSION);
+         header.putInt(userVersion);
+         header.putLong(output.size);
+         header.putLong(output.crc.getValue());
+         header.flip();
+
+         tmpFile.position(0);
+         tmpFile.writeDirect(header, true);
+      }
+      finally
+      {
+         tmpFile.close();
+      }
+
+      try
+      {
+         tmpFile.renameTo(fileName);
+      }
+      catch (Exception e)
+      {
+         // The file system doesn't replace the previous checkpoint on a rename. If a crash happens
+         // before the rename, read() takes the temporary file, which is complete at this point
+         fileFactory.createSequentialFile(fileName, 1).delete();
+
+         tmpFile.renameTo(fileName);
+      }
+   }
+
+   /**
+    * @return the checkpoint, or null if there is no checkpoint file
+    * @throws IllegalStateException if the file is corrupted or from another version
+    */
+   static JournalCheckpoint read(final SequentialFileFactory fileFactory, final String fileName, final int userVersion) throws Exception
+   {
+      SequentialFile file = fileFactory.createSequentialFile(fileName, 1);
+
+      boolean temporary = false;
+
+      if (!file.exists())
+      {
+         file = fileFactory.createSequentialFile(fileName + JournalCheckpoint.TMP_EXTENSION, 1);
+
+         if (!file.exists())
+         {
+            return null;
+         }
+
+         temporary = true;
+      }
+
+      final int headerSize = fileFactory.calculateBlockSize(JournalCheckpoint.SIZE_HEADER);
+
+      final long bodySize;
+
+      final long crcValue;
+
+      file.open(1, false);
+      try
+      {
+         ByteBuffer header = fileFactory.newBuffer(headerSize);
+         try
+         {
+            header.limit(headerSize);
+
+            if (file.size() < headerSize || file.read(header) < JournalCheckpoint.SIZE_HEADER)
+            {
+               throw new IllegalStateException("Invalid checkpoint " + fileName);
+            }
+
+            header.rewind();
+
+            if (header.getInt() != JournalCheckpoint.MAGIC)
+            {
+               if (temporary)
+               {
+                  // The header is the last thing written, it was never completed
+                  file.close();
+                  file.delete();
+                  return null;
+               }
+
+               throw new IllegalStateException("Invalid checkpoint " + fileName);
+            }
+
+            int formatVersion = header.getInt();
+            int fileUserVersion = header.getInt();
+
+            if (formatVersion != JournalCheckpoint.FORMAT_VERSION || fileUserVersion != userVersion)
+            {
+               throw new IllegalStateException("Checkpoint " + fileName + " belongs to a different version");
+            }
+
+            bodySize = header.getLong();
+            crcValue = header.getLong();
+         }
+         finally
+         {
+            fileFactory.releaseBuffer(header);
+         }
+
+         if (bodySize < 0 || bodySize > file.size() - headerSize)
+         {
+            throw new IllegalStateException("Checkpoint " + fileName + " is incomplete");
+         }
+
+         // The body is read twice, as it can't be trusted before its CRC is checked
+         CheckpointInput input = new CheckpointInput(fileFactory, file, headerSize, bodySize, fileName, true);
+         try
+         {
+            input.skipAll();
+         }
+         finally
+         {
+            input.close();
+         }
+
+         if (input.crc.getValue() != crcValue)
+         {
+            throw new IllegalStateException("Checkpoint " + fileName + " is corrupted");
+         }
+      }
+      finally
+      {
+         file.close();
+      }
+
+      if (temporary)
+      {
+         file.renameTo(fileName);
+      }
+
+      file.open(1, false);
+      try
+      {
+         CheckpointInput input = new CheckpointInput(fileFactory, file, headerSize, bodySize, fileName, false);
+         try
+         {
+            return JournalCheckpoint.decode(new DataInputStream(input));
+         }
+         finally
+         {
+            input.close();
+         }
+      }
+      finally
+      {
+         file.close();
+      }
+   }
+
+   private void encode(final DataOutputStream output) throws Exception
+   {
+      output.writeLong(cutFileID);
+      output.writeLong(maxID);
+
+      output.writeInt(files.size());
+      for (FileEntry file : files)
+      {
+         output.writeLong(file.fileID);
+         output.writeUTF(file.fileName);
+         output.writeBoolean(file.hasData);
+         output.writeInt(file.lastDataPos);
+         output.writeInt(file.posCount);
+         output.writeInt(file.liveSize);
+         output.writeInt(file.negFileIDs.length);
+         for (int i = 0; i < file.negFileIDs.length; i++)
+         {
+            output.writeLong(file.negFileIDs[i]);
+            output.writeInt(file.negCounts[i]);
+         }
+      }
+
+      output.writeInt(records.size());
+      for (RecordEntry record : records)
+      {
+         output.writeLong(record.id);
+         output.writeLong(record.addFileID);
+         output.writeInt(record.size);
+         output.writeInt(record.updateFileIDs.length);
+         for (int i = 0; i < record.updateFileIDs.length; i++)
+         {
+            output.writeLong(record.updateFileIDs[i]);
+            output.writeInt(record.updateSizes[i]);
+         }
+      }
+
+      output.writeInt(loadedRecords.size());
+      for (LoadedRecord loaded : loadedRecords)
+      {
+         output.writeLong(loaded.fileID);
+         output.writeLong(loaded.id);
+         output.writeInt(loaded.position);
+         output.writeInt(loaded.length);
+      }
+
+      output.writeInt(transactionEvents.size());
+      for (TransactionEvent event : transactionEvents)
+      {
+         output.writeByte(event.type);
+         output.writeLong(event.transactionID);
+         output.writeLong(event.fileID);
+         if (event.type == JournalImpl.PREPARE_RECORD)
+         {
+            output.writeInt(event.numberOfRecords);
+            output.writeInt(event.extraData.length);
+            output.write(event.extraData);
+         }
+         else
+         {
+            output.writeLong(event.recordID);
+            output.writeInt(event.position);
+            output.writeInt(event.length);
+            output.writeInt(event.countedSize);
+         }
+      }
+
+      output.flush();
+   }
+
+   private static JournalCheckpoint decode(final DataInputStream input) throws Exception
+   {
+      long cutFileID = input.readLong();
+      long maxID = input.readLong();
+
+      int numberOfFiles = input.readInt();
+      List<FileEntry> files = new ArrayList<FileEntry>(numberOfFiles);
+      for (int i = 0; i < numberOfFiles; i++)
+      {
+         long fileID = input.readLong();
+         String fileName = input.readUTF();
+         boolean hasData = input.readBoolean();
+         int lastDataPos = input.readInt();
+         int posCount = input.readInt();
+         int liveSize = input.readInt();
+         int numberOfNegs = input.readInt();
+         long[] negFileIDs = new long[numberOfNegs];
+         int[] negCounts = new int[numberOfNegs];
+         for (int j = 0; j < numberOfNegs; j++)
+         {
+            negFileIDs[j] = input.readLong();
+            negCounts[j] = input.readInt();
+         }
+         files.add(new FileEntry(fileID, fileName, hasData, lastDataPos, posCount, liveSize, negFileIDs, negCounts));
+      }
+
+      int numberOfRecords = input.readInt();
+      List<RecordEntry> records = new ArrayList<RecordEntry>(numberOfRecords);
+      for (int i = 0; i < numberOfRecords; i++)
+      {
+         long id = input.readLong();
+         long addFileID = input.readLong();
+         int size = input.readInt();
+         int numberOfUpdates = input.readInt();
+         long[] updateFileIDs = new long[numberOfUpdates];
+         int[] updateSizes = new int[numberOfUpdates];
+         for (int j = 0; j < numberOfUpdates; j++)
+         {
+            updateFileIDs[j] = input.readLong();
+            updateSizes[j] = input.readInt();
+         }
+         records.add(new RecordEntry(id, addFileID, size, updateFileIDs, updateSizes));
+      }
+
+      int numberOfLoaded = input.readInt();
+      List<LoadedRecord> loadedRecords = new ArrayList<LoadedRecord>(numberOfLoaded);
+      for (int i = 0; i < numberOfLoaded; i++)
+      {
+         long fileID = input.readLong();
+         long id = input.readLong();
+         int position = input.readInt();
+         int length = input.readInt();
+         loadedRecords.add(new LoadedRecord(fileID, id, position, length));
+      }
+
+      int numberOfEvents = input.readInt();
+      List<TransactionEvent> transactionEvents = new ArrayList<TransactionEvent>(numberOfEvents);
+      for (int i = 0; i < numberOfEvents; i++)
+      {
+         byte type = input.readByte();
+         long transactionID = input.readLong();
+         long fileID = input.readLong();
+         if (type == JournalImpl.PREPARE_RECORD)
+         {
+            int numberOfRecordsOnFile = input.readInt();
+            byte[] extraData = new byte[input.readInt()];
+            input.readFully(extraData);
+            transactionEvents.add(TransactionEvent.prepare(transactionID, fileID, extraData, numberOfRecordsOnFile));
+         }
+         else
+         {
+            long recordID = input.readLong();
+            int position = input.readInt();
+            int length = input.readInt();
+            int countedSize = input.readInt();
+            transactionEvents.add(new TransactionEvent(type,
+                                                       transactionID,
+                                                       fileID,
+                                                       recordID,
+                                                       position,
+                                                       length,
+                                                       countedSize));
+         }
+      }
+
+      return new JournalCheckpoint(cutFileID, maxID, files, records, loadedRecords, transactionEvents);
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * Told the position of each record {@link JournalImpl#readJournalFile} reads, before the record
+    * is given to the reader.
+    */
+   interface PositionCallback
+   {
+      void onRecordPosition(int position, int length);
+   }
+
+   static final class FileEntry
+   {
+      final long fileID;
+
+      final String fileName;
+
+      final boolean hasData;
+
+      final int lastDataPos;
+
+      final int posCount;
+
+      final int liveSize;
+
+      final long[] negFileIDs;
+
+      final int[] negCounts;
+
+      FileEntry(final long fileID,
+                final String fileName,
+                final boolean hasData,
+                final int lastDataPos,
+                final int posCount,
+                final int liveSize,
+                final long[] negFileIDs,
+                final int[] negCounts)
+      {
+         this.fileID = fileID;
+         this.fileName = fileName;
+         this.hasData = hasData;
+         this.lastDataPos = lastDataPos;
+         this.posCount = posCount;
+         this.liveSize = liveSize;
+         this.negFileIDs = negFileIDs;
+         this.negCounts = negCounts;
+      }
+   }
+
+   static final class RecordEntry
+   {
+      final long id;
+
+      final long addFileID;
+
+      final int size;
+
+      final long[] updateFileIDs;
+
+      final int[] updateSizes;
+
+      RecordEntry(final long id, final long addFileID, final int size, final long[] updateFileIDs, final int[] updateSizes)
+      {
+         this.id = id;
+         this.addFileID = addFileID;
+         this.size = size;
+         this.updateFileIDs = updateFileIDs;
+         this.updateSizes = updateSizes;
+      }
+   }
+
+   /**
+    * An add or update given to the loader, by its position on the file it was read from.
+    */
+   static final class LoadedRecord
+   {
+      final long fileID;
+
+      final long id;
+
+      final int position;
+
+      final int length;
+
+      LoadedRecord(final long fileID, final long id, final int position, final int length)
+      {
+         this.fileID = fileID;
+         this.id = id;
+         this.position = position;
+         this.length = length;
+      }
+   }
+
+   /**
+    * A transactional add, update, delete or prepare, with the file it was read from. The records
+    * are kept by their position, the prepares with their extra data.
+    */
+   static final class TransactionEvent
+   {
+      final byte type;
+
+      final long transactionID;
+
+      final long fileID;
+
+      final long recordID;
+
+      final int position;
+
+      final int length;
+
+      // The size the transaction counts on the file for an add or update
+      final int countedSize;
+
+      final byte[] extraData;
+
+      final int numberOfRecords;
+
+      TransactionEvent(final byte type,
+                       final long transactionID,
+                       final long fileID,
+                       final long recordID,
+                       final int position,
+                       final int length,
+                       final int countedSize)
+      {
+         this(type, transactionID, fileID, recordID, position, length, countedSize, null, 0);
+      }
+
+      private TransactionEvent(final byte type,
+                               final long transactionID,
+                               final long fileID,
+                               final long recordID,
+                               final int position,
+                               final int length,
+                               final int countedSize,
+                               final byte[] extraData,
+                               final int numberOfRecords)
+      {
+         this.type = type;
+         this.transactionID = transactionID;
+         this.fileID = fileID;
+         this.recordID = recordID;
+         this.position = position;
+         this.length = length;
+         this.countedSize = countedSize;
+         this.extraData = extraData;
+         this.numberOfRecords = numberOfRecords;
+      }
+
+      static TransactionEvent prepare(final long transactionID,
+                                      final long fileID,
+                                      final byte[] extraData,
+                                      final int numberOfRecords)
+      {
+         return new TransactionEvent(JournalImpl.PREPARE_RECORD,
+                                     transactionID,
+                                     fileID,
+                                     0,
+                                     0,
+                                     0,
+                                     0,
+                                     extraData,
+                                     numberOfRecords);
+      }
+   }
+
+   /**
+    * Reads the records kept by the checkpoint from the covered files. The files are read through a
+    * window, so the records next to each other on a file take a single read.
+    */
+   static final class RecordReader
+   {
+      private static final int WINDOW_SIZE = 1024 * 1024;
+
+      private final SequentialFileFactory fileFactory;
+
+      private JournalFile file;
+
+      private ByteBuffer window;
+
+      private long windowStart;
+
+      private int windowLength;
+
+      RecordReader(final SequentialFileFactory fileFactory)
+      {
+         this.fileFactory = fileFactory;
+      }
+
+      RecordInfo read(final JournalFile recordFile, final int position, final int length) throws Exception
+      {
+         if (recordFile != file)
+         {
+            closeFile();
+
+            recordFile.getFile().open(1, false);
+
+            file = recordFile;
+
+            windowLength = 0;
+         }
+
+         if (position < windowStart || position + length > windowStart + windowLength)
+         {
+            fill(position, length);
+         }
+
+         return JournalImpl.readRecord(file, window, (int)(position - windowStart), length);
+      }
+
+      void close() throws Exception
+      {
+         closeFile();
+
+         if (window != null)
+         {
+            fileFactory.releaseBuffer(window);
+
+            window = null;
+         }
+      }
+
+      private void fill(final int position, final int length) throws Exception
+      {
+         windowStart = position - position % fileFactory.getAlignment();
+
+         int size = fileFactory.calculateBlockSize(Math.max(RecordReader.WINDOW_SIZE,
+                                                            (int)(position + length - windowStart)));
+
+         size = (int)Math.min(size, file.getFile().size() - windowStart);
+
+         if (window == null || window.capacity() < size)
+         {
+            if (window != null)
+            {
+               fileFactory.releaseBuffer(window);
+            }
+
+            window = fileFactory.newBuffer(size);
+         }
+
+         window.clear();
+         window.limit(size);
+
+         file.getFile().position(windowStart);
+
+         windowLength = Math.max(0, Math.min(file.getFile().read(window), size));
+
+         window.rewind();
+         window.limit(windowLength);
+      }
+
+      private void closeFile() throws Exception
+      {
+         if (file != null)
+         {
+            file.getFile().close();
+
+            file = null;
+         }
+      }
+   }
+
+   /**
+    * Writes the body of the checkpoint through a buffer, with a CRC of everything written.
+    */
+   private static final class CheckpointOutput extends OutputStream
+   {
+      private final SequentialFile file;
+
+      private final SequentialFileFactory fileFactory;
+
+      private final byte[] chunk;
+
+      private final ByteBuffer writeBuffer;
+
+      private final CRC32 crc = new CRC32();
+
+      private int count;
+
+      private long size;
+
+      CheckpointOutput(final SequentialFileFactory fileFactory, final SequentialFile file)
+      {
+         this.fileFactory = fileFactory;
+         this.file = file;
+
+         // Every write but the last one has to be aligned
+         chunk = new byte[fileFactory.calculateBlockSize(JournalCheckpoint.BUFFER_SIZE)];
+         writeBuffer = fileFactory.newBuffer(chunk.length);
+      }
+
+      @Override
+      public void write(final int b) throws IOException
+      {
+         if (count == chunk.length)
+         {
+            flushChunk();
+         }
+
+         chunk[count++] = (byte)b;
+      }
+
+      @Override
+      public void write(final byte[] bytes, final int offset, final int length) throws IOException
+      {
+         int done = 0;
+
+         while (done < length)
+         {
+            if (count == chunk.length)
+            {
+               flushChunk();
+            }
+
+            int copy = Math.min(length - done, chunk.length - count);
+
+            System.arraycopy(bytes, offset + done, chunk, count, copy);
+
+            count += copy;
+            done += copy;
+         }
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+         try
+         {
+            flushChunk();
+         }
+         finally
+         {
+            fileFactory.releaseBuffer(writeBuffer);
+         }
+      }
+
+      private void flushChunk() throws IOException
+      {
+         if (count == 0)
+         {
+            return;
+         }
+
+         crc.update(chunk, 0, count);
+
+         writeBuffer.clear();
+         writeBuffer.put(chunk, 0, count);
+         writeBuffer.flip();
+
+         try
+         {
+            // The buffer is reused, so each write has to be done before the next one
+            file.writeDirect(writeBuffer, true);
+         }
+         catch (IOException e)
+         {
+            throw e;
+         }
+         catch (Exception e)
+         {
+            throw new IOException(e.getMessage(), e);
+         }
+
+         size += count;
+
+         count = 0;
+      }
+   }
+
+   /**
+    * Reads the body of the checkpoint through a buffer.
+    */
+   private static final class CheckpointInput extends InputStream
+   {
+      private final SequentialFileFactory fileFactory;
+
+      private final SequentialFile file;
+
+      private final String fileName;
+
+      private final ByteBuffer readBuffer;
+
+      private final int chunkSize;
+
+      private final CRC32 crc;
+
+      private final byte[] scratch;
+
+      // The bytes of the body not read from the file yet
+      private long remaining;
+
+      CheckpointInput(final SequentialFileFactory fileFactory,
+                      final SequentialFile file,
+                      final int position,
+                      final long bodySize,
+                      final String fileName,
+                      final boolean checksum) throws Exception
+      {
+         this.fileFactory = fileFactory;
+         this.file = file;
+         this.fileName = fileName;
+
+         chunkSize = fileFactory.calculateBlockSize(JournalCheckpoint.BUFFER_SIZE);
+         readBuffer = fileFactory.newBuffer(chunkSize);
+         readBuffer.limit(0);
+
+         crc = checksum ? new CRC32() : null;
+         scratch = checksum ? new byte[chunkSize] : null;
+
+         remaining = bodySize;
+
+         file.position(position);
+      }
+
+      /**
+       * Reads the whole body, for its CRC.
+       */
+      void skipAll() throws IOException
+      {
+         while (read(scratch, 0, scratch.length) >= 0)
+         {
+            // only the CRC matters
+         }
+      }
+
+      @Override
+      public int read() throws IOException
+      {
+         if (!readBuffer.hasRemaining() && !fill())
+         {
+            return -1;
+         }
+
+         return readBuffer.get() & 0xff;
+      }
+
+      @Override
+      public int read(final byte[] bytes, final int offset, final int length) throws IOException
+      {
+         if (length == 0)
+         {
+            return 0;
+         }
+
+         if (!readBuffer.hasRemaining() && !fill())
+         {
+            return -1;
+         }
+
+         int read = Math.min(length, readBuffer.remaining());
+
+         readBuffer.get(bytes, offset, read);
+
+         if (crc != null)
+         {
+            crc.update(bytes, offset, read);
+         }
+
+         return read;
+      }
+
+      @Override
+      public void close()
+      {
+         fileFactory.releaseBuffer(readBuffer);
+      }
+
+      private boolean fill() throws IOException
+      {
+         if (remaining == 0)
+         {
+            return false;
+         }
+
+         int length = (int)Math.min(chunkSize, remaining);
+
+         readBuffer.clear();
+         readBuffer.limit(fileFactory.calculateBlockSize(length));
+
+         int read;
+
+         try
+         {
+            read = file.read(readBuffer);
+         }
+         catch (IOException e)
+         {
+            throw e;
+         }
+         catch (Exception e)
+         {
+            throw new IOException(e.getMessage(), e);
+         }
+
+         if (read < length)
+         {
+            throw new IllegalStateException("Checkpoint " + fileName + " is incomplete");
+         }
+
+         readBuffer.rewind();
+         readBuffer.limit(length);
+
+         remaining -= length;
+
+         return true;
+      }
+   }
+
+   /**
+    * Builds a checkpoint by reading the covered files the same way
+    * {@link JournalImpl#load(LoaderCallback)} does, on its own copies of the files so the counters
+    * of the journal are not touched. The files covered by a previous checkpoint are not read
+    * again, the build resumes from it instead.
+    */
+   static final class Builder implements JournalRecordProvider
+   {
+      // The loader flushes its deletes after this many, as the loading of the list does
+      private static final int DELETE_FLUSH = 20000;
+
+      private final long cutFileID;
+
+      private final List<JournalFile> files = new ArrayList<JournalFile>();
+
+      private final Map<JournalFile, JournalFileImpl> shadows = new HashMap<JournalFile, JournalFileImpl>();
+
+      private final Map<JournalFile, Integer> lastDataPositions = new HashMap<JournalFile, Integer>();
+
+      private final Set<JournalFile> filesWithData = new HashSet<JournalFile>();
+
+      private final ConcurrentLongHashMap<JournalRecord> builderRecords = new ConcurrentLongHashMap<JournalRecord>();
+
+      private final Map<Long, TransactionState> transactions = new LinkedHashMap<Long, TransactionState>();
+
+      private List<LoadedRecord> loaded = new ArrayList<LoadedRecord>();
+
+      private final Set<Long> deletedIDs = new HashSet<Long>();
+
+      private long maxID = -1;
+
+      Builder(final long cutFileID)
+      {
+         this.cutFileID = cutFileID;
+      }
+
+      public JournalCompactor getCompactor()
+      {
+         return null;
+      }
+
+      public ConcurrentLongHashMap<JournalRecord> getRecords()
+      {
+         return builderRecords;
+      }
+
+      /**
+       * Starts from a previous checkpoint, as if the files it covers were read. This has to be
+       * done before reading any file, and the files it covers must not be read.
+       *
+       * @param dataFiles the data files of the journal, the covered files reclaimed since are
+       *           dropped the same way loading the checkpoint drops them
+       */
+      void resume(final JournalCheckpoint previous, final List<JournalFile> dataFiles)
+      {
+         resume(previous, dataFiles, Collections.<Long>emptySet());
+      }
+
+      /**
+       * Starts from the checkpoint taken before an incremental compacting pass. The files the pass
+       * wrote are read instead of the ones it replaced, and the records it moved keep their updates
+       * on the other covered files. This has to be done before reading any other file.
+       *
+       * @param compactedFiles the files written by the pass, in the journal order
+       * @param replacedFileIDs the IDs of the files the pass replaced
+       */
+      void resume(final SequentialFileFactory fileFactory,
+                  final JournalCheckpoint previous,
+                  final List<JournalFile> dataFiles,
+                  final List<JournalFile> compactedFiles,
+                  final Set<Long> replacedFileIDs) throws Exception
+      {
+         for (JournalFile file : compactedFiles)
+         {
+            read(fileFactory, file);
+         }
+
+         resume(previous, dataFiles, replacedFileIDs);
+      }
+
+      private void resume(final JournalCheckpoint previous,
+                          final List<JournalFile> dataFiles,
+                          final Set<Long> replacedFileIDs)
+      {
+         Map<Long, JournalFile> present = new HashMap<Long, JournalFile>();
+
+         for (JournalFile file : dataFiles)
+         {
+            present.put(file.getFileID(), file);
+         }
+
+         Map<Long, JournalFile> coveredShadows = new HashMap<Long, JournalFile>();
+
+         for (FileEntry entry : previous.files)
+         {
+            // the files written by compacting may reuse the IDs of the ones they replaced
+            JournalFile file = replacedFileIDs.contains(entry.fileID) ? null : present.get(entry.fileID);
+
+            if (file == null)
+            {
+               continue;
+            }
+
+            JournalFileImpl shadow = new JournalFileImpl(file.getFile(), file.getFileID(), file.getJournalVersion());
+
+            files.add(file);
+
+            shadows.put(file, shadow);
+
+            lastDataPositions.put(file, entry.lastDataPos);
+
+            if (entry.hasData)
+            {
+               filesWithData.add(file);
+
+               coveredShadows.put(file.getFileID(), shadow);
+            }
+         }
+
+         for (TransactionEvent event : previous.transactionEvents)
+         {
+            JournalFile shadow = coveredShadows.get(event.fileID);
+
+            if (shadow == null)
+            {
+               continue;
+            }
+
+            TransactionState transaction = getTransaction(event.transactionID);
+
+            transaction.events.add(event);
+
+            switch (event.type)
+            {
+               case JournalImpl.ADD_RECORD_TX:
+               case JournalImpl.UPDATE_RECORD_TX:
+                  transaction.journalTransaction.addPositive(shadow, event.recordID, event.countedSize);
+                  break;
+               case JournalImpl.DELETE_RECORD_TX:
+                  transaction.journalTransaction.addNegative(shadow, event.recordID);
+                  break;
+               default:
+                  if (transaction.journalTransaction.getCounter(shadow) == event.numberOfRecords)
+                  {
+                     transaction.journalTransaction.prepare(shadow);
+                  }
+            }
+         }
+
+         Set<Long> droppedRecords = previous.restore(coveredShadows, builderRecords);
+
+         for (LoadedRecord record : previous.loadedRecords)
+         {
+            if (coveredShadows.containsKey(record.fileID) && !droppedRecords.contains(record.id))
+            {
+               loaded.add(record);
+            }
+         }
+
+         maxID = Math.max(maxID, previous.maxID);
+      }
+
+      /**
+       * Reads a covered file, files have to be read in the journal order.
+       */
+      void read(final SequentialFileFactory fileFactory, final JournalFile file) throws Exception
+      {
+         JournalFileImpl shadow = new JournalFileImpl(file.getFile(), file.getFileID(), file.getJournalVersion());
+
+         files.add(file);
+
+         shadows.put(file, shadow);
+
+         FileReader reader = new FileReader(file, shadow);
+
+         int lastDataPos = JournalImpl.readJournalFile(fileFactory, file, reader, reader);
+
+         lastDataPositions.put(file, lastDataPos);
+      }
+
+      JournalCheckpoint build()
+      {
+         flushDeletes();
+
+         List<FileEntry> fileEntries = new ArrayList<FileEntry>(files.size());
+
+         for (JournalFile file : files)
+         {
+            JournalFileImpl shadow = shadows.get(file);
+
+            Map<JournalFile, Integer> negs = shadow.getNegCounts();
+
+            long[] negFileIDs = new long[negs.size()];
+            int[] negCounts = new int[negs.size()];
+            int i = 0;
+            for (Map.Entry<JournalFile, Integer> neg : negs.entrySet())
+            {
+               negFileIDs[i] = neg.getKey().getFileID();
+               negCounts[i] = neg.getValue();
+               i++;
+            }
+
+            fileEntries.add(new FileEntry(file.getFileID(),
+                                          file.getFile().getFileName(),
+                                          filesWithData.contains(file),
+                                          lastDataPositions.get(file),
+                                          shadow.getPosCount(),
+                                          shadow.getLiveSize(),
+                                          negFileIDs,
+                                          negCounts));
+         }
+
+         final List<RecordEntry> recordEntries = new ArrayList<RecordEntry>(builderRecords.size());
+
+         builderRecords.forEach(new ConcurrentLongHashMap.EntryVisitor<JournalRecord>()
+         {
+            public void visit(final long id, final JournalRecord record)
+            {
+               List<Pair<JournalFile, Integer>> updates = record.getUpdateFiles();
+
+               int numberOfUpdates = updates == null ? 0 : updates.size();
+
+               long[] updateFileIDs = new long[numberOfUpdates];
+               int[] updateSizes = new int[numberOfUpdates];
+               for (int i = 0; i < numberOfUpdates; i++)
+               {
+                  updateFileIDs[i] = updates.get(i).getA().getFileID();
+                  updateSizes[i] = updates.get(i).getB();
+               }
+
+               recordEntries.add(new RecordEntry(id,
+                                                 record.getAddFile().getFileID(),
+                                                 record.getSize(),
+                                                 updateFileIDs,
+                                                 updateSizes));
+            }
+         });
+
+         List<TransactionEvent> events = new ArrayList<TransactionEvent>();
+
+         for (TransactionState transaction : transactions.values())
+         {
+            events.addAll(transaction.events);
+         }
+
+         return new JournalCheckpoint(cutFileID, maxID, fileEntries, recordEntries, loaded, events);
+      }
+
+      private void delete(final long id)
+      {
+         deletedIDs.add(id);
+
+         if (deletedIDs.size() > Builder.DELETE_FLUSH)
+         {
+            flushDeletes();
+         }
+      }
+
+      private void flushDeletes()
+      {
+         if (deletedIDs.isEmpty())
+         {
+            return;
+         }
+
+         List<LoadedRecord> kept = new ArrayList<LoadedRecord>(loaded.size());
+
+         for (LoadedRecord record : loaded)
+         {
+            if (!deletedIDs.contains(record.id))
+            {
+               kept.add(record);
+            }
+         }
+
+         loaded = kept;
+
+         deletedIDs.clear();
+      }
+
+      private TransactionState getTransaction(final long transactionID)
+      {
+         TransactionState transaction = transactions.get(transactionID);
+
+         if (transaction == null)
+         {
+            transaction = new TransactionState(new JournalTransaction(transactionID, this));
+
+            transactions.put(transactionID, transaction);
+         }
+
+         return transaction;
+      }
+
+      private final class FileReader implements JournalReaderCallback, PositionCallback
+      {
+         private final JournalFile file;
+
+         private final JournalFileImpl shadow;
+
+         // Of the record being read
+         private int position;
+
+         private int length;
+
+         FileReader(final JournalFile file, final JournalFileImpl shadow)
+         {
+            this.file = file;
+            this.shadow = shadow;
+         }
+
+         public void onRecordPosition(final int recordPosition, final int recordLength)
+         {
+            position = recordPosition;
+            length = recordLength;
+         }
+
+         private void checkID(final long id)
+         {
+            if (id > maxID)
+            {
+               maxID = id;
+            }
+         }
+
+         private void hasData()
+         {
+            filesWithData.add(file);
+         }
+
+         public void onReadAddRecord(final RecordInfo info) throws Exception
+         {
+            checkID(info.id);
+            hasData();
+
+            loaded.add(new LoadedRecord(file.getFileID(), info.id, position, length));
+
+            builderRecords.put(info.id,
+                              new JournalRecord(shadow, JournalImpl.countedSize(file, info.data.length +
+                                                                                      JournalImpl.SIZE_ADD_RECORD)));
+         }
+
+         public void onReadUpdateRecord(final RecordInfo info) throws Exception
+         {
+            checkID(info.id);
+            hasData();
+
+            loaded.add(new LoadedRecord(file.getFileID(), info.id, position, length));
+
+            JournalRecord posFiles = builderRecords.get(info.id);
+
+            if (posFiles != null)
+            {
+               posFiles.addUpdateFile(shadow, JournalImpl.countedSize(file, info.data.length + JournalImpl.SIZE_ADD_RECORD));
+            }
+         }
+
+         public void onReadDeleteRecord(final long recordID) throws Exception
+         {
+            hasData();
+
+            delete(recordID);
+
+            JournalRecord posFiles = builderRecords.remove(recordID);
+
+            if (posFiles != null)
+            {
+               posFiles.delete(shadow);
+            }
+         }
+
+         public void onReadUpdateRecordTX(final long transactionID, final RecordInfo info) throws Exception
+         {
+            onReadAddRecordTX(transactionID, info);
+         }
+
+         public void onReadAddRecordTX(final long transactionID, final RecordInfo info) throws Exception
+         {
+            checkID(info.id);
+            hasData();
+
+            TransactionState transaction = getTransaction(transactionID);
+
+            int countedSize = JournalImpl.countedSize(file, info.data.length + JournalImpl.SIZE_ADD_RECORD_TX);
+
+            transaction.events.add(new TransactionEvent(info.isUpdate ? JournalImpl.UPDATE_RECORD_TX
+                                                                     : JournalImpl.ADD_RECORD_TX,
+                                                        transactionID,
+                                                        file.getFileID(),
+                                                        info.id,
+                                                        position,
+                                                        length,
+                                                        countedSize));
+
+            transaction.journalTransaction.addPositive(shadow, info.id, countedSize);
+         }
+
+         public void onReadDeleteRecordTX(final long transactionID, final RecordInfo info) throws Exception
+         {
+            hasData();
+
+            TransactionState transaction = getTransaction(transactionID);
+
+            transaction.events.add(new TransactionEvent(JournalImpl.DELETE_RECORD_TX,
+                                                        transactionID,
+                                                        file.getFileID(),
+                                                        info.id,
+                                                        position,
+                                                        length,
+                                                        0));
+
+            transaction.journalTransaction.addNegative(shadow, info.id);
+         }
+
+         public void onReadPrepareRecord(final long transactionID, final byte[] extraData, final int numberOfRecords) throws Exception
+         {
+            hasData();
+
+            TransactionState transaction = getTransaction(transactionID);
+
+            transaction.events.add(TransactionEvent.prepare(transactionID, file.getFileID(), extraData, numberOfRecords));
+
+            if (transaction.journalTransaction.getCounter(shadow) == numberOfRecords)
+            {
+               transaction.journalTransaction.prepare(shadow);
+            }
+         }
+
+         public void onReadCommitRecord(final long transactionID, final int numberOfRecords) throws Exception
+         {
+            TransactionState transaction = transactions.remove(transactionID);
+
+            if (transaction != null)
+            {
+               if (transaction.journalTransaction.getCounter(shadow) == numberOfRecords)
+               {
+                  for (TransactionEvent event : transaction.events)
+                  {
+                     if (event.type == JournalImpl.ADD_RECORD_TX || event.type == JournalImpl.UPDATE_RECORD_TX)
+                     {
+                        loaded.add(new LoadedRecord(event.fileID, event.recordID, event.position, event.length));
+                     }
+                  }
+
+                  for (TransactionEvent event : transaction.events)
+                  {
+                     if (event.type == JournalImpl.DELETE_RECORD_TX)
+                     {
+                        delete(event.recordID);
+                     }
+                  }
+
+                  transaction.journalTransaction.commit(shadow);
+               }
+               else
+               {
+                  transaction.journalTransaction.forget();
+               }
+
+               hasData();
+            }
+         }
+
+         public void onReadRollbackRecord(final long transactionID) throws Exception
+         {
+            TransactionState transaction = transactions.remove(transactionID);
+
+            if (transaction != null)
+            {
+               transaction.journalTransaction.rollback(shadow);
+
+               hasData();
+            }
+         }
+
+         public void markAsDataFile(final JournalFile file)
+         {
+            hasData();
+         }
+      }
+
+      private static final class TransactionState
+      {
+         final JournalTransaction journalTransaction;
+
+         final List<TransactionEvent> events = new ArrayList<TransactionEvent>();
+
+         TransactionState(final JournalTransaction journalTransaction)
+         {
+            this.journalTransaction = journalTransaction;
+         }
+      }
+   }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.journal.impl;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import org.hornetq.api.core.HornetQBuffer;
+
+/**
+ * The CRC32 of the journal records, written on files of the
+ * {@link JournalImpl#CHECKSUM_FORMAT_VERSION} format.
+ * <p>
+ * The bytes of buffers without an accessible array are copied through a scratch array of the
+ * calling thread, so computing a checksum doesn't allocate.
+ */
+public final class JournalChecksum
+{
+   private static final int SCRATCH_SIZE = 4 * 1024;
+
+   private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>()
+   {
+      @Override
+      protected Scratch initialValue()
+      {
+         return new Scratch();
+      }
+   };
+
+   private JournalChecksum()
+   {
+      // Utility class
+   }
+
+   /**
+    * @return the checksum of {@code length} bytes of the buffer, starting at {@code index}
+    */
+   public static int checksum(final HornetQBuffer buffer, final int index, final int length)
+   {
+      Scratch local = scratch.get();
+
+      CRC32 crc = local.crc;
+
+      crc.reset();
+
+      for (int done = 0; done < length;)
+      {
+         int chunk = Math.min(SCRATCH_SIZE, length - done);
+
+         buffer.getBytes(index + done, local.bytes, 0, chunk);
+
+         crc.update(local.bytes, 0, chunk);
+
+         done += chunk;
+      }
+
+      return (int)crc.getValue();
+   }
+
+   /**
+    * @return the checksum of {@code length} bytes of the buffer, starting at {@code index}
+    */
+   public static int checksum(final ByteBuffer buffer, final int index, final int length)
+   {
+      Scratch local = scratch.get();
+
+      CRC32 crc = local.crc;
+
+      crc.reset();
+
+      if (buffer.hasArray())
+      {
+         crc.update(buffer.array(), buffer.arrayOffset() + index, length);
+      }
+      else
+      {
+         // absolute gets, as a bulk get would need a duplicate to leave the position alone
+         for (int done = 0; done < length;)
+         {
+            int chunk = Math.min(SCRATCH_SIZE, length - done);
+
+            for (int i = 0; i < chunk; i++)
+            {
+               local.bytes[i] = buffer.get(index + done + i);
+            }
+
+            crc.update(local.bytes, 0, chunk);
+
+            done += chunk;
+         }
+      }
+
+      return (int)crc.getValue();
+   }
+
+   private static final class Scratch
+   {
+      final CRC32 crc = new CRC32();
+
+      final byte[] bytes = new byte[SCRATCH_SIZE];
+   }
+}
@@ -18,7 +18,6 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.hornetq.api.core.HornetQBuffer;
@@ -36,6 +35,7 @@ import org.hornetq.core.journal.impl.dataformat.JournalDeleteRecordTX;
 import org.hornetq.core.journal.impl.dataformat.JournalInternalRecord;
 import org.hornetq.core.journal.impl.dataformat.JournalRollbackRecordTX;
 import org.hornetq.journal.HornetQJournalLogger;
+import org.hornetq.utils.ConcurrentLongHashMap;
 
 /**
  * A JournalCompactor
@@ -54,7 +54,7 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
    // Snapshot of transactions that were pending when the compactor started
    private final Map<Long, PendingTransaction> pendingTransactions = new ConcurrentHashMap<Long, PendingTransaction>();
 
-   private final Map<Long, JournalRecord> newRecords = new HashMap<Long, JournalRecord>();
+   private final ConcurrentLongHashMap<JournalRecord> newRecords = new ConcurrentLongHashMap<JournalRecord>();
 
    private final Map<Long, JournalTransaction> newTransactions = new HashMap<Long, JournalTransaction>();
 
@@ -130,7 +130,7 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
       return newDataFiles;
    }
 
-   public Map<Long, JournalRecord> getNewRecords()
+   public ConcurrentLongHashMap<JournalRecord> getNewRecords()
    {
       return newRecords;
    }
@@ -143,7 +143,7 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
    public JournalCompactor(final SequentialFileFactory fileFactory,
                            final JournalImpl journal,
                            final JournalFilesRepository filesRepository,
-                           final Set<Long> recordsSnapshot,
+                           final ConcurrentLongHashMap<JournalRecord> recordsSnapshot,
                            final long firstFileID)
    {
       super(fileFactory, journal, filesRepository, recordsSnapshot, firstFileID);
@@ -211,9 +211,16 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
       pendingCommands.add(new UpdateCompactCommand(id, usedFile, size));
    }
 
-   private void checkSize(final int size) throws Exception
+   private void checkSize(final JournalInternalRecord record) throws Exception
    {
-      checkSize(size, -1);
+      checkSize(record, -1);
+   }
+
+   private void checkSize(final JournalInternalRecord record, final int compactCount) throws Exception
+   {
+      record.setChecksum(formatVersion >= JournalImpl.CHECKSUM_FORMAT_VERSION);
+
+      checkSize(record.getEncodeSize(), compactCount);
    }
 
    private void checkSize(final int size, final int compactCount) throws Exception
@@ -304,7 +311,7 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
                                                                 new ByteArrayEncoding(info.data));
          addRecord.setCompactCount((short)(info.compactCount + 1));
 
-         checkSize(addRecord.getEncodeSize(), info.compactCount);
+         checkSize(addRecord, info.compactCount);
 
          writeEncoder(addRecord);
 
@@ -326,7 +333,7 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
 
          record.setCompactCount((short)(info.compactCount + 1));
 
-         checkSize(record.getEncodeSize(), info.compactCount);
+         checkSize(record, info.compactCount);
 
          newTransaction.addPositive(currentFile, info.id, record.getEncodeSize());
 
@@ -350,7 +357,7 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
             JournalInternalRecord commitRecord =
                      new JournalCompleteRecordTX(TX_RECORD_TYPE.COMMIT, transactionID, null);
 
-            checkSize(commitRecord.getEncodeSize());
+            checkSize(commitRecord);
 
             writeEncoder(commitRecord, newTransaction.getCounter(currentFile));
 
@@ -379,7 +386,7 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
                                                                   info.id,
                                                                   new ByteArrayEncoding(info.data));
 
-         checkSize(record.getEncodeSize());
+         checkSize(record);
 
          writeEncoder(record);
 
@@ -403,7 +410,7 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
          JournalInternalRecord prepareRecord =
                   new JournalCompleteRecordTX(TX_RECORD_TYPE.PREPARE, transactionID, new ByteArrayEncoding(extraData));
 
-         checkSize(prepareRecord.getEncodeSize());
+         checkSize(prepareRecord);
 
          writeEncoder(prepareRecord, newTransaction.getCounter(currentFile));
 
@@ -428,7 +435,7 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
 
             JournalInternalRecord rollbackRecord = new JournalRollbackRecordTX(transactionID);
 
-            checkSize(rollbackRecord.getEncodeSize());
+            checkSize(rollbackRecord);
 
             writeEncoder(rollbackRecord);
 
@@ -449,7 +456,7 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
 
          updateRecord.setCompactCount((short)(info.compactCount + 1));
 
-         checkSize(updateRecord.getEncodeSize(), info.compactCount);
+         checkSize(updateRecord, info.compactCount);
 
          JournalRecord newRecord = newRecords.get(info.id);
 
@@ -480,7 +487,7 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
 
          updateRecordTX.setCompactCount((short)(info.compactCount + 1));
 
-         checkSize(updateRecordTX.getEncodeSize(), info.compactCount);
+         checkSize(updateRecordTX, info.compactCount);
 
          writeEncoder(updateRecordTX);
 
@@ -632,7 +639,7 @@ public class JournalCompactor extends AbstractJournalUpdateTask implements Journ
    }
 
    @Override
-   public Map<Long, JournalRecord> getRecords()
+   public ConcurrentLongHashMap<JournalRecord> getRecords()
    {
       return newRecords;
    }
@@ -7,5 +7,7 @@ public final class JournalConstants
    public static final int DEFAULT_JOURNAL_BUFFER_TIMEOUT_AIO = (int)(1000000000d / 2000);
    public static final int DEFAULT_JOURNAL_BUFFER_TIMEOUT_NIO = (int)(1000000000d / 300);
    public static final int DEFAULT_JOURNAL_BUFFER_SIZE_NIO = 490 * 1024;
+   public static final long DEFAULT_MAPPED_REGION_SIZE = 64 * 1024 * 1024;
+   public static final long DEFAULT_MAPPED_GROW_SIZE = 1024 * 1024;
 
 }
@@ -13,6 +13,7 @@
 
 package org.hornetq.core.journal.impl;
 
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
@@ -204,4 +205,46 @@ public class JournalFileImpl implements JournalFile
       return totalNegativeToOthers.get();
    }
 
+   /**
+    * @return a copy of the negative counts this file has on each file
+    */
+   Map<JournalFile, Integer> getNegCounts()
+   {
+      Map<JournalFile, Integer> copy = new HashMap<JournalFile, Integer>();
+
+      for (Entry<JournalFile, AtomicInteger> entry : negCounts.entrySet())
+      {
+         copy.put(entry.getKey(), entry.getValue().intValue());
+      }
+
+      return copy;
+   }
+
+   /**
+    * Replaces the counters of the file, used when they are taken from a checkpoint instead of
+    * being calculated by reading the file.
+    */
+   synchronized void restoreCounters(final int posCount, final int liveSize, final Map<JournalFile, Integer> negatives)
+   {
+      this.posCount.set(posCount);
+
+      liveBytes.set(liveSize);
+
+      negCounts.clear();
+
+      int negativeToOthers = 0;
+
+      for (Entry<JournalFile, Integer> entry : negatives.entrySet())
+      {
+         negCounts.put(entry.getKey(), new AtomicInteger(entry.getValue()));
+
+         if (entry.getKey() != this)
+         {
+            negativeToOthers += entry.getValue();
+         }
+      }
+
+      totalNegativeToOthers.set(negativeToOthers);
+   }
+
 }
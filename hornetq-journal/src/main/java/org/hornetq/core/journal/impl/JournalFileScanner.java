@@ -0,0 +1,353 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.journal.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.hornetq.core.journal.RecordInfo;
+import org.hornetq.core.journal.SequentialFileFactory;
+import org.hornetq.journal.HornetQJournalLogger;
+
+/**
+ * Reads and decodes the journal files for {@link JournalImpl#load(LoaderCallback)}.
+ * <p>
+ * Each file is read into a list of decoded records, which is then replayed on the loading thread
+ * in the file order. Records are always applied in the same order (and by the same thread) as a
+ * sequential load, so transactions and deletes are resolved exactly the same way. With a
+ * parallelism above 1 the files are read on a fork-join pool, up to twice the parallelism ahead
+ * of the file being replayed, which bounds the memory taken by the decoded files.
+ */
+final class JournalFileScanner
+{
+   private final SequentialFileFactory fileFactory;
+
+   private final List<JournalFile> files;
+
+   private final List<Future<ScannedFile>> scans;
+
+   private final ForkJoinPool pool;
+
+   private final int window;
+
+   private int nextFile;
+
+   private long scanTime;
+
+   private long mergeTime;
+
+   JournalFileScanner(final SequentialFileFactory fileFactory, final List<JournalFile> files, final int parallelism)
+   {
+      this.fileFactory = fileFactory;
+      this.files = files;
+
+      if (parallelism > 1 && files.size() > 1)
+      {
+         pool = new ForkJoinPool(parallelism);
+         window = parallelism * 2;
+         scans = new ArrayList<Future<ScannedFile>>(files.size());
+         for (int i = 0; i < Math.min(window, files.size()); i++)
+         {
+            submit(i);
+         }
+      }
+      else
+      {
+         pool = null;
+         window = 0;
+         scans = null;
+      }
+   }
+
+   /**
+    * Replays the records of the file on the reader. Files have to be replayed in the order they
+    * were given to the scanner.
+    *
+    * @return the position after the last valid record on the file
+    */
+   int replay(final JournalFile file, final JournalReaderCallback reader) throws Exception
+   {
+      if (files.get(nextFile) != file)
+      {
+         throw new IllegalStateException("Journal file " + file + " is being loaded out of order");
+      }
+
+      long start = System.nanoTime();
+
+      ScannedFile scanned;
+
+      if (pool == null)
+      {
+         scanned = scan(file);
+      }
+      else
+      {
+         try
+         {
+            scanned = scans.get(nextFile).get();
+         }
+         catch (ExecutionException e)
+         {
+            close();
+            if (e.getCause() instanceof Exception)
+            {
+               throw (Exception)e.getCause();
+            }
+            throw e;
+         }
+
+         // releasing the memory of the decoded file as soon as possible
+         scans.set(nextFile, null);
+
+         if (nextFile + window < files.size())
+         {
+            submit(nextFile + window);
+         }
+      }
+
+      long scannedAt = System.nanoTime();
+
+      scanTime += scannedAt - start;
+
+      nextFile++;
+
+      try
+      {
+         return scanned.replay(reader);
+      }
+      catch (Throwable e)
+      {
+         close();
+         HornetQJournalLogger.LOGGER.errorReadingFile(e);
+         throw new Exception(e.getMessage(), e);
+      }
+      finally
+      {
+         mergeTime += System.nanoTime() - scannedAt;
+
+         if (nextFile == files.size())
+         {
+            close();
+         }
+      }
+   }
+
+   /**
+    * @return the milliseconds the loading thread spent reading files, or waiting for them to be read
+    */
+   long getScanTime()
+   {
+      return scanTime / 1000000;
+   }
+
+   /**
+    * @return the milliseconds the loading thread spent applying the records of the files
+    */
+   long getMergeTime()
+   {
+      return mergeTime / 1000000;
+   }
+
+   /**
+    * Stops the reading threads, which happens by itself after the last file is replayed or on a
+    * failure.
+    */
+   void close()
+   {
+      if (pool != null)
+      {
+         pool.shutdownNow();
+      }
+   }
+
+   private void submit(final int index)
+   {
+      final JournalFile file = files.get(index);
+
+      scans.add(pool.submit(new Callable<ScannedFile>()
+      {
+         public ScannedFile call() throws Exception
+         {
+            return scan(file);
+         }
+      }));
+   }
+
+   private ScannedFile scan(final JournalFile file) throws Exception
+   {
+      ScannedFile scanned = new ScannedFile(file);
+
+      scanned.lastDataPos = JournalImpl.readJournalFile(fileFactory, file, scanned);
+
+      return scanned;
+   }
+
+   // Inner classes -------------------------------------------------
+
+   /**
+    * The decoded records of a file, in the order they were read.
+    */
+   private static final class ScannedFile implements JournalReaderCallback
+   {
+      private final JournalFile file;
+
+      private final List<ReadEvent> events = new ArrayList<ReadEvent>();
+
+      private int lastDataPos;
+
+      ScannedFile(final JournalFile file)
+      {
+         this.file = file;
+      }
+
+      int replay(final JournalReaderCallback reader) throws Exception
+      {
+         for (ReadEvent event : events)
+         {
+            event.replay(reader);
+         }
+         return lastDataPos;
+      }
+
+      public void onReadAddRecord(final RecordInfo info)
+      {
+         events.add(new ReadEvent(JournalImpl.ADD_RECORD, -1, info));
+      }
+
+      public void onReadUpdateRecord(final RecordInfo info)
+      {
+         events.add(new ReadEvent(JournalImpl.UPDATE_RECORD, -1, info));
+      }
+
+      public void onReadDeleteRecord(final long recordID)
+      {
+         events.add(new ReadEvent(JournalImpl.DELETE_RECORD, recordID, null));
+      }
+
+      public void onReadAddRecordTX(final long transactionID, final RecordInfo info)
+      {
+         events.add(new ReadEvent(JournalImpl.ADD_RECORD_TX, transactionID, info));
+      }
+
+      public void onReadUpdateRecordTX(final long transactionID, final RecordInfo info)
+      {
+         events.add(new ReadEvent(JournalImpl.UPDATE_RECORD_TX, transactionID, info));
+      }
+
+      public void onReadDeleteRecordTX(final long transactionID, final RecordInfo info)
+      {
+         events.add(new ReadEvent(JournalImpl.DELETE_RECORD_TX, transactionID, info));
+      }
+
+      public void onReadPrepareRecord(final long transactionID, final byte[] extraData, final int numberOfRecords)
+      {
+         events.add(new ReadEvent(JournalImpl.PREPARE_RECORD, transactionID, numberOfRecords, extraData));
+      }
+
+      public void onReadCommitRecord(final long transactionID, final int numberOfRecords)
+      {
+         events.add(new ReadEvent(JournalImpl.COMMIT_RECORD, transactionID, numberOfRecords, null));
+      }
+
+      public void onReadRollbackRecord(final long transactionID)
+      {
+         events.add(new ReadEvent(JournalImpl.ROLLBACK_RECORD, transactionID, null));
+      }
+
+      public void markAsDataFile(final JournalFile file)
+      {
+         events.add(new ReadEvent(ReadEvent.MARK_AS_DATA_FILE, -1, null));
+      }
+
+      /**
+       * One call to the {@link JournalReaderCallback}, with the record type of the journal.
+       */
+      private final class ReadEvent
+      {
+         static final byte MARK_AS_DATA_FILE = -1;
+
+         private final byte type;
+
+         /** The transaction ID, or the record ID of a delete */
+         private final long id;
+
+         private final RecordInfo info;
+
+         private final int numberOfRecords;
+
+         private final byte[] extraData;
+
+         ReadEvent(final byte type, final long id, final RecordInfo info)
+         {
+            this.type = type;
+            this.id = id;
+            this.info = info;
+            numberOfRecords = 0;
+            extraData = null;
+         }
+
+         ReadEvent(final byte type, final long transactionID, final int numberOfRecords, final byte[] extraData)
+         {
+            this.type = type;
+            id = transactionID;
+            info = null;
+            this.numberOfRecords = numberOfRecords;
+            this.extraData = extraData;
+         }
+
+         void replay(final JournalReaderCallback reader) throws Exception
+         {
+            switch (type)
+            {
+               case JournalImpl.ADD_RECORD:
+                  reader.onReadAddRecord(info);
+                  break;
+               case JournalImpl.UPDATE_RECORD:
+                  reader.onReadUpdateRecord(info);
+                  break;
+               case JournalImpl.DELETE_RECORD:
+                  reader.onReadDeleteRecord(id);
+                  break;
+               case JournalImpl.ADD_RECORD_TX:
+                  reader.onReadAddRecordTX(id, info);
+                  break;
+               case JournalImpl.UPDATE_RECORD_TX:
+                  reader.onReadUpdateRecordTX(id, info);
+                  break;
+               case JournalImpl.DELETE_RECORD_TX:
+                  reader.onReadDeleteRecordTX(id, info);
+                  break;
+               case JournalImpl.PREPARE_RECORD:
+                  reader.onReadPrepareRecord(id, extraData, numberOfRecords);
+                  break;
+               case JournalImpl.COMMIT_RECORD:
+                  reader.onReadCommitRecord(id, numberOfRecords);
+                  break;
+               case JournalImpl.ROLLBACK_RECORD:
+                  reader.onReadRollbackRecord(id);
+                  break;
+               case MARK_AS_DATA_FILE:
+                  reader.markAsDataFile(file);
+                  break;
+               default:
+                  throw new IllegalStateException("Invalid record type " + type);
+            }
+         }
+      }
+   }
+}
@@ -415,7 +415,10 @@ public class JournalFilesRepository
 
          if (renameTmp)
          {
-            jf.getFile().renameTo(JournalImpl.renameExtensionFile(jf.getFile().getFileName(), ".tmp"));
+            // the files written by the compactor end in .cmp, and only lose it once reinitialized
+            String fileName = jf.getFile().getFileName();
+            String extension = fileName.endsWith(".cmp") ? ".cmp" : ".tmp";
+            jf.getFile().renameTo(JournalImpl.renameExtensionFile(fileName, extension));
          }
 
          freeFiles.add(jf);
@@ -586,6 +589,8 @@ public class JournalFilesRepository
    {
       long fileID = fileIdPreSet != -1 ? fileIdPreSet : generateFileID();
 
+      final int formatVersion = journal.getFormatVersion();
+
       final String fileName = createFileName(tmpCompact, fileID);
 
       if (JournalFilesRepository.trace)
@@ -603,7 +608,7 @@ public class JournalFilesRepository
       {
          sequentialFile.fill(0, fileSize, JournalImpl.FILL_CHARACTER);
 
-         JournalImpl.initFileHeader(fileFactory, sequentialFile, userVersion, fileID);
+         JournalImpl.initFileHeader(fileFactory, sequentialFile, formatVersion, userVersion, fileID);
       }
 
       long position = sequentialFile.position();
@@ -630,7 +635,7 @@ public class JournalFilesRepository
          sequentialFile.position(position);
       }
 
-      return new JournalFileImpl(sequentialFile, fileID, JournalImpl.FORMAT_VERSION);
+      return new JournalFileImpl(sequentialFile, fileID, formatVersion);
    }
 
    /**
@@ -680,9 +685,11 @@ public class JournalFilesRepository
 
       sf.open(1, false);
 
-      int position = JournalImpl.initFileHeader(fileFactory, sf, userVersion, newFileID);
+      final int formatVersion = journal.getFormatVersion();
+
+      int position = JournalImpl.initFileHeader(fileFactory, sf, formatVersion, userVersion, newFileID);
 
-      JournalFile jf = new JournalFileImpl(sf, newFileID, JournalImpl.FORMAT_VERSION);
+      JournalFile jf = new JournalFileImpl(sf, newFileID, formatVersion);
 
       sf.position(position);
 
@@ -16,6 +16,7 @@ package org.hornetq.core.journal.impl;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -26,8 +27,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -66,7 +65,9 @@ import org.hornetq.core.journal.impl.dataformat.JournalRollbackRecordTX;
 import org.hornetq.journal.HornetQJournalBundle;
 import org.hornetq.journal.HornetQJournalLogger;
 import org.hornetq.utils.ConcurrentHashSet;
+import org.hornetq.utils.ConcurrentLongHashMap;
 import org.hornetq.utils.DataConstants;
+import org.hornetq.utils.DurationHistogram;
 
 /**
  *
@@ -86,7 +87,25 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
 
    public static final int FORMAT_VERSION = 2;
 
-   private static final int COMPATIBLE_VERSIONS[] = new int[] { 1 };
+   /** The format of the files written with {@link #isChecksum()}, with a CRC on every record */
+   public static final int CHECKSUM_FORMAT_VERSION = 3;
+
+   /** The number of threads reading the journal files on load, 1 reads them on the loading thread */
+   public static final String LOAD_PARALLELISM_PROPERTY = "org.hornetq.opt.journalloadparallelism";
+
+   /** The maximum number of files on each compacting pass, 0 compacts all the files at once */
+   public static final String COMPACT_MAX_FILES_PROPERTY = "org.hornetq.opt.journalcompactmaxfiles";
+
+   /** The maximum rate (in MiB/s) the incremental compacting reads files, 0 doesn't limit it */
+   public static final String COMPACT_RATE_PROPERTY = "org.hornetq.opt.journalcompactrate";
+
+   /** A checkpoint is written after this many new data files, 0 disables the checkpoints */
+   public static final String CHECKPOINT_FILES_PROPERTY = "org.hornetq.opt.journalcheckpointfiles";
+
+   /** If the new files are written with a CRC on every record */
+   public static final String CHECKSUM_PROPERTY = "org.hornetq.opt.journalchecksum";
+
+   private static final int COMPATIBLE_VERSIONS[] = new int[] { 1, JournalImpl.CHECKSUM_FORMAT_VERSION };
 
    // Static --------------------------------------------------------
    private static final boolean trace = HornetQJournalLogger.LOGGER.isTraceEnabled();
@@ -117,6 +136,9 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
 
    private static final int BASIC_SIZE = DataConstants.SIZE_BYTE + DataConstants.SIZE_INT + DataConstants.SIZE_INT;
 
+   // The CRC written before the check size on the CHECKSUM_FORMAT_VERSION files
+   public static final int SIZE_CHECKSUM = DataConstants.SIZE_INT;
+
    public static final int SIZE_ADD_RECORD = JournalImpl.BASIC_SIZE + DataConstants.SIZE_LONG +
                                              DataConstants.SIZE_BYTE +
                                              DataConstants.SIZE_INT /* + record.length */;
@@ -179,11 +201,11 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
 
    private final JournalFilesRepository filesRepository;
 
-   // Compacting may replace this structure
-   private final ConcurrentMap<Long, JournalRecord> records = new ConcurrentHashMap<Long, JournalRecord>();
+   // Compacting will replace this structure, keeping the old one as the snapshot of the compacted records
+   private volatile ConcurrentLongHashMap<JournalRecord> records = new ConcurrentLongHashMap<JournalRecord>();
 
    // Compacting may replace this structure
-   private final ConcurrentMap<Long, JournalTransaction> transactions = new ConcurrentHashMap<Long, JournalTransaction>();
+   private final ConcurrentLongHashMap<JournalTransaction> transactions = new ConcurrentLongHashMap<JournalTransaction>();
 
    // This will be set only while the JournalCompactor is being executed
    private volatile JournalCompactor compactor;
@@ -217,6 +239,29 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
 
    private final Reclaimer reclaimer = new Reclaimer();
 
+   private volatile int loadParallelism = Integer.getInteger(JournalImpl.LOAD_PARALLELISM_PROPERTY, 1);
+
+   private volatile int compactMaxFiles = Integer.getInteger(JournalImpl.COMPACT_MAX_FILES_PROPERTY, 0);
+
+   private volatile int compactRate = Integer.getInteger(JournalImpl.COMPACT_RATE_PROPERTY, 0);
+
+   // Files added to the incremental passes after one was abandoned because of a transaction on its last file
+   private volatile int compactExtraFiles;
+
+   private final DurationHistogram compactTimes = new DurationHistogram();
+
+   private volatile int checkpointFiles = Integer.getInteger(JournalImpl.CHECKPOINT_FILES_PROPERTY, 0);
+
+   private volatile boolean checksum = Boolean.getBoolean(JournalImpl.CHECKSUM_PROPERTY);
+
+   // The first file not covered by the checkpoint, -1 if there is no checkpoint
+   private volatile long checkpointFileID = -1;
+
+   // Changed every time the checkpoint is invalidated, guarded by checkpointLock
+   private long checkpointGeneration;
+
+   private final Object checkpointLock = new Object();
+
    // Constructors --------------------------------------------------
 
    public JournalImpl(final int fileSize,
@@ -349,7 +394,7 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
       latch.await();
    }
 
-   public Map<Long, JournalRecord> getRecords()
+   public ConcurrentLongHashMap<JournalRecord> getRecords()
    {
       return records;
    }
@@ -403,6 +448,17 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
    public static int readJournalFile(final SequentialFileFactory fileFactory,
                                      final JournalFile file,
                                      final JournalReaderCallback reader) throws Exception
+   {
+      return JournalImpl.readJournalFile(fileFactory, file, reader, null);
+   }
+
+   /**
+    * @param positionCallback told the position of each record before the reader gets it, may be null
+    */
+   static int readJournalFile(final SequentialFileFactory fileFactory,
+                              final JournalFile file,
+                              final JournalReaderCallback reader,
+                              final JournalCheckpoint.PositionCallback positionCallback) throws Exception
    {
       file.getFile().open(1, false);
       ByteBuffer wholeFileBuffer = null;
@@ -642,8 +698,46 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
                continue;
             }
 
+            // VIII - On the files with checksums, the CRC before the checkSize has to match with the
+            // record. This tells a torn or damaged record from a valid one even if its sizes match.
+            if (JournalImpl.hasChecksum(file))
+            {
+               final int checksumPos = pos + variableSize +
+                                       recordSize +
+                                       preparedTransactionExtraDataSize -
+                                       DataConstants.SIZE_INT -
+                                       JournalImpl.SIZE_CHECKSUM;
+
+               if (wholeFileBuffer.getInt(checksumPos) != JournalChecksum.checksum(wholeFileBuffer,
+                                                                                   pos,
+                                                                                   checksumPos - pos))
+               {
+                  JournalImpl.trace("Record at position " + pos +
+                                    " recordType = " +
+                                    recordType +
+                                    " possible transactionID = " +
+                                    transactionID +
+                                    " possible recordID = " +
+                                    recordID +
+                                    " file:" +
+                                    file.getFile().getFileName() +
+                                    " has an invalid checksum and it is being ignored (IV)");
+
+                  reader.markAsDataFile(file);
+
+                  wholeFileBuffer.position(pos + DataConstants.SIZE_BYTE);
+
+                  continue;
+               }
+            }
+
             wholeFileBuffer.position(oldPos);
 
+            if (positionCallback != null)
+            {
+               positionCallback.onRecordPosition(pos, variableSize + recordSize + preparedTransactionExtraDataSize);
+            }
+
             // At this point everything is checked. So we relax and just load
             // the data now.
 
@@ -727,6 +821,12 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
                }
             }
 
+            if (JournalImpl.hasChecksum(file))
+            {
+               // Already verified above
+               wholeFileBuffer.position(wholeFileBuffer.position() + JournalImpl.SIZE_CHECKSUM);
+            }
+
             checkSize = wholeFileBuffer.getInt();
 
             // This is a sanity check about the loading code itself.
@@ -767,6 +867,82 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
       }
    }
 
+   /**
+    * Reads an add, update or transactional record that {@link #readJournalFile} found on the file
+    * before, from a buffer holding that part of the file.
+    *
+    * @param pos the position of the record on the buffer
+    * @param length the size of the whole record
+    * @throws IllegalStateException if the record is not there anymore
+    */
+   static RecordInfo readRecord(final JournalFile file, final ByteBuffer buffer, final int pos, final int length)
+   {
+      if (pos < 0 || length <= DataConstants.SIZE_BYTE + DataConstants.SIZE_INT || pos + length > buffer.limit())
+      {
+         throw new IllegalStateException("There is no record of " + length + " bytes at " + pos + " on " + file);
+      }
+
+      byte recordType = buffer.get(pos);
+
+      if (!JournalImpl.isContainsBody(recordType) || buffer.getInt(pos + DataConstants.SIZE_BYTE) != file.getRecordID() ||
+          buffer.getInt(pos + length - DataConstants.SIZE_INT) != length)
+      {
+         throw new IllegalStateException("The record at " + pos + " on " + file + " doesn't match");
+      }
+
+      int recordSize = JournalImpl.getRecordSize(recordType, file.getJournalVersion());
+
+      if (JournalImpl.hasChecksum(file))
+      {
+         final int checksumPos = pos + length - DataConstants.SIZE_INT - JournalImpl.SIZE_CHECKSUM;
+
+         if (buffer.getInt(checksumPos) != JournalChecksum.checksum(buffer, pos, checksumPos - pos))
+         {
+            throw new IllegalStateException("The record at " + pos + " on " + file + " has an invalid checksum");
+         }
+      }
+
+      buffer.position(pos + DataConstants.SIZE_BYTE + DataConstants.SIZE_INT);
+
+      short compactCount = 0;
+
+      if (file.getJournalVersion() >= 2)
+      {
+         compactCount = buffer.get();
+      }
+
+      if (JournalImpl.isTransaction(recordType))
+      {
+         // the transaction ID
+         buffer.getLong();
+      }
+
+      long recordID = buffer.getLong();
+
+      int variableSize = buffer.getInt();
+
+      if (variableSize != length - recordSize)
+      {
+         throw new IllegalStateException("The record at " + pos + " on " + file + " doesn't match");
+      }
+
+      byte userRecordType = 0;
+
+      if (recordType != JournalImpl.DELETE_RECORD_TX)
+      {
+         userRecordType = buffer.get();
+      }
+
+      byte[] record = new byte[variableSize];
+
+      buffer.get(record);
+
+      boolean isUpdate = recordType == JournalImpl.UPDATE_RECORD || recordType == JournalImpl.UPDATE_RECORD_TX ||
+                         recordType == JournalImpl.DELETE_RECORD_TX;
+
+      return new RecordInfo(recordID, userRecordType, record, isUpdate, compactCount);
+   }
+
    // Journal implementation
    // ----------------------------------------------------------------
 
@@ -1383,6 +1559,8 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
          }
       }, fixBadTX, null);
 
+      final long mergeStart = System.currentTimeMillis();
+
       for (RecordInfo record : records)
       {
          if (!recordsToDelete.contains(record.id))
@@ -1391,11 +1569,18 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
          }
       }
 
+      info.setMergeTime(info.getMergeTime() + System.currentTimeMillis() - mergeStart);
+
       return info;
    }
 
 
    public void scheduleCompactAndBlock(int timeout) throws Exception
+   {
+      scheduleCompactAndBlock(timeout, false);
+   }
+
+   private void scheduleCompactAndBlock(final int timeout, final boolean incremental) throws Exception
    {
       final AtomicInteger errors = new AtomicInteger(0);
 
@@ -1412,7 +1597,14 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
 
             try
             {
-               JournalImpl.this.compact();
+               if (incremental)
+               {
+                  JournalImpl.this.compactIncremental();
+               }
+               else
+               {
+                  JournalImpl.this.compact();
+               }
             }
             catch (Throwable e)
             {
@@ -1457,6 +1649,8 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
          throw new IllegalStateException("There is pending compacting operation");
       }
 
+      final long start = System.currentTimeMillis();
+
       compactorLock.writeLock().lock();
       try
       {
@@ -1502,18 +1696,23 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
             compactor = new JournalCompactor(fileFactory,
                                              this,
                                              filesRepository,
-                                             records.keySet(),
+                                             records,
                                              dataFilesToProcess.get(0).getFileID());
 
-            for (Map.Entry<Long, JournalTransaction> entry : transactions.entrySet())
+            final JournalCompactor newCompactor = compactor;
+
+            transactions.forEach(new ConcurrentLongHashMap.EntryVisitor<JournalTransaction>()
             {
-               compactor.addPendingTransaction(entry.getKey(), entry.getValue().getPositiveArray());
-               entry.getValue().setCompacting();
-            }
+               public void visit(final long txID, final JournalTransaction transaction)
+               {
+                  newCompactor.addPendingTransaction(txID, transaction.getPositiveArray());
+                  transaction.setCompacting();
+               }
+            });
 
             // We will calculate the new records during compacting, what will take the position the records will take
-            // after compacting
-            records.clear();
+            // after compacting. The current records are now owned by the compactor as its snapshot
+            records = new ConcurrentLongHashMap<JournalRecord>(records.size());
          }
          finally
          {
@@ -1551,6 +1750,8 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
 
          JournalCompactor localCompactor = compactor;
 
+         invalidateCheckpoint();
+
          SequentialFile controlFile = createControlFile(dataFilesToProcess, compactor.getNewDataFiles(), null);
 
          journalLock.writeLock().lock();
@@ -1564,10 +1765,14 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
             newDatafiles = localCompactor.getNewDataFiles();
 
             // Restore newRecords created during compacting
-            for (Map.Entry<Long, JournalRecord> newRecordEntry : localCompactor.getNewRecords().entrySet())
+            final ConcurrentLongHashMap<JournalRecord> liveRecords = records;
+            localCompactor.getNewRecords().forEach(new ConcurrentLongHashMap.EntryVisitor<JournalRecord>()
             {
-               records.put(newRecordEntry.getKey(), newRecordEntry.getValue());
-            }
+               public void visit(final long id, final JournalRecord record)
+               {
+                  liveRecords.put(id, record);
+               }
+            });
 
             // Restore compacted dataFiles
             for (int i = newDatafiles.size() - 1; i >= 0; i--)
@@ -1624,6 +1829,8 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
          renameFiles(dataFilesToProcess, newDatafiles);
          deleteControlFile(controlFile);
 
+         compactTimes.record(System.currentTimeMillis() - start);
+
          HornetQJournalLogger.LOGGER.debug("Finished compacting on journal");
 
       }
@@ -1653,161 +1860,760 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
    }
 
    /**
-    * <p>Load data accordingly to the record layouts</p>
-    *
-    * <p>Basic record layout:</p>
-    * <table border=1>
-    *   <tr><td><b>Field Name</b></td><td><b>Size</b></td></tr>
-    *   <tr><td>RecordType</td><td>Byte (1)</td></tr>
-    *   <tr><td>FileID</td><td>Integer (4 bytes)</td></tr>
-    *   <tr><td>Compactor Counter</td><td>1 byte</td></tr>
-    *   <tr><td>TransactionID <i>(if record is transactional)</i></td><td>Long (8 bytes)</td></tr>
-    *   <tr><td>RecordID</td><td>Long (8 bytes)</td></tr>
-    *   <tr><td>BodySize(Add, update and delete)</td><td>Integer (4 bytes)</td></tr>
-    *   <tr><td>UserDefinedRecordType (If add/update only)</td><td>Byte (1)</td</tr>
-    *   <tr><td>RecordBody</td><td>Byte Array (size=BodySize)</td></tr>
-    *   <tr><td>Check Size</td><td>Integer (4 bytes)</td></tr>
-    * </table>
-    *
-    * <p> The check-size is used to validate if the record is valid and complete </p>
-    *
-    * <p>Commit/Prepare record layout:</p>
-    * <table border=1>
-    *   <tr><td><b>Field Name</b></td><td><b>Size</b></td></tr>
-    *   <tr><td>RecordType</td><td>Byte (1)</td></tr>
-    *   <tr><td>FileID</td><td>Integer (4 bytes)</td></tr>
-    *   <tr><td>Compactor Counter</td><td>1 byte</td></tr>
-    *   <tr><td>TransactionID <i>(if record is transactional)</i></td><td>Long (8 bytes)</td></tr>
-    *   <tr><td>ExtraDataLength (Prepares only)</td><td>Integer (4 bytes)</td></tr>
-    *   <tr><td>Number Of Files (N)</td><td>Integer (4 bytes)</td></tr>
-    *   <tr><td>ExtraDataBytes</td><td>Bytes (sized by ExtraDataLength)</td></tr>
-    *   <tr><td>* FileID(n)</td><td>Integer (4 bytes)</td></tr>
-    *   <tr><td>* NumberOfElements(n)</td><td>Integer (4 bytes)</td></tr>
-    *   <tr><td>CheckSize</td><td>Integer (4 bytes)</td</tr>
-    * </table>
-    *
-    * <p> * FileID and NumberOfElements are the transaction summary, and they will be repeated (N)umberOfFiles times </p>
-    *
-    * */
-   public JournalLoadInformation load(final LoaderCallback loadManager) throws Exception
-   {
-      return load(loadManager, true, null);
-   }
-
-   /**
-    * @param loadManager
-    * @param changeData
-    * @param replicationSync {@code true} will place
-    * @return
-    * @throws Exception
+    * Compacts the oldest data files only, up to {@link #getCompactMaxFiles()} files per pass.
+    * <p>
+    * Unlike {@link #compact()} this doesn't move to a new file, and only the records added on the
+    * compacted files are handed to the compactor, so the time the journal is locked depends on the
+    * size of the pass and not on the size of the journal. The files being compacted are always the
+    * oldest ones: a delete or a transaction completion can't refer to a record on an older file
+    * that would be kept.
+    * <p>
+    * A pass stops short of the first file used by a pending transaction, and it is abandoned
+    * (leaving the journal as it was) when a transaction on the compacted files is completed on a
+    * later file. The next pass will then take one more file.
     */
-   private synchronized JournalLoadInformation load(final LoaderCallback loadManager, final boolean changeData,
-                                                    final JournalState replicationSync) throws Exception
+   protected synchronized void compactIncremental() throws Exception
    {
-      if (state == JournalState.STOPPED || state == JournalState.LOADED)
-      {
-         throw new IllegalStateException("Journal " + this + " must be in " + JournalState.STARTED + " state, was " +
-                  state);
-      }
-      if (state == replicationSync)
+      if (compactor != null)
       {
-         throw new IllegalStateException("Journal cannot be in state " + JournalState.STARTED);
+         throw new IllegalStateException("There is pending compacting operation");
       }
 
-      checkControlFile();
+      final long start = System.currentTimeMillis();
 
-      records.clear();
+      compactorLock.writeLock().lock();
+      try
+      {
+         final boolean previousReclaimValue = isAutoReclaim();
 
-      filesRepository.clear();
+         final List<JournalFile> filesToProcess = new ArrayList<JournalFile>();
 
-      transactions.clear();
-      currentFile = null;
+         final Set<JournalFile> compactedFiles = new HashSet<JournalFile>();
 
-      final Map<Long, TransactionHolder> loadTransactions = new LinkedHashMap<Long, TransactionHolder>();
+         final ConcurrentLongHashMap<JournalRecord> recordsSnapshot = new ConcurrentLongHashMap<JournalRecord>();
 
-      final List<JournalFile> orderedFiles = orderFiles();
+         JournalCompactor localCompactor = null;
 
-      filesRepository.calculateNextfileID(orderedFiles);
+         boolean done = false;
 
-      int lastDataPos = JournalImpl.SIZE_HEADER;
+         try
+         {
+            HornetQJournalLogger.LOGGER.debug("Starting incremental compacting operation on journal");
 
-      // AtomicLong is used only as a reference, not as an Atomic value
-      final AtomicLong maxID = new AtomicLong(-1);
+            onCompactStart();
 
-      for (final JournalFile file : orderedFiles)
-      {
-         JournalImpl.trace("Loading file " + file.getFile().getFileName());
+            JournalFile[] dataFiles = getDataFiles();
 
-         final AtomicBoolean hasData = new AtomicBoolean(false);
+            final Set<JournalFile> candidateFiles = new HashSet<JournalFile>();
 
-         int resultLastPost = JournalImpl.readJournalFile(fileFactory, file, new JournalReaderCallback()
-         {
+            // Looking for the records of the pass without holding the journal. They are read from the
+            // files of the pass, so finding them costs as much as the pass and not as the whole journal.
+            // The ones added from now on go to the current file, and the ones deleted meanwhile are
+            // checked again when locked
+            final List<Long> candidateRecords = new ArrayList<Long>();
 
-            private void checkID(final long id)
+            JournalReaderCallback candidateReader = new JournalReaderCallbackAbstract()
             {
-               if (id > maxID.longValue())
+               @Override
+               public void onReadAddRecord(final RecordInfo info)
                {
-                  maxID.set(id);
+                  candidateRecords.add(info.id);
                }
-            }
 
-            public void onReadAddRecord(final RecordInfo info) throws Exception
+               @Override
+               public void onReadAddRecordTX(final long transactionID, final RecordInfo info)
+               {
+                  if (!info.isUpdate)
+                  {
+                     candidateRecords.add(info.id);
+                  }
+               }
+            };
+
+            final long readStart = System.currentTimeMillis();
+
+            long bytesRead = 0;
+
+            for (int i = 0; i < dataFiles.length && i < compactMaxFiles + compactExtraFiles; i++)
             {
-               checkID(info.id);
+               try
+               {
+                  JournalImpl.readJournalFile(fileFactory, dataFiles[i], candidateReader);
+               }
+               catch (Exception e)
+               {
+                  // reclaimed meanwhile, the pass stops before it
+                  trace("Couldn't read " + dataFiles[i] + " for the incremental compacting: " + e);
+                  break;
+               }
 
-               hasData.set(true);
+               candidateFiles.add(dataFiles[i]);
 
-               loadManager.addRecord(info);
+               bytesRead += fileSize;
 
-               records.put(info.id, new JournalRecord(file, info.data.length + JournalImpl.SIZE_ADD_RECORD + 1));
+               throttleCompact(bytesRead, readStart);
             }
-
-            public void onReadUpdateRecord(final RecordInfo info) throws Exception
+            journalLock.writeLock().lock();
+            try
             {
-               checkID(info.id);
+               if (state != JournalState.LOADED)
+               {
+                  return;
+               }
 
-               hasData.set(true);
+               onCompactLockingTheJournal();
 
-               loadManager.updateRecord(info);
+               setAutoReclaim(false);
 
-               JournalRecord posFiles = records.get(info.id);
+               // reclaim may have run meanwhile, and the transactions can only be checked when locked
+               dataFiles = getDataFiles();
 
-               if (posFiles != null)
-               {
-                  // It's legal for this to be null. The file(s) with the may
-                  // have been deleted
-                  // just leaving some updates in this file
+               int limit = Math.min(dataFiles.length, compactMaxFiles + compactExtraFiles);
 
-                  posFiles.addUpdateFile(file, info.data.length + JournalImpl.SIZE_ADD_RECORD + 1); // +1 = compact
-                  // count
+               // only the files whose records were looked for
+               for (int i = 0; i < limit; i++)
+               {
+                  if (!candidateFiles.contains(dataFiles[i]))
+                  {
+                     limit = i;
+                     break;
+                  }
                }
-            }
 
-            public void onReadDeleteRecord(final long recordID) throws Exception
-            {
-               hasData.set(true);
+               for (JournalTransaction transaction : transactions.values())
+               {
+                  for (int i = 0; i < limit; i++)
+                  {
+                     if (transaction.isPendingOn(dataFiles[i]))
+                     {
+                        limit = i;
+                        break;
+                     }
+                  }
+               }
 
-               loadManager.deleteRecord(recordID);
+               for (int i = 0; i < limit; i++)
+               {
+                  filesToProcess.add(dataFiles[i]);
+                  compactedFiles.add(dataFiles[i]);
+               }
 
-               JournalRecord posFiles = records.remove(recordID);
+               if (filesToProcess.isEmpty())
+               {
+                  trace("Finishing incremental compacting, nothing to process");
+                  return;
+               }
 
-               if (posFiles != null)
+               for (Long id : candidateRecords)
                {
-                  posFiles.delete(file);
+                  JournalRecord record = records.get(id);
+                  if (record != null && compactedFiles.contains(record.getAddFile()))
+                  {
+                     recordsSnapshot.put(id, record);
+                     records.remove(id);
+                  }
                }
-            }
 
-            public void onReadUpdateRecordTX(final long transactionID, final RecordInfo info) throws Exception
+               compactor = new JournalCompactor(fileFactory,
+                                                this,
+                                                filesRepository,
+                                                recordsSnapshot,
+                                                filesToProcess.get(0).getFileID());
+
+               localCompactor = compactor;
+            }
+            finally
             {
-               onReadAddRecordTX(transactionID, info);
+               journalLock.writeLock().unlock();
             }
 
-            public void onReadAddRecordTX(final long transactionID, final RecordInfo info) throws Exception
+            for (final JournalFile file : filesToProcess)
             {
+               try
+               {
+                  JournalImpl.readJournalFile(fileFactory, file, localCompactor);
+               }
+               catch (Throwable e)
+               {
+                  HornetQJournalLogger.LOGGER.compactReadError(file);
+                  throw new Exception("Error on reading compacting for " + file, e);
+               }
 
-               checkID(info.id);
+               bytesRead += fileSize;
 
-               hasData.set(true);
+               throttleCompact(bytesRead, readStart);
+            }
+
+            localCompactor.flush();
+
+            onCompactDone();
+
+            final List<JournalFile> newDataFiles = localCompactor.getNewDataFiles();
+
+            // A transaction with records on the pass but completed on a later file would be left
+            // incomplete. The new files also need to fit on the IDs of the compacted files
+            boolean splitTransaction = !localCompactor.getNewTransactions().isEmpty();
+
+            if (splitTransaction || newDataFiles.size() > filesToProcess.size())
+            {
+               if (splitTransaction && filesToProcess.size() < getDataFilesCount())
+               {
+                  compactExtraFiles++;
+               }
+
+               HornetQJournalLogger.LOGGER.debug("Abandoning incremental compacting of " + filesToProcess +
+                                                 (splitTransaction ? ", a transaction is completed on a later file"
+                                                                  : ", the records don't fit on less files"));
+               return;
+            }
+
+            // The checkpoint covers the files being replaced. It is kept in memory to be written again
+            // once the pass is done, reading only the files the pass wrote
+            JournalCheckpoint previousCheckpoint = null;
+
+            if (checkpointFileID >= 0)
+            {
+               List<JournalFile> orderedFiles = new ArrayList<JournalFile>(Arrays.asList(getDataFiles()));
+
+               previousCheckpoint = readCheckpoint(orderedFiles);
+            }
+
+            invalidateCheckpoint();
+
+            SequentialFile controlFile = createControlFile(filesToProcess, newDataFiles, null);
+
+            journalLock.writeLock().lock();
+            try
+            {
+               // Need to clear the compactor here, or the replay commands will send commands back (infinite loop)
+               compactor = null;
+
+               onCompactLockingTheJournal();
+
+               final ConcurrentLongHashMap<JournalRecord> liveRecords = records;
+               localCompactor.getNewRecords().forEach(new ConcurrentLongHashMap.EntryVisitor<JournalRecord>()
+               {
+                  public void visit(final long id, final JournalRecord record)
+                  {
+                     JournalRecord original = recordsSnapshot.get(id);
+                     if (original != null)
+                     {
+                        record.keepUpdates(original, compactedFiles);
+                     }
+                     liveRecords.put(id, record);
+                  }
+               });
+
+               for (JournalFile file : filesToProcess)
+               {
+                  filesRepository.removeDataFile(file);
+               }
+
+               for (int i = newDataFiles.size() - 1; i >= 0; i--)
+               {
+                  JournalFile fileToAdd = newDataFiles.get(i);
+                  if (JournalImpl.trace)
+                  {
+                     JournalImpl.trace("Adding file " + fileToAdd + " back as datafile");
+                  }
+                  filesRepository.addDataFileOnTop(fileToAdd);
+               }
+
+               localCompactor.replayPendingCommands();
+            }
+            finally
+            {
+               journalLock.writeLock().unlock();
+            }
+
+            done = true;
+
+            compactExtraFiles = 0;
+
+            renameFiles(filesToProcess, newDataFiles);
+            deleteControlFile(controlFile);
+
+            compactTimes.record(System.currentTimeMillis() - start);
+
+            if (previousCheckpoint != null)
+            {
+               Set<Long> replacedFileIDs = new HashSet<Long>();
+
+               for (JournalFile file : filesToProcess)
+               {
+                  replacedFileIDs.add(file.getFileID());
+               }
+
+               try
+               {
+                  checkpoint(previousCheckpoint, newDataFiles, replacedFileIDs);
+               }
+               catch (Exception e)
+               {
+                  // the pass is done, the next checkpoint will read all the files
+                  HornetQJournalLogger.LOGGER.errorWritingCheckpoint(e);
+               }
+            }
+
+            HornetQJournalLogger.LOGGER.debug("Finished incremental compacting of " + filesToProcess.size() +
+                                              " files into " +
+                                              newDataFiles.size());
+         }
+         finally
+         {
+            if (localCompactor != null && !done)
+            {
+               abandonCompact(localCompactor, recordsSnapshot);
+            }
+
+            setAutoReclaim(previousReclaimValue);
+         }
+      }
+      finally
+      {
+         compactorLock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Gives the records back to the journal, replaying what happened to them during the pass, and
+    * recycles the files the compactor wrote.
+    */
+   private void abandonCompact(final JournalCompactor localCompactor,
+                               final ConcurrentLongHashMap<JournalRecord> recordsSnapshot) throws Exception
+   {
+      journalLock.writeLock().lock();
+      try
+      {
+         compactor = null;
+
+         final ConcurrentLongHashMap<JournalRecord> liveRecords = records;
+         recordsSnapshot.forEach(new ConcurrentLongHashMap.EntryVisitor<JournalRecord>()
+         {
+            public void visit(final long id, final JournalRecord record)
+            {
+               liveRecords.put(id, record);
+            }
+         });
+
+         localCompactor.replayPendingCommands();
+      }
+      finally
+      {
+         journalLock.writeLock().unlock();
+      }
+
+      try
+      {
+         localCompactor.flush();
+      }
+      catch (Throwable ignored)
+      {
+      }
+
+      final List<JournalFile> newDataFiles = localCompactor.getNewDataFiles();
+
+      final CountDownLatch done = newLatch(1);
+
+      // through filesExecutor, as renameFiles does, so the new fileIDs are given in order
+      filesExecutor.execute(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               for (JournalFile file : newDataFiles)
+               {
+                  try
+                  {
+                     // taken from the free files, they are given back to them as reclaim does
+                     filesRepository.addFreeFile(file, true);
+                  }
+                  catch (Throwable e)
+                  {
+                     HornetQJournalLogger.LOGGER.errorReinitializingFile(e, file);
+                  }
+               }
+            }
+            finally
+            {
+               done.countDown();
+            }
+         }
+      });
+
+      awaitLatch(done, -1);
+   }
+
+   /**
+    * Holds the compactor long enough to keep the reads under {@link #getCompactRate()}.
+    */
+   private void throttleCompact(final long bytesRead, final long readStart) throws InterruptedException
+   {
+      final int rate = compactRate;
+
+      if (rate > 0)
+      {
+         long expectedTime = bytesRead * 1000 / (rate * 1024L * 1024L);
+
+         long sleep = expectedTime - (System.currentTimeMillis() - readStart);
+
+         if (sleep > 0)
+         {
+            Thread.sleep(sleep);
+         }
+      }
+   }
+
+   /**
+    * Writes a checkpoint of the data files, which are all the files before the current one. See
+    * {@link JournalCheckpoint}.
+    * <p>
+    * The journal is only locked to take the list of files, which are then read like compacting
+    * does. Reclaiming is disabled meanwhile, as it would reuse the files being read. Only the files
+    * after the previous checkpoint are read, the build resumes from it.
+    */
+   protected synchronized void checkpoint() throws Exception
+   {
+      checkpoint(null, null, null);
+   }
+
+   /**
+    * @param compactedPrevious the checkpoint invalidated by an incremental compacting pass, which is
+    *           resumed reading the files the pass wrote, or null to resume from the current one
+    * @param compactedFiles the files written by the pass
+    * @param replacedFileIDs the IDs of the files the pass replaced
+    */
+   private synchronized void checkpoint(final JournalCheckpoint compactedPrevious,
+                                        final List<JournalFile> compactedFiles,
+                                        final Set<Long> replacedFileIDs) throws Exception
+   {
+      final long start = System.currentTimeMillis();
+
+      compactorLock.writeLock().lock();
+      try
+      {
+         final boolean previousReclaimValue = isAutoReclaim();
+
+         try
+         {
+            final List<JournalFile> filesToRead = new ArrayList<JournalFile>();
+
+            final long cutFileID;
+
+            final long generation;
+
+            synchronized (checkpointLock)
+            {
+               generation = checkpointGeneration;
+            }
+
+            journalLock.writeLock().lock();
+            try
+            {
+               if (state != JournalState.LOADED)
+               {
+                  return;
+               }
+
+               setAutoReclaim(false);
+
+               filesToRead.addAll(filesRepository.getDataFiles());
+
+               cutFileID = currentFile.getFileID();
+            }
+            finally
+            {
+               journalLock.writeLock().unlock();
+            }
+
+            if (filesToRead.isEmpty())
+            {
+               return;
+            }
+
+            Collections.sort(filesToRead, new JournalFileComparator());
+
+            // Compacting is excluded and reclaiming disabled, so the previous checkpoint still
+            // matches the files. If reading it fails it is invalidated, and this one is ignored
+            final JournalCheckpoint previous;
+
+            JournalCheckpoint.Builder builder = new JournalCheckpoint.Builder(cutFileID);
+
+            if (compactedPrevious != null)
+            {
+               previous = compactedPrevious;
+
+               builder.resume(fileFactory, previous, filesToRead, compactedFiles, replacedFileIDs);
+            }
+            else
+            {
+               previous = checkpointFileID >= 0 ? readCheckpoint(filesToRead) : null;
+
+               if (previous != null)
+               {
+                  builder.resume(previous, filesToRead);
+               }
+            }
+
+            for (JournalFile file : filesToRead)
+            {
+               if ((previous == null || file.getFileID() >= previous.getCutFileID()) &&
+                   (compactedFiles == null || !compactedFiles.contains(file)))
+               {
+                  builder.read(fileFactory, file);
+               }
+            }
+
+            JournalCheckpoint checkpoint = builder.build();
+
+            synchronized (checkpointLock)
+            {
+               if (generation != checkpointGeneration)
+               {
+                  HornetQJournalLogger.LOGGER.debug("The journal files changed while writing " + checkpoint +
+                                                    ", ignoring it");
+                  return;
+               }
+
+               checkpoint.write(fileFactory, getCheckpointFileName(), userVersion);
+
+               checkpointFileID = cutFileID;
+            }
+
+            HornetQJournalLogger.LOGGER.debug("Wrote " + checkpoint + " in " + (System.currentTimeMillis() - start) +
+                                              " milliseconds");
+         }
+         finally
+         {
+            setAutoReclaim(previousReclaimValue);
+         }
+      }
+      finally
+      {
+         compactorLock.writeLock().unlock();
+      }
+   }
+
+   /**
+    * Deletes the checkpoint. This has to be done before the files it covers are rewritten.
+    */
+   private void invalidateCheckpoint() throws Exception
+   {
+      synchronized (checkpointLock)
+      {
+         checkpointGeneration++;
+
+         checkpointFileID = -1;
+
+         SequentialFile file = fileFactory.createSequentialFile(getCheckpointFileName(), 1);
+
+         if (file.exists())
+         {
+            file.delete();
+         }
+      }
+   }
+
+   private String getCheckpointFileName()
+   {
+      return JournalCheckpoint.getFileName(filesRepository.getFilePrefix());
+   }
+
+   /**
+    * <p>Load data accordingly to the record layouts</p>
+    *
+    * <p>Basic record layout:</p>
+    * <table border=1>
+    *   <tr><td><b>Field Name</b></td><td><b>Size</b></td></tr>
+    *   <tr><td>RecordType</td><td>Byte (1)</td></tr>
+    *   <tr><td>FileID</td><td>Integer (4 bytes)</td></tr>
+    *   <tr><td>Compactor Counter</td><td>1 byte</td></tr>
+    *   <tr><td>TransactionID <i>(if record is transactional)</i></td><td>Long (8 bytes)</td></tr>
+    *   <tr><td>RecordID</td><td>Long (8 bytes)</td></tr>
+    *   <tr><td>BodySize(Add, update and delete)</td><td>Integer (4 bytes)</td></tr>
+    *   <tr><td>UserDefinedRecordType (If add/update only)</td><td>Byte (1)</td</tr>
+    *   <tr><td>RecordBody</td><td>Byte Array (size=BodySize)</td></tr>
+    *   <tr><td>Check Size</td><td>Integer (4 bytes)</td></tr>
+    * </table>
+    *
+    * <p> The check-size is used to validate if the record is valid and complete </p>
+    *
+    * <p>Commit/Prepare record layout:</p>
+    * <table border=1>
+    *   <tr><td><b>Field Name</b></td><td><b>Size</b></td></tr>
+    *   <tr><td>RecordType</td><td>Byte (1)</td></tr>
+    *   <tr><td>FileID</td><td>Integer (4 bytes)</td></tr>
+    *   <tr><td>Compactor Counter</td><td>1 byte</td></tr>
+    *   <tr><td>TransactionID <i>(if record is transactional)</i></td><td>Long (8 bytes)</td></tr>
+    *   <tr><td>ExtraDataLength (Prepares only)</td><td>Integer (4 bytes)</td></tr>
+    *   <tr><td>Number Of Files (N)</td><td>Integer (4 bytes)</td></tr>
+    *   <tr><td>ExtraDataBytes</td><td>Bytes (sized by ExtraDataLength)</td></tr>
+    *   <tr><td>* FileID(n)</td><td>Integer (4 bytes)</td></tr>
+    *   <tr><td>* NumberOfElements(n)</td><td>Integer (4 bytes)</td></tr>
+    *   <tr><td>CheckSize</td><td>Integer (4 bytes)</td</tr>
+    * </table>
+    *
+    * <p> * FileID and NumberOfElements are the transaction summary, and they will be repeated (N)umberOfFiles times </p>
+    *
+    * */
+   public JournalLoadInformation load(final LoaderCallback loadManager) throws Exception
+   {
+      return load(loadManager, true, null);
+   }
+
+   /**
+    * @param loadManager
+    * @param changeData
+    * @param replicationSync {@code true} will place
+    * @return
+    * @throws Exception
+    */
+   private synchronized JournalLoadInformation load(final LoaderCallback loadManager, final boolean changeData,
+                                                    final JournalState replicationSync) throws Exception
+   {
+      if (state == JournalState.STOPPED || state == JournalState.LOADED)
+      {
+         throw new IllegalStateException("Journal " + this + " must be in " + JournalState.STARTED + " state, was " +
+                  state);
+      }
+      if (state == replicationSync)
+      {
+         throw new IllegalStateException("Journal cannot be in state " + JournalState.STARTED);
+      }
+
+      checkControlFile();
+
+      records.clear();
+
+      filesRepository.clear();
+
+      transactions.clear();
+      currentFile = null;
+
+      final Map<Long, TransactionHolder> loadTransactions = new LinkedHashMap<Long, TransactionHolder>();
+
+      final List<JournalFile> orderedFiles = orderFiles();
+
+      filesRepository.calculateNextfileID(orderedFiles);
+
+      int lastDataPos = JournalImpl.SIZE_HEADER;
+
+      // AtomicLong is used only as a reference, not as an Atomic value
+      final AtomicLong maxID = new AtomicLong(-1);
+
+      checkpointFileID = -1;
+
+      // A backup being synchronized is getting its files replaced
+      final JournalCheckpoint checkpoint = replicationSync == null ? readCheckpoint(orderedFiles) : null;
+
+      final List<JournalFile> filesToLoad;
+
+      long checkpointTime = 0;
+
+      if (checkpoint == null)
+      {
+         if (replicationSync != null)
+         {
+            invalidateCheckpoint();
+         }
+
+         filesToLoad = orderedFiles;
+      }
+      else
+      {
+         final long checkpointStart = System.currentTimeMillis();
+
+         filesToLoad = new ArrayList<JournalFile>();
+
+         lastDataPos = loadCheckpoint(checkpoint,
+                                      orderedFiles,
+                                      filesToLoad,
+                                      loadManager,
+                                      loadTransactions,
+                                      maxID,
+                                      changeData);
+
+         checkpointTime = System.currentTimeMillis() - checkpointStart;
+      }
+
+      final JournalFileScanner scanner = new JournalFileScanner(fileFactory, filesToLoad, loadParallelism);
+
+      for (final JournalFile file : filesToLoad)
+      {
+         JournalImpl.trace("Loading file " + file.getFile().getFileName());
+
+         final AtomicBoolean hasData = new AtomicBoolean(false);
+
+         int resultLastPost = scanner.replay(file, new JournalReaderCallback()
+         {
+
+            private void checkID(final long id)
+            {
+               if (id > maxID.longValue())
+               {
+                  maxID.set(id);
+               }
+            }
+
+            public void onReadAddRecord(final RecordInfo info) throws Exception
+            {
+               checkID(info.id);
+
+               hasData.set(true);
+
+               loadManager.addRecord(info);
+
+               records.put(info.id, new JournalRecord(file, JournalImpl.countedSize(file, info.data.length +
+                                                                                       JournalImpl.SIZE_ADD_RECORD)));
+            }
+
+            public void onReadUpdateRecord(final RecordInfo info) throws Exception
+            {
+               checkID(info.id);
+
+               hasData.set(true);
+
+               loadManager.updateRecord(info);
+
+               JournalRecord posFiles = records.get(info.id);
+
+               if (posFiles != null)
+               {
+                  // It's legal for this to be null. The file(s) with the may
+                  // have been deleted
+                  // just leaving some updates in this file
+
+                  posFiles.addUpdateFile(file, JournalImpl.countedSize(file, info.data.length +
+                                                                             JournalImpl.SIZE_ADD_RECORD));
+               }
+            }
+
+            public void onReadDeleteRecord(final long recordID) throws Exception
+            {
+               hasData.set(true);
+
+               loadManager.deleteRecord(recordID);
+
+               JournalRecord posFiles = records.remove(recordID);
+
+               if (posFiles != null)
+               {
+                  posFiles.delete(file);
+               }
+            }
+
+            public void onReadUpdateRecordTX(final long transactionID, final RecordInfo info) throws Exception
+            {
+               onReadAddRecordTX(transactionID, info);
+            }
+
+            public void onReadAddRecordTX(final long transactionID, final RecordInfo info) throws Exception
+            {
+
+               checkID(info.id);
+
+               hasData.set(true);
 
                TransactionHolder tx = loadTransactions.get(transactionID);
 
@@ -1829,8 +2635,8 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
                   transactions.put(transactionID, tnp);
                }
 
-               tnp.addPositive(file, info.id, info.data.length + JournalImpl.SIZE_ADD_RECORD_TX + 1); // +1 = compact
-               // count
+               tnp.addPositive(file, info.id, JournalImpl.countedSize(file, info.data.length +
+                                                                             JournalImpl.SIZE_ADD_RECORD_TX));
             }
 
             public void onReadDeleteRecordTX(final long transactionID, final RecordInfo info) throws Exception
@@ -2003,6 +2809,8 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
          }
       }
 
+      final long mergeStart = System.currentTimeMillis();
+
       if (replicationSync == JournalState.SYNCING)
       {
          assert filesRepository.getDataFiles().isEmpty();
@@ -2012,6 +2820,19 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
 
       setUpCurrentFile(lastDataPos);
 
+      if (checkpoint != null)
+      {
+         if (currentFile.getFileID() < checkpoint.getCutFileID())
+         {
+            // Nothing was written after the checkpoint, and the files it covers are going to be written again
+            invalidateCheckpoint();
+         }
+         else
+         {
+            checkpointFileID = checkpoint.getCutFileID();
+         }
+      }
+
       setJournalState(JournalState.LOADED);
 
       for (TransactionHolder transaction : loadTransactions.values())
@@ -2040,19 +2861,220 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
                }
             }
 
-            PreparedTransactionInfo info = new PreparedTransactionInfo(transaction.transactionID, transaction.extraData);
+            PreparedTransactionInfo info = new PreparedTransactionInfo(transaction.transactionID, transaction.extraData);
+
+            info.records.addAll(transaction.recordInfos);
+
+            info.recordsToDelete.addAll(transaction.recordsToDelete);
+
+            loadManager.addPreparedTransaction(info);
+         }
+      }
+
+      checkReclaimStatus();
+
+      JournalLoadInformation info = new JournalLoadInformation(records.size(), maxID.longValue());
+
+      info.setScanTime(scanner.getScanTime());
+
+      info.setMergeTime(scanner.getMergeTime() + checkpointTime + System.currentTimeMillis() - mergeStart);
+
+      return info;
+   }
+
+   /**
+    * @return the checkpoint, or null if there is none or it doesn't match the files
+    */
+   private JournalCheckpoint readCheckpoint(final List<JournalFile> orderedFiles) throws Exception
+   {
+      JournalCheckpoint checkpoint;
+
+      try
+      {
+         checkpoint = JournalCheckpoint.read(fileFactory, getCheckpointFileName(), userVersion);
+      }
+      catch (Exception e)
+      {
+         HornetQJournalLogger.LOGGER.invalidCheckpoint(e, getCheckpointFileName());
+         invalidateCheckpoint();
+         return null;
+      }
+
+      if (checkpoint == null)
+      {
+         return null;
+      }
+
+      Map<Long, String> coveredNames = new HashMap<Long, String>();
+
+      for (JournalCheckpoint.FileEntry entry : checkpoint.getFiles())
+      {
+         coveredNames.put(entry.fileID, entry.fileName);
+      }
+
+      for (JournalFile file : orderedFiles)
+      {
+         String coveredName = coveredNames.get(file.getFileID());
+
+         if (coveredName != null && !coveredName.equals(file.getFile().getFileName()))
+         {
+            HornetQJournalLogger.LOGGER.invalidCheckpoint(new IllegalStateException(file +
+                                                                                   " is not the file covered by the checkpoint"),
+                                                          getCheckpointFileName());
+            invalidateCheckpoint();
+            return null;
+         }
+      }
+
+      return checkpoint;
+   }
+
+   /**
+    * Restores the state of the files covered by the checkpoint, as if they were read. The files
+    * reclaimed after the checkpoint was taken are gone, and what happened on them is ignored the
+    * same way reading the remaining files would.
+    *
+    * @param filesToLoad receives the files after the checkpoint, which still need to be read
+    * @return the position after the last record of the last covered file with data
+    */
+   private int loadCheckpoint(final JournalCheckpoint checkpoint,
+                              final List<JournalFile> orderedFiles,
+                              final List<JournalFile> filesToLoad,
+                              final LoaderCallback loadManager,
+                              final Map<Long, TransactionHolder> loadTransactions,
+                              final AtomicLong maxID,
+                              final boolean changeData) throws Exception
+   {
+      Map<Long, JournalCheckpoint.FileEntry> entries = new HashMap<Long, JournalCheckpoint.FileEntry>();
+
+      for (JournalCheckpoint.FileEntry entry : checkpoint.getFiles())
+      {
+         entries.put(entry.fileID, entry);
+      }
+
+      // The covered files with data that were not reclaimed since the checkpoint
+      final Map<Long, JournalFile> coveredFiles = new HashMap<Long, JournalFile>();
+
+      int lastDataPos = JournalImpl.SIZE_HEADER;
+
+      for (JournalFile file : orderedFiles)
+      {
+         if (file.getFileID() >= checkpoint.getCutFileID())
+         {
+            filesToLoad.add(file);
+            continue;
+         }
+
+         JournalCheckpoint.FileEntry entry = entries.get(file.getFileID());
+
+         if (entry != null && entry.hasData)
+         {
+            coveredFiles.put(file.getFileID(), file);
+            lastDataPos = entry.lastDataPos;
+            filesRepository.addDataFileOnBottom(file);
+         }
+         else if (changeData)
+         {
+            // Empty dataFiles with no data, or files reclaimed before the checkpoint
+            filesRepository.addFreeFile(file, false, false);
+         }
+      }
+
+      // The records are read from the covered files, at the positions kept by the checkpoint
+      final JournalCheckpoint.RecordReader reader = new JournalCheckpoint.RecordReader(fileFactory);
+
+      try
+      {
+         for (JournalCheckpoint.TransactionEvent event : checkpoint.getTransactionEvents())
+         {
+            JournalFile file = coveredFiles.get(event.fileID);
+
+            if (file == null)
+            {
+               continue;
+            }
+
+            TransactionHolder tx = loadTransactions.get(event.transactionID);
+
+            if (tx == null)
+            {
+               tx = new TransactionHolder(event.transactionID);
+
+               loadTransactions.put(event.transactionID, tx);
+            }
+
+            JournalTransaction journalTransaction = transactions.get(event.transactionID);
+
+            if (journalTransaction == null)
+            {
+               journalTransaction = new JournalTransaction(event.transactionID, this);
+
+               transactions.put(event.transactionID, journalTransaction);
+            }
+
+            switch (event.type)
+            {
+               case ADD_RECORD_TX:
+               case UPDATE_RECORD_TX:
+                  tx.recordInfos.add(reader.read(file, event.position, event.length));
+                  journalTransaction.addPositive(file, event.recordID, event.countedSize);
+                  break;
+               case DELETE_RECORD_TX:
+                  tx.recordsToDelete.add(reader.read(file, event.position, event.length));
+                  journalTransaction.addNegative(file, event.recordID);
+                  break;
+               default:
+                  tx.prepared = true;
+
+                  tx.extraData = event.extraData;
+
+                  if (checkTransactionHealth(file, journalTransaction, orderedFiles, event.numberOfRecords))
+                  {
+                     journalTransaction.prepare(file);
+                  }
+                  else
+                  {
+                     HornetQJournalLogger.LOGGER.preparedTXIncomplete(event.transactionID);
+                     tx.invalid = true;
+                  }
+            }
+         }
+
+         // After the transactions, as the restored counters of the files account for them
+         final Set<Long> droppedRecords = checkpoint.restore(coveredFiles, records);
 
-            info.records.addAll(transaction.recordInfos);
+         for (JournalCheckpoint.LoadedRecord loaded : checkpoint.getLoadedRecords())
+         {
+            JournalFile file = coveredFiles.get(loaded.fileID);
 
-            info.recordsToDelete.addAll(transaction.recordsToDelete);
+            if (file != null && !droppedRecords.contains(loaded.id))
+            {
+               RecordInfo info = reader.read(file, loaded.position, loaded.length);
 
-            loadManager.addPreparedTransaction(info);
+               if (info.isUpdate)
+               {
+                  loadManager.updateRecord(info);
+               }
+               else
+               {
+                  loadManager.addRecord(info);
+               }
+            }
          }
       }
+      finally
+      {
+         reader.close();
+      }
 
-      checkReclaimStatus();
+      if (checkpoint.getMaxID() > maxID.get())
+      {
+         maxID.set(checkpoint.getMaxID());
+      }
+
+      HornetQJournalLogger.LOGGER.debug("Loaded " + checkpoint + ", reading " + filesToLoad.size() + " more files");
 
-      return new JournalLoadInformation(records.size(), maxID.longValue());
+      return lastDataPos;
    }
 
    /**
@@ -2078,21 +3100,32 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
       }
       try
       {
-         reclaimer.scan(getDataFiles());
+         // Compacting or a checkpoint may have started while waiting for the lock, and they are reading the files
+         if (!isAutoReclaim())
+         {
+            return false;
+         }
 
-         for (JournalFile file : filesRepository.getDataFiles())
+         // Reclaims can be called from different threads (the compactor executor and the users of the journal), and
+         // the read lock won't keep them apart. Two of them adding the same file to the free files would reuse it twice
+         synchronized (reclaimer)
          {
-            if (file.isCanReclaim())
+            reclaimer.scan(getDataFiles());
+
+            for (JournalFile file : filesRepository.getDataFiles())
             {
-               // File can be reclaimed or deleted
-               if (JournalImpl.trace)
+               if (file.isCanReclaim())
                {
-                  JournalImpl.trace("Reclaiming file " + file);
-               }
+                  // File can be reclaimed or deleted
+                  if (JournalImpl.trace)
+                  {
+                     JournalImpl.trace("Reclaiming file " + file);
+                  }
 
-               filesRepository.removeDataFile(file);
+                  filesRepository.removeDataFile(file);
 
-               filesRepository.addFreeFile(file, false);
+                  filesRepository.addFreeFile(file, false);
+               }
             }
          }
       }
@@ -2138,13 +3171,47 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
          return;
       }
 
-      if (!compactorRunning.get() && needsCompact())
+      if (compactorRunning.get())
+      {
+         return;
+      }
+
+      if (compactMaxFiles > 0 && needsIncrementalCompact())
+      {
+         scheduleCompact(true);
+      }
+      else if (needsCompact())
+      {
+         // the oldest files are mostly live, an incremental pass would just copy them
+         scheduleCompact(false);
+      }
+   }
+
+   /**
+    * @return true if the files of the next incremental pass are below the compact percentage
+    */
+   private boolean needsIncrementalCompact() throws Exception
+   {
+      JournalFile[] dataFiles = getDataFiles();
+
+      if (dataFiles.length <= compactMinFiles)
       {
-         scheduleCompact();
+         return false;
+      }
+
+      int files = Math.min(dataFiles.length, compactMaxFiles + compactExtraFiles);
+
+      long liveSize = 0;
+
+      for (int i = 0; i < files; i++)
+      {
+         liveSize += dataFiles[i].getLiveSize();
       }
+
+      return liveSize < (long)(files * (long)fileSize * compactPercentage);
    }
 
-   private void scheduleCompact()
+   private void scheduleCompact(final boolean incremental)
    {
       if (!compactorRunning.compareAndSet(false, true))
       {
@@ -2160,7 +3227,14 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
 
             try
             {
-               JournalImpl.this.compact();
+               if (incremental)
+               {
+                  JournalImpl.this.compactIncremental();
+               }
+               else
+               {
+                  JournalImpl.this.compact();
+               }
             }
             catch (Throwable e)
             {
@@ -2174,6 +3248,101 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
       });
    }
 
+   private void checkCheckpoint()
+   {
+      if (checkpointFiles <= 0 || state != JournalState.LOADED)
+      {
+         return;
+      }
+
+      final long cut = checkpointFileID;
+
+      int newFiles = 0;
+
+      for (JournalFile file : filesRepository.getDataFiles())
+      {
+         if (file.getFileID() >= cut)
+         {
+            newFiles++;
+         }
+      }
+
+      if (newFiles >= checkpointFiles)
+      {
+         scheduleCheckpoint();
+      }
+   }
+
+   private void scheduleCheckpoint()
+   {
+      if (!compactorRunning.compareAndSet(false, true))
+      {
+         return;
+      }
+
+      compactorExecutor.execute(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               JournalImpl.this.checkpoint();
+            }
+            catch (Throwable e)
+            {
+               HornetQJournalLogger.LOGGER.errorWritingCheckpoint(e);
+            }
+            finally
+            {
+               compactorRunning.set(false);
+            }
+         }
+      });
+   }
+
+   public void scheduleCheckpointAndBlock(final int timeout) throws Exception
+   {
+      final AtomicInteger errors = new AtomicInteger(0);
+
+      final CountDownLatch latch = newLatch(1);
+
+      compactorRunning.set(true);
+
+      compactorExecutor.execute(new Runnable()
+      {
+         public void run()
+         {
+            try
+            {
+               JournalImpl.this.checkpoint();
+            }
+            catch (Throwable e)
+            {
+               errors.incrementAndGet();
+               HornetQJournalLogger.LOGGER.errorWritingCheckpoint(e);
+            }
+            finally
+            {
+               latch.countDown();
+            }
+         }
+      });
+
+      try
+      {
+         awaitLatch(latch, timeout);
+
+         if (errors.get() > 0)
+         {
+            throw new RuntimeException("Error writing the checkpoint, look at the logs");
+         }
+      }
+      finally
+      {
+         compactorRunning.set(false);
+      }
+   }
+
    // TestableJournal implementation
    // --------------------------------------------------------------
 
@@ -2320,6 +3489,117 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
       return userVersion;
    }
 
+   public int getLoadParallelism()
+   {
+      return loadParallelism;
+   }
+
+   /**
+    * @param loadParallelism the number of threads reading (and decoding) the files on the next
+    *           load. The records are still applied by the loading thread, in the file order.
+    */
+   public void setLoadParallelism(final int loadParallelism)
+   {
+      if (loadParallelism < 1)
+      {
+         throw new IllegalArgumentException("Invalid load parallelism " + loadParallelism);
+      }
+      this.loadParallelism = loadParallelism;
+   }
+
+   public int getCompactMaxFiles()
+   {
+      return compactMaxFiles;
+   }
+
+   /**
+    * @param compactMaxFiles the maximum number of files compacted on each pass when compacting is
+    *           triggered by the journal, 0 compacts all the files at once
+    */
+   public void setCompactMaxFiles(final int compactMaxFiles)
+   {
+      if (compactMaxFiles < 0)
+      {
+         throw new IllegalArgumentException("Invalid compact max files " + compactMaxFiles);
+      }
+      this.compactMaxFiles = compactMaxFiles;
+   }
+
+   public int getCompactRate()
+   {
+      return compactRate;
+   }
+
+   /**
+    * @param compactRate the maximum rate (in MiB/s) files are read by the incremental compacting, 0
+    *           doesn't limit it
+    */
+   public void setCompactRate(final int compactRate)
+   {
+      if (compactRate < 0)
+      {
+         throw new IllegalArgumentException("Invalid compact rate " + compactRate);
+      }
+      this.compactRate = compactRate;
+   }
+
+   /**
+    * @return the durations (in milliseconds) of the compacting passes
+    */
+   public DurationHistogram getCompactTimes()
+   {
+      return compactTimes;
+   }
+
+   public int getCheckpointFiles()
+   {
+      return checkpointFiles;
+   }
+
+   /**
+    * @param checkpointFiles the number of new data files after which a checkpoint is written, 0
+    *           disables the checkpoints
+    */
+   public void setCheckpointFiles(final int checkpointFiles)
+   {
+      if (checkpointFiles < 0)
+      {
+         throw new IllegalArgumentException("Invalid checkpoint files " + checkpointFiles);
+      }
+      this.checkpointFiles = checkpointFiles;
+   }
+
+   public boolean isChecksum()
+   {
+      return checksum;
+   }
+
+   /**
+    * @param checksum if the files initialized from now on are written with a CRC on every record.
+    *           The files already initialized keep their format.
+    */
+   public void setChecksum(final boolean checksum)
+   {
+      this.checksum = checksum;
+   }
+
+   /**
+    * @return the format of the files initialized from now on
+    */
+   public int getFormatVersion()
+   {
+      return checksum ? JournalImpl.CHECKSUM_FORMAT_VERSION : JournalImpl.FORMAT_VERSION;
+   }
+
+   /**
+    * @return the ID of the first file not covered by the checkpoint, or -1 if there is no valid
+    *         checkpoint
+    */
+   public long getCheckpointFileID()
+   {
+      return checkpointFileID;
+   }
+
    // In some tests we need to force the journal to move to a next file
    public void forceMoveNextFile() throws Exception
    {
@@ -2585,6 +3865,23 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
       return journalTransaction.getCounter(currentFile) == numberOfRecords;
    }
 
+   /**
+    * @return if the records of the file have a CRC
+    */
+   static boolean hasChecksum(final JournalFile file)
+   {
+      return file.getJournalVersion() >= JournalImpl.CHECKSUM_FORMAT_VERSION;
+   }
+
+   /**
+    * @return the size counted for a record of the file, from the size of the record before its
+    *         compact count and its checksum
+    */
+   static int countedSize(final JournalFile file, final int recordSize)
+   {
+      return recordSize + 1 + (JournalImpl.hasChecksum(file) ? JournalImpl.SIZE_CHECKSUM : 0);
+   }
+
    private static boolean isTransaction(final byte recordType)
    {
       return recordType == JournalImpl.ADD_RECORD_TX || recordType == JournalImpl.UPDATE_RECORD_TX ||
@@ -2642,7 +3939,11 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
             throw new IllegalStateException("Record other than expected");
 
       }
-      if (journalVersion >= 2)
+      if (journalVersion >= JournalImpl.CHECKSUM_FORMAT_VERSION)
+      {
+         return recordSize + 1 + JournalImpl.SIZE_CHECKSUM;
+      }
+      else if (journalVersion >= 2)
       {
          return recordSize + 1;
       }
@@ -2708,13 +4009,25 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
                                     final SequentialFile sequentialFile,
                                     final int userVersion,
                                     final long fileID) throws Exception
+   {
+      return JournalImpl.initFileHeader(fileFactory, sequentialFile, JournalImpl.FORMAT_VERSION, userVersion, fileID);
+   }
+
+   /**
+    * @param formatVersion either {@link #FORMAT_VERSION} or {@link #CHECKSUM_FORMAT_VERSION}
+    */
+   public static int initFileHeader(final SequentialFileFactory fileFactory,
+                                    final SequentialFile sequentialFile,
+                                    final int formatVersion,
+                                    final int userVersion,
+                                    final long fileID) throws Exception
    {
       // We don't need to release buffers while writing.
       ByteBuffer bb = fileFactory.newBuffer(JournalImpl.SIZE_HEADER);
 
       HornetQBuffer buffer = HornetQBuffers.wrappedBuffer(bb);
 
-      JournalImpl.writeHeader(buffer, userVersion, fileID);
+      JournalImpl.writeHeader(buffer, formatVersion, userVersion, fileID);
 
       bb.rewind();
 
@@ -2734,7 +4047,15 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
     */
    public static void writeHeader(final HornetQBuffer buffer, final int userVersion, final long fileID)
    {
-      buffer.writeInt(JournalImpl.FORMAT_VERSION);
+      JournalImpl.writeHeader(buffer, JournalImpl.FORMAT_VERSION, userVersion, fileID);
+   }
+
+   public static void writeHeader(final HornetQBuffer buffer,
+                                  final int formatVersion,
+                                  final int userVersion,
+                                  final long fileID)
+   {
+      buffer.writeInt(formatVersion);
 
       buffer.writeInt(userVersion);
 
@@ -2756,9 +4077,18 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
 
       final IOAsyncTask callback;
 
-      final int size = encoder.getEncodeSize();
+      // Records follow the format of the file they're written on, which may have been initialized
+      // before the checksum was enabled or disabled
+      encoder.setChecksum(JournalImpl.hasChecksum(currentFile));
+
+      switchFileIfNecessary(encoder.getEncodeSize());
 
-      switchFileIfNecessary(size);
+      if (encoder.isChecksum() != JournalImpl.hasChecksum(currentFile))
+      {
+         encoder.setChecksum(JournalImpl.hasChecksum(currentFile));
+
+         switchFileIfNecessary(encoder.getEncodeSize());
+      }
 
       if (tx != null)
       {
@@ -2826,6 +4156,8 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
                   if (!checkReclaimStatus())
                   {
                      checkCompact();
+
+                     checkCheckpoint();
                   }
                }
                catch (Exception e)
@@ -3067,6 +4399,10 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
       synchronizationLock();
       try
       {
+         // the files of the live server replace ours
+         invalidateCheckpoint();
+
+
          Map<Long, JournalFile> map = new HashMap<Long, JournalFile>();
          long maxID = -1;
          for (long id : fileIds)
@@ -3228,4 +4564,30 @@ public class JournalImpl extends JournalBase implements TestableJournal, Journal
          throw new RuntimeException(e);
       }
    }
+
+   @Override
+   public void testCompactIncremental()
+   {
+      try
+      {
+         scheduleCompactAndBlock(60, true);
+      }
+      catch (Exception e)
+      {
+         throw new RuntimeException(e);
+      }
+   }
+
+   @Override
+   public void testCheckpoint()
+   {
+      try
+      {
+         scheduleCheckpointAndBlock(60);
+      }
+      catch (Exception e)
+      {
+         throw new RuntimeException(e);
+      }
+   }
 }
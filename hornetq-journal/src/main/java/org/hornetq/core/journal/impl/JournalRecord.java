@@ -15,6 +15,7 @@ package org.hornetq.core.journal.impl;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 import org.hornetq.api.core.Pair;
 
@@ -45,6 +46,49 @@ public class JournalRecord
       addFile.addSize(size);
    }
 
+   JournalFile getAddFile()
+   {
+      return addFile;
+   }
+
+   int getSize()
+   {
+      return size;
+   }
+
+   /**
+    * @return the files with updates of the record and the size of each update, or null if there
+    *         are no updates
+    */
+   List<Pair<JournalFile, Integer>> getUpdateFiles()
+   {
+      return updateFiles;
+   }
+
+   /**
+    * Takes the updates of the original record that live outside of the compacted files. They are
+    * already counted on their files, so the counters are not changed.
+    */
+   void keepUpdates(final JournalRecord original, final Set<JournalFile> compactedFiles)
+   {
+      if (original.updateFiles == null)
+      {
+         return;
+      }
+
+      for (Pair<JournalFile, Integer> update : original.updateFiles)
+      {
+         if (!compactedFiles.contains(update.getA()))
+         {
+            if (updateFiles == null)
+            {
+               updateFiles = new ArrayList<Pair<JournalFile, Integer>>();
+            }
+            updateFiles.add(update);
+         }
+      }
+   }
+
    void addUpdateFile(final JournalFile updateFile, final int size)
    {
       if (updateFiles == null)
@@ -112,6 +112,14 @@ public class JournalTransaction
       clear();
    }
 
+   /**
+    * @return true if the transaction has records (or its prepare) on the file
+    */
+   boolean isPendingOn(final JournalFile file)
+   {
+      return pendingFiles != null && pendingFiles.contains(file);
+   }
+
    /** This is used to merge transactions from compacting */
    public void merge(final JournalTransaction other)
    {
@@ -0,0 +1,581 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.journal.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+
+import org.hornetq.api.core.HornetQException;
+import org.hornetq.api.core.HornetQExceptionType;
+import org.hornetq.api.core.HornetQIOErrorException;
+import org.hornetq.api.core.HornetQIllegalStateException;
+import org.hornetq.core.journal.IOAsyncTask;
+import org.hornetq.core.journal.SequentialFile;
+import org.hornetq.core.journal.SequentialFileFactory;
+import org.hornetq.journal.HornetQJournalBundle;
+import org.hornetq.journal.HornetQJournalLogger;
+
+/**
+ * A SequentialFile that reads and writes through {@link MappedByteBuffer} regions.
+ * <p>
+ * Writes are a memory copy into the mapped region, so appending does not cost a system call.
+ * Durability is given by msync (through {@link MappedByteBuffer#force()}), which happens on the
+ * writer executor when a callback is given, the same way NIO performs its asynchronous writes.
+ * <p>
+ * Files are mapped in regions of {@link MappedSequentialFileFactory#getMapRegionSize()} bytes.
+ * Files that were not pre-allocated (such as page files) grow in steps of
+ * {@link MappedSequentialFileFactory#getGrowSize()} and are truncated to their logical size on
+ * close.
+ */
+public final class MappedSequentialFile extends AbstractSequentialFile
+{
+   // warned once when the JVM doesn't let the regions be unmapped
+   private static volatile boolean unmapUnavailableLogged;
+
+   private final MappedSequentialFileFactory mappedFactory;
+
+   private RandomAccessFile rfile;
+
+   private volatile FileChannel channel;
+
+   /**
+    * Guards the mapped region. This is not the file's monitor as the writer executor needs it
+    * while {@link #close()} holds the monitor waiting for the executor to finish.
+    */
+   private final Object regionLock = new Object();
+
+   /** The size of the file on disk, which may be bigger than {@link #fileSize} while growing */
+   private long physicalSize;
+
+   private MappedByteBuffer region;
+
+   private long regionStart;
+
+   private int regionLength;
+
+   /** true when a region other than the current one was written after the last sync */
+   private boolean pendingUnmappedWrites;
+
+   private boolean regionDirty;
+
+   public MappedSequentialFile(final MappedSequentialFileFactory factory,
+                               final String directory,
+                               final String fileName,
+                               final Executor writerExecutor)
+   {
+      super(directory, new File(directory + "/" + fileName), factory, writerExecutor);
+      this.mappedFactory = factory;
+   }
+
+   public MappedSequentialFile(final MappedSequentialFileFactory factory,
+                               final File file,
+                               final Executor writerExecutor)
+   {
+      super(file.getParent(), new File(file.getPath()), factory, writerExecutor);
+      this.mappedFactory = factory;
+   }
+
+   public int getAlignment()
+   {
+      return 1;
+   }
+
+   public int calculateBlockStart(final int position)
+   {
+      return position;
+   }
+
+   public synchronized boolean isOpen()
+   {
+      return channel != null;
+   }
+
+   public synchronized void open() throws IOException
+   {
+      open(1, true);
+   }
+
+   public synchronized void open(final int maxIO, final boolean useExecutor) throws IOException
+   {
+      try
+      {
+         rfile = new RandomAccessFile(getFile(), "rw");
+
+         channel = rfile.getChannel();
+
+         fileSize = channel.size();
+
+         physicalSize = fileSize;
+
+         // just like a new FileChannel, we start at the beginning of the file
+         position.set(0);
+      }
+      catch (IOException e)
+      {
+         factory.onIOError(new HornetQIOErrorException(e.getMessage(), e), e.getMessage(), this);
+         throw e;
+      }
+   }
+
+   public synchronized void fill(final int position, final int size, final byte fillCharacter) throws IOException
+   {
+      ByteBuffer bb = ByteBuffer.allocate(size);
+
+      for (int i = 0; i < size; i++)
+      {
+         bb.put(fillCharacter);
+      }
+
+      bb.flip();
+
+      try
+      {
+         synchronized (regionLock)
+         {
+            channel.position(position);
+            channel.write(bb);
+            channel.force(false);
+            channel.position(0);
+
+            physicalSize = channel.size();
+            fileSize = Math.max(fileSize, physicalSize);
+         }
+      }
+      catch (IOException e)
+      {
+         factory.onIOError(new HornetQIOErrorException(e.getMessage(), e), e.getMessage(), this);
+         throw e;
+      }
+   }
+
+   public synchronized void waitForClose() throws InterruptedException
+   {
+      while (isOpen())
+      {
+         wait();
+      }
+   }
+
+   @Override
+   public synchronized void close() throws IOException, InterruptedException, HornetQException
+   {
+      super.close();
+
+      synchronized (regionLock)
+      {
+         try
+         {
+            if (channel != null)
+            {
+               forceRegion();
+
+               releaseRegion();
+
+               if (physicalSize > fileSize)
+               {
+                  // giving back what was pre-allocated while growing the file
+                  channel.truncate(fileSize);
+               }
+
+               channel.close();
+            }
+
+            if (rfile != null)
+            {
+               rfile.close();
+            }
+         }
+         catch (IOException e)
+         {
+            factory.onIOError(new HornetQIOErrorException(e.getMessage(), e), e.getMessage(), this);
+            throw e;
+         }
+
+         channel = null;
+      }
+
+      rfile = null;
+
+      notifyAll();
+   }
+
+   public int read(final ByteBuffer bytes) throws Exception
+   {
+      return read(bytes, null);
+   }
+
+   public synchronized int read(final ByteBuffer bytes, final IOAsyncTask callback) throws IOException,
+                                                                                   HornetQIllegalStateException
+   {
+      try
+      {
+         if (channel == null)
+         {
+            throw new HornetQIllegalStateException("File " + this.getFileName() + " has a null channel");
+         }
+
+         int bytesRead;
+
+         synchronized (regionLock)
+         {
+            long readPosition = position.get();
+
+            if (readPosition >= fileSize)
+            {
+               bytesRead = -1;
+            }
+            else
+            {
+               bytesRead = (int)Math.min(bytes.remaining(), fileSize - readPosition);
+
+               int remaining = bytesRead;
+
+               while (remaining > 0)
+               {
+                  mapRegion(readPosition, false);
+
+                  int offset = (int)(readPosition - regionStart);
+                  int chunk = Math.min(remaining, regionLength - offset);
+
+                  ByteBuffer source = region.duplicate();
+                  source.position(offset);
+                  source.limit(offset + chunk);
+                  bytes.put(source);
+
+                  readPosition += chunk;
+                  remaining -= chunk;
+               }
+
+               position.set(readPosition);
+            }
+         }
+
+         if (callback != null)
+         {
+            callback.done();
+         }
+
+         bytes.flip();
+
+         return bytesRead;
+      }
+      catch (IOException e)
+      {
+         if (callback != null)
+         {
+            callback.onError(HornetQExceptionType.IO_ERROR.getCode(), e.getLocalizedMessage());
+         }
+
+         factory.onIOError(new HornetQIOErrorException(e.getMessage(), e), e.getMessage(), this);
+
+         throw e;
+      }
+   }
+
+   public void sync() throws IOException
+   {
+      synchronized (regionLock)
+      {
+         if (channel != null)
+         {
+            try
+            {
+               forceRegion();
+            }
+            catch (IOException e)
+            {
+               factory.onIOError(new HornetQIOErrorException(e.getMessage(), e), e.getMessage(), this);
+               throw e;
+            }
+         }
+      }
+   }
+
+   public long size() throws IOException
+   {
+      synchronized (regionLock)
+      {
+         if (channel == null)
+         {
+            return getFile().length();
+         }
+
+         return fileSize;
+      }
+   }
+
+   @Override
+   public String toString()
+   {
+      return "MappedSequentialFile " + getFile();
+   }
+
+   public SequentialFile cloneFile()
+   {
+      return new MappedSequentialFile(mappedFactory, getFile(), writerExecutor);
+   }
+
+   public void writeDirect(final ByteBuffer bytes, final boolean sync, final IOAsyncTask callback)
+   {
+      if (callback == null)
+      {
+         throw new NullPointerException("callback parameter need to be set");
+      }
+
+      try
+      {
+         internalWrite(bytes, sync, callback);
+      }
+      catch (Exception e)
+      {
+         callback.onError(HornetQExceptionType.GENERIC_EXCEPTION.getCode(), e.getMessage());
+      }
+   }
+
+   public void writeDirect(final ByteBuffer bytes, final boolean sync) throws Exception
+   {
+      internalWrite(bytes, sync, null);
+   }
+
+   public void writeInternal(final ByteBuffer bytes) throws Exception
+   {
+      internalWrite(bytes, true, null);
+   }
+
+   @Override
+   protected ByteBuffer newBuffer(int size, final int limit)
+   {
+      // Like NIO, we don't need to allocate a buffer the entire size of the timed buffer
+      size = limit;
+
+      return super.newBuffer(size, limit);
+   }
+
+   private void internalWrite(final ByteBuffer bytes, final boolean sync, final IOAsyncTask callback) throws Exception
+   {
+      synchronized (regionLock)
+      {
+         if (channel == null)
+         {
+            if (callback != null)
+            {
+               callback.onError(HornetQExceptionType.IO_ERROR.getCode(), "File not opened");
+               return;
+            }
+            else
+            {
+               throw HornetQJournalBundle.BUNDLE.fileNotOpened();
+            }
+         }
+
+         try
+         {
+            copyToRegions(bytes);
+         }
+         catch (IOException e)
+         {
+            factory.onIOError(new HornetQIOErrorException(e.getMessage(), e), e.getMessage(), this);
+            if (callback != null)
+            {
+               callback.onError(HornetQExceptionType.IO_ERROR.getCode(), e.getMessage());
+               return;
+            }
+            throw e;
+         }
+      }
+
+      if (callback == null || writerExecutor == null)
+      {
+         if (sync)
+         {
+            sync();
+         }
+
+         if (callback != null)
+         {
+            callback.done();
+         }
+      }
+      else
+      {
+         // The copy is already done, only the msync and the callback are left for the executor.
+         // The executor is single threaded, so callbacks are still completed in the order of the writes
+         writerExecutor.execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  if (sync)
+                  {
+                     sync();
+                  }
+                  callback.done();
+               }
+               catch (Throwable e)
+               {
+                  HornetQJournalLogger.LOGGER.errorSubmittingWrite(e);
+                  callback.onError(HornetQExceptionType.IO_ERROR.getCode(), e.getMessage());
+               }
+            }
+         });
+      }
+   }
+
+   private void copyToRegions(final ByteBuffer bytes) throws IOException
+   {
+      long writePosition = position.get();
+
+      while (bytes.hasRemaining())
+      {
+         int remaining = bytes.remaining();
+
+         mapRegion(writePosition, remaining, true);
+
+         int offset = (int)(writePosition - regionStart);
+         int chunk = Math.min(remaining, regionLength - offset);
+
+         ByteBuffer source = bytes.duplicate();
+         source.limit(source.position() + chunk);
+
+         ByteBuffer target = region.duplicate();
+         target.position(offset);
+         target.put(source);
+
+         bytes.position(bytes.position() + chunk);
+
+         regionDirty = true;
+         writePosition += chunk;
+      }
+
+      position.set(writePosition);
+
+      if (writePosition > fileSize)
+      {
+         fileSize = writePosition;
+      }
+   }
+
+   private void mapRegion(final long pos, final boolean write) throws IOException
+   {
+      mapRegion(pos, 1, write);
+   }
+
+   /**
+    * Makes sure {@link #region} covers {@code pos}. For writes, the file is grown if
+    * {@code length} bytes wouldn't fit on the current physical size.
+    */
+   private void mapRegion(final long pos, final int length, final boolean write) throws IOException
+   {
+      final long mapRegionSize = mappedFactory.getMapRegionSize();
+
+      final long start = pos - pos % mapRegionSize;
+
+      long end = Math.min(start + mapRegionSize, physicalSize);
+
+      if (write && pos + length > end && end < start + mapRegionSize)
+      {
+         long growSize = mappedFactory.getGrowSize();
+         long needed = pos + length;
+         long grown = needed + (growSize - needed % growSize) % growSize;
+         end = Math.min(start + mapRegionSize, grown);
+      }
+
+      if (region != null && regionStart == start && regionStart + regionLength >= Math.min(end, pos + length))
+      {
+         return;
+      }
+
+      if (region != null && regionStart != start && regionDirty)
+      {
+         // it will be flushed by fsync on the next sync
+         pendingUnmappedWrites = true;
+      }
+
+      releaseRegion();
+
+      // Mapping read-write beyond the end of the file will grow it
+      region = channel.map(FileChannel.MapMode.READ_WRITE, start, end - start);
+      regionStart = start;
+      regionLength = (int)(end - start);
+      regionDirty = false;
+
+      if (end > physicalSize)
+      {
+         physicalSize = end;
+      }
+   }
+
+   private void forceRegion() throws IOException
+   {
+      if (region != null && regionDirty)
+      {
+         region.force();
+         regionDirty = false;
+      }
+
+      if (pendingUnmappedWrites)
+      {
+         // fsync will write dirty pages of regions we are not holding any longer
+         channel.force(false);
+         pendingUnmappedWrites = false;
+      }
+   }
+
+   private void releaseRegion()
+   {
+      if (region != null)
+      {
+         unmap(region);
+         region = null;
+         regionLength = 0;
+      }
+   }
+
+   /**
+    * There's no public API to unmap a buffer. We try the JDK cleaner and leave it to the GC
+    * when that is not available, as on JDK 9 and later: the mapped regions are then held until
+    * collected, and on Windows a file can't be deleted while mapped.
+    */
+   private static void unmap(final MappedByteBuffer buffer)
+   {
+      try
+      {
+         Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+         cleanerMethod.setAccessible(true);
+         Object cleaner = cleanerMethod.invoke(buffer);
+         if (cleaner != null)
+         {
+            Method cleanMethod = cleaner.getClass().getMethod("clean");
+            cleanMethod.setAccessible(true);
+            cleanMethod.invoke(cleaner);
+         }
+      }
+      catch (Throwable e)
+      {
+         // the GC will release the mapping
+         if (!unmapUnavailableLogged)
+         {
+            unmapUnavailableLogged = true;
+            HornetQJournalLogger.LOGGER.unmapNotAvailable(e);
+         }
+      }
+   }
+}
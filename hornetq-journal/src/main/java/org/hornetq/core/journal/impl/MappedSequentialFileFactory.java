@@ -0,0 +1,136 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.journal.impl;
+
+import java.nio.ByteBuffer;
+
+import org.hornetq.core.journal.IOCriticalErrorListener;
+import org.hornetq.core.journal.SequentialFile;
+
+/**
+ * A SequentialFileFactory creating {@link MappedSequentialFile}s.
+ * <p>
+ * This is an alternative to NIO on systems where libaio is not available. Appends are memory
+ * copies into mapped regions instead of a {@code FileChannel.write} per flush, and loading the
+ * journal is a copy out of the page cache.
+ */
+public class MappedSequentialFileFactory extends NIOSequentialFileFactory
+{
+   private final long mapRegionSize;
+
+   private final long growSize;
+
+   public MappedSequentialFileFactory(final String journalDir)
+   {
+      this(journalDir, null);
+   }
+
+   public MappedSequentialFileFactory(final String journalDir, final IOCriticalErrorListener listener)
+   {
+      this(journalDir,
+           false,
+           JournalConstants.DEFAULT_JOURNAL_BUFFER_SIZE_NIO,
+           JournalConstants.DEFAULT_JOURNAL_BUFFER_TIMEOUT_NIO,
+           false,
+           listener);
+   }
+
+   public MappedSequentialFileFactory(final String journalDir, final boolean buffered)
+   {
+      this(journalDir, buffered, null);
+   }
+
+   public MappedSequentialFileFactory(final String journalDir,
+                                      final boolean buffered,
+                                      final IOCriticalErrorListener listener)
+   {
+      this(journalDir,
+           buffered,
+           JournalConstants.DEFAULT_JOURNAL_BUFFER_SIZE_NIO,
+           JournalConstants.DEFAULT_JOURNAL_BUFFER_TIMEOUT_NIO,
+           false,
+           listener);
+   }
+
+   public MappedSequentialFileFactory(final String journalDir,
+                                      final boolean buffered,
+                                      final int bufferSize,
+                                      final int bufferTimeout,
+                                      final boolean logRates,
+                                      final IOCriticalErrorListener listener)
+   {
+      this(journalDir,
+           buffered,
+           bufferSize,
+           bufferTimeout,
+           logRates,
+           JournalConstants.DEFAULT_MAPPED_REGION_SIZE,
+           JournalConstants.DEFAULT_MAPPED_GROW_SIZE,
+           listener);
+   }
+
+   public MappedSequentialFileFactory(final String journalDir,
+                                      final boolean buffered,
+                                      final int bufferSize,
+                                      final int bufferTimeout,
+                                      final boolean logRates,
+                                      final long mapRegionSize,
+                                      final long growSize,
+                                      final IOCriticalErrorListener listener)
+   {
+      super(journalDir, buffered, bufferSize, bufferTimeout, logRates, listener);
+
+      if (mapRegionSize <= 0 || mapRegionSize > Integer.MAX_VALUE)
+      {
+         throw new IllegalArgumentException("Invalid map region size " + mapRegionSize);
+      }
+
+      if (growSize <= 0 || growSize > mapRegionSize)
+      {
+         throw new IllegalArgumentException("Invalid grow size " + growSize);
+      }
+
+      this.mapRegionSize = mapRegionSize;
+      this.growSize = growSize;
+   }
+
+   @Override
+   public SequentialFile createSequentialFile(final String fileName, final int maxIO)
+   {
+      return new MappedSequentialFile(this, journalDir, fileName, writeExecutor);
+   }
+
+   @Override
+   public ByteBuffer newBuffer(final int size)
+   {
+      // writes are copied into the mapped region, there's no need for a direct buffer here
+      return ByteBuffer.allocate(size);
+   }
+
+   public long getMapRegionSize()
+   {
+      return mapRegionSize;
+   }
+
+   public long getGrowSize()
+   {
+      return growSize;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "MappedSequentialFileFactory(" + journalDir + ")";
+   }
+}
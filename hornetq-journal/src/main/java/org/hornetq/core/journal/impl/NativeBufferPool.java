@@ -0,0 +1,499 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.journal.impl;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hornetq.core.asyncio.impl.AsynchronousFileImpl;
+import org.hornetq.journal.HornetQJournalLogger;
+
+/**
+ * A pool of aligned off-heap buffers, shared by the asynchronous journal, paging and large
+ * messages.
+ * <p>
+ * Buffers are kept on size classes, the powers of two from {@link #MIN_CLASS_SIZE} to
+ * {@link #MAX_CLASS_SIZE}, and a borrowed buffer has the capacity of the smallest class that fits
+ * with its limit set to the requested size. Larger buffers are allocated and freed every time. At
+ * most {@link #POOLED_BYTES_PROPERTY} bytes of idle buffers are kept, and they are all freed if
+ * the pool isn't used for 10 seconds.
+ * <p>
+ * The memory comes from the libaio native library when loaded, so it is released
+ * explicitly instead of waiting on the cleaners of {@link ByteBuffer#allocateDirect(int)}. That
+ * also means every buffer borrowed has to be released exactly once, and
+ * {@link #TRACK_LEAKS_PROPERTY} records where the buffers still out were borrowed.
+ */
+public final class NativeBufferPool
+{
+   /** The maximum bytes kept on idle buffers */
+   public static final String POOLED_BYTES_PROPERTY = "org.hornetq.opt.bufferpoolbytes";
+
+   /** If the stack of every borrow is recorded until the buffer is released */
+   public static final String TRACK_LEAKS_PROPERTY = "org.hornetq.opt.bufferpooltrackleaks";
+
+   public static final int MIN_CLASS_SIZE = 512;
+
+   public static final int MAX_CLASS_SIZE = 4 * 1024 * 1024;
+
+   private static final int CLASSES = Integer.numberOfTrailingZeros(NativeBufferPool.MAX_CLASS_SIZE) -
+                                      Integer.numberOfTrailingZeros(NativeBufferPool.MIN_CLASS_SIZE) +
+                                      1;
+
+   private static final long IDLE_TIMEOUT = 10000;
+
+   private static final NativeBufferPool shared = new NativeBufferPool(NativeBufferPool.defaultAllocator());
+
+   public static NativeBufferPool getShared()
+   {
+      return NativeBufferPool.shared;
+   }
+
+   /**
+    * @return the capacity of a buffer borrowed for size bytes
+    */
+   public static int capacityFor(final int size)
+   {
+      int sizeClass = NativeBufferPool.sizeClass(size);
+
+      return sizeClass < 0 ? NativeBufferPool.align(size) : NativeBufferPool.MIN_CLASS_SIZE << sizeClass;
+   }
+
+   /**
+    * How the memory of the pool is obtained and released.
+    */
+   public interface Allocator
+   {
+      /**
+       * @param size a multiple of {@link NativeBufferPool#MIN_CLASS_SIZE}
+       */
+      ByteBuffer allocate(int size);
+
+      void free(ByteBuffer buffer);
+
+      /** Zeroes the buffer up to its limit */
+      void clear(ByteBuffer buffer);
+
+      String getName();
+   }
+
+   // Attributes ----------------------------------------------------
+
+   private final Allocator allocator;
+
+   @SuppressWarnings("unchecked")
+   private final ConcurrentLinkedQueue<ByteBuffer>[] classes = new ConcurrentLinkedQueue[NativeBufferPool.CLASSES];
+
+   private volatile long maxPooledBytes = Long.getLong(NativeBufferPool.POOLED_BYTES_PROPERTY, 64L * 1024 * 1024);
+
+   private volatile boolean trackLeaks = Boolean.getBoolean(NativeBufferPool.TRACK_LEAKS_PROPERTY);
+
+   /** The stack of every buffer borrowed while tracking leaks, guarded by itself */
+   private final Map<ByteBuffer, Exception> borrowed = new IdentityHashMap<ByteBuffer, Exception>();
+
+   private volatile long lastUse = System.currentTimeMillis();
+
+   private final AtomicLong pooledBytes = new AtomicLong(0);
+
+   private final AtomicLong inUseBytes = new AtomicLong(0);
+
+   private final AtomicLong inUseBuffers = new AtomicLong(0);
+
+   private final AtomicLong allocatedBytes = new AtomicLong(0);
+
+   private final AtomicLong hits = new AtomicLong(0);
+
+   private final AtomicLong misses = new AtomicLong(0);
+
+   // Constructors --------------------------------------------------
+
+   public NativeBufferPool(final Allocator allocator)
+   {
+      this.allocator = allocator;
+
+      for (int i = 0; i < classes.length; i++)
+      {
+         classes[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+      }
+   }
+
+   // Public --------------------------------------------------------
+
+   /**
+    * @return a zeroed buffer with at least {@code size} bytes, at position 0 and limit {@code size}
+    */
+   public ByteBuffer borrow(final int size)
+   {
+      long now = System.currentTimeMillis();
+
+      // This is being done this way as we don't need another Timeout Thread just to cleanup this
+      if (now - lastUse > NativeBufferPool.IDLE_TIMEOUT)
+      {
+         clear();
+      }
+
+      lastUse = now;
+
+      int sizeClass = NativeBufferPool.sizeClass(size);
+
+      ByteBuffer buffer = null;
+
+      if (sizeClass < 0)
+      {
+         buffer = allocate(NativeBufferPool.align(size));
+      }
+      else
+      {
+         buffer = classes[sizeClass].poll();
+
+         if (buffer == null)
+         {
+            misses.incrementAndGet();
+
+            buffer = allocate(NativeBufferPool.MIN_CLASS_SIZE << sizeClass);
+         }
+         else
+         {
+            hits.incrementAndGet();
+
+            pooledBytes.addAndGet(-buffer.capacity());
+
+            // only what the caller may use needs to be zeroed
+            buffer.limit(Math.min(NativeBufferPool.align(size), buffer.capacity()));
+
+            allocator.clear(buffer);
+         }
+      }
+
+      buffer.position(0);
+      buffer.limit(size);
+
+      inUseBytes.addAndGet(buffer.capacity());
+      inUseBuffers.incrementAndGet();
+
+      if (trackLeaks)
+      {
+         synchronized (borrowed)
+         {
+            borrowed.put(buffer, new Exception("Buffer of " + size + " bytes borrowed"));
+         }
+      }
+
+      return buffer;
+   }
+
+   /**
+    * Gives back a buffer returned by {@link #borrow(int)}.
+    */
+   public void release(final ByteBuffer buffer)
+   {
+      if (!buffer.isDirect())
+      {
+         // a heap buffer given by a NIO factory, nothing to release
+         return;
+      }
+
+      if (trackLeaks)
+      {
+         synchronized (borrowed)
+         {
+            if (borrowed.remove(buffer) == null)
+            {
+               // released twice, or borrowed before the tracking started
+               HornetQJournalLogger.LOGGER.bufferNotBorrowed(buffer.capacity(), new Exception("trace"));
+            }
+         }
+      }
+
+      lastUse = System.currentTimeMillis();
+
+      inUseBytes.addAndGet(-buffer.capacity());
+      inUseBuffers.decrementAndGet();
+
+      int sizeClass = NativeBufferPool.sizeClass(buffer.capacity());
+
+      if (sizeClass >= 0 && (NativeBufferPool.MIN_CLASS_SIZE << sizeClass) == buffer.capacity())
+      {
+         if (pooledBytes.addAndGet(buffer.capacity()) <= maxPooledBytes)
+         {
+            classes[sizeClass].offer(buffer);
+            return;
+         }
+
+         pooledBytes.addAndGet(-buffer.capacity());
+      }
+
+      free(buffer);
+   }
+
+   /** Zeroes the buffer up to its limit */
+   public void clearBuffer(final ByteBuffer buffer)
+   {
+      allocator.clear(buffer);
+      buffer.position(0);
+   }
+
+   /**
+    * Frees all the idle buffers.
+    */
+   public void clear()
+   {
+      for (ConcurrentLinkedQueue<ByteBuffer> sizeClass : classes)
+      {
+         ByteBuffer buffer;
+
+         while ((buffer = sizeClass.poll()) != null)
+         {
+            pooledBytes.addAndGet(-buffer.capacity());
+
+            free(buffer);
+         }
+      }
+   }
+
+   public String getAllocatorName()
+   {
+      return allocator.getName();
+   }
+
+   public long getMaxPooledBytes()
+   {
+      return maxPooledBytes;
+   }
+
+   public void setMaxPooledBytes(final long maxPooledBytes)
+   {
+      this.maxPooledBytes = maxPooledBytes;
+   }
+
+   public boolean isTrackLeaks()
+   {
+      return trackLeaks;
+   }
+
+   /**
+    * Only the buffers borrowed afterwards are tracked.
+    */
+   public void setTrackLeaks(final boolean trackLeaks)
+   {
+      this.trackLeaks = trackLeaks;
+
+      if (!trackLeaks)
+      {
+         synchronized (borrowed)
+         {
+            borrowed.clear();
+         }
+      }
+   }
+
+   /** Bytes on idle buffers */
+   public long getPooledBytes()
+   {
+      return pooledBytes.get();
+   }
+
+   /** Bytes on buffers borrowed and not released */
+   public long getInUseBytes()
+   {
+      return inUseBytes.get();
+   }
+
+   public long getInUseBuffers()
+   {
+      return inUseBuffers.get();
+   }
+
+   /** Bytes allocated by the allocator and not freed yet */
+   public long getAllocatedBytes()
+   {
+      return allocatedBytes.get();
+   }
+
+   public long getHits()
+   {
+      return hits.get();
+   }
+
+   public long getMisses()
+   {
+      return misses.get();
+   }
+
+   /**
+    * @return how many buffers are out for each place they were borrowed from, if leaks are tracked
+    */
+   public Map<String, Integer> getBorrowedBySite()
+   {
+      Map<String, Integer> sites = new HashMap<String, Integer>();
+
+      synchronized (borrowed)
+      {
+         for (Exception borrow : borrowed.values())
+         {
+            String site = NativeBufferPool.describeSite(borrow);
+
+            Integer count = sites.get(site);
+
+            sites.put(site, count == null ? 1 : count + 1);
+         }
+      }
+
+      return sites;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "NativeBufferPool(" + allocator.getName() +
+             ", pooledBytes=" +
+             pooledBytes +
+             ", inUseBytes=" +
+             inUseBytes +
+             ", allocatedBytes=" +
+             allocatedBytes +
+             ")";
+   }
+
+   // Private -------------------------------------------------------
+
+   private ByteBuffer allocate(final int size)
+   {
+      ByteBuffer buffer = allocator.allocate(size);
+
+      allocatedBytes.addAndGet(buffer.capacity());
+
+      return buffer;
+   }
+
+   private void free(final ByteBuffer buffer)
+   {
+      allocatedBytes.addAndGet(-buffer.capacity());
+
+      allocator.free(buffer);
+   }
+
+   /**
+    * @return the index of the smallest class holding size bytes, or -1 if there's none
+    */
+   private static int sizeClass(final int size)
+   {
+      if (size > NativeBufferPool.MAX_CLASS_SIZE)
+      {
+         return -1;
+      }
+
+      if (size <= NativeBufferPool.MIN_CLASS_SIZE)
+      {
+         return 0;
+      }
+
+      return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(NativeBufferPool.MIN_CLASS_SIZE);
+   }
+
+   private static int align(final int size)
+   {
+      return (size + NativeBufferPool.MIN_CLASS_SIZE - 1) / NativeBufferPool.MIN_CLASS_SIZE *
+             NativeBufferPool.MIN_CLASS_SIZE;
+   }
+
+   /** The first frame outside of the pool and the sequential files */
+   private static String describeSite(final Exception borrow)
+   {
+      for (StackTraceElement element : borrow.getStackTrace())
+      {
+         String className = element.getClassName();
+
+         if (!className.equals(NativeBufferPool.class.getName()) && !className.endsWith("SequentialFileFactory") &&
+             !className.endsWith("SequentialFile"))
+         {
+            return element.toString();
+         }
+      }
+
+      return "unknown";
+   }
+
+   private static Allocator defaultAllocator()
+   {
+      if (AsynchronousFileImpl.isLoaded())
+      {
+         return new LibaioAllocator();
+      }
+      else
+      {
+         return new DirectAllocator();
+      }
+   }
+
+   // Inner classes -------------------------------------------------
+
+   private static final class LibaioAllocator implements Allocator
+   {
+      public ByteBuffer allocate(final int size)
+      {
+         return AsynchronousFileImpl.newBuffer(size);
+      }
+
+      public void free(final ByteBuffer buffer)
+      {
+         AsynchronousFileImpl.destroyBuffer(buffer);
+      }
+
+      public void clear(final ByteBuffer buffer)
+      {
+         AsynchronousFileImpl.clearBuffer(buffer);
+      }
+
+      public String getName()
+      {
+         return "libaio";
+      }
+   }
+
+   /**
+    * Without a native library the buffers can't be freed explicitly, but pooling them still saves
+    * the allocations, and the cleaners that come with them.
+    */
+   private static final class DirectAllocator implements Allocator
+   {
+      public ByteBuffer allocate(final int size)
+      {
+         return ByteBuffer.allocateDirect(size);
+      }
+
+      public void free(final ByteBuffer buffer)
+      {
+         // nothing we can do on this case. we can just have good faith on GC
+      }
+
+      public void clear(final ByteBuffer buffer)
+      {
+         final int limit = buffer.limit();
+
+         for (int i = 0; i < limit; i++)
+         {
+            buffer.put(i, (byte)0);
+         }
+      }
+
+      public String getName()
+      {
+         return "direct";
+      }
+   }
+}
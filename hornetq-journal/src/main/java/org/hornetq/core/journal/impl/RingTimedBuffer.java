@@ -0,0 +1,748 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.journal.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.hornetq.api.core.HornetQBuffer;
+import org.hornetq.api.core.HornetQBuffers;
+import org.hornetq.api.core.HornetQInterruptedException;
+import org.hornetq.core.journal.EncodingSupport;
+import org.hornetq.core.journal.IOAsyncTask;
+import org.hornetq.journal.HornetQJournalLogger;
+
+/**
+ * A {@link TimedBuffer} built on a multi-producer ring.
+ * <p>
+ * Producers claim a frame of the ring with a CAS on the claim sequence, copy their record into it
+ * and publish it by setting the frame length. Frames are published independently of each other,
+ * so a producer never waits on a slower one. A single flusher thread hands the published frames
+ * to the {@link TimedBufferObserver} in claim order, batching them by size ({@code bufferSize})
+ * and deadline ({@code timeout} after the oldest pending sync). Appending does not take any
+ * monitor and does not allocate.
+ * <p>
+ * It is enabled through the {@link #RING_BUFFER_PROPERTY} system property.
+ */
+public class RingTimedBuffer extends TimedBuffer
+{
+   // Constants -----------------------------------------------------
+
+   public static final String RING_BUFFER_PROPERTY = "org.hornetq.opt.ringbuffer";
+
+   /** Frames start at multiples of this, which gives a small index for the per frame data */
+   private static final int FRAME_ALIGNMENT = 16;
+
+   private static final int FRAME_SHIFT = 4;
+
+   // Attributes ----------------------------------------------------
+
+   private final int bufferSize;
+
+   private final long timeout;
+
+   private final byte[] ring;
+
+   private final int ringCapacity;
+
+   /** record size + 1 for a published frame, 0 for a free one */
+   private final AtomicIntegerArray frameLengths;
+
+   private final IOAsyncTask[] frameCallbacks;
+
+   private final boolean[] frameSyncs;
+
+   private final long[] frameTimes;
+
+   /** Ring sequence of the next frame */
+   private final AtomicLong claimed = new AtomicLong(0);
+
+   /** Record bytes added, which is what will be written to the file */
+   private final AtomicLong claimedBytes = new AtomicLong(0);
+
+   /** Written under {@link #flushLock} only */
+   private volatile long flushed;
+
+   private volatile long flushedBytes;
+
+   /** The claimedBytes at which the current file (observer) is full */
+   private volatile long fileLimit;
+
+   /** The padding a flush may add to align its buffer, 0 if the files aren't aligned (i.e. NIO) */
+   private final int maxPadding;
+
+   private final ReentrantLock flushLock = new ReentrantLock();
+
+   private TimedBufferObserver bufferObserver;
+
+   private volatile boolean started;
+
+   private volatile boolean flusherParked;
+
+   private Flusher flusher;
+
+   private Thread flusherThread;
+
+   private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>()
+   {
+      @Override
+      protected Scratch initialValue()
+      {
+         return new Scratch(bufferSize);
+      }
+   };
+
+   // Constructors --------------------------------------------------
+
+   /**
+    * @param alignment the {@link org.hornetq.core.journal.SequentialFileFactory#getAlignment()} of
+    *           the files the buffer is flushed to
+    */
+   public RingTimedBuffer(final int size, final int timeout, final int alignment)
+   {
+      super(size, timeout);
+
+      this.maxPadding = alignment - 1;
+
+      this.bufferSize = size;
+
+      this.timeout = timeout;
+
+      // twice the buffer, so producers can keep going while a batch is flushed, and twice that for
+      // the frame alignment of small records
+      ringCapacity = RingTimedBuffer.frameSize(size) * 4;
+
+      ring = new byte[ringCapacity];
+
+      final int frames = ringCapacity >> RingTimedBuffer.FRAME_SHIFT;
+
+      frameLengths = new AtomicIntegerArray(frames);
+      frameCallbacks = new IOAsyncTask[frames];
+      frameSyncs = new boolean[frames];
+      frameTimes = new long[frames];
+   }
+
+   // Public --------------------------------------------------------
+
+   @Override
+   public synchronized void start()
+   {
+      if (started)
+      {
+         return;
+      }
+
+      flusher = new Flusher();
+
+      flusherThread = new Thread(flusher, "hornetq-ring-buffer-flusher");
+
+      flusherThread.setDaemon(true);
+
+      started = true;
+
+      flusherThread.start();
+   }
+
+   @Override
+   public void stop()
+   {
+      synchronized (this)
+      {
+         if (!started)
+         {
+            return;
+         }
+
+         flush();
+
+         flushLock.lock();
+         try
+         {
+            bufferObserver = null;
+         }
+         finally
+         {
+            flushLock.unlock();
+         }
+
+         started = false;
+
+         flusher.close();
+
+         LockSupport.unpark(flusherThread);
+      }
+
+      while (flusherThread.isAlive())
+      {
+         try
+         {
+            flusherThread.join();
+         }
+         catch (InterruptedException e)
+         {
+            throw new HornetQInterruptedException(e);
+         }
+      }
+   }
+
+   @Override
+   public void setObserver(final TimedBufferObserver observer)
+   {
+      flushLock.lock();
+      try
+      {
+         if (bufferObserver != null)
+         {
+            drain();
+         }
+
+         bufferObserver = observer;
+
+         if (observer != null)
+         {
+            fileLimit = flushedBytes + observer.getRemainingBytes();
+         }
+         else
+         {
+            fileLimit = flushedBytes;
+         }
+      }
+      finally
+      {
+         flushLock.unlock();
+      }
+   }
+
+   /**
+    * Verify if the size fits the current file. Unlike {@link TimedBuffer} this doesn't need to
+    * flush as the limit of the file is kept as a byte sequence. The flushes still needed for what
+    * is pending are accounted with the alignment padding the observer may add to each of them.
+    * Only when that estimate doesn't fit (close to the end of the file) we flush what is pending
+    * to get the exact remaining size from the observer.
+    * <p>
+    * As with {@link TimedBuffer}, a checkSize has to be followed by its addBytes before any other
+    * checkSize, which JournalImpl guarantees through its append lock.
+    */
+   @Override
+   public boolean checkSize(final int sizeChecked)
+   {
+      checkStarted();
+
+      checkRecordSize(sizeChecked);
+
+      // flushedBytes has to be read before fileLimit, see flushBatch
+      final long pending = claimedBytes.get() + sizeChecked;
+
+      final long pendingBytes = pending - flushedBytes;
+
+      final long limit = fileLimit;
+
+      if (maxPadding == 0)
+      {
+         return pending <= limit;
+      }
+
+      // Two consecutive batches are always bigger than bufferSize
+      final long pendingFlushes = 2 * (pendingBytes / bufferSize) + 2;
+
+      if (pending + pendingFlushes * maxPadding <= limit)
+      {
+         return true;
+      }
+
+      flushLock.lock();
+      try
+      {
+         drain();
+
+         return claimedBytes.get() + sizeChecked <= fileLimit;
+      }
+      finally
+      {
+         flushLock.unlock();
+      }
+   }
+
+   @Override
+   public void addBytes(final HornetQBuffer bytes, final boolean sync, final IOAsyncTask callback)
+   {
+      checkStarted();
+
+      final int size = bytes.readableBytes();
+
+      checkRecordSize(size);
+
+      final long start = claim(size);
+
+      final int offset = (int)(start % ringCapacity);
+      final int firstPart = Math.min(size, ringCapacity - offset);
+
+      bytes.getBytes(bytes.readerIndex(), ring, offset, firstPart);
+      if (firstPart < size)
+      {
+         bytes.getBytes(bytes.readerIndex() + firstPart, ring, 0, size - firstPart);
+      }
+
+      publish(start, size, sync, callback);
+   }
+
+   @Override
+   public void addBytes(final EncodingSupport bytes, final boolean sync, final IOAsyncTask callback)
+   {
+      checkStarted();
+
+      checkRecordSize(bytes.getEncodeSize());
+
+      Scratch localScratch = scratch.get();
+
+      localScratch.buffer.clear();
+
+      bytes.encode(localScratch.buffer);
+
+      final int size = localScratch.buffer.writerIndex();
+
+      final long start = claim(size);
+
+      copyToRing(localScratch.array, start, size);
+
+      publish(start, size, sync, callback);
+   }
+
+   @Override
+   public void flush()
+   {
+      flush(false);
+   }
+
+   /**
+    * Blocks until every record claimed before this call was handed to the observer.
+    */
+   @Override
+   public void flush(final boolean force)
+   {
+      checkStarted();
+
+      flushLock.lock();
+      try
+      {
+         drain();
+      }
+      finally
+      {
+         flushLock.unlock();
+      }
+   }
+
+   // Package protected ---------------------------------------------
+
+   // Protected -----------------------------------------------------
+
+   // Private -------------------------------------------------------
+
+   private static int frameSize(final int size)
+   {
+      if (size == 0)
+      {
+         return RingTimedBuffer.FRAME_ALIGNMENT;
+      }
+
+      return (size + RingTimedBuffer.FRAME_ALIGNMENT - 1) & -RingTimedBuffer.FRAME_ALIGNMENT;
+   }
+
+   private int frameIndex(final long position)
+   {
+      return (int)(position % ringCapacity) >> RingTimedBuffer.FRAME_SHIFT;
+   }
+
+   private void checkStarted()
+   {
+      if (!started)
+      {
+         throw new IllegalStateException("TimedBuffer is not started");
+      }
+   }
+
+   private void checkRecordSize(final int size)
+   {
+      if (size > bufferSize)
+      {
+         throw new IllegalStateException("Can't write records bigger than the bufferSize(" + bufferSize +
+                                         ") on the journal");
+      }
+   }
+
+   private long claim(final int size)
+   {
+      final int frameSize = RingTimedBuffer.frameSize(size);
+
+      while (true)
+      {
+         final long start = claimed.get();
+
+         final long end = start + frameSize;
+
+         if (end - flushed > ringCapacity)
+         {
+            // the flusher needs to catch up
+            wakeFlusher();
+            Thread.yield();
+            continue;
+         }
+
+         if (claimed.compareAndSet(start, end))
+         {
+            claimedBytes.addAndGet(size);
+            return start;
+         }
+      }
+   }
+
+   private void copyToRing(final byte[] source, final long start, final int size)
+   {
+      final int offset = (int)(start % ringCapacity);
+      final int firstPart = Math.min(size, ringCapacity - offset);
+
+      System.arraycopy(source, 0, ring, offset, firstPart);
+
+      if (firstPart < size)
+      {
+         System.arraycopy(source, firstPart, ring, 0, size - firstPart);
+      }
+   }
+
+   private void publish(final long start, final int size, final boolean sync, final IOAsyncTask callback)
+   {
+      final int index = frameIndex(start);
+
+      frameCallbacks[index] = callback;
+      frameSyncs[index] = sync;
+      if (sync)
+      {
+         frameTimes[index] = System.nanoTime();
+      }
+
+      // the length is the publication: everything written above is visible to whoever reads it
+      frameLengths.lazySet(index, size + 1);
+
+      if (sync || claimedBytes.get() - flushedBytes >= bufferSize || claimed.get() - flushed > ringCapacity / 2)
+      {
+         wakeFlusher();
+      }
+   }
+
+   private void wakeFlusher()
+   {
+      if (flusherParked)
+      {
+         LockSupport.unpark(flusherThread);
+      }
+   }
+
+   /**
+    * Flushes everything claimed so far. Needs {@link #flushLock}.
+    */
+   private void drain()
+   {
+      if (bufferObserver == null)
+      {
+         return;
+      }
+
+      final long target = claimed.get();
+
+      while (flushed < target)
+      {
+         if (!flushBatch())
+         {
+            // the next frame was claimed but its producer didn't publish it yet
+            Thread.yield();
+         }
+      }
+   }
+
+   /**
+    * Hands at most bufferSize bytes of published records to the observer, in claim order. Needs
+    * {@link #flushLock}.
+    *
+    * @return false if there was nothing published to flush
+    */
+   private boolean flushBatch()
+   {
+      final TimedBufferObserver observer = bufferObserver;
+
+      if (observer == null)
+      {
+         return false;
+      }
+
+      final long start = flushed;
+
+      final long lastClaimed = claimed.get();
+
+      long end = start;
+
+      int length = 0;
+
+      boolean sync = false;
+
+      List<IOAsyncTask> callbacks = null;
+
+      while (end < lastClaimed)
+      {
+         final int index = frameIndex(end);
+
+         final int frameLength = frameLengths.get(index);
+
+         if (frameLength == 0 || length + frameLength - 1 > bufferSize)
+         {
+            break;
+         }
+
+         length += frameLength - 1;
+
+         sync |= frameSyncs[index];
+
+         if (frameCallbacks[index] != null)
+         {
+            if (callbacks == null)
+            {
+               callbacks = new ArrayList<IOAsyncTask>();
+            }
+            callbacks.add(frameCallbacks[index]);
+            frameCallbacks[index] = null;
+         }
+
+         end += RingTimedBuffer.frameSize(frameLength - 1);
+      }
+
+      if (end == start)
+      {
+         return false;
+      }
+
+      ByteBuffer bufferToFlush = observer.newBuffer(bufferSize, length);
+
+      for (long position = start; position < end;)
+      {
+         final int index = frameIndex(position);
+
+         final int size = frameLengths.get(index) - 1;
+
+         final int offset = (int)(position % ringCapacity);
+         final int firstPart = Math.min(size, ringCapacity - offset);
+
+         bufferToFlush.put(ring, offset, firstPart);
+         if (firstPart < size)
+         {
+            bufferToFlush.put(ring, 0, size - firstPart);
+         }
+
+         frameLengths.lazySet(index, 0);
+
+         position += RingTimedBuffer.frameSize(size);
+      }
+
+      if (callbacks == null)
+      {
+         callbacks = new ArrayList<IOAsyncTask>(0);
+      }
+
+      observer.flushBuffer(bufferToFlush, sync, callbacks);
+
+      final long newFlushedBytes = flushedBytes + length;
+
+      // fileLimit needs to be updated before flushedBytes, as checkSize reads them the other way
+      fileLimit = newFlushedBytes + observer.getRemainingBytes();
+
+      flushedBytes = newFlushedBytes;
+
+      // releases the frames to the producers
+      flushed = end;
+
+      return true;
+   }
+
+   // Inner classes -------------------------------------------------
+
+   private static final class Scratch
+   {
+      final byte[] array;
+
+      final HornetQBuffer buffer;
+
+      Scratch(final int size)
+      {
+         array = new byte[size];
+         buffer = HornetQBuffers.wrappedBuffer(array);
+      }
+   }
+
+   private class Flusher implements Runnable
+   {
+      private volatile boolean closed;
+
+      /** Where the search for a pending sync stopped */
+      private long scanned;
+
+      /** The oldest pending sync, or -1 */
+      private long syncPosition = -1;
+
+      private long syncTime;
+
+      public void run()
+      {
+         while (!closed)
+         {
+            try
+            {
+               long delay = nextFlushDelay();
+
+               if (delay == 0)
+               {
+                  boolean flushedBatch;
+                  flushLock.lock();
+                  try
+                  {
+                     flushedBatch = flushBatch();
+                  }
+                  finally
+                  {
+                     flushLock.unlock();
+                  }
+                  if (!flushedBatch)
+                  {
+                     Thread.yield();
+                  }
+                  continue;
+               }
+
+               flusherParked = true;
+
+               // checking again, as a producer may have published before seeing the flag
+               delay = nextFlushDelay();
+
+               if (delay != 0 && !closed)
+               {
+                  if (delay < 0)
+                  {
+                     LockSupport.park(this);
+                  }
+                  else
+                  {
+                     LockSupport.parkNanos(this, delay);
+                  }
+               }
+
+               flusherParked = false;
+            }
+            catch (Throwable e)
+            {
+               HornetQJournalLogger.LOGGER.warn(e.getMessage(), e);
+            }
+         }
+      }
+
+      /**
+       * @return 0 if a flush is due, -1 if there's nothing to wait for, or the nanoseconds until
+       *         the next check
+       */
+      private long nextFlushDelay()
+      {
+         final long start = flushed;
+
+         final long lastClaimed = claimed.get();
+
+         if (start == lastClaimed)
+         {
+            return -1;
+         }
+
+         if (claimedBytes.get() - flushedBytes >= bufferSize || lastClaimed - start > ringCapacity / 2)
+         {
+            return 0;
+         }
+
+         findSync(start, lastClaimed);
+
+         if (syncPosition == -1)
+         {
+            // nothing is asking for a sync: wait for the buffer to fill or an explicit flush, but
+            // look again in a while in case a sync was published while we were searching
+            return timeout;
+         }
+
+         final long delay = syncTime + timeout - System.nanoTime();
+
+         return delay <= 0 ? 0 : delay;
+      }
+
+      /**
+       * Looks for the oldest published sync, starting where the last search stopped.
+       */
+      private void findSync(final long start, final long lastClaimed)
+      {
+         if (syncPosition < start)
+         {
+            // flushed already
+            syncPosition = -1;
+         }
+
+         if (scanned < start)
+         {
+            scanned = start;
+         }
+
+         while (syncPosition == -1 && scanned < lastClaimed)
+         {
+            final int index = frameIndex(scanned);
+
+            final int frameLength = frameLengths.get(index);
+
+            final boolean sync = frameSyncs[index];
+
+            final long time = frameTimes[index];
+
+            if (flushed > scanned)
+            {
+               // someone else flushed (and producers may be reusing) what we were looking at
+               scanned = flushed;
+               continue;
+            }
+
+            if (frameLength == 0)
+            {
+               return;
+            }
+
+            if (sync)
+            {
+               syncPosition = scanned;
+               syncTime = time;
+            }
+
+            scanned += RingTimedBuffer.frameSize(frameLength - 1);
+         }
+      }
+
+      public void close()
+      {
+         closed = true;
+      }
+   }
+}
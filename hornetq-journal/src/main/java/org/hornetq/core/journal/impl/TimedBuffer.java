@@ -122,6 +122,21 @@ public class TimedBuffer
       this.timeout = timeout;
    }
 
+   /**
+    * For sub classes replacing the buffering strategy. No buffer or timer is allocated here, so
+    * every public method dealing with the buffer has to be overridden.
+    */
+   protected TimedBuffer(final int size, final int timeout)
+   {
+      bufferSize = size;
+
+      logRates = false;
+
+      buffer = null;
+
+      this.timeout = timeout;
+   }
+
    // for Debug purposes
    public synchronized boolean isUseSleep()
    {
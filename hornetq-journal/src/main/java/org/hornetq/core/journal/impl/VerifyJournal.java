@@ -0,0 +1,229 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.journal.impl;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.hornetq.core.journal.RecordInfo;
+import org.hornetq.core.journal.SequentialFileFactory;
+
+/**
+ * Use this class to verify the journal files, without loading the journal. The files are read in
+ * parallel, and every record is checked the way a load would check it, including the CRC of the
+ * files written with {@link JournalImpl#CHECKSUM_FORMAT_VERSION}.
+ *
+ * If you use the main method, use it as <JournalDirectory> <JournalPrefix> <FileExtension> <FileSize> [<Parallelism>]
+ *
+ * Example: java -cp hornetq-core.jar org.hornetq.core.journal.impl.VerifyJournal /journalDir hornetq-data hq 10485760 4
+ */
+public final class VerifyJournal // NO_UCD
+{
+
+   public static void main(final String arg[])
+   {
+      if (arg.length != 4 && arg.length != 5)
+      {
+         System.err.println("Use: java -cp hornetq-core.jar org.hornetq.core.journal.impl.VerifyJournal <JournalDirectory> <JournalPrefix> <FileExtension> <FileSize> [<Parallelism>]");
+         return;
+      }
+
+      try
+      {
+         int parallelism = arg.length == 5 ? Integer.parseInt(arg[4]) : Runtime.getRuntime().availableProcessors();
+
+         if (!VerifyJournal.verifyJournal(arg[0], arg[1], arg[2], Integer.parseInt(arg[3]), parallelism, System.out))
+         {
+            System.exit(1);
+         }
+      }
+      catch (Exception e)
+      {
+         e.printStackTrace();
+      }
+   }
+
+   /**
+    * @return {@code true} if no damaged record was found
+    */
+   public static boolean verifyJournal(final String directory,
+                                       final String journalPrefix,
+                                       final String journalSuffix,
+                                       final int fileSize,
+                                       final int parallelism,
+                                       final PrintStream out) throws Exception
+   {
+      if (parallelism < 1)
+      {
+         throw new IllegalArgumentException("Invalid parallelism " + parallelism);
+      }
+
+      final NIOSequentialFileFactory nio = new NIOSequentialFileFactory(directory, null);
+
+      JournalImpl journal = new JournalImpl(fileSize, 2, 0, 0, nio, journalPrefix, journalSuffix, 1);
+
+      List<JournalFile> files = journal.orderFiles();
+
+      ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+      try
+      {
+         List<Future<FileVerification>> verifications = new ArrayList<Future<FileVerification>>(files.size());
+
+         for (final JournalFile file : files)
+         {
+            verifications.add(pool.submit(new Callable<FileVerification>()
+            {
+               public FileVerification call() throws Exception
+               {
+                  return VerifyJournal.verifyJournalFile(nio, file);
+               }
+            }));
+         }
+
+         long records = 0;
+
+         long damagedRecords = 0;
+
+         for (int i = 0; i < files.size(); i++)
+         {
+            FileVerification verification = verifications.get(i).get();
+
+            out.println("#File," + files.get(i) +
+                        ",checksum@" +
+                        JournalImpl.hasChecksum(files.get(i)) +
+                        ",records@" +
+                        verification.records +
+                        ",damagedRecords@" +
+                        verification.damagedRecords +
+                        ",lastDataPos@" +
+                        verification.lastDataPos);
+
+            records += verification.records;
+
+            damagedRecords += verification.damagedRecords;
+         }
+
+         out.println("#Total,files@" + files.size() + ",records@" + records + ",damagedRecords@" + damagedRecords);
+
+         return damagedRecords == 0;
+      }
+      finally
+      {
+         pool.shutdown();
+      }
+   }
+
+   /**
+    * The damaged records are the ones making a load {@link JournalReaderCallback#markAsDataFile(JournalFile)
+    * mark the file as a data file}, which include the torn writes of an unclean shutdown.
+    */
+   public static FileVerification verifyJournalFile(final SequentialFileFactory fileFactory, final JournalFile file) throws Exception
+   {
+      final FileVerification verification = new FileVerification();
+
+      verification.lastDataPos = JournalImpl.readJournalFile(fileFactory, file, new JournalReaderCallbackAbstract()
+      {
+         @Override
+         public void onReadAddRecord(final RecordInfo info) throws Exception
+         {
+            verification.records++;
+         }
+
+         @Override
+         public void onReadUpdateRecord(final RecordInfo info) throws Exception
+         {
+            verification.records++;
+         }
+
+         @Override
+         public void onReadDeleteRecord(final long recordID) throws Exception
+         {
+            verification.records++;
+         }
+
+         @Override
+         public void onReadAddRecordTX(final long transactionID, final RecordInfo info) throws Exception
+         {
+            verification.records++;
+         }
+
+         @Override
+         public void onReadUpdateRecordTX(final long transactionID, final RecordInfo info) throws Exception
+         {
+            verification.records++;
+         }
+
+         @Override
+         public void onReadDeleteRecordTX(final long transactionID, final RecordInfo info) throws Exception
+         {
+            verification.records++;
+         }
+
+         @Override
+         public void onReadPrepareRecord(final long transactionID, final byte[] extraData, final int numberOfRecords) throws Exception
+         {
+            verification.records++;
+         }
+
+         @Override
+         public void onReadCommitRecord(final long transactionID, final int numberOfRecords) throws Exception
+         {
+            verification.records++;
+         }
+
+         @Override
+         public void onReadRollbackRecord(final long transactionID) throws Exception
+         {
+            verification.records++;
+         }
+
+         @Override
+         public void markAsDataFile(final JournalFile file)
+         {
+            verification.damagedRecords++;
+         }
+      });
+
+      return verification;
+   }
+
+   public static final class FileVerification
+   {
+      private int records;
+
+      private int damagedRecords;
+
+      private int lastDataPos;
+
+      public int getRecords()
+      {
+         return records;
+      }
+
+      public int getDamagedRecords()
+      {
+         return damagedRecords;
+      }
+
+      public int getLastDataPos()
+      {
+         return lastDataPos;
+      }
+   }
+}
@@ -54,6 +54,8 @@ public class JournalAddRecord extends JournalInternalRecord
    @Override
    public void encode(final HornetQBuffer buffer)
    {
+      final int recordStart = buffer.writerIndex();
+
       if (add)
       {
          buffer.writeByte(JournalImpl.ADD_RECORD);
@@ -75,12 +77,14 @@ public class JournalAddRecord extends JournalInternalRecord
 
       record.encode(buffer);
 
+      writeChecksum(buffer, recordStart);
+
       buffer.writeInt(getEncodeSize());
    }
 
    @Override
    public int getEncodeSize()
    {
-      return JournalImpl.SIZE_ADD_RECORD + record.getEncodeSize() + 1;
+      return JournalImpl.SIZE_ADD_RECORD + record.getEncodeSize() + 1 + getChecksumSize();
    }
 }
\ No newline at end of file
@@ -50,6 +50,8 @@ public class JournalDeleteRecordTX extends JournalInternalRecord
    @Override
    public void encode(final HornetQBuffer buffer)
    {
+      final int recordStart = buffer.writerIndex();
+
       buffer.writeByte(JournalImpl.DELETE_RECORD_TX);
 
       buffer.writeInt(fileID);
@@ -67,12 +69,14 @@ public class JournalDeleteRecordTX extends JournalInternalRecord
          record.encode(buffer);
       }
 
+      writeChecksum(buffer, recordStart);
+
       buffer.writeInt(getEncodeSize());
    }
 
    @Override
    public int getEncodeSize()
    {
-      return JournalImpl.SIZE_DELETE_RECORD_TX + (record != null ? record.getEncodeSize() : 0) + 1;
+      return JournalImpl.SIZE_DELETE_RECORD_TX + (record != null ? record.getEncodeSize() : 0) + 1 + getChecksumSize();
    }
 }
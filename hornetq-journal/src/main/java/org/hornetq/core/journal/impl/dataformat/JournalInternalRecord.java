@@ -15,6 +15,8 @@ package org.hornetq.core.journal.impl.dataformat;
 
 import org.hornetq.api.core.HornetQBuffer;
 import org.hornetq.core.journal.EncodingSupport;
+import org.hornetq.core.journal.impl.JournalChecksum;
+import org.hornetq.core.journal.impl.JournalImpl;
 
 /**
  * A InternalEncoder
@@ -30,6 +32,8 @@ public abstract class JournalInternalRecord implements EncodingSupport
 
    protected byte compactCount;
 
+   protected boolean checksum;
+
    public int getFileID()
    {
       return fileID;
@@ -70,5 +74,40 @@ public abstract class JournalInternalRecord implements EncodingSupport
       }
    }
 
+   public boolean isChecksum()
+   {
+      return checksum;
+   }
+
+   /**
+    * @param checksum if the record is written on a file of the
+    *           {@link JournalImpl#CHECKSUM_FORMAT_VERSION} format, which has a CRC before the
+    *           check size of each record
+    */
+   public void setChecksum(final boolean checksum)
+   {
+      this.checksum = checksum;
+   }
+
    public abstract int getEncodeSize();
+
+   /**
+    * @return the size taken by the CRC, to be added by {@link #getEncodeSize()}
+    */
+   protected int getChecksumSize()
+   {
+      return checksum ? JournalImpl.SIZE_CHECKSUM : 0;
+   }
+
+   /**
+    * Writes the CRC of what was written since the start of the record, just before its check
+    * size.
+    */
+   protected void writeChecksum(final HornetQBuffer buffer, final int recordStart)
+   {
+      if (checksum)
+      {
+         buffer.writeInt(JournalChecksum.checksum(buffer, recordStart, buffer.writerIndex() - recordStart));
+      }
+   }
 }
@@ -35,17 +35,19 @@ public class JournalRollbackRecordTX extends JournalInternalRecord
    @Override
    public void encode(final HornetQBuffer buffer)
    {
+      final int recordStart = buffer.writerIndex();
       buffer.writeByte(JournalImpl.ROLLBACK_RECORD);
       buffer.writeInt(fileID);
       buffer.writeByte(compactCount);
       buffer.writeLong(txID);
-      buffer.writeInt(JournalImpl.SIZE_ROLLBACK_RECORD + 1);
+      writeChecksum(buffer, recordStart);
+      buffer.writeInt(getEncodeSize());
 
    }
 
    @Override
    public int getEncodeSize()
    {
-      return JournalImpl.SIZE_ROLLBACK_RECORD + 1;
+      return JournalImpl.SIZE_ROLLBACK_RECORD + 1 + getChecksumSize();
    }
 }
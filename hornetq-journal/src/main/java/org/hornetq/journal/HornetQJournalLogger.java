@@ -253,6 +253,20 @@ public interface HornetQJournalLogger extends BasicLogger
    @Message(id = 142034, value = "Exception on submitting write", format = Message.Format.MESSAGE_FORMAT)
    void errorSubmittingWrite(@Cause Throwable e);
 
+   @LogMessage(level = Logger.Level.WARN)
+   @Message(id = 142035, value = "Ignoring invalid journal checkpoint {0}, loading all the files", format = Message.Format.MESSAGE_FORMAT)
+   void invalidCheckpoint(@Cause Throwable e, String fileName);
+
+   @LogMessage(level = Logger.Level.WARN)
+   @Message(id = 142036, value = "A buffer of {0} bytes was released to the buffer pool without being borrowed from it",
+            format = Message.Format.MESSAGE_FORMAT)
+   void bufferNotBorrowed(Integer capacity, @Cause Exception trace);
+
+   @LogMessage(level = Logger.Level.WARN)
+   @Message(id = 142037, value = "Mapped files cannot be unmapped explicitly on this JVM, their mappings are only released as they are garbage collected",
+            format = Message.Format.MESSAGE_FORMAT)
+   void unmapNotAvailable(@Cause Throwable e);
+
    @LogMessage(level = Logger.Level.ERROR)
    @Message(id = 144000, value = "Failed to delete file {0}", format = Message.Format.MESSAGE_FORMAT)
    void errorDeletingFile(Object e);
@@ -281,4 +295,8 @@ public interface HornetQJournalLogger extends BasicLogger
    @Message(id = 144006, value = "IOError code {0}, {1}", format = Message.Format.MESSAGE_FORMAT)
    void ioError(final int errorCode, final String errorMessage);
 
+   @LogMessage(level = Logger.Level.ERROR)
+   @Message(id = 144007, value = "Error writing journal checkpoint", format = Message.Format.MESSAGE_FORMAT)
+   void errorWritingCheckpoint(@Cause Throwable e);
+
 }
@@ -488,6 +488,11 @@ public final class FileConfigurationParser extends XMLConfigurationUtil
       {
          config.setJournalType(JournalType.NIO);
       }
+      else if (s.equals(JournalType.MAPPED.toString()))
+      {
+         // The mapped journal shares the NIO settings (buffer size, timeout and max-io)
+         config.setJournalType(JournalType.MAPPED);
+      }
       else if (s.equals(JournalType.ASYNCIO.toString()))
       {
          // https://jira.jboss.org/jira/browse/HORNETQ-295
@@ -14,7 +14,6 @@
 package org.hornetq.core.filter.impl;
 
 import java.util.HashMap;
-import java.util.Map;
 
 import org.hornetq.api.core.FilterConstants;
 import org.hornetq.api.core.HornetQException;
@@ -62,14 +61,48 @@ public class FilterImpl implements Filter
 
    private final SimpleString sfilterString;
 
-   private final Map<SimpleString, Identifier> identifiers;
+   private final SelectorCompiler.Expression<ServerMessage> expression;
 
-   private final Object result;
-
-   private final Class<? extends Object> resultType;
+   private final SelectorCondition condition;
 
    // Static ---------------------------------------------------------
 
+   /**
+    * Reads the header fields and properties of the messages on compiled filters.
+    */
+   private static final SelectorCompiler.ValueReaderFactory<ServerMessage> READERS =
+            new SelectorCompiler.ValueReaderFactory<ServerMessage>()
+   {
+      public SelectorCompiler.ValueReader<ServerMessage> createReader(final SimpleString identifier)
+      {
+         return FilterImpl.createReader(identifier);
+      }
+   };
+
+   /**
+    * @return a reader of the identifier as filters read it, a header field or a property
+    */
+   public static SelectorCompiler.ValueReader<ServerMessage> createReader(final SimpleString identifier)
+   {
+      if (identifier.startsWith(FilterConstants.HORNETQ_PREFIX))
+      {
+         SelectorCompiler.ValueReader<ServerMessage> header = createHeaderReader(identifier);
+
+         if (header != null)
+         {
+            return header;
+         }
+      }
+
+      return new SelectorCompiler.ValueReader<ServerMessage>()
+      {
+         public Object read(final ServerMessage message)
+         {
+            return message.getObjectProperty(identifier);
+         }
+      };
+   }
+
    /**
     * @return null if <code>filterStr</code> is null or an empty String and a valid filter else
     * @throws HornetQException if the string does not correspond to a valid filter
@@ -91,28 +124,31 @@ public class FilterImpl implements Filter
       }
 
       HashMap<SimpleString, Identifier> identifierMap = new HashMap<SimpleString, Identifier>();
-      Object result0;
+      SelectorCompiler.Expression<ServerMessage> expression;
+      SelectorCondition condition;
       try
       {
-         result0 = new FilterParser().parse(filterStr, identifierMap);
+         Object result0 = new FilterParser().parse(filterStr, identifierMap);
+         expression = SelectorCompiler.compile(result0, READERS);
+         condition = SelectorCondition.find(result0);
       }
       catch (Throwable e)
       {
          HornetQServerLogger.LOGGER.invalidFilter(e, filterStr);
          throw HornetQMessageBundle.BUNDLE.invalidFilter(e, filterStr);
       }
-      return new FilterImpl(filterStr, identifierMap, result0);
+      return new FilterImpl(filterStr, expression, condition);
    }
 
    // Constructors ---------------------------------------------------
 
-   private FilterImpl(final SimpleString str, final HashMap<SimpleString, Identifier> identifierMap,
-                      final Object result0)
+   private FilterImpl(final SimpleString str,
+                      final SelectorCompiler.Expression<ServerMessage> expression,
+                      final SelectorCondition condition)
    {
       sfilterString = str;
-      identifiers = identifierMap;
-      this.result = result0;
-      resultType = result.getClass();
+      this.expression = expression;
+      this.condition = condition;
    }
 
    // Filter implementation ---------------------------------------------------------------------
@@ -122,55 +158,19 @@ public class FilterImpl implements Filter
       return sfilterString;
    }
 
-   public synchronized boolean match(final ServerMessage message)
+   /**
+    * @return a condition the messages matching this filter meet, or null if the filter has none
+    */
+   public SelectorCondition getCondition()
+   {
+      return condition;
+   }
+
+   public boolean match(final ServerMessage message)
    {
       try
       {
-         // Set the identifiers values
-
-         for (Identifier id : identifiers.values())
-         {
-            Object val = null;
-
-            if (id.getName().startsWith(FilterConstants.HORNETQ_PREFIX))
-            {
-               // Look it up as header fields
-               val = getHeaderFieldValue(message, id.getName());
-            }
-
-            if (val == null)
-            {
-               val = message.getObjectProperty(id.getName());
-            }
-
-            id.setValue(val);
-
-         }
-
-         if (resultType.equals(Identifier.class))
-         {
-            return (Boolean)((Identifier)result).getValue();
-         }
-         else if (resultType.equals(Operator.class))
-         {
-            Operator op = (Operator)result;
-            Object result = op.apply();
-            if (result == null)
-            {
-               // https://issues.jboss.org/browse/HORNETQ-1188 -
-               // if this was going to NPE anyways, we just return false
-               // invalid properties will just fail the query
-               return false;
-            }
-            else
-            {
-               return (Boolean)result;
-            }
-         }
-         else
-         {
-            throw new Exception("Bad object type: " + result);
-         }
+         return expression.matches(message);
       }
       catch (Exception e)
       {
@@ -217,32 +217,71 @@ public class FilterImpl implements Filter
 
    // Private --------------------------------------------------------------------------
 
-   private Object getHeaderFieldValue(final ServerMessage msg, final SimpleString fieldName)
+   /**
+    * @return null if fieldName isn't a header field, and is then read as a property
+    */
+   private static SelectorCompiler.ValueReader<ServerMessage> createHeaderReader(final SimpleString fieldName)
    {
       if (FilterConstants.HORNETQ_USERID.equals(fieldName))
       {
-         // It's the stringified (hex) representation of a user id that can be used in a selector expression
-         return new SimpleString("ID:" + msg.getUserID());
+         return new SelectorCompiler.ValueReader<ServerMessage>()
+         {
+            public Object read(final ServerMessage msg)
+            {
+               // It's the stringified (hex) representation of a user id that can be used in a selector expression
+               return new SimpleString("ID:" + msg.getUserID());
+            }
+         };
       }
       else if (FilterConstants.HORNETQ_PRIORITY.equals(fieldName))
       {
-         return Integer.valueOf(msg.getPriority());
+         return new SelectorCompiler.ValueReader<ServerMessage>()
+         {
+            public Object read(final ServerMessage msg)
+            {
+               return Integer.valueOf(msg.getPriority());
+            }
+         };
       }
       else if (FilterConstants.HORNETQ_TIMESTAMP.equals(fieldName))
       {
-         return msg.getTimestamp();
+         return new SelectorCompiler.ValueReader<ServerMessage>()
+         {
+            public Object read(final ServerMessage msg)
+            {
+               return msg.getTimestamp();
+            }
+         };
       }
       else if (FilterConstants.HORNETQ_DURABLE.equals(fieldName))
       {
-         return msg.isDurable() ? FilterConstants.DURABLE : FilterConstants.NON_DURABLE;
+         return new SelectorCompiler.ValueReader<ServerMessage>()
+         {
+            public Object read(final ServerMessage msg)
+            {
+               return msg.isDurable() ? FilterConstants.DURABLE : FilterConstants.NON_DURABLE;
+            }
+         };
       }
       else if (FilterConstants.HORNETQ_EXPIRATION.equals(fieldName))
       {
-         return msg.getExpiration();
+         return new SelectorCompiler.ValueReader<ServerMessage>()
+         {
+            public Object read(final ServerMessage msg)
+            {
+               return msg.getExpiration();
+            }
+         };
       }
       else if (FilterConstants.HORNETQ_SIZE.equals(fieldName))
       {
-         return msg.getEncodeSize();
+         return new SelectorCompiler.ValueReader<ServerMessage>()
+         {
+            public Object read(final ServerMessage msg)
+            {
+               return msg.getEncodeSize();
+            }
+         };
       }
       else
       {
@@ -23,6 +23,7 @@ import org.hornetq.api.core.SimpleString;
 import org.hornetq.api.core.management.AddressControl;
 import org.hornetq.core.paging.PagingManager;
 import org.hornetq.core.paging.PagingStore;
+import org.hornetq.core.paging.cursor.PageCursorProvider;
 import org.hornetq.core.persistence.StorageManager;
 import org.hornetq.core.postoffice.Binding;
 import org.hornetq.core.postoffice.Bindings;
@@ -192,6 +193,89 @@ public class AddressControlImpl extends AbstractControl implements AddressContro
       }
    }
 
+   public long getPageCacheHits() throws Exception
+   {
+      clearIO();
+      try
+      {
+         return pagingManager.getPageStore(address).getCursorProvider().getCacheHits();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
+   public long getPageCacheMisses() throws Exception
+   {
+      clearIO();
+      try
+      {
+         return pagingManager.getPageStore(address).getCursorProvider().getCacheMisses();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
+   public long getPageCacheEvictions() throws Exception
+   {
+      clearIO();
+      try
+      {
+         return pagingManager.getPageStore(address).getCursorProvider().getCacheEvictions();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
+   public int getPagePrefetchDepth() throws Exception
+   {
+      clearIO();
+      try
+      {
+         return pagingManager.getPageStore(address).getCursorProvider().getPrefetchDepth();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
+   public double getPagePrefetchHitRate() throws Exception
+   {
+      clearIO();
+      try
+      {
+         PageCursorProvider provider = pagingManager.getPageStore(address).getCursorProvider();
+
+         long hits = provider.getPrefetchHits();
+         long total = hits + provider.getReadStalls();
+
+         return total == 0 ? 0 : (double)hits / total;
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
+   public long getPageReadStallTime() throws Exception
+   {
+      clearIO();
+      try
+      {
+         return pagingManager.getPageStore(address).getCursorProvider().getReadStallTime();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
    public boolean isPaging() throws Exception
    {
       clearIO();
@@ -48,6 +48,7 @@ import org.hornetq.api.core.management.QueueControl;
 import org.hornetq.core.config.BridgeConfiguration;
 import org.hornetq.core.config.Configuration;
 import org.hornetq.core.config.DivertConfiguration;
+import org.hornetq.core.journal.impl.NativeBufferPool;
 import org.hornetq.core.messagecounter.MessageCounterManager;
 import org.hornetq.core.messagecounter.impl.MessageCounterManagerImpl;
 import org.hornetq.core.persistence.StorageManager;
@@ -69,6 +70,7 @@ import org.hornetq.core.transaction.TransactionDetail;
 import org.hornetq.core.transaction.impl.CoreTransactionDetail;
 import org.hornetq.core.transaction.impl.XidImpl;
 import org.hornetq.spi.core.protocol.RemotingConnection;
+import org.hornetq.utils.DurationHistogram;
 import org.hornetq.utils.SecurityFormatter;
 import org.hornetq.utils.json.JSONArray;
 import org.hornetq.utils.json.JSONObject;
@@ -136,6 +138,132 @@ public class HornetQServerControlImpl extends AbstractControl implements HornetQ
       }
    }
 
+   public long getJournalScanTime()
+   {
+      checkStarted();
+
+      clearIO();
+      try
+      {
+         return server.getJournalScanTime();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
+   public long getJournalMergeTime()
+   {
+      checkStarted();
+
+      clearIO();
+      try
+      {
+         return server.getJournalMergeTime();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
+   public long getQueueRebuildTime()
+   {
+      checkStarted();
+
+      clearIO();
+      try
+      {
+         return server.getQueueRebuildTime();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
+   public String getJournalCompactTimesAsJSON() throws Exception
+   {
+      checkStarted();
+
+      clearIO();
+      try
+      {
+         JSONObject json = new JSONObject();
+
+         DurationHistogram histogram = storageManager.getMessageJournalCompactTimes();
+
+         if (histogram != null)
+         {
+            json.put("count", histogram.getCount());
+            json.put("total", histogram.getTotal());
+            json.put("max", histogram.getMax());
+
+            JSONArray buckets = new JSONArray();
+
+            long[] counts = histogram.getCounts();
+
+            for (int i = 0; i < counts.length; i++)
+            {
+               JSONObject bucket = new JSONObject();
+               long upperBound = histogram.getUpperBound(i);
+               bucket.put("upTo", upperBound == Long.MAX_VALUE ? -1 : upperBound);
+               bucket.put("count", counts[i]);
+               buckets.put(bucket);
+            }
+
+            json.put("buckets", buckets);
+         }
+
+         return json.toString();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
+   public String getBufferPoolUsageAsJSON() throws Exception
+   {
+      checkStarted();
+
+      clearIO();
+      try
+      {
+         NativeBufferPool pool = NativeBufferPool.getShared();
+
+         JSONObject json = new JSONObject();
+
+         json.put("allocator", pool.getAllocatorName());
+         json.put("maxPooledBytes", pool.getMaxPooledBytes());
+         json.put("pooledBytes", pool.getPooledBytes());
+         json.put("inUseBytes", pool.getInUseBytes());
+         json.put("inUseBuffers", pool.getInUseBuffers());
+         json.put("allocatedBytes", pool.getAllocatedBytes());
+         json.put("hits", pool.getHits());
+         json.put("misses", pool.getMisses());
+
+         if (pool.isTrackLeaks())
+         {
+            JSONObject sites = new JSONObject();
+
+            for (Entry<String, Integer> site : pool.getBorrowedBySite().entrySet())
+            {
+               sites.put(site.getKey(), site.getValue());
+            }
+
+            json.put("borrowedBySite", sites);
+         }
+
+         return json.toString();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
    public String getVersion()
    {
       checkStarted();
@@ -680,6 +808,31 @@ public class HornetQServerControlImpl extends AbstractControl implements HornetQ
       }
    }
 
+   public void createShardedQueue(final String address,
+                                  final String name,
+                                  final String filterStr,
+                                  final boolean durable,
+                                  final int shards) throws Exception
+   {
+      checkStarted();
+
+      clearIO();
+      try
+      {
+         SimpleString filter = null;
+         if (filterStr != null && !filterStr.trim().equals(""))
+         {
+            filter = new SimpleString(filterStr);
+         }
+
+         server.createShardedQueue(new SimpleString(address), new SimpleString(name), filter, durable, false, shards);
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
    public String[] getQueueNames()
    {
       checkStarted();
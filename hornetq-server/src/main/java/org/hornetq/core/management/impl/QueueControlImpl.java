@@ -287,6 +287,51 @@ public class QueueControlImpl extends AbstractControl implements QueueControl
       }
    }
 
+   public long getScheduledDeliveredCount()
+   {
+      checkStarted();
+
+      clearIO();
+      try
+      {
+         return queue.getScheduledDeliveredCount();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
+   public long getScheduledDeliveryLag()
+   {
+      checkStarted();
+
+      clearIO();
+      try
+      {
+         return queue.getScheduledDeliveryLag();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
+   public long getMaxScheduledDeliveryLag()
+   {
+      checkStarted();
+
+      clearIO();
+      try
+      {
+         return queue.getMaxScheduledDeliveryLag();
+      }
+      finally
+      {
+         blockOnIO();
+      }
+   }
+
    public String getDeadLetterAddress()
    {
       checkStarted();
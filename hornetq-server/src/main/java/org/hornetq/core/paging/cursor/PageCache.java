@@ -38,6 +38,11 @@ public interface PageCache extends SoftValueHashMap.ValueCache
     */
    boolean isLive();
 
+   /**
+    * @return the bytes of the page file read or written so far
+    */
+   int getPageSize();
+
    /**
     *
     * @param messageNumber The order of the message on the page
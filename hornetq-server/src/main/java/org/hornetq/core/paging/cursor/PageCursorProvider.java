@@ -28,6 +28,12 @@ public interface PageCursorProvider
 
    PageCache getPageCache(long pageNr);
 
+   /**
+    * Reads the pages after the one a cursor just got to on the executor of the address, as many as
+    * the prefetch depth, so the cursor doesn't wait on them.
+    */
+   void prefetch(long pageNr);
+
    PagedReference newReference(final PagePosition pos, final PagedMessage msg, PageSubscription sub);
 
    void addPageCache(PageCache cache);
@@ -66,6 +72,41 @@ public interface PageCursorProvider
 
    void setCacheMaxSize(int size);
 
+   /**
+    * @return how many times a page was found on the cache
+    */
+   long getCacheHits();
+
+   /**
+    * @return how many times a page had to be read into the cache
+    */
+   long getCacheMisses();
+
+   /**
+    * @return how many pages were evicted from the cache, for this address or the shared budget
+    */
+   long getCacheEvictions();
+
+   /**
+    * @return how many pages ahead of the cursors are being read, adapted to how fast they consume
+    */
+   int getPrefetchDepth();
+
+   /**
+    * @return how many times a cursor got to a page that was read ahead of it
+    */
+   long getPrefetchHits();
+
+   /**
+    * @return how many times a cursor had to wait for a page to be read
+    */
+   long getReadStalls();
+
+   /**
+    * @return the milliseconds the cursors waited for pages to be read
+    */
+   long getReadStallTime();
+
    /**
     * @param pageCursorImpl
     */
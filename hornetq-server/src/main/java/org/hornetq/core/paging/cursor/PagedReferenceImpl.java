@@ -23,6 +23,7 @@ import org.hornetq.core.server.MessageReference;
 import org.hornetq.core.server.Queue;
 import org.hornetq.core.server.ServerMessage;
 import org.hornetq.core.transaction.Transaction;
+import org.hornetq.utils.IngressQueue;
 
 /**
  * A InternalReference
@@ -31,7 +32,7 @@ import org.hornetq.core.transaction.Transaction;
  *
  *
  */
-public class PagedReferenceImpl implements PagedReference
+public class PagedReferenceImpl extends IngressQueue.Node<MessageReference> implements PagedReference
 {
    private static final boolean isTrace = HornetQServerLogger.LOGGER.isTraceEnabled();
 
@@ -76,6 +77,12 @@ public class PagedReferenceImpl implements PagedReference
       return position;
    }
 
+   @Override
+   protected MessageReference getIngressElement()
+   {
+      return this;
+   }
+
    public PagedReferenceImpl(final PagePosition position,
                              final PagedMessage message,
                              final PageSubscription subscription)
@@ -94,6 +94,12 @@ public class LivePageCacheImpl implements LivePageCache
       return isLive;
    }
 
+   @Override
+   public int getPageSize()
+   {
+      return page.getSize();
+   }
+
    @Override
    public synchronized void addLiveMessage(PagedMessage message)
    {
@@ -13,15 +13,23 @@
 
 package org.hornetq.core.paging.cursor.impl;
 
+import java.util.List;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.hornetq.core.paging.PagedMessage;
 import org.hornetq.core.paging.cursor.PageCache;
 import org.hornetq.core.paging.impl.Page;
+import org.hornetq.core.persistence.StorageManager;
+import org.hornetq.core.server.HornetQServerLogger;
 
 /**
  * The caching associated to a single page.
+ * <p>
+ * When created from the index of the page, the messages are only decoded as they are asked for, a
+ * read buffer at a time, so a cursor positioned near the end of a large page doesn't decode all of
+ * it. The page file is kept open until all the messages are decoded or the cache is closed, and
+ * the index outlives the cache so the page isn't scanned again when it's cached again.
  *
  * @author <a href="mailto:clebert.suconic@jboss.org">Clebert Suconic</a>
  *
@@ -38,15 +46,25 @@ class PageCacheImpl implements PageCache
 
    private PagedMessage[] messages;
 
+   // the position of each message on the page file
+   private int[] index;
+
+   private int unread;
+
+   private volatile boolean closed;
+
    private final Page page;
 
+   private final StorageManager storageManager;
+
    // Static --------------------------------------------------------
 
    // Constructors --------------------------------------------------
 
-   public PageCacheImpl(final Page page)
+   public PageCacheImpl(final Page page, final StorageManager storageManager)
    {
       this.page = page;
+      this.storageManager = storageManager;
    }
 
    // Public --------------------------------------------------------
@@ -57,19 +75,35 @@ class PageCacheImpl implements PageCache
       lock.readLock().lock();
       try
       {
-         if (messageNumber < messages.length)
+         if (messageNumber >= messages.length)
          {
-            return messages[messageNumber];
+            return null;
          }
-         else
+
+         if (messages[messageNumber] != null)
          {
-            return null;
+            return messages[messageNumber];
          }
       }
       finally
       {
          lock.readLock().unlock();
       }
+
+      lock.writeLock().lock();
+      try
+      {
+         if (messages[messageNumber] == null)
+         {
+            readMessages(messageNumber);
+         }
+
+         return messages[messageNumber];
+      }
+      finally
+      {
+         lock.writeLock().unlock();
+      }
    }
 
    public long getPageId()
@@ -77,6 +111,14 @@ class PageCacheImpl implements PageCache
       return page.getPageId();
    }
 
+   /**
+    * @return the size of the page file, once the page is read
+    */
+   public int getPageSize()
+   {
+      return page.getSize();
+   }
+
    public void lock()
    {
       lock.writeLock().lock();
@@ -90,6 +132,44 @@ class PageCacheImpl implements PageCache
    public void setMessages(final PagedMessage[] messages)
    {
       this.messages = messages;
+      this.index = null;
+   }
+
+   /**
+    * Locates the messages on the page, which are only read as they are asked for. It has to be
+    * called with the lock held, as {@link #setMessages(PagedMessage[])}.
+    */
+   public void readIndex() throws Exception
+   {
+      page.open();
+
+      setIndex(page.readIndex(storageManager));
+   }
+
+   /**
+    * Takes the index of the page read by a previous cache, the page isn't scanned again. It has to
+    * be called with the lock held, as {@link #setMessages(PagedMessage[])}.
+    */
+   public void setIndex(final int[] index) throws Exception
+   {
+      page.open();
+
+      this.index = index;
+      messages = new PagedMessage[index.length];
+      unread = index.length;
+
+      if (unread == 0 || closed)
+      {
+         page.closeFile();
+      }
+   }
+
+   /**
+    * @return the position of each message on the page file, or null if the messages were set
+    */
+   public int[] getIndex()
+   {
+      return index;
    }
 
    public int getNumberOfMessages()
@@ -105,8 +185,22 @@ class PageCacheImpl implements PageCache
       }
    }
 
+   /**
+    * Closes the page file as the cache is dropped, the messages not read yet can still be read
+    * but the file is opened for each read.
+    */
    public void close()
    {
+      closed = true;
+
+      try
+      {
+         page.closeFile();
+      }
+      catch (Exception e)
+      {
+         HornetQServerLogger.LOGGER.warn("Error closing page " + page.getPageId(), e);
+      }
    }
 
    @Override
@@ -124,6 +218,63 @@ class PageCacheImpl implements PageCache
    @Override
    public PagedMessage[] getMessages()
    {
-      return messages;
+      lock.writeLock().lock();
+      try
+      {
+         for (int i = 0; index != null && unread > 0 && i < messages.length; i++)
+         {
+            if (messages[i] == null)
+            {
+               readMessages(i);
+            }
+         }
+
+         return messages;
+      }
+      finally
+      {
+         lock.writeLock().unlock();
+      }
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * Reads the messages from the one given on, as many as fit on the read buffer of the page.
+    * Called with the write lock held.
+    */
+   private void readMessages(final int first)
+   {
+      try
+      {
+         storageManager.beforePageRead();
+         try
+         {
+            List<PagedMessage> read = page.read(storageManager, index, first);
+
+            for (int i = 0; i < read.size(); i++)
+            {
+               if (messages[first + i] == null)
+               {
+                  messages[first + i] = read.get(i);
+                  unread--;
+               }
+            }
+         }
+         finally
+         {
+            storageManager.afterPageRead();
+         }
+      }
+      catch (Exception e)
+      {
+         throw new RuntimeException("Couldn't complete paging due to an IO Exception on Paging - " + e.getMessage(), e);
+      }
+
+      if (unread == 0)
+      {
+         // all the messages are decoded, the file isn't needed any more
+         close();
+      }
    }
 }
@@ -15,11 +15,16 @@ package org.hornetq.core.paging.cursor.impl;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.hornetq.core.filter.Filter;
 import org.hornetq.core.paging.PagedMessage;
@@ -35,8 +40,8 @@ import org.hornetq.core.persistence.StorageManager;
 import org.hornetq.core.server.HornetQServerLogger;
 import org.hornetq.core.transaction.Transaction;
 import org.hornetq.core.transaction.impl.TransactionImpl;
+import org.hornetq.utils.ConcurrentHashSet;
 import org.hornetq.utils.FutureLatch;
-import org.hornetq.utils.SoftValueHashMap;
 /**
  * A PageProviderIMpl
  *
@@ -51,6 +56,9 @@ public class PageCursorProviderImpl implements PageCursorProvider
 {
    // Constants -----------------------------------------------------
 
+   /** How many pages ahead of a cursor may be read before it gets to them, 2 by default and 0 to disable */
+   public static final String PREFETCH_PROPERTY = "org.hornetq.opt.pageprefetch";
+
    boolean isTrace = HornetQServerLogger.LOGGER.isTraceEnabled();
 
    // Attributes ----------------------------------------------------
@@ -69,7 +77,47 @@ public class PageCursorProviderImpl implements PageCursorProvider
    // This is the same executor used at the PageStoreImpl. One Executor per pageStore
    private final Executor executor;
 
-   private final SoftValueHashMap<Long, PageCache> softCache;
+   // The pages of this address on the shared cache, bounded by its page-max-cache-size as well
+   private final Map<Long, SharedPageCache.Entry> caches = new HashMap<Long, SharedPageCache.Entry>();
+
+   private final SharedPageCache sharedCache = SharedPageCache.getShared();
+
+   // The number of page indexes kept for each page of page-max-cache-size
+   private static final int INDEXES_PER_CACHE = 8;
+
+   // The indexes of the pages read, kept after their caches are evicted so a page cached again isn't
+   // scanned again. Guarded by the caches lock
+   private final Map<Long, int[]> indexes = new LinkedHashMap<Long, int[]>(16, 0.75f, true)
+   {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<Long, int[]> eldest)
+      {
+         return size() > Math.max(1, maxCacheSize) * PageCursorProviderImpl.INDEXES_PER_CACHE;
+      }
+   };
+
+   private volatile int maxCacheSize;
+
+   private final AtomicLong cacheHits = new AtomicLong(0);
+
+   private final AtomicLong cacheMisses = new AtomicLong(0);
+
+   private final AtomicLong cacheEvictions = new AtomicLong(0);
+
+   private volatile int maxPrefetchDepth = Integer.getInteger(PageCursorProviderImpl.PREFETCH_PROPERTY, 2);
+
+   // raised as cursors stall on pages not read yet, lowered as pages read ahead are evicted before being used
+   private final AtomicInteger prefetchDepth = new AtomicInteger(1);
+
+   private final ConcurrentHashSet<Long> pendingPrefetches = new ConcurrentHashSet<Long>();
+
+   private final AtomicLong prefetchHits = new AtomicLong(0);
+
+   private final AtomicLong readStalls = new AtomicLong(0);
+
+   private final AtomicLong readStallTime = new AtomicLong(0);
 
    private final ConcurrentMap<Long, PageSubscription> activeCursors = new ConcurrentHashMap<Long, PageSubscription>();
 
@@ -85,7 +133,7 @@ public class PageCursorProviderImpl implements PageCursorProvider
       this.pagingStore = pagingStore;
       this.storageManager = storageManager;
       this.executor = executor;
-      this.softCache = new SoftValueHashMap<Long, PageCache>(maxCacheSize);
+      this.maxCacheSize = maxCacheSize;
    }
 
    // Public --------------------------------------------------------
@@ -134,72 +182,175 @@ public class PageCursorProviderImpl implements PageCursorProvider
    }
 
    public PageCache getPageCache(final long pageId)
+   {
+      return getPageCache(pageId, false);
+   }
+
+   public void prefetch(final long pageId)
+   {
+      int depth = Math.min(prefetchDepth.get(), maxPrefetchDepth);
+
+      for (int i = 1; i <= depth; i++)
+      {
+         final long nextPage = pageId + i;
+
+         if (nextPage >= pagingStore.getCurrentWritingPage())
+         {
+            // the page being written is cached as it's written
+            return;
+         }
+
+         synchronized (caches)
+         {
+            if (caches.containsKey(nextPage))
+            {
+               continue;
+            }
+         }
+
+         if (!pendingPrefetches.addIfAbsent(nextPage))
+         {
+            continue;
+         }
+
+         executor.execute(new Runnable()
+         {
+            public void run()
+            {
+               try
+               {
+                  PageCache cache = getPageCache(nextPage, true);
+
+                  if (cache != null)
+                  {
+                     // decoding all the messages here is what saves the cursor from reading them
+                     cache.getMessages();
+                  }
+               }
+               catch (Exception e)
+               {
+                  HornetQServerLogger.LOGGER.warn("Error while prefetching page " + nextPage, e);
+               }
+               finally
+               {
+                  pendingPrefetches.remove(nextPage);
+               }
+            }
+         });
+      }
+   }
+
+   private PageCache getPageCache(final long pageId, final boolean prefetch)
    {
       try
       {
-         boolean needToRead = false;
-         PageCache cache = null;
-         synchronized (softCache)
+         PageCacheImpl newCache = null;
+         int[] index = null;
+         SharedPageCache.Entry entry;
+         synchronized (caches)
          {
             if (pageId > pagingStore.getCurrentWritingPage())
             {
                return null;
             }
 
-            cache = softCache.get(pageId);
-            if (cache == null)
+            entry = caches.get(pageId);
+            if (entry == null)
             {
                if (!pagingStore.checkPageFileExists((int)pageId))
                {
                   return null;
                }
 
-               cache = createPageCache(pageId);
-               needToRead = true;
+               newCache = createPageCache(pageId);
+               index = indexes.get(pageId);
+               entry = new SharedPageCache.Entry(this, newCache);
+               entry.prefetched = prefetch;
                // anyone reading from this cache will have to wait reading to finish first
                // we also want only one thread reading this cache
-               cache.lock();
+               newCache.lock();
                if (isTrace)
                {
                   HornetQServerLogger.LOGGER.trace("adding " + pageId +  " into cursor = " + this.pagingStore.getAddress());
                }
-               softCache.put(pageId, cache);
+               putCache(pageId, entry);
             }
          }
 
-         // Reading is done outside of the synchronized block, however
-         // the page stays locked until the entire reading is finished
-         if (needToRead)
+         if (newCache == null)
          {
-            Page page = null;
-            try
+            cacheHits.incrementAndGet();
+
+            if (!prefetch)
             {
-               page = pagingStore.createPage((int)pageId);
+               if (entry.prefetched && !entry.used)
+               {
+                  prefetchHits.incrementAndGet();
+               }
 
-               storageManager.beforePageRead();
-               page.open();
+               entry.used = true;
 
-               List<PagedMessage> pgdMessages = page.read(storageManager);
-               cache.setMessages(pgdMessages.toArray(new PagedMessage[pgdMessages.size()]));
+               entry.touch();
             }
-            finally
+
+            if (!entry.cache.isLive() && !sharedCache.isCharged(entry))
             {
-               try
-               {
-                  if (page != null)
-                  {
-                     page.close();
-                  }
-               }
-               catch (Throwable ignored)
+               // a page that was live is charged as it's used after being closed
+               charge(pageId, entry);
+            }
+
+            return entry.cache;
+         }
+
+         cacheMisses.incrementAndGet();
+
+         long start = System.nanoTime();
+
+         // Reading is done outside of the synchronized block, however
+         // the page stays locked until the index is read. The messages are read as the cursors get to them
+         try
+         {
+            storageManager.beforePageRead();
+
+            if (index != null)
+            {
+               newCache.setIndex(index);
+            }
+            else
+            {
+               newCache.readIndex();
+
+               synchronized (caches)
                {
+                  indexes.put(pageId, newCache.getIndex());
                }
-               storageManager.afterPageRead();
-               cache.unlock();
             }
          }
+         finally
+         {
+            storageManager.afterPageRead();
+            newCache.unlock();
+         }
+
+         if (!prefetch)
+         {
+            entry.used = true;
 
-         return cache;
+            readStalls.incrementAndGet();
+
+            readStallTime.addAndGet(System.nanoTime() - start);
+
+            int depth = prefetchDepth.get();
+
+            if (depth < maxPrefetchDepth)
+            {
+               prefetchDepth.compareAndSet(depth, depth + 1);
+            }
+         }
+
+         charge(pageId, entry);
+
+         return newCache;
       }
       catch (Exception e)
       {
@@ -209,30 +360,88 @@ public class PageCursorProviderImpl implements PageCursorProvider
 
    public void addPageCache(PageCache cache)
    {
-      synchronized (softCache)
+      SharedPageCache.Entry entry = new SharedPageCache.Entry(this, cache);
+
+      synchronized (caches)
       {
-         softCache.put(cache.getPageId(), cache);
+         putCache(cache.getPageId(), entry);
       }
+
+      // a live page can't be evicted, it's charged once it's closed
    }
 
    public void setCacheMaxSize(final int size)
    {
-      softCache.setMaxElements(size);
+      maxCacheSize = size;
    }
 
    public int getCacheSize()
    {
-      synchronized (softCache)
+      synchronized (caches)
       {
-         return softCache.size();
+         return caches.size();
       }
    }
 
+   public long getCacheHits()
+   {
+      return cacheHits.get();
+   }
+
+   public long getCacheMisses()
+   {
+      return cacheMisses.get();
+   }
+
+   public long getCacheEvictions()
+   {
+      return cacheEvictions.get();
+   }
+
+   public int getMaxPrefetchDepth()
+   {
+      return maxPrefetchDepth;
+   }
+
+   public void setMaxPrefetchDepth(final int depth)
+   {
+      maxPrefetchDepth = depth;
+   }
+
+   public int getPrefetchDepth()
+   {
+      return Math.min(prefetchDepth.get(), maxPrefetchDepth);
+   }
+
+   public long getPrefetchHits()
+   {
+      return prefetchHits.get();
+   }
+
+   public long getReadStalls()
+   {
+      return readStalls.get();
+   }
+
+   public long getReadStallTime()
+   {
+      return TimeUnit.NANOSECONDS.toMillis(readStallTime.get());
+   }
+
    public void clearCache()
    {
-      synchronized (softCache)
+      ArrayList<SharedPageCache.Entry> cleared;
+
+      synchronized (caches)
+      {
+         cleared = new ArrayList<SharedPageCache.Entry>(caches.values());
+         caches.clear();
+         indexes.clear();
+      }
+
+      for (SharedPageCache.Entry entry : cleared)
       {
-         softCache.clear();
+         release(entry);
       }
    }
 
@@ -514,9 +723,10 @@ public class PageCursorProviderImpl implements PageCursorProvider
          {
             PageCache cache;
             PagedMessage[] pgdMessages;
-            synchronized (softCache)
+            synchronized (caches)
             {
-               cache = softCache.get((long)depagedPage.getPageId());
+               SharedPageCache.Entry entry = caches.get((long)depagedPage.getPageId());
+               cache = entry == null ? null : entry.cache;
             }
 
             if (isTrace)
@@ -560,9 +770,16 @@ public class PageCursorProviderImpl implements PageCursorProvider
             depagedPage.delete(pgdMessages);
             onDeletePage(depagedPage);
 
-            synchronized (softCache)
+            SharedPageCache.Entry entry;
+            synchronized (caches)
+            {
+               entry = caches.remove((long)depagedPage.getPageId());
+               indexes.remove((long)depagedPage.getPageId());
+            }
+
+            if (entry != null)
             {
-               softCache.remove((long)depagedPage.getPageId());
+               release(entry);
             }
          }
       }
@@ -625,24 +842,138 @@ public class PageCursorProviderImpl implements PageCursorProvider
    public void printDebug()
    {
       System.out.println("Debug information for PageCursorProviderImpl:");
-      for (PageCache cache : softCache.values())
+      synchronized (caches)
       {
-         System.out.println("Cache " + cache);
+         for (SharedPageCache.Entry entry : caches.values())
+         {
+            System.out.println("Cache " + entry.cache);
+         }
       }
    }
 
    // Package protected ---------------------------------------------
 
+   /**
+    * Called by the shared cache as it evicts one of the pages of this address.
+    */
+   void evict(final SharedPageCache.Entry entry)
+   {
+      synchronized (caches)
+      {
+         Long pageId = entry.cache.getPageId();
+
+         if (caches.get(pageId) == entry)
+         {
+            caches.remove(pageId);
+
+            // it may have been charged again since the shared cache picked it
+            sharedCache.remove(entry);
+
+            evicted(entry);
+         }
+      }
+   }
+
    // Protected -----------------------------------------------------
 
    /* Protected as we may let test cases to instrument the test */
    protected PageCacheImpl createPageCache(final long pageId) throws Exception
    {
-      return new PageCacheImpl(pagingStore.createPage((int)pageId));
+      return new PageCacheImpl(pagingStore.createPage((int)pageId), storageManager);
    }
 
    // Private -------------------------------------------------------
 
+   /**
+    * Caches a page, evicting the least recently used page of this address that isn't live when
+    * there are more than page-max-cache-size. Called with the caches lock held.
+    */
+   private void putCache(final long pageId, final SharedPageCache.Entry entry)
+   {
+      SharedPageCache.Entry replaced = caches.put(pageId, entry);
+
+      if (replaced != null)
+      {
+         release(replaced);
+      }
+
+      while (caches.size() > maxCacheSize)
+      {
+         SharedPageCache.Entry oldest = null;
+
+         for (SharedPageCache.Entry cached : caches.values())
+         {
+            if (cached != entry && !cached.cache.isLive() &&
+                (oldest == null || cached.getLastUse() - oldest.getLastUse() < 0))
+            {
+               oldest = cached;
+            }
+         }
+
+         if (oldest == null)
+         {
+            return;
+         }
+
+         caches.remove(oldest.cache.getPageId());
+
+         sharedCache.remove(oldest);
+
+         evicted(oldest);
+      }
+   }
+
+   /**
+    * Charges a page to the shared cache, unless it was dropped from this address meanwhile, and
+    * evicts the pages over the budget.
+    */
+   private void charge(final long pageId, final SharedPageCache.Entry entry)
+   {
+      synchronized (caches)
+      {
+         if (caches.get(pageId) != entry)
+         {
+            return;
+         }
+
+         sharedCache.add(entry, entry.cache.getPageSize());
+      }
+
+      sharedCache.evict(entry);
+   }
+
+   /**
+    * Releases a page no longer cached, closing its file if it was read.
+    */
+   private void release(final SharedPageCache.Entry entry)
+   {
+      sharedCache.remove(entry);
+
+      if (!entry.cache.isLive())
+      {
+         entry.cache.close();
+      }
+   }
+
+   private void evicted(final SharedPageCache.Entry entry)
+   {
+      cacheEvictions.incrementAndGet();
+
+      // the index is kept, the file is opened again if the page is cached again
+      entry.cache.close();
+
+      if (entry.prefetched && !entry.used)
+      {
+         // read too far ahead of the cursors for the cache to hold it
+         int depth = prefetchDepth.get();
+
+         if (depth > 1)
+         {
+            prefetchDepth.compareAndSet(depth, depth - 1);
+         }
+      }
+   }
+
    /**
     * This method is synchronized because we want it to be atomic with the cursors being used
     */
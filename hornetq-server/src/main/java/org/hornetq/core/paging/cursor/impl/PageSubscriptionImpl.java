@@ -15,14 +15,13 @@ package org.hornetq.core.paging.cursor.impl;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.concurrent.Executor;
@@ -50,7 +49,7 @@ import org.hornetq.core.transaction.Transaction;
 import org.hornetq.core.transaction.TransactionOperationAbstract;
 import org.hornetq.core.transaction.TransactionPropertyIndexes;
 import org.hornetq.core.transaction.impl.TransactionImpl;
-import org.hornetq.utils.ConcurrentHashSet;
+import org.hornetq.utils.ConcurrentBitSet;
 import org.hornetq.utils.FutureLatch;
 import org.hornetq.utils.LinkedListIterator;
 
@@ -321,21 +320,16 @@ final class PageSubscriptionImpl implements PageSubscription
          }
 
          // it will delete the page ack records
-         for (PagePosition pos : infoPG.acks)
+         for (long recordID : infoPG.takeAckRecordIDs())
          {
-            if (pos.getRecordID() >= 0)
+            store.deleteCursorAcknowledgeTransactional(tx.getID(), recordID);
+            if (!persist)
             {
-               store.deleteCursorAcknowledgeTransactional(tx.getID(), pos.getRecordID());
-               if (!persist)
-               {
-                  // only need to set it once
-                  tx.setContainsPersistent();
-                  persist = true;
-               }
+               // only need to set it once
+               tx.setContainsPersistent();
+               persist = true;
             }
          }
-
-         infoPG.acks.clear();
       }
 
       tx.addOperation(new TransactionOperationAbstract()
@@ -657,13 +651,10 @@ final class PageSubscriptionImpl implements PageSubscription
          {
             for (PageCursorInfo cursor : consumedPages.values())
             {
-               for (PagePosition info : cursor.acks)
+               for (long recordID : cursor.takeAckRecordIDs())
                {
-                  if (info.getRecordID() >= 0)
-                  {
-                     isPersistent = true;
-                     store.deleteCursorAcknowledgeTransactional(tx, info.getRecordID());
-                  }
+                  isPersistent = true;
+                  store.deleteCursorAcknowledgeTransactional(tx, recordID);
                }
                PagePosition completeInfo = cursor.getCompleteInfo();
                if (completeInfo != null && completeInfo.getRecordID() >= 0)
@@ -799,21 +790,17 @@ final class PageSubscriptionImpl implements PageSubscription
             }
             info.setCompleteInfo(null);
          }
-         for (PagePosition deleteInfo : info.acks)
+         for (long recordID : info.takeAckRecordIDs())
          {
-            if (deleteInfo.getRecordID() >= 0)
+            try
             {
-               try
-               {
-                  store.deleteCursorAcknowledge(deleteInfo.getRecordID());
-               }
-               catch (Exception e)
-               {
-                  HornetQServerLogger.LOGGER.warn("Error while deleting page-complete-record", e);
-               }
+               store.deleteCursorAcknowledge(recordID);
+            }
+            catch (Exception e)
+            {
+               HornetQServerLogger.LOGGER.warn("Error while deleting page-complete-record", e);
             }
          }
-         info.acks.clear();
       }
    }
 
@@ -971,12 +958,17 @@ final class PageSubscriptionImpl implements PageSubscription
 
       private final long pageId;
 
-      // Confirmed ACKs on this page
-      private final Set<PagePosition> acks = Collections.synchronizedSet(new LinkedHashSet<PagePosition>());
+      // Confirmed ACKs on this page, by message number
+      private final ConcurrentBitSet acks = new ConcurrentBitSet();
+
+      // The records of the persistent ACKs, to be deleted with the page
+      private long[] ackRecordIDs;
+
+      private int ackRecordCount;
 
       private WeakReference<PageCache> cache;
 
-      private final Set<PagePosition> removedReferences = new ConcurrentHashSet<PagePosition>();
+      private final ConcurrentBitSet removedReferences = new ConcurrentBitSet();
 
       // The page was live at the time of the creation
       private final boolean wasLive;
@@ -1074,12 +1066,12 @@ final class PageSubscriptionImpl implements PageSubscription
 
       public boolean isRemoved(final PagePosition pos)
       {
-         return removedReferences.contains(pos);
+         return removedReferences.get(pos.getMessageNr());
       }
 
       public void remove(final PagePosition position)
       {
-         removedReferences.add(position);
+         removedReferences.set(position.getMessageNr());
       }
 
       public void addACK(final PagePosition posACK)
@@ -1116,8 +1108,48 @@ final class PageSubscriptionImpl implements PageSubscription
 
       private boolean internalAddACK(final PagePosition posACK)
       {
-         removedReferences.add(posACK);
-         return acks.add(posACK);
+         // Negative could mean a bookmark on the first element for the page (example -1), which only has its record
+         boolean added = posACK.getMessageNr() < 0 || acks.set(posACK.getMessageNr());
+
+         if (posACK.getMessageNr() >= 0)
+         {
+            removedReferences.set(posACK.getMessageNr());
+         }
+
+         if (added && posACK.getRecordID() >= 0)
+         {
+            addAckRecordID(posACK.getRecordID());
+         }
+
+         return added;
+      }
+
+      private synchronized void addAckRecordID(final long recordID)
+      {
+         if (ackRecordIDs == null)
+         {
+            ackRecordIDs = new long[16];
+         }
+         else if (ackRecordCount == ackRecordIDs.length)
+         {
+            ackRecordIDs = Arrays.copyOf(ackRecordIDs, ackRecordCount * 2);
+         }
+
+         ackRecordIDs[ackRecordCount++] = recordID;
+      }
+
+      /**
+       * @return the records of the persistent ACKs, which are forgotten as they are about to be deleted
+       */
+      public synchronized long[] takeAckRecordIDs()
+      {
+         long[] recordIDs = ackRecordIDs == null ? new long[0] : Arrays.copyOf(ackRecordIDs, ackRecordCount);
+
+         ackRecordIDs = null;
+
+         ackRecordCount = 0;
+
+         return recordIDs;
       }
 
       /**
@@ -1214,6 +1246,9 @@ final class PageSubscriptionImpl implements PageSubscription
        */
       private volatile PagedReference cachedNext;
 
+      // the page the pages after it were last prefetched for
+      private long prefetchedPage = -1;
+
       public CursorIterator()
       {
       }
@@ -1395,6 +1430,13 @@ final class PageSubscriptionImpl implements PageSubscription
             if (message != null)
             {
                lastOperation = lastPosition;
+
+               if (message.getPosition().getPageNr() != prefetchedPage)
+               {
+                  prefetchedPage = message.getPosition().getPageNr();
+
+                  cursorProvider.prefetch(prefetchedPage);
+               }
             }
 
             return message;
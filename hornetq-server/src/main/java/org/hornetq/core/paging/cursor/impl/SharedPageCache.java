@@ -0,0 +1,196 @@
+/*
+ * Copyright 2010 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.paging.cursor.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hornetq.core.paging.cursor.PageCache;
+import org.hornetq.utils.ConcurrentHashSet;
+
+/**
+ * The page caches of all the addresses, bounded by the bytes of their pages.
+ * <p>
+ * When the pages cached go over the budget, the least recently used ones that aren't live are
+ * evicted, whatever address they belong to. A page is charged the size of its file once it's no
+ * longer live; a live page can't be evicted, so it's kept out of the budget. Using a page only
+ * stamps its entry, so it doesn't contend on a lock; the stamps are scanned for the oldest when
+ * evicting, which only happens as a page is charged.
+ * <p>
+ * A provider charges its pages with its caches lock held, so that a page it drops meanwhile isn't
+ * charged, and evicts after releasing it, as evicting takes the caches lock of other providers.
+ */
+public final class SharedPageCache
+{
+   /** The bytes of the pages cached for all the addresses, an eighth of the max heap by default */
+   public static final String MAX_BYTES_PROPERTY = "org.hornetq.opt.pagecachebytes";
+
+   private static final SharedPageCache shared = new SharedPageCache(Long.getLong(SharedPageCache.MAX_BYTES_PROPERTY,
+                                                                                  Runtime.getRuntime().maxMemory() / 8));
+
+   private final ConcurrentHashSet<Entry> entries = new ConcurrentHashSet<Entry>();
+
+   private final AtomicLong bytes = new AtomicLong(0);
+
+   private final Object evictionLock = new Object();
+
+   private volatile long maxBytes;
+
+   /**
+    * A page cache of an address, as kept by its provider.
+    */
+   static final class Entry
+   {
+      final PageCursorProviderImpl provider;
+
+      final PageCache cache;
+
+      // read ahead of the cursors, and whether a cursor got to it since
+      volatile boolean prefetched;
+
+      volatile boolean used;
+
+      private volatile long lastUse = System.nanoTime();
+
+      private volatile long bytes;
+
+      Entry(final PageCursorProviderImpl provider, final PageCache cache)
+      {
+         this.provider = provider;
+         this.cache = cache;
+      }
+
+      void touch()
+      {
+         lastUse = System.nanoTime();
+      }
+
+      long getLastUse()
+      {
+         return lastUse;
+      }
+
+      @Override
+      public String toString()
+      {
+         return "Entry[cache=" + cache + ", bytes=" + bytes + "]";
+      }
+   }
+
+   public SharedPageCache(final long maxBytes)
+   {
+      this.maxBytes = maxBytes;
+   }
+
+   public static SharedPageCache getShared()
+   {
+      return SharedPageCache.shared;
+   }
+
+   public long getMaxBytes()
+   {
+      return maxBytes;
+   }
+
+   public void setMaxBytes(final long maxBytes)
+   {
+      this.maxBytes = maxBytes;
+
+      evict(null);
+   }
+
+   /**
+    * @return the bytes charged for the pages cached
+    */
+   public long getBytes()
+   {
+      return bytes.get();
+   }
+
+   public int getSize()
+   {
+      return entries.size();
+   }
+
+   /**
+    * Charges a page cached, once it's no longer live. {@link #evict(Entry)} is to be called next,
+    * without holding the caches lock.
+    */
+   void add(final Entry entry, final long pageBytes)
+   {
+      entry.bytes = pageBytes;
+
+      entry.touch();
+
+      if (entries.add(entry))
+      {
+         bytes.addAndGet(pageBytes);
+      }
+   }
+
+   boolean isCharged(final Entry entry)
+   {
+      return entries.contains(entry);
+   }
+
+   /**
+    * Releases what was charged for a page no longer cached.
+    */
+   void remove(final Entry entry)
+   {
+      if (entries.remove(entry))
+      {
+         bytes.addAndGet(-entry.bytes);
+      }
+   }
+
+   /**
+    * Evicts the least recently used pages that aren't live while the budget is exceeded.
+    *
+    * @param keep a page just charged, not to be evicted
+    */
+   void evict(final Entry keep)
+   {
+      if (bytes.get() <= maxBytes)
+      {
+         return;
+      }
+
+      synchronized (evictionLock)
+      {
+         while (bytes.get() > maxBytes)
+         {
+            Entry oldest = null;
+
+            for (Entry entry : entries)
+            {
+               if (entry != keep && !entry.cache.isLive() &&
+                   (oldest == null || entry.getLastUse() - oldest.getLastUse() < 0))
+               {
+                  oldest = entry;
+               }
+            }
+
+            if (oldest == null)
+            {
+               // what's left is live or was just read
+               return;
+            }
+
+            remove(oldest);
+
+            oldest.provider.evict(oldest);
+         }
+      }
+   }
+}
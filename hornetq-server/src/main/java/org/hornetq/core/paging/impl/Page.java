@@ -15,6 +15,7 @@ package org.hornetq.core.paging.impl;
 
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -23,6 +24,7 @@ import org.hornetq.api.core.HornetQBuffers;
 import org.hornetq.api.core.SimpleString;
 import org.hornetq.core.journal.SequentialFile;
 import org.hornetq.core.journal.SequentialFileFactory;
+import org.hornetq.core.journal.impl.NativeBufferPool;
 import org.hornetq.core.paging.PagedMessage;
 import org.hornetq.core.paging.cursor.LivePageCache;
 import org.hornetq.core.persistence.StorageManager;
@@ -48,6 +50,19 @@ public final class Page implements Comparable<Page>
 
    private static final byte END_BYTE = (byte)'}';
 
+   private static final NativeBufferPool bufferPool = NativeBufferPool.getShared();
+
+   /** The size of the window the page files are read through, 64KiB by default */
+   public static final String READ_BUFFER_PROPERTY = "org.hornetq.opt.pagereadbuffer";
+
+   private static volatile int readBufferSize = Math.max(Page.SIZE_RECORD,
+                                                         Integer.getInteger(Page.READ_BUFFER_PROPERTY, 64 * 1024));
+
+   /** The bytes of messages batched before they're written to the page file, 128KiB by default and 0 to write each one */
+   public static final String WRITE_BUFFER_PROPERTY = "org.hornetq.opt.pagewritebuffer";
+
+   private static volatile int writeBufferSize = Integer.getInteger(Page.WRITE_BUFFER_PROPERTY, 128 * 1024);
+
    // Attributes ----------------------------------------------------
 
    private final int pageId;
@@ -65,6 +80,9 @@ public final class Page implements Comparable<Page>
     */
    private volatile LivePageCache pageCache;
 
+   // the records written but not on the file yet, borrowed on the first write
+   private ByteBuffer writeBuffer;
+
    private final AtomicInteger size = new AtomicInteger(0);
 
    private final StorageManager storageManager;
@@ -89,6 +107,32 @@ public final class Page implements Comparable<Page>
       return pageId;
    }
 
+   public static int getReadBufferSize()
+   {
+      return Page.readBufferSize;
+   }
+
+   /**
+    * @param size the size of the window the page files are read through, grown for a larger message
+    */
+   public static void setReadBufferSize(final int size)
+   {
+      Page.readBufferSize = Math.max(Page.SIZE_RECORD, size);
+   }
+
+   public static int getWriteBufferSize()
+   {
+      return Page.writeBufferSize;
+   }
+
+   /**
+    * @param size the bytes of messages batched before being written, for the pages written after it
+    */
+   public static void setWriteBufferSize(final int size)
+   {
+      Page.writeBufferSize = size;
+   }
+
    public void setLiveCache(LivePageCache pageCache)
    {
       this.pageCache = pageCache;
@@ -108,87 +152,281 @@ public final class Page implements Comparable<Page>
 
       ArrayList<PagedMessage> messages = new ArrayList<PagedMessage>();
 
+      flushWrites();
+
       size.set((int)file.size());
-      // Using direct buffer, as described on https://jira.jboss.org/browse/HORNETQ-467
-      ByteBuffer directBuffer = storage.allocateDirectBuffer((int)file.size());
+
+      readRecords(storage, 0, Integer.MAX_VALUE, messages, null);
+
+      numberOfMessages.set(messages.size());
+
+      return messages;
+   }
+
+   /**
+    * Locates the messages on the page file without decoding them, opening the file just for it if it
+    * isn't open.
+    *
+    * @return the position of each message on the file
+    */
+   public synchronized int[] readIndex(StorageManager storage) throws Exception
+   {
+      if (isDebug)
+      {
+         HornetQServerLogger.LOGGER.debug("indexing page " + this.pageId + " on address = " + storeName);
+      }
+
+      boolean opened = openForRead();
 
       try
       {
+         flushWrites();
+
+         size.set((int)file.size());
 
-         file.position(0);
-         file.read(directBuffer);
+         int[][] offsets = new int[][]{new int[64]};
 
-         directBuffer.rewind();
+         int count = readRecords(storage, 0, Integer.MAX_VALUE, null, offsets);
 
-         HornetQBuffer fileBuffer = HornetQBuffers.wrappedBuffer(directBuffer);
-         fileBuffer.writerIndex(fileBuffer.capacity());
+         numberOfMessages.set(count);
 
-         while (fileBuffer.readable())
+         return Arrays.copyOf(offsets[0], count);
+      }
+      finally
+      {
+         if (opened)
          {
-            final int position = fileBuffer.readerIndex();
+            file.close();
+         }
+      }
+   }
+
+   /**
+    * Decodes the messages from the one given on, as many as fit on the read buffer and at least one,
+    * opening the file just for it if it isn't open.
+    *
+    * @param index the positions returned by {@link #readIndex(StorageManager)}
+    * @param first the number of the first message to decode
+    */
+   public synchronized List<PagedMessage> read(StorageManager storage, final int[] index, final int first) throws Exception
+   {
+      boolean opened = openForRead();
+
+      try
+      {
+         flushWrites();
 
-            byte byteRead = fileBuffer.readByte();
+         long fileSize = file.size();
 
-            if (byteRead == Page.START_BYTE)
+         int last = first + 1;
+
+         // the messages ending within the read buffer
+         while (last < index.length &&
+                (last + 1 < index.length ? index[last + 1] : fileSize) - index[first] <= Page.readBufferSize)
+         {
+            last++;
+         }
+
+         ArrayList<PagedMessage> messages = new ArrayList<PagedMessage>(last - first);
+
+         readRecords(storage, index[first], last - first, messages, null);
+
+         return messages;
+      }
+      finally
+      {
+         if (opened)
+         {
+            file.close();
+         }
+      }
+   }
+
+   /**
+    * Streams the records from the position given through a buffer of the read buffer size, so the
+    * whole page is never held in memory. The buffer is only grown to decode a larger record, and
+    * when only locating the records the larger ones are skipped over.
+    *
+    * @param messages where the decoded messages are added, or null to only locate them
+    * @param offsets where the position of each record is added on offsets[0], grown as needed, or
+    *           null
+    * @return the number of records read
+    */
+   private int readRecords(final StorageManager storage,
+                           final long start,
+                           final int maxRecords,
+                           final List<PagedMessage> messages,
+                           final int[][] offsets) throws Exception
+   {
+      final long fileSize = file.size();
+
+      long position = start;
+
+      int records = 0;
+
+      // Using direct buffer, as described on https://jira.jboss.org/browse/HORNETQ-467
+      ByteBuffer directBuffer = storage.allocateDirectBuffer((int)Math.max(Page.SIZE_RECORD,
+                                                                           Math.min(Page.readBufferSize,
+                                                                                    fileSize - start)));
+
+      try
+      {
+         while (position < fileSize && records < maxRecords)
+         {
+            directBuffer.clear();
+            directBuffer.limit((int)Math.min(directBuffer.capacity(), fileSize - position));
+
+            file.position(position);
+            file.read(directBuffer);
+
+            HornetQBuffer fileBuffer = HornetQBuffers.wrappedBuffer(directBuffer);
+            fileBuffer.writerIndex(directBuffer.limit());
+
+            // where the next window starts
+            long nextPosition = position;
+
+            boolean grown = false;
+
+            while (fileBuffer.readable() && records < maxRecords)
             {
-               if (fileBuffer.readerIndex() + DataConstants.SIZE_INT < fileBuffer.capacity())
+               final int recordStart = fileBuffer.readerIndex();
+
+               final long recordPosition = position + recordStart;
+
+               if (fileBuffer.readByte() != Page.START_BYTE || recordPosition + 1 + DataConstants.SIZE_INT >= fileSize)
+               {
+                  markFileAsSuspect(file.getFileName(), (int)recordPosition, records);
+                  return records;
+               }
+
+               if (recordStart + 1 + DataConstants.SIZE_INT > fileBuffer.writerIndex())
+               {
+                  // the header continues on the next window
+                  break;
+               }
+
+               int messageSize = fileBuffer.readInt();
+
+               int recordSize = messageSize + Page.SIZE_RECORD;
+
+               if (messageSize < 0 || recordPosition + recordSize > fileSize)
                {
-                  int messageSize = fileBuffer.readInt();
-                  int oldPos = fileBuffer.readerIndex();
-                  if (fileBuffer.readerIndex() + messageSize < fileBuffer.capacity() &&
-                           fileBuffer.getByte(oldPos + messageSize) == Page.END_BYTE)
+                  markFileAsSuspect(file.getFileName(), (int)recordPosition, records);
+                  return records;
+               }
+
+               boolean whole = recordStart + recordSize <= fileBuffer.writerIndex();
+
+               if (!whole && messages != null)
+               {
+                  // the record continues on the next window, which has to be larger if the record starts it
+                  if (recordStart == 0)
                   {
-                     PagedMessage msg = new PagedMessageImpl();
-                     msg.decode(fileBuffer);
-                     byte b = fileBuffer.readByte();
-                     if (b != Page.END_BYTE)
-                     {
-                        // Sanity Check: This would only happen if there is a bug on decode or any internal code, as
-                        // this
-                        // constraint was already checked
-                        throw new IllegalStateException("Internal error, it wasn't possible to locate END_BYTE " + b);
-                     }
-                     msg.initMessage(storage);
-                     if (isTrace)
-                     {
-                        HornetQServerLogger.LOGGER.trace("Reading message " + msg + " on pageId=" + this.pageId + " for address=" + storeName);
-                     }
-                     messages.add(msg);
+                     storage.freeDirectBuffer(directBuffer);
+                     directBuffer = null;
+                     directBuffer = storage.allocateDirectBuffer(recordSize);
+                     grown = true;
                   }
-                  else
+
+                  break;
+               }
+
+               byte endByte = whole ? fileBuffer.getByte(recordStart + recordSize - 1)
+                                   : readByte(recordPosition + recordSize - 1);
+
+               if (endByte != Page.END_BYTE)
+               {
+                  markFileAsSuspect(file.getFileName(), (int)recordPosition, records);
+                  return records;
+               }
+
+               if (offsets != null)
+               {
+                  if (records == offsets[0].length)
+                  {
+                     offsets[0] = Arrays.copyOf(offsets[0], records * 2);
+                  }
+
+                  offsets[0][records] = (int)recordPosition;
+               }
+
+               records++;
+
+               nextPosition = recordPosition + recordSize;
+
+               if (!whole)
+               {
+                  // only locating, the rest of the record is skipped over
+                  break;
+               }
+
+               if (messages != null)
+               {
+                  PagedMessage msg = new PagedMessageImpl();
+                  msg.decode(fileBuffer);
+                  byte b = fileBuffer.readByte();
+                  if (b != Page.END_BYTE)
+                  {
+                     // Sanity Check: This would only happen if there is a bug on decode or any internal code, as
+                     // this
+                     // constraint was already checked
+                     throw new IllegalStateException("Internal error, it wasn't possible to locate END_BYTE " + b);
+                  }
+                  msg.initMessage(storage);
+                  if (isTrace)
                   {
-                     markFileAsSuspect(file.getFileName(), position, messages.size());
-                     break;
+                     HornetQServerLogger.LOGGER.trace("Reading message " + msg + " on pageId=" + this.pageId + " for address=" + storeName);
                   }
+                  messages.add(msg);
+               }
+               else
+               {
+                  fileBuffer.readerIndex(recordStart + recordSize);
                }
             }
-            else
+
+            if (nextPosition == position && !grown)
             {
-               markFileAsSuspect(file.getFileName(), position, messages.size());
-               break;
+               // Sanity check: a window always starts with a whole header, and a record is only cut when grown
+               throw new IllegalStateException("Internal error, no record read from page " + pageId + " at " + position);
             }
+
+            position = nextPosition;
          }
       }
       finally
       {
-         storage.freeDirectBuffer(directBuffer);
+         if (directBuffer != null)
+         {
+            storage.freeDirectBuffer(directBuffer);
+         }
       }
 
-      numberOfMessages.set(messages.size());
-
-      return messages;
+      return records;
    }
 
-   public synchronized void write(final PagedMessage message) throws Exception
+   private byte readByte(final long position) throws Exception
    {
-      if (!file.isOpen())
+      ByteBuffer buffer = Page.bufferPool.borrow(1);
+
+      try
       {
+         file.position(position);
+         file.read(buffer);
 
-         return;
+         return buffer.get(0);
       }
+      finally
+      {
+         Page.bufferPool.release(buffer);
+      }
+   }
 
-      ByteBuffer buffer = fileFactory.newBuffer(message.getEncodeSize() + Page.SIZE_RECORD);
-
+   /**
+    * Encodes a message as a record at the position of the buffer, moving it past the record.
+    */
+   private static void encodeRecord(final PagedMessage message, final ByteBuffer buffer)
+   {
       HornetQBuffer wrap = HornetQBuffers.wrappedBuffer(buffer);
       wrap.clear();
 
@@ -200,9 +438,85 @@ public final class Page implements Comparable<Page>
       wrap.setInt(1, endIndex - startIndex); // The encoded length
       wrap.writeByte(Page.END_BYTE);
 
-      buffer.rewind();
+      buffer.position(buffer.position() + wrap.writerIndex());
+   }
+
+   private void flushWrites() throws Exception
+   {
+      if (writeBuffer == null || writeBuffer.position() == 0)
+      {
+         return;
+      }
+
+      writeBuffer.flip();
+
+      file.writeDirect(writeBuffer, false);
+
+      writeBuffer.clear();
+   }
+
+   /**
+    * @return whether the file was opened for the read, and has to be closed after it
+    */
+   private boolean openForRead() throws Exception
+   {
+      if (file.isOpen())
+      {
+         return false;
+      }
+
+      file.open();
+
+      return true;
+   }
+
+   /**
+    * Writes a message to the page. The records are batched on a buffer of the write buffer size,
+    * written to the file as it fills up, on {@link #flush()}, {@link #sync()} or {@link #close()};
+    * the messages are on the live cache as soon as they're written.
+    */
+   public synchronized void write(final PagedMessage message) throws Exception
+   {
+      if (!file.isOpen())
+      {
+
+         return;
+      }
+
+      int recordSize = message.getEncodeSize() + Page.SIZE_RECORD;
+
+      if (writeBuffer != null && writeBuffer.remaining() < recordSize)
+      {
+         flushWrites();
+      }
+
+      if (writeBuffer == null && recordSize <= Page.writeBufferSize)
+      {
+         writeBuffer = Page.bufferPool.borrow(Page.writeBufferSize);
+      }
+
+      if (writeBuffer != null && recordSize <= writeBuffer.remaining())
+      {
+         encodeRecord(message, writeBuffer);
+      }
+      else
+      {
+         // The page files are written synchronously, so the buffer can go back to the pool right after the write
+         ByteBuffer buffer = Page.bufferPool.borrow(recordSize);
+
+         try
+         {
+            encodeRecord(message, buffer);
+
+            buffer.flip();
 
-      file.writeDirect(buffer, false);
+            file.writeDirect(buffer, false);
+         }
+         finally
+         {
+            Page.bufferPool.release(buffer);
+         }
+      }
 
       if (pageCache != null)
       {
@@ -210,13 +524,27 @@ public final class Page implements Comparable<Page>
       }
 
       numberOfMessages.incrementAndGet();
-      size.addAndGet(buffer.limit());
+      size.addAndGet(recordSize);
 
       storageManager.pageWrite(message, pageId);
    }
 
+   /**
+    * Writes the batched messages to the file, without syncing it.
+    */
+   public synchronized void flush() throws Exception
+   {
+      if (file.isOpen())
+      {
+         flushWrites();
+      }
+   }
+
    public void sync() throws Exception
    {
+      // the writers carry on batching while the file syncs, every message batched before is synced
+      flush();
+
       file.sync();
    }
 
@@ -230,6 +558,18 @@ public final class Page implements Comparable<Page>
       file.position(0);
    }
 
+   /**
+    * Closes the file of a page opened to be read, without the notifications {@link #close()} gives
+    * for a page written.
+    */
+   public synchronized void closeFile() throws Exception
+   {
+      if (file.isOpen())
+      {
+         file.close();
+      }
+   }
+
    public synchronized void close() throws Exception
    {
       if (storageManager != null)
@@ -242,6 +582,15 @@ public final class Page implements Comparable<Page>
          // leave it to the soft cache to decide when to release it now
          pageCache = null;
       }
+      if (writeBuffer != null)
+      {
+         if (file.isOpen())
+         {
+            flushWrites();
+         }
+         Page.bufferPool.release(writeBuffer);
+         writeBuffer = null;
+      }
       file.close();
    }
 
@@ -51,6 +51,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -82,6 +83,21 @@ public class PagingStoreImpl implements PagingStore
    // Used to schedule sync threads
    private final PageSyncTimer syncTimer;
 
+   // Used to write the messages batched on the current page after the sync timeout, as the journal's TimedBuffer
+   private final ScheduledExecutorService scheduledExecutor;
+
+   private final long syncTimeout;
+
+   private final AtomicBoolean pendingFlush = new AtomicBoolean(false);
+
+   private final Runnable flushRunnable = new Runnable()
+   {
+      public void run()
+      {
+         flushCurrentPage();
+      }
+   };
+
    private long maxSize;
 
    private long pageSize;
@@ -162,6 +178,10 @@ public class PagingStoreImpl implements PagingStore
 
       this.syncNonTransactional = syncNonTransactional;
 
+      this.scheduledExecutor = scheduledExecutor;
+
+      this.syncTimeout = syncTimeout;
+
       if (scheduledExecutor != null)
       {
          this.syncTimer = new PageSyncTimer(this, scheduledExecutor, syncTimeout);
@@ -897,6 +917,8 @@ public class PagingStoreImpl implements PagingStore
 
             currentPage.write(pagedMessage);
 
+            scheduleFlush();
+
             if (isTrace)
             {
                HornetQServerLogger.LOGGER.trace("Paging message " + pagedMessage + " on pageStore " + this.getStoreName() +
@@ -943,6 +965,45 @@ public class PagingStoreImpl implements PagingStore
       getCursorProvider().resumeCleanup();
    }
 
+   /**
+    * The messages are batched on the current page until it's synced or closed; this bounds how long
+    * they stay off the file when neither happens. Called with the write lock held.
+    */
+   private void scheduleFlush() throws Exception
+   {
+      if (scheduledExecutor == null)
+      {
+         currentPage.flush();
+      }
+      else if (pendingFlush.compareAndSet(false, true))
+      {
+         scheduledExecutor.schedule(flushRunnable, syncTimeout, TimeUnit.NANOSECONDS);
+      }
+   }
+
+   private void flushCurrentPage()
+   {
+      pendingFlush.set(false);
+
+      lock.readLock().lock();
+
+      try
+      {
+         if (currentPage != null)
+         {
+            currentPage.flush();
+         }
+      }
+      catch (Exception e)
+      {
+         HornetQServerLogger.LOGGER.warn("Error while writing the messages of page " + currentPageId, e);
+      }
+      finally
+      {
+         lock.readLock().unlock();
+      }
+   }
+
    private long[] routeQueues(Transaction tx, RouteContextList ctx) throws Exception
    {
       List<org.hornetq.core.server.Queue> durableQueues = ctx.getDurableQueues();
@@ -40,4 +40,9 @@ public interface QueueBindingInfo
 
    SimpleString getFilterString();
 
+   /**
+    * @return the name of the sharded queue this queue is a shard of, null for other queues
+    */
+   SimpleString getRoutingName();
+
 }
@@ -49,6 +49,7 @@ import org.hornetq.core.server.group.impl.GroupBinding;
 import org.hornetq.core.server.impl.HornetQServerImpl;
 import org.hornetq.core.transaction.ResourceManager;
 import org.hornetq.core.transaction.Transaction;
+import org.hornetq.utils.DurationHistogram;
 import org.hornetq.utils.IDGenerator;
 
 /**
@@ -309,6 +310,12 @@ public interface StorageManager extends HornetQComponent
     */
    Journal getMessageJournal();
 
+   /**
+    * @return the durations of the compacting passes on the message journal, or {@code null} if
+    *         there is no journal
+    */
+   DurationHistogram getMessageJournalCompactTimes();
+
    /**
     * @see JournalStorageManager#startReplication(ReplicationManager, PagingManager, String,
     *      boolean)
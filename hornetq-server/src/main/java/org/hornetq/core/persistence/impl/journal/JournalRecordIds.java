@@ -66,4 +66,10 @@ public final class JournalRecordIds
    public static final byte PAGE_CURSOR_COUNTER_INC = 41;
 
    public static final byte PAGE_CURSOR_COMPLETE = 42;
+
+   /**
+    * Written by a {@link StripedJournal} once a transaction is prepared on all its stripes, and
+    * deleted after it's committed on all of them.
+    */
+   public static final byte STRIPED_COMMIT_RECORD = 43;
 }
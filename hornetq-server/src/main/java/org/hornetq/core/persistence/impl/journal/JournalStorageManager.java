@@ -21,8 +21,11 @@ import static org.hornetq.core.persistence.impl.journal.JournalRecordIds.PAGE_CU
 import static org.hornetq.core.persistence.impl.journal.JournalRecordIds.PAGE_CURSOR_COUNTER_VALUE;
 import static org.hornetq.core.persistence.impl.journal.JournalRecordIds.SET_SCHEDULED_DELIVERY_TIME;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
 import java.nio.ByteBuffer;
 import java.security.AccessController;
 import java.security.DigestInputStream;
@@ -73,7 +76,9 @@ import org.hornetq.core.journal.TransactionFailureCallback;
 import org.hornetq.core.journal.impl.AIOSequentialFileFactory;
 import org.hornetq.core.journal.impl.JournalFile;
 import org.hornetq.core.journal.impl.JournalImpl;
+import org.hornetq.core.journal.impl.MappedSequentialFileFactory;
 import org.hornetq.core.journal.impl.NIOSequentialFileFactory;
+import org.hornetq.core.journal.impl.NativeBufferPool;
 import org.hornetq.core.message.impl.MessageInternal;
 import org.hornetq.core.paging.PageTransactionInfo;
 import org.hornetq.core.paging.PagedMessage;
@@ -94,6 +99,7 @@ import org.hornetq.core.persistence.config.PersistedRoles;
 import org.hornetq.core.postoffice.Binding;
 import org.hornetq.core.postoffice.DuplicateIDCache;
 import org.hornetq.core.postoffice.PostOffice;
+import org.hornetq.core.postoffice.impl.LocalQueueBinding;
 import org.hornetq.core.protocol.core.impl.wireformat.ReplicationLiveIsStoppingMessage.LiveStopping;
 import org.hornetq.core.replication.ReplicatedJournal;
 import org.hornetq.core.replication.ReplicationEndpoint;
@@ -117,6 +123,7 @@ import org.hornetq.core.transaction.TransactionPropertyIndexes;
 import org.hornetq.core.transaction.impl.TransactionImpl;
 import org.hornetq.utils.Base64;
 import org.hornetq.utils.DataConstants;
+import org.hornetq.utils.DurationHistogram;
 import org.hornetq.utils.ExecutorFactory;
 import org.hornetq.utils.HornetQThreadFactory;
 import org.hornetq.utils.XidCodecSupport;
@@ -141,6 +148,23 @@ public class JournalStorageManager implements StorageManager
 {
    private static final long CHECKPOINT_BATCH_SIZE = Integer.MAX_VALUE;
 
+   /**
+    * The number of journals the messages are spread over, see {@link StripedJournal}. A striped
+    * journal can't be replicated: a live server with a replicating HA policy (no shared store)
+    * refuses to start with more than one stripe, and a replicated backup ignores them. The count
+    * is kept in {@link #JOURNAL_STRIPES_FILE}; it may be raised between restarts but not lowered.
+    */
+   public static final String JOURNAL_STRIPES_PROPERTY = "org.hornetq.opt.journalstripes";
+
+   /** The file of the journal directory keeping the number of stripes the messages were written with */
+   public static final String JOURNAL_STRIPES_FILE = "hornetq-journal-stripes";
+
+   /**
+    * The comma separated directories of the stripes after the first one, which is on the journal
+    * directory. The stripes without a directory are on the journal directory too.
+    */
+   public static final String JOURNAL_STRIPE_DIRECTORIES_PROPERTY = "org.hornetq.opt.journalstripedirectories";
+
    private final Semaphore pageMaxConcurrentIO;
 
    private final BatchingIDGenerator idGenerator;
@@ -175,7 +199,7 @@ public class JournalStorageManager implements StorageManager
 
    private Journal bindingsJournal;
 
-   private final Journal originalMessageJournal;
+   private final JournalImpl originalMessageJournal;
 
    private final Journal originalBindingsJournal;
 
@@ -204,6 +228,8 @@ public class JournalStorageManager implements StorageManager
 
    private final String journalDir;
 
+   private final List<String> stripeDirs = new ArrayList<String>();
+
    private final String largeMessagesDirectory;
 
    private boolean journalLoaded = false;
@@ -229,7 +255,8 @@ public class JournalStorageManager implements StorageManager
 
       executor = executorFactory.getExecutor();
 
-      if (config.getJournalType() != JournalType.NIO && config.getJournalType() != JournalType.ASYNCIO)
+      if (config.getJournalType() != JournalType.NIO && config.getJournalType() != JournalType.ASYNCIO &&
+         config.getJournalType() != JournalType.MAPPED)
       {
          throw HornetQMessageBundle.BUNDLE.invalidJournal();
       }
@@ -272,43 +299,60 @@ public class JournalStorageManager implements StorageManager
       if (config.getJournalType() == JournalType.ASYNCIO)
       {
          HornetQServerLogger.LOGGER.journalUseAIO();
-
-         journalFF = new AIOSequentialFileFactory(journalDir,
-            config.getJournalBufferSize_AIO(),
-            config.getJournalBufferTimeout_AIO(),
-            config.isLogJournalWriteRate(),
-            criticalErrorListener);
       }
       else if (config.getJournalType() == JournalType.NIO)
       {
          HornetQServerLogger.LOGGER.journalUseNIO();
-         journalFF = new NIOSequentialFileFactory(journalDir,
-            true,
-            config.getJournalBufferSize_NIO(),
-            config.getJournalBufferTimeout_NIO(),
-            config.isLogJournalWriteRate(),
-            criticalErrorListener);
       }
       else
       {
-         throw HornetQMessageBundle.BUNDLE.invalidJournalType2(config.getJournalType());
+         HornetQServerLogger.LOGGER.journalUseMapped();
       }
 
+      journalFF = newJournalFactory(config, journalDir, criticalErrorListener);
+
       idGenerator = new BatchingIDGenerator(0, JournalStorageManager.CHECKPOINT_BATCH_SIZE, this);
 
-      Journal localMessage = new JournalImpl(config.getJournalFileSize(),
-         config.getJournalMinFiles(),
-         config.getJournalCompactMinFiles(),
-         config.getJournalCompactPercentage(),
-         journalFF,
-         "hornetq-data",
-         "hq",
-         config.getJournalType() == JournalType.ASYNCIO ? config.getJournalMaxIO_AIO()
-            : config.getJournalMaxIO_NIO());
+      JournalImpl localMessage = newMessageJournal(config, journalFF, "hq");
 
       messageJournal = localMessage;
       originalMessageJournal = localMessage;
 
+      int stripes = Integer.getInteger(JournalStorageManager.JOURNAL_STRIPES_PROPERTY, 1);
+
+      if (stripes > 1 && config.isBackup() && !config.isSharedStore())
+      {
+         HornetQServerLogger.LOGGER.journalStripesReplicated();
+      }
+      else if (stripes > 1 && !config.isSharedStore())
+      {
+         throw HornetQMessageBundle.BUNDLE.journalStripesReplicating(JournalStorageManager.JOURNAL_STRIPES_PROPERTY);
+      }
+      else if (stripes > 1)
+      {
+         HornetQServerLogger.LOGGER.journalUseStripes(stripes);
+
+         String[] dirs = System.getProperty(JournalStorageManager.JOURNAL_STRIPE_DIRECTORIES_PROPERTY, "").split(",");
+
+         Journal[] journals = new Journal[stripes];
+
+         journals[0] = localMessage;
+
+         for (int i = 1; i < stripes; i++)
+         {
+            String dir = i <= dirs.length && dirs[i - 1].trim().length() > 0 ? dirs[i - 1].trim() : journalDir;
+
+            stripeDirs.add(dir);
+
+            // the files are found by extension, so a distinct one lets stripes share a directory
+            journals[i] = newMessageJournal(config,
+                                            newJournalFactory(config, dir, criticalErrorListener),
+                                            "hq" + i);
+         }
+
+         messageJournal = new StripedJournal(journals);
+      }
+
       largeMessagesDirectory = config.getLargeMessagesDirectory();
 
       largeMessagesFactory = new NIOSequentialFileFactory(largeMessagesDirectory, false, criticalErrorListener);
@@ -325,6 +369,57 @@ public class JournalStorageManager implements StorageManager
       }
    }
 
+   private static SequentialFileFactory newJournalFactory(final Configuration config,
+                                                          final String dir,
+                                                          final IOCriticalErrorListener criticalErrorListener)
+   {
+      if (config.getJournalType() == JournalType.ASYNCIO)
+      {
+         return new AIOSequentialFileFactory(dir,
+            config.getJournalBufferSize_AIO(),
+            config.getJournalBufferTimeout_AIO(),
+            config.isLogJournalWriteRate(),
+            criticalErrorListener);
+      }
+      else if (config.getJournalType() == JournalType.NIO)
+      {
+         return new NIOSequentialFileFactory(dir,
+            true,
+            config.getJournalBufferSize_NIO(),
+            config.getJournalBufferTimeout_NIO(),
+            config.isLogJournalWriteRate(),
+            criticalErrorListener);
+      }
+      else if (config.getJournalType() == JournalType.MAPPED)
+      {
+         return new MappedSequentialFileFactory(dir,
+            true,
+            config.getJournalBufferSize_NIO(),
+            config.getJournalBufferTimeout_NIO(),
+            config.isLogJournalWriteRate(),
+            criticalErrorListener);
+      }
+      else
+      {
+         throw HornetQMessageBundle.BUNDLE.invalidJournalType2(config.getJournalType());
+      }
+   }
+
+   private static JournalImpl newMessageJournal(final Configuration config,
+                                                final SequentialFileFactory factory,
+                                                final String fileExtension)
+   {
+      return new JournalImpl(config.getJournalFileSize(),
+         config.getJournalMinFiles(),
+         config.getJournalCompactMinFiles(),
+         config.getJournalCompactPercentage(),
+         factory,
+         "hornetq-data",
+         fileExtension,
+         config.getJournalType() == JournalType.ASYNCIO ? config.getJournalMaxIO_AIO()
+            : config.getJournalMaxIO_NIO());
+   }
+
    public void clearContext()
    {
       OperationContextImpl.clearContext();
@@ -784,7 +879,21 @@ public class JournalStorageManager implements StorageManager
       {
          file.position(file.size());
 
-         file.writeDirect(ByteBuffer.wrap(bytes), false);
+         // the large message files are written synchronously, the buffer goes back to the pool right after
+         ByteBuffer buffer = NativeBufferPool.getShared().borrow(bytes.length);
+
+         try
+         {
+            buffer.put(bytes);
+
+            buffer.rewind();
+
+            file.writeDirect(buffer, false);
+         }
+         finally
+         {
+            NativeBufferPool.getShared().release(buffer);
+         }
 
          if (isReplicated())
          {
@@ -2055,9 +2164,18 @@ public class JournalStorageManager implements StorageManager
 
       SimpleString filterString = filter == null ? null : filter.getFilterString();
 
+      // only the shards of a sharded queue store their routing name
+      SimpleString routingName = null;
+
+      if (binding instanceof LocalQueueBinding && ((LocalQueueBinding)binding).getShards() != null)
+      {
+         routingName = binding.getRoutingName();
+      }
+
       PersistentQueueBindingEncoding bindingEncoding = new PersistentQueueBindingEncoding(queue.getName(),
          binding.getAddress(),
-         filterString);
+         filterString,
+         routingName);
 
       readLock();
       try
@@ -2241,6 +2359,13 @@ public class JournalStorageManager implements StorageManager
 
       checkAndCreateDir(journalDir, createJournalDir);
 
+      for (String stripeDir : stripeDirs)
+      {
+         checkAndCreateDir(stripeDir, createJournalDir);
+      }
+
+      checkJournalStripes();
+
       checkAndCreateDir(largeMessagesDirectory, createJournalDir);
 
       cleanupIncompleteFiles();
@@ -2387,6 +2512,27 @@ public class JournalStorageManager implements StorageManager
       return messageJournal;
    }
 
+   public DurationHistogram getMessageJournalCompactTimes()
+   {
+      DurationHistogram compactTimes = originalMessageJournal.getCompactTimes();
+
+      if (messageJournal instanceof StripedJournal)
+      {
+         StripedJournal striped = (StripedJournal)messageJournal;
+
+         DurationHistogram stripesTimes = new DurationHistogram(compactTimes.getNumberOfBuckets());
+
+         for (int i = 0; i < striped.getNumberOfStripes(); i++)
+         {
+            stripesTimes.add(((JournalImpl)striped.getStripe(i)).getCompactTimes());
+         }
+
+         return stripesTimes;
+      }
+
+      return compactTimes;
+   }
+
    public Journal getBindingsJournal()
    {
       return bindingsJournal;
@@ -2501,6 +2647,63 @@ public class JournalStorageManager implements StorageManager
       }
    }
 
+   /**
+    * Fails if the messages were written with more stripes than configured, as the records of the
+    * missing stripes would not be loaded, and keeps the number of stripes when it was raised.
+    */
+   private void checkJournalStripes() throws Exception
+   {
+      int stripes = messageJournal instanceof StripedJournal ? ((StripedJournal)messageJournal).getNumberOfStripes()
+                                                              : 1;
+
+      File file = new File(journalDir, JournalStorageManager.JOURNAL_STRIPES_FILE);
+
+      int persisted = 1;
+
+      if (file.exists())
+      {
+         BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+         try
+         {
+            persisted = Integer.parseInt(reader.readLine().trim());
+         }
+         finally
+         {
+            reader.close();
+         }
+      }
+
+      if (stripes < persisted)
+      {
+         throw HornetQMessageBundle.BUNDLE.journalStripesLowered(persisted, stripes);
+      }
+
+      if (stripes > persisted)
+      {
+         File tmp = new File(journalDir, JournalStorageManager.JOURNAL_STRIPES_FILE + ".tmp");
+
+         FileOutputStream out = new FileOutputStream(tmp);
+         try
+         {
+            out.write((Integer.toString(stripes) + "\n").getBytes("UTF-8"));
+            out.getFD().sync();
+         }
+         finally
+         {
+            out.close();
+         }
+
+         if (!tmp.renameTo(file))
+         {
+            // renameTo doesn't replace an existing file on every platform
+            if (!file.delete() || !tmp.renameTo(file))
+            {
+               throw new IllegalStateException("Failed to write " + file);
+            }
+         }
+      }
+   }
+
    /**
     * @param messages
     * @param buff
@@ -3032,6 +3235,9 @@ public class JournalStorageManager implements StorageManager
 
       public SimpleString filterString;
 
+      /** the name of the sharded queue this queue is a shard of, null for other queues */
+      public SimpleString routingName;
+
       public PersistentQueueBindingEncoding()
       {
       }
@@ -3046,16 +3252,27 @@ public class JournalStorageManager implements StorageManager
             address +
             ", filterString=" +
             filterString +
+            ", routingName=" +
+            routingName +
             "]";
       }
 
       public PersistentQueueBindingEncoding(final SimpleString name,
                                             final SimpleString address,
                                             final SimpleString filterString)
+      {
+         this(name, address, filterString, null);
+      }
+
+      public PersistentQueueBindingEncoding(final SimpleString name,
+                                            final SimpleString address,
+                                            final SimpleString filterString,
+                                            final SimpleString routingName)
       {
          this.name = name;
          this.address = address;
          this.filterString = filterString;
+         this.routingName = routingName;
       }
 
       public long getId()
@@ -3088,11 +3305,22 @@ public class JournalStorageManager implements StorageManager
          return name;
       }
 
+      public SimpleString getRoutingName()
+      {
+         return routingName;
+      }
+
       public void decode(final HornetQBuffer buffer)
       {
          name = buffer.readSimpleString();
          address = buffer.readSimpleString();
          filterString = buffer.readNullableSimpleString();
+
+         // the records written before sharded queues end here
+         if (buffer.readable())
+         {
+            routingName = buffer.readNullableSimpleString();
+         }
       }
 
       public void encode(final HornetQBuffer buffer)
@@ -3100,12 +3328,18 @@ public class JournalStorageManager implements StorageManager
          buffer.writeSimpleString(name);
          buffer.writeSimpleString(address);
          buffer.writeNullableSimpleString(filterString);
+
+         if (routingName != null)
+         {
+            buffer.writeNullableSimpleString(routingName);
+         }
       }
 
       public int getEncodeSize()
       {
          return SimpleString.sizeofString(name) + SimpleString.sizeofString(address) +
-            SimpleString.sizeofNullableString(filterString);
+            SimpleString.sizeofNullableString(filterString) +
+            (routingName != null ? SimpleString.sizeofNullableString(routingName) : 0);
       }
    }
 
@@ -0,0 +1,790 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.persistence.impl.journal;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hornetq.api.core.Pair;
+import org.hornetq.core.journal.EncodingSupport;
+import org.hornetq.core.journal.IOCompletion;
+import org.hornetq.core.journal.Journal;
+import org.hornetq.core.journal.JournalLoadInformation;
+import org.hornetq.core.journal.LoaderCallback;
+import org.hornetq.core.journal.PreparedTransactionInfo;
+import org.hornetq.core.journal.RecordInfo;
+import org.hornetq.core.journal.SequentialFileFactory;
+import org.hornetq.core.journal.TransactionFailureCallback;
+import org.hornetq.core.journal.impl.JournalFile;
+
+/**
+ * A {@link Journal} spreading its records over several independent journals (stripes), each with
+ * its own files, buffer and flushes, so they can be placed on different disks.
+ * <p>
+ * Records are placed by ID. All the records of a message (the message, its references and their
+ * acknowledgements) use the message ID, so they are always on the same stripe and the deletes find
+ * their records.
+ * <p>
+ * A transaction only touching one stripe is committed there. Otherwise the commit has two phases:
+ * the transaction is prepared on each stripe, a {@link JournalRecordIds#STRIPED_COMMIT_RECORD} is
+ * written on the first stripe, and only then the transaction is committed on each stripe. On load
+ * the transactions prepared by the first phase are committed if the commit record exists and
+ * rolled back otherwise.
+ * <p>
+ * The number of stripes may be raised between restarts, the records found on another stripe than
+ * their ID would select are remembered on load. It can't be lowered, as the records on the
+ * removed stripes would not be loaded.
+ */
+public class StripedJournal implements Journal
+{
+   /**
+    * The extra data of the prepares written by the first phase of a commit, shorter than any encoded
+    * Xid.
+    */
+   private static final byte[] STRIPED_PREPARE = new byte[]{'S', 'T', 'R', 'I', 'P', 'E', 'D'};
+
+   private final Journal[] stripes;
+
+   /** The records loaded from another stripe than the one their ID selects */
+   private final ConcurrentMap<Long, Integer> displacedRecords = new ConcurrentHashMap<Long, Integer>();
+
+   private final ConcurrentMap<Long, StripedTransaction> transactions = new ConcurrentHashMap<Long, StripedTransaction>();
+
+   public StripedJournal(final Journal... stripes)
+   {
+      if (stripes.length < 2)
+      {
+         throw new IllegalArgumentException("A striped journal needs at least 2 journals");
+      }
+      this.stripes = stripes;
+   }
+
+   public int getNumberOfStripes()
+   {
+      return stripes.length;
+   }
+
+   public Journal getStripe(final int stripe)
+   {
+      return stripes[stripe];
+   }
+
+   /**
+    * @return the index of the stripe storing the record
+    */
+   public int getStripeIndex(final long id)
+   {
+      Integer displaced = displacedRecords.get(id);
+
+      if (displaced != null)
+      {
+         return displaced;
+      }
+
+      return (int)((id & Long.MAX_VALUE) % stripes.length);
+   }
+
+   // Non transactional operations
+
+   public void appendAddRecord(final long id, final byte recordType, final byte[] record, final boolean sync) throws Exception
+   {
+      stripes[getStripeIndex(id)].appendAddRecord(id, recordType, record, sync);
+   }
+
+   public void appendAddRecord(final long id, final byte recordType, final EncodingSupport record, final boolean sync) throws Exception
+   {
+      stripes[getStripeIndex(id)].appendAddRecord(id, recordType, record, sync);
+   }
+
+   public void appendAddRecord(final long id,
+                               final byte recordType,
+                               final EncodingSupport record,
+                               final boolean sync,
+                               final IOCompletion completionCallback) throws Exception
+   {
+      stripes[getStripeIndex(id)].appendAddRecord(id, recordType, record, sync, completionCallback);
+   }
+
+   public void appendUpdateRecord(final long id, final byte recordType, final byte[] record, final boolean sync) throws Exception
+   {
+      stripes[getStripeIndex(id)].appendUpdateRecord(id, recordType, record, sync);
+   }
+
+   public void appendUpdateRecord(final long id,
+                                  final byte recordType,
+                                  final EncodingSupport record,
+                                  final boolean sync) throws Exception
+   {
+      stripes[getStripeIndex(id)].appendUpdateRecord(id, recordType, record, sync);
+   }
+
+   public void appendUpdateRecord(final long id,
+                                  final byte recordType,
+                                  final EncodingSupport record,
+                                  final boolean sync,
+                                  final IOCompletion completionCallback) throws Exception
+   {
+      stripes[getStripeIndex(id)].appendUpdateRecord(id, recordType, record, sync, completionCallback);
+   }
+
+   public void appendDeleteRecord(final long id, final boolean sync) throws Exception
+   {
+      stripes[getStripeIndex(id)].appendDeleteRecord(id, sync);
+      displacedRecords.remove(id);
+   }
+
+   public void appendDeleteRecord(final long id, final boolean sync, final IOCompletion completionCallback) throws Exception
+   {
+      stripes[getStripeIndex(id)].appendDeleteRecord(id, sync, completionCallback);
+      displacedRecords.remove(id);
+   }
+
+   // Transactional operations
+
+   public void appendAddRecordTransactional(final long txID, final long id, final byte recordType, final byte[] record) throws Exception
+   {
+      getStripe(txID, id).appendAddRecordTransactional(txID, id, recordType, record);
+   }
+
+   public void appendAddRecordTransactional(final long txID,
+                                            final long id,
+                                            final byte recordType,
+                                            final EncodingSupport record) throws Exception
+   {
+      getStripe(txID, id).appendAddRecordTransactional(txID, id, recordType, record);
+   }
+
+   public void appendUpdateRecordTransactional(final long txID,
+                                               final long id,
+                                               final byte recordType,
+                                               final byte[] record) throws Exception
+   {
+      getStripe(txID, id).appendUpdateRecordTransactional(txID, id, recordType, record);
+   }
+
+   public void appendUpdateRecordTransactional(final long txID,
+                                               final long id,
+                                               final byte recordType,
+                                               final EncodingSupport record) throws Exception
+   {
+      getStripe(txID, id).appendUpdateRecordTransactional(txID, id, recordType, record);
+   }
+
+   public void appendDeleteRecordTransactional(final long txID, final long id, final byte[] record) throws Exception
+   {
+      getStripe(txID, id).appendDeleteRecordTransactional(txID, id, record);
+   }
+
+   public void appendDeleteRecordTransactional(final long txID, final long id, final EncodingSupport record) throws Exception
+   {
+      getStripe(txID, id).appendDeleteRecordTransactional(txID, id, record);
+   }
+
+   public void appendDeleteRecordTransactional(final long txID, final long id) throws Exception
+   {
+      getStripe(txID, id).appendDeleteRecordTransactional(txID, id);
+   }
+
+   public void appendCommitRecord(final long txID, final boolean sync) throws Exception
+   {
+      appendCommitRecord(txID, sync, null, true);
+   }
+
+   public void appendCommitRecord(final long txID, final boolean sync, final IOCompletion callback) throws Exception
+   {
+      appendCommitRecord(txID, sync, callback, true);
+   }
+
+   /**
+    * The two phases of a commit over several stripes are written synchronously, whatever
+    * {@code sync} is, as each phase has to be on disk before the next one starts.
+    */
+   public void appendCommitRecord(final long txID,
+                                  final boolean sync,
+                                  final IOCompletion callback,
+                                  final boolean lineUpContext) throws Exception
+   {
+      StripedTransaction tx = transactions.remove(txID);
+
+      int[] participants = getParticipants(txID, tx);
+
+      if (participants.length == 1)
+      {
+         stripes[participants[0]].appendCommitRecord(txID, sync, callback, lineUpContext);
+         return;
+      }
+
+      if (!tx.prepared)
+      {
+         for (int stripe : participants)
+         {
+            stripes[stripe].appendPrepareRecord(txID, STRIPED_PREPARE, true);
+         }
+      }
+
+      stripes[0].appendAddRecord(txID, JournalRecordIds.STRIPED_COMMIT_RECORD, new byte[0], true);
+
+      for (int stripe : participants)
+      {
+         stripes[stripe].appendCommitRecord(txID, true);
+      }
+
+      if (callback != null)
+      {
+         if (lineUpContext)
+         {
+            callback.storeLineUp();
+         }
+         callback.done();
+      }
+
+      stripes[0].appendDeleteRecord(txID, false);
+   }
+
+   public void appendPrepareRecord(final long txID, final EncodingSupport transactionData, final boolean sync) throws Exception
+   {
+      for (int stripe : prepare(txID))
+      {
+         stripes[stripe].appendPrepareRecord(txID, transactionData, sync);
+      }
+   }
+
+   public void appendPrepareRecord(final long txID,
+                                   final EncodingSupport transactionData,
+                                   final boolean sync,
+                                   final IOCompletion callback) throws Exception
+   {
+      for (int stripe : prepare(txID))
+      {
+         stripes[stripe].appendPrepareRecord(txID, transactionData, sync, callback);
+      }
+   }
+
+   public void appendPrepareRecord(final long txID, final byte[] transactionData, final boolean sync) throws Exception
+   {
+      for (int stripe : prepare(txID))
+      {
+         stripes[stripe].appendPrepareRecord(txID, transactionData, sync);
+      }
+   }
+
+   public void appendRollbackRecord(final long txID, final boolean sync) throws Exception
+   {
+      for (int stripe : getParticipants(txID, transactions.remove(txID)))
+      {
+         stripes[stripe].appendRollbackRecord(txID, sync);
+      }
+   }
+
+   public void appendRollbackRecord(final long txID, final boolean sync, final IOCompletion callback) throws Exception
+   {
+      for (int stripe : getParticipants(txID, transactions.remove(txID)))
+      {
+         stripes[stripe].appendRollbackRecord(txID, sync, callback);
+      }
+   }
+
+   // Load
+
+   public JournalLoadInformation load(final LoaderCallback reloadManager) throws Exception
+   {
+      List<RecordInfo> committedRecords = new ArrayList<RecordInfo>();
+
+      List<PreparedTransactionInfo> preparedTransactions = new ArrayList<PreparedTransactionInfo>();
+
+      JournalLoadInformation info = load(committedRecords, preparedTransactions, reloadManager);
+
+      for (RecordInfo record : committedRecords)
+      {
+         if (record.isUpdate)
+         {
+            reloadManager.updateRecord(record);
+         }
+         else
+         {
+            reloadManager.addRecord(record);
+         }
+      }
+
+      for (PreparedTransactionInfo preparedTransaction : preparedTransactions)
+      {
+         reloadManager.addPreparedTransaction(preparedTransaction);
+      }
+
+      return info;
+   }
+
+   public JournalLoadInformation load(final List<RecordInfo> committedRecords,
+                                      final List<PreparedTransactionInfo> preparedTransactions,
+                                      final TransactionFailureCallback transactionFailure) throws Exception
+   {
+      int numberOfRecords = 0;
+
+      long maxID = -1;
+
+      Set<Long> committedTransactions = new HashSet<Long>();
+
+      Map<Long, List<Pair<Integer, PreparedTransactionInfo>>> preparedParts =
+               new LinkedHashMap<Long, List<Pair<Integer, PreparedTransactionInfo>>>();
+
+      for (int i = 0; i < stripes.length; i++)
+      {
+         List<RecordInfo> stripeRecords = new ArrayList<RecordInfo>();
+
+         List<PreparedTransactionInfo> stripePrepared = new ArrayList<PreparedTransactionInfo>();
+
+         JournalLoadInformation info = stripes[i].load(stripeRecords, stripePrepared, transactionFailure);
+
+         numberOfRecords += info.getNumberOfRecords();
+
+         maxID = Math.max(maxID, info.getMaxID());
+
+         for (RecordInfo record : stripeRecords)
+         {
+            if (record.userRecordType == JournalRecordIds.STRIPED_COMMIT_RECORD)
+            {
+               committedTransactions.add(record.id);
+            }
+            else
+            {
+               committedRecords.add(record);
+               checkDisplaced(record.id, i);
+            }
+         }
+
+         for (PreparedTransactionInfo prepared : stripePrepared)
+         {
+            List<Pair<Integer, PreparedTransactionInfo>> parts = preparedParts.get(prepared.id);
+
+            if (parts == null)
+            {
+               parts = new ArrayList<Pair<Integer, PreparedTransactionInfo>>();
+               preparedParts.put(prepared.id, parts);
+            }
+
+            parts.add(new Pair<Integer, PreparedTransactionInfo>(i, prepared));
+
+            for (RecordInfo record : prepared.records)
+            {
+               checkDisplaced(record.id, i);
+            }
+         }
+      }
+
+      for (Map.Entry<Long, List<Pair<Integer, PreparedTransactionInfo>>> entry : preparedParts.entrySet())
+      {
+         long txID = entry.getKey();
+
+         List<Pair<Integer, PreparedTransactionInfo>> parts = entry.getValue();
+
+         if (committedTransactions.contains(txID))
+         {
+            // The commit record was written, but not every stripe committed before stopping
+            completeCommit(txID, parts, committedRecords);
+         }
+         else if (isStripedPrepare(parts))
+         {
+            for (Pair<Integer, PreparedTransactionInfo> part : parts)
+            {
+               stripes[part.getA()].appendRollbackRecord(txID, false);
+            }
+         }
+         else
+         {
+            preparedTransactions.add(mergePrepared(txID, parts));
+         }
+      }
+
+      for (Long txID : committedTransactions)
+      {
+         stripes[0].appendDeleteRecord(txID, false);
+      }
+
+      // The queues are rebuilt in the order of the records, and the message IDs are in the order the
+      // messages were sent. The sort is stable, so the records of a message keep their order.
+      Collections.sort(committedRecords, new RecordIDComparator());
+
+      return new JournalLoadInformation(numberOfRecords, maxID);
+   }
+
+   public JournalLoadInformation loadInternalOnly() throws Exception
+   {
+      int numberOfRecords = 0;
+
+      long maxID = -1;
+
+      for (Journal stripe : stripes)
+      {
+         JournalLoadInformation info = stripe.loadInternalOnly();
+
+         numberOfRecords += info.getNumberOfRecords();
+
+         maxID = Math.max(maxID, info.getMaxID());
+      }
+
+      return new JournalLoadInformation(numberOfRecords, maxID);
+   }
+
+   public JournalLoadInformation loadSyncOnly(final JournalState state) throws Exception
+   {
+      throw new UnsupportedOperationException("A striped journal can't be replicated");
+   }
+
+   public void lineUpContext(final IOCompletion callback)
+   {
+      // done only after every stripe wrote what was appended before
+      for (Journal stripe : stripes)
+      {
+         stripe.lineUpContext(callback);
+      }
+   }
+
+   public int getAlignment() throws Exception
+   {
+      return stripes[0].getAlignment();
+   }
+
+   public int getNumberOfRecords()
+   {
+      int numberOfRecords = 0;
+
+      for (Journal stripe : stripes)
+      {
+         numberOfRecords += stripe.getNumberOfRecords();
+      }
+
+      return numberOfRecords;
+   }
+
+   public int getUserVersion()
+   {
+      return stripes[0].getUserVersion();
+   }
+
+   public void perfBlast(final int pages)
+   {
+      for (Journal stripe : stripes)
+      {
+         stripe.perfBlast(pages);
+      }
+   }
+
+   public void runDirectJournalBlast() throws Exception
+   {
+      for (Journal stripe : stripes)
+      {
+         stripe.runDirectJournalBlast();
+      }
+   }
+
+   public Map<Long, JournalFile> createFilesForBackupSync(final long[] fileIds) throws Exception
+   {
+      throw new UnsupportedOperationException("A striped journal can't be replicated");
+   }
+
+   public void synchronizationLock()
+   {
+      throw new UnsupportedOperationException("A striped journal can't be replicated");
+   }
+
+   public void synchronizationUnlock()
+   {
+      throw new UnsupportedOperationException("A striped journal can't be replicated");
+   }
+
+   public void forceMoveNextFile() throws Exception
+   {
+      for (Journal stripe : stripes)
+      {
+         stripe.forceMoveNextFile();
+      }
+   }
+
+   public JournalFile[] getDataFiles()
+   {
+      List<JournalFile> files = new ArrayList<JournalFile>();
+
+      for (Journal stripe : stripes)
+      {
+         files.addAll(Arrays.asList(stripe.getDataFiles()));
+      }
+
+      return files.toArray(new JournalFile[files.size()]);
+   }
+
+   /**
+    * @return the factory of the first stripe
+    */
+   public SequentialFileFactory getFileFactory()
+   {
+      return stripes[0].getFileFactory();
+   }
+
+   public int getFileSize()
+   {
+      return stripes[0].getFileSize();
+   }
+
+   public void scheduleCompactAndBlock(final int timeout) throws Exception
+   {
+      for (Journal stripe : stripes)
+      {
+         stripe.scheduleCompactAndBlock(timeout);
+      }
+   }
+
+   public void replicationSyncPreserveOldFiles()
+   {
+      throw new UnsupportedOperationException("A striped journal can't be replicated");
+   }
+
+   public void replicationSyncFinished()
+   {
+      throw new UnsupportedOperationException("A striped journal can't be replicated");
+   }
+
+   public void start() throws Exception
+   {
+      for (Journal stripe : stripes)
+      {
+         stripe.start();
+      }
+   }
+
+   public void stop() throws Exception
+   {
+      for (Journal stripe : stripes)
+      {
+         stripe.stop();
+      }
+
+      transactions.clear();
+   }
+
+   public boolean isStarted()
+   {
+      return stripes[0].isStarted();
+   }
+
+   @Override
+   public String toString()
+   {
+      return "StripedJournal(stripes=" + stripes.length + ")";
+   }
+
+   // Private -------------------------------------------------------
+
+   private Journal getStripe(final long txID, final long id)
+   {
+      int stripe = getStripeIndex(id);
+
+      getTransaction(txID).addParticipant(stripe);
+
+      return stripes[stripe];
+   }
+
+   private StripedTransaction getTransaction(final long txID)
+   {
+      StripedTransaction tx = transactions.get(txID);
+
+      if (tx == null)
+      {
+         tx = new StripedTransaction(stripes.length);
+
+         StripedTransaction existing = transactions.putIfAbsent(txID, tx);
+
+         if (existing != null)
+         {
+            tx = existing;
+         }
+      }
+
+      return tx;
+   }
+
+   /**
+    * @return the stripes of the transaction, or the one selected by its ID if it has no records
+    */
+   private int[] getParticipants(final long txID, final StripedTransaction tx)
+   {
+      int[] participants = tx == null ? null : tx.getParticipants();
+
+      if (participants == null || participants.length == 0)
+      {
+         return new int[]{getStripeIndex(txID)};
+      }
+
+      return participants;
+   }
+
+   private int[] prepare(final long txID)
+   {
+      StripedTransaction tx = getTransaction(txID);
+
+      tx.prepared = true;
+
+      int[] participants = tx.getParticipants();
+
+      if (participants.length == 0)
+      {
+         tx.addParticipant(getStripeIndex(txID));
+         participants = tx.getParticipants();
+      }
+
+      return participants;
+   }
+
+   private void checkDisplaced(final long id, final int stripe)
+   {
+      if (getStripeIndex(id) != stripe)
+      {
+         displacedRecords.put(id, stripe);
+      }
+   }
+
+   private void completeCommit(final long txID,
+                               final List<Pair<Integer, PreparedTransactionInfo>> parts,
+                               final List<RecordInfo> committedRecords) throws Exception
+   {
+      Set<Long> deletes = new HashSet<Long>();
+
+      for (Pair<Integer, PreparedTransactionInfo> part : parts)
+      {
+         stripes[part.getA()].appendCommitRecord(txID, true);
+
+         committedRecords.addAll(part.getB().records);
+
+         for (RecordInfo delete : part.getB().recordsToDelete)
+         {
+            deletes.add(delete.id);
+         }
+      }
+
+      if (!deletes.isEmpty())
+      {
+         Iterator<RecordInfo> iterator = committedRecords.iterator();
+
+         while (iterator.hasNext())
+         {
+            if (deletes.contains(iterator.next().id))
+            {
+               iterator.remove();
+            }
+         }
+      }
+   }
+
+   private static boolean isStripedPrepare(final List<Pair<Integer, PreparedTransactionInfo>> parts)
+   {
+      for (Pair<Integer, PreparedTransactionInfo> part : parts)
+      {
+         if (!Arrays.equals(STRIPED_PREPARE, part.getB().extraData))
+         {
+            return false;
+         }
+      }
+
+      return true;
+   }
+
+   /**
+    * A transaction prepared by the user is returned once, with the records of all its stripes.
+    */
+   private PreparedTransactionInfo mergePrepared(final long txID, final List<Pair<Integer, PreparedTransactionInfo>> parts)
+   {
+      PreparedTransactionInfo merged = new PreparedTransactionInfo(txID, parts.get(0).getB().extraData);
+
+      StripedTransaction tx = getTransaction(txID);
+
+      tx.prepared = true;
+
+      for (Pair<Integer, PreparedTransactionInfo> part : parts)
+      {
+         merged.records.addAll(part.getB().records);
+
+         merged.recordsToDelete.addAll(part.getB().recordsToDelete);
+
+         tx.addParticipant(part.getA());
+      }
+
+      Collections.sort(merged.records, new RecordIDComparator());
+
+      return merged;
+   }
+
+   // Inner classes -------------------------------------------------
+
+   private static final class RecordIDComparator implements Comparator<RecordInfo>, Serializable
+   {
+      private static final long serialVersionUID = 3395424584725440284L;
+
+      public int compare(final RecordInfo r1, final RecordInfo r2)
+      {
+         return r1.id < r2.id ? -1 : r1.id == r2.id ? 0 : 1;
+      }
+   }
+
+   private static final class StripedTransaction
+   {
+      private final boolean[] participants;
+
+      volatile boolean prepared;
+
+      StripedTransaction(final int stripes)
+      {
+         participants = new boolean[stripes];
+      }
+
+      synchronized void addParticipant(final int stripe)
+      {
+         participants[stripe] = true;
+      }
+
+      synchronized int[] getParticipants()
+      {
+         int count = 0;
+
+         for (boolean participant : participants)
+         {
+            if (participant)
+            {
+               count++;
+            }
+         }
+
+         int[] result = new int[count];
+
+         for (int i = 0, j = 0; i < participants.length; i++)
+         {
+            if (participants[i])
+            {
+               result[j++] = i;
+            }
+         }
+
+         return result;
+      }
+   }
+}
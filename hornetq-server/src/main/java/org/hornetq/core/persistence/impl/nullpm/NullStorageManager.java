@@ -52,6 +52,7 @@ import org.hornetq.core.server.ServerMessage;
 import org.hornetq.core.server.group.impl.GroupBinding;
 import org.hornetq.core.transaction.ResourceManager;
 import org.hornetq.core.transaction.Transaction;
+import org.hornetq.utils.DurationHistogram;
 
 /**
  * A NullStorageManager
@@ -544,6 +545,11 @@ public class NullStorageManager implements StorageManager
       return null;
    }
 
+   public DurationHistogram getMessageJournalCompactTimes()
+   {
+      return null;
+   }
+
    @Override
    public void startReplication(final ReplicationManager replicationManager, final PagingManager pagingManager,
                                 final String nodeID, final boolean autoFailBack) throws Exception
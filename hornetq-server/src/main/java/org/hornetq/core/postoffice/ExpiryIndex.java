@@ -0,0 +1,46 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.postoffice;
+
+import java.util.List;
+
+import org.hornetq.core.server.MessageReference;
+import org.hornetq.core.server.Queue;
+
+/**
+ * The references waiting on the queues of a server whose messages expire, ordered by expiration,
+ * so the expired ones are found without scanning the queues.
+ */
+public interface ExpiryIndex
+{
+   /**
+    * Indexes a reference added to its queue. Nothing is done if its message doesn't expire.
+    */
+   void add(MessageReference ref);
+
+   /**
+    * Removes a reference delivered or removed from its queue before it expired.
+    */
+   void remove(MessageReference ref);
+
+   /**
+    * Hands every reference expired by now to its queue through {@link Queue#expireReferences(List)}.
+    */
+   void expire();
+
+   /**
+    * @return the number of references indexed
+    */
+   int size();
+}
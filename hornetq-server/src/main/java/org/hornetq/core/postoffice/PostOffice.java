@@ -79,6 +79,11 @@ public interface PostOffice extends HornetQComponent
 
    DuplicateIDCache getDuplicateIDCache(SimpleString address);
 
+   /**
+    * @return the index of the expiring references of every queue, or null if the expiry reaper is disabled
+    */
+   ExpiryIndex getExpiryIndex();
+
    void sendQueueInfoToQueue(SimpleString queueName, SimpleString address) throws Exception;
 
    Object getNotificationLock();
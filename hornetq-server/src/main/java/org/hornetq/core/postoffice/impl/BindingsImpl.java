@@ -17,8 +17,10 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.ByteBuffer;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -50,6 +52,9 @@ import org.hornetq.core.server.group.impl.Response;
  */
 public final class BindingsImpl implements Bindings
 {
+   /** The minimum number of routing names on an address to route through the filter index, 0 never uses it */
+   public static final String FILTER_INDEX_THRESHOLD_PROPERTY = "org.hornetq.opt.filterindexthreshold";
+
    private static boolean isTrace = HornetQServerLogger.LOGGER.isTraceEnabled();
 
    private final ConcurrentMap<SimpleString, List<Binding>> routingNameBindingMap = new ConcurrentHashMap<SimpleString, List<Binding>>();
@@ -60,6 +65,10 @@ public final class BindingsImpl implements Bindings
 
    private final List<Binding> exclusiveBindings = new CopyOnWriteArrayList<Binding>();
 
+   private final FilterIndex filterIndex = new FilterIndex();
+
+   private volatile int filterIndexThreshold = Integer.getInteger(BindingsImpl.FILTER_INDEX_THRESHOLD_PROPERTY, 32);
+
    private volatile boolean routeWhenNoConsumers;
 
    private final GroupingHandler groupingHandler;
@@ -80,6 +89,15 @@ public final class BindingsImpl implements Bindings
       this.routeWhenNoConsumers = routeWhenNoConsumers;
    }
 
+   /**
+    * @param threshold the minimum number of routing names to route through the filter index, 0
+    *           never uses it
+    */
+   public void setFilterIndexThreshold(final int threshold)
+   {
+      filterIndexThreshold = threshold;
+   }
+
    public Collection<Binding> getBindings()
    {
       return bindingsMap.values();
@@ -97,6 +115,9 @@ public final class BindingsImpl implements Bindings
       }
       else
       {
+         // indexed first, so routing never finds a binding the index doesn't have
+         filterIndex.addBinding(binding);
+
          SimpleString routingName = binding.getRoutingName();
 
          List<Binding> bindings = routingNameBindingMap.get(routingName);
@@ -146,6 +167,8 @@ public final class BindingsImpl implements Bindings
                routingNameBindingMap.remove(routingName);
             }
          }
+
+         filterIndex.removeBinding(binding);
       }
 
       bindingsMap.remove(binding.getID());
@@ -169,7 +192,11 @@ public final class BindingsImpl implements Bindings
          HornetQServerLogger.LOGGER.trace("Redistributing message " + message);
       }
 
-      SimpleString routingName = originatingQueue.getName();
+      // the shards of a sharded queue are named after it, but route under its name
+      Binding originatingBinding = bindingsMap.get(originatingQueue.getID());
+
+      SimpleString routingName = originatingBinding != null ? originatingBinding.getRoutingName()
+                                                            : originatingQueue.getName();
 
       List<Binding> bindings = routingNameBindingMap.get(routingName);
 
@@ -283,6 +310,14 @@ public final class BindingsImpl implements Bindings
             {
                HornetQServerLogger.LOGGER.trace("Routing message " + message + " on binding=" + this);
             }
+
+            if (isFilterIndexUsed())
+            {
+               routeUsingFilterIndex(message, context);
+
+               return;
+            }
+
             for (Map.Entry<SimpleString, List<Binding>> entry : routingNameBindingMap.entrySet())
             {
                SimpleString routingName = entry.getKey();
@@ -313,6 +348,53 @@ public final class BindingsImpl implements Bindings
       return "BindingsImpl [name=" + name + "]";
    }
 
+   /**
+    * The index pays off on addresses with many routing names, when most of their bindings have a
+    * filter it can select.
+    */
+   private boolean isFilterIndexUsed()
+   {
+      int threshold = filterIndexThreshold;
+
+      if (threshold <= 0)
+      {
+         return false;
+      }
+
+      int routingNames = routingNameBindingMap.size();
+
+      return routingNames >= threshold && filterIndex.getUnindexedCount() < routingNames / 2;
+   }
+
+   /**
+    * Routes only to the routing names with a binding whose filter may match the message. Their
+    * filters are evaluated as usual by {@link #getNextBinding(ServerMessage, SimpleString, List)}.
+    */
+   private void routeUsingFilterIndex(final ServerMessage message, final RoutingContext context) throws Exception
+   {
+      Set<SimpleString> routingNames = new HashSet<SimpleString>();
+
+      filterIndex.select(message, routingNames);
+
+      for (SimpleString routingName : routingNames)
+      {
+         List<Binding> bindings = routingNameBindingMap.get(routingName);
+
+         if (bindings == null)
+         {
+            // removed while routing
+            continue;
+         }
+
+         Binding theBinding = getNextBinding(message, routingName, bindings);
+
+         if (theBinding != null)
+         {
+            theBinding.route(message, context);
+         }
+      }
+   }
+
    /**
     * This code has a race on the assigned value to routing names.
     * <p>
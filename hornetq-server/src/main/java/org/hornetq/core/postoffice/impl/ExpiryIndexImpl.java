@@ -0,0 +1,335 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.postoffice.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hornetq.core.postoffice.ExpiryIndex;
+import org.hornetq.core.server.HornetQServerLogger;
+import org.hornetq.core.server.MessageReference;
+import org.hornetq.core.server.Queue;
+
+/**
+ * A hierarchical timing wheel over the expiration of the messages.
+ * <p>
+ * Time is divided in ticks. The references expiring within the next {@link #WHEEL_SIZE} ticks
+ * are kept on the slot of their tick, the ones expiring later on an overflow ordered by tick, and
+ * they move to the wheel as it turns. Every tick only touches the references expiring on it, and
+ * the slot of the current tick is checked for the references already expired within it.
+ * <p>
+ * Adding and removing only lock the slot of the reference, so the queues don't contend with each
+ * other unless their messages expire on the same tick.
+ */
+public final class ExpiryIndexImpl implements ExpiryIndex
+{
+   static final int WHEEL_SIZE = 4096;
+
+   private static final int WHEEL_MASK = ExpiryIndexImpl.WHEEL_SIZE - 1;
+
+   private final long tickMillis;
+
+   /** Guarded by the lock of the same index */
+   @SuppressWarnings("unchecked")
+   private final Set<MessageReference>[] slots = new Set[ExpiryIndexImpl.WHEEL_SIZE];
+
+   private final Object[] slotLocks = new Object[ExpiryIndexImpl.WHEEL_SIZE];
+
+   /** Expiring beyond the wheel, by tick. Guarded by itself */
+   private final TreeMap<Long, Set<MessageReference>> overflow = new TreeMap<Long, Set<MessageReference>>();
+
+   /** Already expired when added */
+   private final Set<MessageReference> late = Collections.newSetFromMap(new ConcurrentHashMap<MessageReference, Boolean>());
+
+   /** The ticks before this one were handed to the queues. Only changed with the lock of its slot held */
+   private volatile long currentTick;
+
+   private final AtomicInteger size = new AtomicInteger(0);
+
+   public ExpiryIndexImpl(final long tickMillis)
+   {
+      this.tickMillis = tickMillis;
+
+      for (int i = 0; i < slotLocks.length; i++)
+      {
+         slotLocks[i] = new Object();
+      }
+
+      currentTick = System.currentTimeMillis() / tickMillis;
+   }
+
+   // ExpiryIndex implementation ------------------------------------
+
+   public void add(final MessageReference ref)
+   {
+      long expiration = ref.getMessage().getExpiration();
+
+      if (expiration == 0)
+      {
+         return;
+      }
+
+      long tick = tickOf(expiration);
+
+      if (!addToWheel(tick, ref))
+      {
+         addToOverflow(tick, ref);
+      }
+
+      size.incrementAndGet();
+   }
+
+   public void remove(final MessageReference ref)
+   {
+      long expiration = ref.getMessage().getExpiration();
+
+      if (expiration == 0)
+      {
+         return;
+      }
+
+      long tick = tickOf(expiration);
+
+      boolean removed;
+
+      int slot = (int)(tick & ExpiryIndexImpl.WHEEL_MASK);
+
+      synchronized (slotLocks[slot])
+      {
+         removed = slots[slot] != null && slots[slot].remove(ref);
+      }
+
+      if (!removed)
+      {
+         synchronized (overflow)
+         {
+            Set<MessageReference> refs = overflow.get(tick);
+
+            if (refs != null)
+            {
+               removed = refs.remove(ref);
+
+               if (refs.isEmpty())
+               {
+                  overflow.remove(tick);
+               }
+            }
+         }
+      }
+
+      if (!removed)
+      {
+         removed = late.remove(ref);
+      }
+
+      if (removed)
+      {
+         size.decrementAndGet();
+      }
+   }
+
+   public synchronized void expire()
+   {
+      long now = System.currentTimeMillis();
+
+      long nowTick = now / tickMillis;
+
+      List<MessageReference> expired = new ArrayList<MessageReference>();
+
+      for (Iterator<MessageReference> iter = late.iterator(); iter.hasNext();)
+      {
+         expired.add(iter.next());
+         iter.remove();
+      }
+
+      // every tick up to now is over, each of them has its references expired
+      while (currentTick <= nowTick)
+      {
+         int slot = (int)(currentTick & ExpiryIndexImpl.WHEEL_MASK);
+
+         synchronized (slotLocks[slot])
+         {
+            if (slots[slot] != null && !slots[slot].isEmpty())
+            {
+               expired.addAll(slots[slot]);
+               slots[slot].clear();
+            }
+
+            currentTick++;
+         }
+
+         cascade();
+      }
+
+      // the tick in progress holds references expiring up to its end, some of them may have expired already
+      int slot = (int)(currentTick & ExpiryIndexImpl.WHEEL_MASK);
+
+      synchronized (slotLocks[slot])
+      {
+         if (slots[slot] != null)
+         {
+            for (Iterator<MessageReference> iter = slots[slot].iterator(); iter.hasNext();)
+            {
+               MessageReference ref = iter.next();
+
+               if (ref.getMessage().getExpiration() <= now)
+               {
+                  expired.add(ref);
+                  iter.remove();
+               }
+            }
+         }
+      }
+
+      if (expired.isEmpty())
+      {
+         return;
+      }
+
+      size.addAndGet(-expired.size());
+
+      Map<Queue, List<MessageReference>> byQueue = new IdentityHashMap<Queue, List<MessageReference>>();
+
+      for (MessageReference ref : expired)
+      {
+         List<MessageReference> refs = byQueue.get(ref.getQueue());
+
+         if (refs == null)
+         {
+            refs = new ArrayList<MessageReference>();
+            byQueue.put(ref.getQueue(), refs);
+         }
+
+         refs.add(ref);
+      }
+
+      for (Map.Entry<Queue, List<MessageReference>> entry : byQueue.entrySet())
+      {
+         try
+         {
+            entry.getKey().expireReferences(entry.getValue());
+         }
+         catch (Exception e)
+         {
+            HornetQServerLogger.LOGGER.errorExpiringMessages(e);
+         }
+      }
+   }
+
+   public int size()
+   {
+      return size.get();
+   }
+
+   @Override
+   public String toString()
+   {
+      return "ExpiryIndexImpl [tickMillis=" + tickMillis + ", currentTick=" + currentTick + ", size=" + size + "]";
+   }
+
+   // Private -------------------------------------------------------
+
+   /**
+    * The tick a reference is handed to its queue is the first one ending after its expiration.
+    */
+   private long tickOf(final long expiration)
+   {
+      return (expiration + tickMillis - 1) / tickMillis;
+   }
+
+   /**
+    * @return false if the tick is beyond the wheel
+    */
+   private boolean addToWheel(final long tick, final MessageReference ref)
+   {
+      int slot = (int)(tick & ExpiryIndexImpl.WHEEL_MASK);
+
+      synchronized (slotLocks[slot])
+      {
+         long current = currentTick;
+
+         if (tick < current)
+         {
+            late.add(ref);
+         }
+         else if (tick - current >= ExpiryIndexImpl.WHEEL_SIZE)
+         {
+            return false;
+         }
+         else
+         {
+            if (slots[slot] == null)
+            {
+               slots[slot] = new HashSet<MessageReference>();
+            }
+
+            slots[slot].add(ref);
+         }
+
+         return true;
+      }
+   }
+
+   private void addToOverflow(final long tick, final MessageReference ref)
+   {
+      synchronized (overflow)
+      {
+         // the wheel may have turned since
+         if (tick - currentTick < ExpiryIndexImpl.WHEEL_SIZE)
+         {
+            addToWheel(tick, ref);
+
+            return;
+         }
+
+         Set<MessageReference> refs = overflow.get(tick);
+
+         if (refs == null)
+         {
+            refs = new HashSet<MessageReference>();
+            overflow.put(tick, refs);
+         }
+
+         refs.add(ref);
+      }
+   }
+
+   /**
+    * Moves to the wheel the references of the overflow the wheel has reached.
+    */
+   private void cascade()
+   {
+      synchronized (overflow)
+      {
+         while (!overflow.isEmpty() && overflow.firstKey() - currentTick < ExpiryIndexImpl.WHEEL_SIZE)
+         {
+            Map.Entry<Long, Set<MessageReference>> entry = overflow.pollFirstEntry();
+
+            for (MessageReference ref : entry.getValue())
+            {
+               addToWheel(entry.getKey(), ref);
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.postoffice.impl;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.core.filter.Filter;
+import org.hornetq.core.filter.impl.FilterImpl;
+import org.hornetq.core.filter.impl.SelectorCompiler;
+import org.hornetq.core.filter.impl.SelectorCondition;
+import org.hornetq.core.postoffice.Binding;
+import org.hornetq.core.server.ServerMessage;
+
+/**
+ * Selects the bindings of an address whose filter may match a message, so routing doesn't have to
+ * evaluate the filter of every binding.
+ * <p>
+ * Bindings are indexed by the {@link SelectorCondition} of their filter: equalities and IN lists
+ * are bucketed by value, and ranges are kept sorted by their bounds. The bindings without a filter,
+ * or with a filter without a condition, are selected for every message. The filters of the
+ * selected bindings still have to be evaluated.
+ * <p>
+ * Routing reads the index concurrently, the changes are serialized.
+ */
+final class FilterIndex
+{
+   /** the condition each indexed binding was added with, as the filter may be recreated */
+   private final Map<Binding, SelectorCondition> conditions = new HashMap<Binding, SelectorCondition>();
+
+   private final Set<Binding> unindexed = newSet();
+
+   private final ConcurrentMap<SimpleString, IdentifierIndex> identifiers = new ConcurrentHashMap<SimpleString, IdentifierIndex>();
+
+   public synchronized void addBinding(final Binding binding)
+   {
+      SelectorCondition condition = null;
+
+      Filter filter = binding.getFilter();
+
+      if (filter instanceof FilterImpl)
+      {
+         condition = ((FilterImpl)filter).getCondition();
+      }
+
+      if (condition == null)
+      {
+         unindexed.add(binding);
+         return;
+      }
+
+      conditions.put(binding, condition);
+
+      IdentifierIndex index = identifiers.get(condition.getIdentifier());
+
+      if (index == null)
+      {
+         index = new IdentifierIndex(condition.getIdentifier());
+         identifiers.put(condition.getIdentifier(), index);
+      }
+
+      index.add(binding, condition);
+   }
+
+   public synchronized void removeBinding(final Binding binding)
+   {
+      SelectorCondition condition = conditions.remove(binding);
+
+      if (condition == null)
+      {
+         unindexed.remove(binding);
+         return;
+      }
+
+      IdentifierIndex index = identifiers.get(condition.getIdentifier());
+
+      if (index != null && index.remove(binding, condition))
+      {
+         identifiers.remove(condition.getIdentifier());
+      }
+   }
+
+   /**
+    * Adds the routing names of the bindings whose filter may match the message.
+    */
+   public void select(final ServerMessage message, final Set<SimpleString> routingNames)
+   {
+      for (Binding binding : unindexed)
+      {
+         routingNames.add(binding.getRoutingName());
+      }
+
+      for (IdentifierIndex index : identifiers.values())
+      {
+         index.select(message, routingNames);
+      }
+   }
+
+   /**
+    * @return the number of bindings selected for every message
+    */
+   public int getUnindexedCount()
+   {
+      return unindexed.size();
+   }
+
+   // Private -------------------------------------------------------
+
+   private static <T> Set<T> newSet()
+   {
+      return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+   }
+
+   /**
+    * The conditions on one identifier.
+    */
+   private static final class IdentifierIndex
+   {
+      private final SelectorCompiler.ValueReader<ServerMessage> reader;
+
+      private final ConcurrentMap<Object, Set<Binding>> values = new ConcurrentHashMap<Object, Set<Binding>>();
+
+      /** ranges without an upper bound, by their lower bound */
+      private final ConcurrentNavigableMap<Double, Set<Binding>> atLeast = new ConcurrentSkipListMap<Double, Set<Binding>>();
+
+      /** ranges without a lower bound, by their upper bound */
+      private final ConcurrentNavigableMap<Double, Set<Binding>> atMost = new ConcurrentSkipListMap<Double, Set<Binding>>();
+
+      /** ranges with both bounds, by their lower bound, with the upper bound of each binding */
+      private final ConcurrentNavigableMap<Double, ConcurrentMap<Binding, Double>> between = new ConcurrentSkipListMap<Double, ConcurrentMap<Binding, Double>>();
+
+      private int size;
+
+      IdentifierIndex(final SimpleString identifier)
+      {
+         reader = FilterImpl.createReader(identifier);
+      }
+
+      void add(final Binding binding, final SelectorCondition condition)
+      {
+         if (!condition.isRange())
+         {
+            for (Object value : condition.getValues())
+            {
+               Set<Binding> bindings = values.get(value);
+
+               if (bindings == null)
+               {
+                  bindings = newSet();
+                  values.put(value, bindings);
+               }
+
+               bindings.add(binding);
+            }
+         }
+         else if (condition.getUpper() == Double.POSITIVE_INFINITY)
+         {
+            add(atLeast, condition.getLower(), binding);
+         }
+         else if (condition.getLower() == Double.NEGATIVE_INFINITY)
+         {
+            add(atMost, condition.getUpper(), binding);
+         }
+         else
+         {
+            ConcurrentMap<Binding, Double> bindings = between.get(condition.getLower());
+
+            if (bindings == null)
+            {
+               bindings = new ConcurrentHashMap<Binding, Double>();
+               between.put(condition.getLower(), bindings);
+            }
+
+            bindings.put(binding, condition.getUpper());
+         }
+
+         size++;
+      }
+
+      /**
+       * @return true if the index is empty
+       */
+      boolean remove(final Binding binding, final SelectorCondition condition)
+      {
+         if (!condition.isRange())
+         {
+            for (Object value : condition.getValues())
+            {
+               remove(values, value, binding);
+            }
+         }
+         else if (condition.getUpper() == Double.POSITIVE_INFINITY)
+         {
+            remove(atLeast, condition.getLower(), binding);
+         }
+         else if (condition.getLower() == Double.NEGATIVE_INFINITY)
+         {
+            remove(atMost, condition.getUpper(), binding);
+         }
+         else
+         {
+            ConcurrentMap<Binding, Double> bindings = between.get(condition.getLower());
+
+            if (bindings != null)
+            {
+               bindings.remove(binding);
+
+               if (bindings.isEmpty())
+               {
+                  between.remove(condition.getLower());
+               }
+            }
+         }
+
+         return --size == 0;
+      }
+
+      void select(final ServerMessage message, final Set<SimpleString> routingNames)
+      {
+         Object key = SelectorCondition.keyOf(reader.read(message));
+
+         if (key == null)
+         {
+            return;
+         }
+
+         addAll(values.get(key), routingNames);
+
+         if (!(key instanceof Double))
+         {
+            return;
+         }
+
+         Double number = (Double)key;
+
+         for (Set<Binding> bindings : atLeast.headMap(number, true).values())
+         {
+            addAll(bindings, routingNames);
+         }
+
+         for (Set<Binding> bindings : atMost.tailMap(number, true).values())
+         {
+            addAll(bindings, routingNames);
+         }
+
+         for (ConcurrentMap<Binding, Double> bindings : between.headMap(number, true).values())
+         {
+            for (Map.Entry<Binding, Double> entry : bindings.entrySet())
+            {
+               if (entry.getValue() >= number)
+               {
+                  routingNames.add(entry.getKey().getRoutingName());
+               }
+            }
+         }
+      }
+
+      private static <K> void add(final ConcurrentMap<K, Set<Binding>> map, final K key, final Binding binding)
+      {
+         Set<Binding> bindings = map.get(key);
+
+         if (bindings == null)
+         {
+            bindings = newSet();
+            map.put(key, bindings);
+         }
+
+         bindings.add(binding);
+      }
+
+      private static <K> void remove(final ConcurrentMap<K, Set<Binding>> map, final K key, final Binding binding)
+      {
+         Set<Binding> bindings = map.get(key);
+
+         if (bindings != null)
+         {
+            bindings.remove(binding);
+
+            if (bindings.isEmpty())
+            {
+               map.remove(key);
+            }
+         }
+      }
+
+      private static void addAll(final Set<Binding> bindings, final Set<SimpleString> routingNames)
+      {
+         if (bindings != null)
+         {
+            for (Binding binding : bindings)
+            {
+               routingNames.add(binding.getRoutingName());
+            }
+         }
+      }
+   }
+}
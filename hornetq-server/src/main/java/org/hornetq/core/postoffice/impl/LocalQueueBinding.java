@@ -13,6 +13,7 @@
 
 package org.hornetq.core.postoffice.impl;
 
+import org.hornetq.api.core.Message;
 import org.hornetq.api.core.SimpleString;
 import org.hornetq.core.filter.Filter;
 import org.hornetq.core.postoffice.BindingType;
@@ -36,9 +37,24 @@ public class LocalQueueBinding implements QueueBinding
 
    private final SimpleString name;
 
+   private final SimpleString routingName;
+
    private final SimpleString clusterName;
 
+   private final QueueShards shards;
+
    public LocalQueueBinding(final SimpleString address, final Queue queue, final SimpleString nodeID)
+   {
+      this(address, queue, nodeID, null);
+   }
+
+   /**
+    * @param shards the sharded queue the queue is a shard of, or null
+    */
+   public LocalQueueBinding(final SimpleString address,
+                            final Queue queue,
+                            final SimpleString nodeID,
+                            final QueueShards shards)
    {
       this.address = address;
 
@@ -48,6 +64,10 @@ public class LocalQueueBinding implements QueueBinding
 
       name = queue.getName();
 
+      this.shards = shards;
+
+      routingName = shards == null ? name : shards.getName();
+
       clusterName = name.concat(nodeID);
    }
 
@@ -78,7 +98,15 @@ public class LocalQueueBinding implements QueueBinding
 
    public SimpleString getRoutingName()
    {
-      return name;
+      return routingName;
+   }
+
+   /**
+    * @return the sharded queue the queue is a shard of, or null
+    */
+   public QueueShards getShards()
+   {
+      return shards;
    }
 
    public SimpleString getUniqueName()
@@ -110,6 +138,18 @@ public class LocalQueueBinding implements QueueBinding
 
    public void route(final ServerMessage message, final RoutingContext context) throws Exception
    {
+      if (shards != null && shards.isGroupAffinity())
+      {
+         SimpleString groupID = message.getSimpleStringProperty(Message.HDR_GROUP_ID);
+
+         if (groupID != null)
+         {
+            shards.getShardForGroup(groupID, message).getQueue().route(message, context);
+
+            return;
+         }
+      }
+
       queue.route(message, context);
    }
 
@@ -143,6 +183,8 @@ public class LocalQueueBinding implements QueueBinding
              filter +
              ", name=" +
              name +
+             ", routingName=" +
+             routingName +
              ", clusterName=" +
              clusterName +
              "]";
@@ -48,6 +48,7 @@ import org.hornetq.core.postoffice.BindingType;
 import org.hornetq.core.postoffice.Bindings;
 import org.hornetq.core.postoffice.BindingsFactory;
 import org.hornetq.core.postoffice.DuplicateIDCache;
+import org.hornetq.core.postoffice.ExpiryIndex;
 import org.hornetq.core.postoffice.PostOffice;
 import org.hornetq.core.postoffice.QueueInfo;
 import org.hornetq.core.server.HornetQMessageBundle;
@@ -90,6 +91,8 @@ public class PostOfficeImpl implements PostOffice, NotificationListener, Binding
 
    public static final SimpleString BRIDGE_CACHE_STR = new SimpleString("BRIDGE.");
 
+   private static final long EXPIRY_INDEX_MAX_TICK = 1000;
+
    private final AddressManager addressManager;
 
    private final QueueFactory queueFactory;
@@ -110,6 +113,8 @@ public class PostOfficeImpl implements PostOffice, NotificationListener, Binding
 
    private final int reaperPriority;
 
+   private final ExpiryIndex expiryIndex;
+
    private final ConcurrentMap<SimpleString, DuplicateIDCache> duplicateIDCaches = new ConcurrentHashMap<SimpleString, DuplicateIDCache>();
 
    private final int idCacheSize;
@@ -149,6 +154,9 @@ public class PostOfficeImpl implements PostOffice, NotificationListener, Binding
 
       this.reaperPriority = reaperPriority;
 
+      // The ticks are kept short so expiring on demand (e.g. after depaging) is precise even with a long reaper period
+      expiryIndex = reaperPeriod > 0 ? new ExpiryIndexImpl(Math.min(reaperPeriod, PostOfficeImpl.EXPIRY_INDEX_MAX_TICK)) : null;
+
       if (enableWildCardRouting)
       {
          addressManager = new WildcardAddressManager(this);
@@ -773,6 +781,11 @@ public class PostOfficeImpl implements PostOffice, NotificationListener, Binding
       return null;
    }
 
+   public ExpiryIndex getExpiryIndex()
+   {
+      return expiryIndex;
+   }
+
    public DuplicateIDCache getDuplicateIDCache(final SimpleString address)
    {
       DuplicateIDCache cache = duplicateIDCaches.get(address);
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.postoffice.impl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.core.server.ServerMessage;
+
+/**
+ * The shards of a sharded queue.
+ * <p>
+ * A sharded queue is a set of local queues bound to the same address under one routing name, each
+ * with its own executor and page subscription, so the delivery of one logical queue isn't limited
+ * to one thread. The first shard is named as the queue, and the others add {@link #SHARD_SEPARATOR}
+ * and their index to its name.
+ * <p>
+ * The messages are routed among the shards as among any bindings sharing a routing name,
+ * preferring the shards with consumers. With group affinity, all the messages of a group go to the
+ * same shard, where the group is kept on one consumer as usual. A group only changes shard when
+ * the one it is on has neither a consumer nor messages left. Consumers are attached to the shard
+ * with the fewest consumers.
+ * <p>
+ * With fewer consumers than shards, the shards without consumers get a redistributor after
+ * {@link #REDISTRIBUTION_DELAY_PROPERTY}, which moves their messages to the shards with consumers.
+ * As on any queue, it doesn't move grouped messages, which wait on their shard for a consumer.
+ */
+public final class QueueShards
+{
+   /** Whether the messages of a group are all routed to the same shard, true by default */
+   public static final String GROUP_AFFINITY_PROPERTY = "org.hornetq.opt.shardgroupaffinity";
+
+   /** How long a shard is left without consumers before its messages move to the other shards, 1000 ms by default */
+   public static final String REDISTRIBUTION_DELAY_PROPERTY = "org.hornetq.opt.shardredistributiondelay";
+
+   public static final String SHARD_SEPARATOR = "$shard-";
+
+   // the shards are ordered by queue ID, which doesn't change across restarts, so a group keeps its shard
+   private static final Comparator<LocalQueueBinding> ID_ORDER = new Comparator<LocalQueueBinding>()
+   {
+      public int compare(final LocalQueueBinding binding1, final LocalQueueBinding binding2)
+      {
+         long id1 = binding1.getID();
+         long id2 = binding2.getID();
+
+         return id1 < id2 ? -1 : id1 == id2 ? 0 : 1;
+      }
+   };
+
+   private final SimpleString name;
+
+   private volatile LocalQueueBinding[] shards = new LocalQueueBinding[0];
+
+   private volatile boolean groupAffinity = Boolean.parseBoolean(System.getProperty(QueueShards.GROUP_AFFINITY_PROPERTY,
+                                                                                    "true"));
+
+   private volatile long redistributionDelay = Long.getLong(QueueShards.REDISTRIBUTION_DELAY_PROPERTY, 1000);
+
+   // the groups routed away from their home shard, see getShardForGroup
+   private final ConcurrentMap<SimpleString, LocalQueueBinding> displacedGroups = new ConcurrentHashMap<SimpleString, LocalQueueBinding>();
+
+   public QueueShards(final SimpleString name)
+   {
+      this.name = name;
+   }
+
+   public static SimpleString getShardName(final SimpleString name, final int index)
+   {
+      return index == 0 ? name : name.concat(QueueShards.SHARD_SEPARATOR + index);
+   }
+
+   /**
+    * @return the name of the sharded queue, which is the routing name of all its shards
+    */
+   public SimpleString getName()
+   {
+      return name;
+   }
+
+   public synchronized void addShard(final LocalQueueBinding binding)
+   {
+      LocalQueueBinding[] newShards = Arrays.copyOf(shards, shards.length + 1);
+
+      newShards[shards.length] = binding;
+
+      Arrays.sort(newShards, QueueShards.ID_ORDER);
+
+      shards = newShards;
+   }
+
+   public LocalQueueBinding[] getShards()
+   {
+      return shards.clone();
+   }
+
+   public int getShardCount()
+   {
+      return shards.length;
+   }
+
+   public boolean isGroupAffinity()
+   {
+      return groupAffinity;
+   }
+
+   public void setGroupAffinity(final boolean groupAffinity)
+   {
+      this.groupAffinity = groupAffinity;
+   }
+
+   public long getRedistributionDelay()
+   {
+      return redistributionDelay;
+   }
+
+   public void setRedistributionDelay(final long redistributionDelay)
+   {
+      this.redistributionDelay = redistributionDelay;
+   }
+
+   /**
+    * A group is hashed over all the shards, which don't change with the consumers, to its home
+    * shard. It only leaves the shard it is on when that shard has no consumer for the message and
+    * no messages left, so the group's messages are never reordered: it then goes home if home has a
+    * consumer for the message, or to the next shard after home that has one.
+    *
+    * @return the shard all the messages of the group are routed to
+    */
+   public LocalQueueBinding getShardForGroup(final SimpleString groupID, final ServerMessage message)
+   {
+      LocalQueueBinding[] current = shards;
+
+      int home = (groupID.hashCode() & Integer.MAX_VALUE) % current.length;
+
+      LocalQueueBinding displaced = displacedGroups.get(groupID);
+
+      LocalQueueBinding shard = displaced != null ? displaced : current[home];
+
+      if (shard.isHighAcceptPriority(message) || shard.getQueue().getInstantMessageCount() > 0)
+      {
+         return shard;
+      }
+
+      for (int i = 0; i < current.length; i++)
+      {
+         LocalQueueBinding candidate = current[(home + i) % current.length];
+
+         if (candidate.isHighAcceptPriority(message))
+         {
+            if (i == 0)
+            {
+               displacedGroups.remove(groupID);
+            }
+            else
+            {
+               displacedGroups.put(groupID, candidate);
+            }
+
+            return candidate;
+         }
+      }
+
+      return shard;
+   }
+
+   /**
+    * Called when a consumer is added to or removed from a shard. If some shard has consumers, the
+    * shards without consumers get a redistributor, otherwise theirs are cancelled as there is nowhere
+    * to move their messages.
+    */
+   public void consumersChanged() throws Exception
+   {
+      LocalQueueBinding[] current = shards;
+
+      boolean consumers = false;
+
+      for (LocalQueueBinding shard : current)
+      {
+         if (shard.consumerCount() > 0)
+         {
+            consumers = true;
+
+            break;
+         }
+      }
+
+      for (LocalQueueBinding shard : current)
+      {
+         if (shard.consumerCount() == 0)
+         {
+            if (consumers)
+            {
+               shard.getQueue().addRedistributor(redistributionDelay);
+            }
+            else
+            {
+               shard.getQueue().cancelRedistributor();
+            }
+         }
+      }
+   }
+
+   /**
+    * @return the shard with the fewest consumers, the first one on a tie
+    */
+   public LocalQueueBinding getShardForConsumer()
+   {
+      LocalQueueBinding selected = null;
+
+      int selectedCount = Integer.MAX_VALUE;
+
+      for (LocalQueueBinding shard : shards)
+      {
+         int count = shard.consumerCount();
+
+         if (count < selectedCount)
+         {
+            selected = shard;
+            selectedCount = count;
+         }
+      }
+
+      return selected;
+   }
+
+   public int getConsumerCount()
+   {
+      int count = 0;
+
+      for (LocalQueueBinding shard : shards)
+      {
+         count += shard.consumerCount();
+      }
+
+      return count;
+   }
+
+   public long getMessageCount(final long timeout)
+   {
+      long count = 0;
+
+      for (LocalQueueBinding shard : shards)
+      {
+         count += shard.getQueue().getMessageCount(timeout);
+      }
+
+      return count;
+   }
+
+   @Override
+   public String toString()
+   {
+      return "QueueShards [name=" + name + ", shards=" + shards.length + "]";
+   }
+}
@@ -81,6 +81,16 @@ public final class CoreSessionCallback implements SessionCallback
       return size;
    }
 
+   public void holdDeliveries()
+   {
+      channel.getConnection().getTransportConnection().holdBatch();
+   }
+
+   public void releaseDeliveries()
+   {
+      channel.getConnection().getTransportConnection().releaseBatch();
+   }
+
    public void sendProducerCreditsMessage(int credits, SimpleString address)
    {
       Packet packet = new SessionProducerCreditsMessage(credits, address);
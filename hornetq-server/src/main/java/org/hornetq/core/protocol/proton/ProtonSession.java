@@ -173,6 +173,16 @@ public class ProtonSession implements SessionCallback
       //To change body of implemented methods use File | Settings | File Templates.
    }
 
+   @Override
+   public void holdDeliveries()
+   {
+   }
+
+   @Override
+   public void releaseDeliveries()
+   {
+   }
+
    public OperationContext getContext()
    {
       return context;
@@ -196,6 +196,15 @@ public class StompSession implements SessionCallback
       connection.getTransportConnection().removeReadyListener(listener);
    }
 
+   public void holdDeliveries()
+   {
+      // frames aren't batched
+   }
+
+   public void releaseDeliveries()
+   {
+   }
+
    public void acknowledge(String messageID, String subscriptionID) throws Exception
    {
       long id = Long.parseLong(messageID);
@@ -131,6 +131,14 @@ public class InVMConnection implements Connection
    {
    }
 
+   public void holdBatch()
+   {
+   }
+
+   public void releaseBatch()
+   {
+   }
+
    public void write(final HornetQBuffer buffer)
    {
       write(buffer, false, false);
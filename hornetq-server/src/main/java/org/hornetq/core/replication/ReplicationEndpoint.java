@@ -822,6 +822,8 @@ public final class ReplicationEndpoint implements ChannelHandler, HornetQCompone
       ServerMessage msg = pgdMessage.getMessage();
       Page page = getPage(msg.getAddress(), packet.getPageNumber());
       page.write(pgdMessage);
+      // the backup doesn't sync its pages, so it doesn't batch the writes either
+      page.flush();
    }
 
    private ConcurrentMap<Integer, Page> getPageMap(final SimpleString storeName)
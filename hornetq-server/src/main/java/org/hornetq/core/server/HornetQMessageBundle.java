@@ -222,7 +222,7 @@ public interface HornetQMessageBundle
    @Message(id = 119049, value = "No queue found for {0}", format = Message.Format.MESSAGE_FORMAT)
    IllegalArgumentException noQueueFound(String otherQueueName);
 
-   @Message(id = 119050, value = "Only NIO and AsyncIO are supported journals", format = Message.Format.MESSAGE_FORMAT)
+   @Message(id = 119050, value = "Only NIO, AsyncIO and Mapped are supported journals", format = Message.Format.MESSAGE_FORMAT)
    IllegalArgumentException invalidJournal();
 
    @Message(id = 119051, value = "Invalid journal type {0}", format = Message.Format.MESSAGE_FORMAT)
@@ -371,5 +371,11 @@ public interface HornetQMessageBundle
 
    @Message(id = 119098, value =  "Queue {0} has a different filter than requested", format = Message.Format.MESSAGE_FORMAT)
    HornetQInvalidTransientQueueUseException queueSubscriptionBelongsToDifferentFilter(SimpleString queueName);
+
+   @Message(id = 119099, value =  "Journal stripes can''t be replicated, set {0} to 1 or use a shared store", format = Message.Format.MESSAGE_FORMAT)
+   IllegalArgumentException journalStripesReplicating(String property);
+
+   @Message(id = 119100, value =  "The journal was written with {0} stripes, it can''t be loaded with {1}", format = Message.Format.MESSAGE_FORMAT)
+   HornetQIllegalStateException journalStripesLowered(int persisted, int configured);
    
 }
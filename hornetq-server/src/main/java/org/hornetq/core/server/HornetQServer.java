@@ -90,6 +90,21 @@ public interface HornetQServer extends HornetQComponent
 
    Version getVersion();
 
+   /**
+    * @return the milliseconds the last start spent reading the message journal files
+    */
+   long getJournalScanTime();
+
+   /**
+    * @return the milliseconds the last start spent applying the records of the message journal
+    */
+   long getJournalMergeTime();
+
+   /**
+    * @return the milliseconds the last start spent rebuilding the queues from the loaded messages
+    */
+   long getQueueRebuildTime();
+
    NodeManager getNodeManager();
 
    /**
@@ -185,6 +200,23 @@ public interface HornetQServer extends HornetQComponent
                      boolean durable,
                      boolean temporary) throws Exception;
 
+   /**
+    * Creates a queue made of several shards, each delivering on its own executor.
+    * <p>
+    * The shards are queues bound to the address under the name of the sharded queue. The first one
+    * is named as the sharded queue, and the others add {@link org.hornetq.core.postoffice.impl.QueueShards#SHARD_SEPARATOR}
+    * and their index to its name. Consumers created on the sharded queue are attached to the shard
+    * with the fewest consumers, so it should have at least as many consumers as shards.
+    *
+    * @return the first shard
+    */
+   Queue createShardedQueue(SimpleString address,
+                            SimpleString queueName,
+                            SimpleString filter,
+                            boolean durable,
+                            boolean temporary,
+                            int shards) throws Exception;
+
    Queue deployQueue(SimpleString address,
                      SimpleString queueName,
                      SimpleString filterString,
@@ -255,6 +255,14 @@ public interface HornetQServerLogger extends BasicLogger
             format = Message.Format.MESSAGE_FORMAT)
    void deprecatedConfigurationOption(String deprecatedOption);
 
+   @LogMessage(level = Logger.Level.INFO)
+   @Message(id = 221039, value = "Using Mapped Journal", format = Message.Format.MESSAGE_FORMAT)
+   void journalUseMapped();
+
+   @LogMessage(level = Logger.Level.INFO)
+   @Message(id = 221040, value = "Spreading the messages over {0} journals", format = Message.Format.MESSAGE_FORMAT)
+   void journalUseStripes(int stripes);
+
    @LogMessage(level = Logger.Level.WARN)
    @Message(id = 222000, value = "HornetQServer is being finalized and has not been stopped. Please remember to stop the server before letting it go out of scope",
          format = Message.Format.MESSAGE_FORMAT)
@@ -992,6 +1000,10 @@ public interface HornetQServerLogger extends BasicLogger
    @Message(id = 222166, value = "Error stopping naming server", format = Message.Format.MESSAGE_FORMAT)
    void unableToStopNamingServer(@Cause Exception e);
 
+   @LogMessage(level = Logger.Level.WARN)
+   @Message(id = 222167, value = "Journal stripes are ignored on a replicated backup", format = Message.Format.MESSAGE_FORMAT)
+   void journalStripesReplicated();
+
    @LogMessage(level = Logger.Level.ERROR)
    @Message(id = 224000, value = "Failure in initialisation", format = Message.Format.MESSAGE_FORMAT)
    void initializationError(@Cause Throwable e);
@@ -22,5 +22,5 @@ package org.hornetq.core.server;
  */
 public enum JournalType
 {
-   NIO, ASYNCIO;
+   NIO, ASYNCIO, MAPPED;
 }
@@ -120,6 +120,21 @@ public interface Queue extends Bindable
 
    List<MessageReference> getScheduledMessages();
 
+   /**
+    * @return the number of scheduled messages delivered to this queue since it was created
+    */
+   long getScheduledDeliveredCount();
+
+   /**
+    * @return how late, in milliseconds, the last scheduled messages were delivered to this queue
+    */
+   long getScheduledDeliveryLag();
+
+   /**
+    * @return how late, in milliseconds, scheduled messages were delivered to this queue at most
+    */
+   long getMaxScheduledDeliveryLag();
+
    /**
     * Return a Map consisting of consumer.toString and its messages
     * Delivering message is a property of the consumer, this method will aggregate the results per Server's consumer object
@@ -163,6 +178,11 @@ public interface Queue extends Bindable
 
    void expireReferences() throws Exception;
 
+   /**
+    * Expire the references found expired by the {@link org.hornetq.core.postoffice.ExpiryIndex}, if they are still on the queue
+    */
+   void expireReferences(List<MessageReference> refs);
+
    void expire(MessageReference ref) throws Exception;
 
    boolean sendMessageToDeadLetterAddress(long messageID) throws Exception;
@@ -30,4 +30,19 @@ public interface ScheduledDeliveryHandler
    List<MessageReference> cancel(Filter filter);
 
    MessageReference removeReferenceWithID(long id);
+
+   /**
+    * @return the number of scheduled references delivered to the queue
+    */
+   long getDeliveredCount();
+
+   /**
+    * @return how late, in milliseconds, the last references delivered were delivered
+    */
+   long getDeliveryLag();
+
+   /**
+    * @return how late, in milliseconds, references were delivered at most
+    */
+   long getMaxDeliveryLag();
 }
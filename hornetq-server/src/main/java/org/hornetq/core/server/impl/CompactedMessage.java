@@ -0,0 +1,234 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.server.impl;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hornetq.api.core.HornetQBuffer;
+import org.hornetq.api.core.HornetQBuffers;
+import org.hornetq.core.journal.impl.NativeBufferPool;
+import org.hornetq.core.paging.PagingStore;
+import org.hornetq.core.server.ServerMessage;
+import org.hornetq.utils.MemorySize;
+
+/**
+ * The message of a queued reference, kept off heap in the encoding it has on the journal until the
+ * reference is delivered.
+ * <p>
+ * Only a message referenced by a single queue is compacted, so the compacted message owns its
+ * reference counts. While compacted, the paging store of the address counts {@link #MEMORY_ESTIMATE}
+ * for it instead of the estimate of the message, which lets many more messages be queued before the
+ * address pages. The off heap bytes are limited by {@link #MAX_BYTES_PROPERTY} for the whole VM.
+ * <p>
+ * A message is left on heap when its buffer off heap would take more than compacting saves on heap:
+ * the pooled buffers are powers of two of at least {@link NativeBufferPool#MIN_CLASS_SIZE}, so a
+ * small message gains little or nothing.
+ */
+public final class CompactedMessage
+{
+   /** The maximum bytes of compacted messages held off heap, 256MiB by default */
+   public static final String MAX_BYTES_PROPERTY = "org.hornetq.opt.compactedmessagebytes";
+
+   /** What a compacted message takes on heap, with its buffer */
+   public static final int MEMORY_ESTIMATE;
+
+   static
+   {
+      // The CompactedMessage plus the DirectByteBuffer, as for the other estimates it's only an estimate
+      if (MemorySize.is64bitArch())
+      {
+         MEMORY_ESTIMATE = 112;
+      }
+      else
+      {
+         MEMORY_ESTIMATE = 72;
+      }
+   }
+
+   private static volatile long maxBytes = Long.getLong(CompactedMessage.MAX_BYTES_PROPERTY, 256L * 1024 * 1024);
+
+   private static final AtomicLong bytes = new AtomicLong(0);
+
+   private static final AtomicLong count = new AtomicLong(0);
+
+   private final long messageID;
+
+   private final ByteBuffer buffer;
+
+   private final PagingStore pagingStore;
+
+   private final int durableRefCount;
+
+   private final int memoryEstimate;
+
+   private CompactedMessage(final ServerMessageImpl message, final ByteBuffer buffer)
+   {
+      messageID = message.getMessageID();
+
+      this.buffer = buffer;
+
+      pagingStore = message.getPagingStore();
+
+      durableRefCount = message.getDurableRefCount();
+
+      memoryEstimate = message.getMemoryEstimate();
+   }
+
+   /**
+    * @return the compacted message, or null if the message can't be compacted, is too small to be
+    *         worth it or there isn't room off heap
+    */
+   static CompactedMessage compact(final ServerMessage message)
+   {
+      if (message == null || message.getClass() != ServerMessageImpl.class ||
+          message.getRefCount() != 1 ||
+          message.getExpiration() != 0)
+      {
+         // a message on other queues is shared, and an expiring message would be expanded by the expiry scans
+         return null;
+      }
+
+      int size = message.getEncodeSize();
+
+      if (message.getMemoryEstimate() - CompactedMessage.MEMORY_ESTIMATE <= NativeBufferPool.capacityFor(size))
+      {
+         // too small to be worth it
+         return null;
+      }
+
+      ByteBuffer buffer = NativeBufferPool.getShared().borrow(size);
+
+      if (CompactedMessage.bytes.addAndGet(buffer.capacity()) > CompactedMessage.maxBytes)
+      {
+         CompactedMessage.bytes.addAndGet(-buffer.capacity());
+
+         NativeBufferPool.getShared().release(buffer);
+
+         return null;
+      }
+
+      HornetQBuffer wrapper = HornetQBuffers.wrappedBuffer(buffer);
+
+      message.encode(wrapper);
+
+      CompactedMessage compacted = new CompactedMessage((ServerMessageImpl)message, buffer);
+
+      if (compacted.pagingStore != null)
+      {
+         compacted.pagingStore.addSize(CompactedMessage.MEMORY_ESTIMATE - compacted.memoryEstimate);
+      }
+
+      CompactedMessage.count.incrementAndGet();
+
+      return compacted;
+   }
+
+   public static long getMaxBytes()
+   {
+      return CompactedMessage.maxBytes;
+   }
+
+   public static void setMaxBytes(final long maxBytes)
+   {
+      CompactedMessage.maxBytes = maxBytes;
+   }
+
+   /**
+    * @return the bytes held off heap by all the compacted messages
+    */
+   public static long getBytes()
+   {
+      return CompactedMessage.bytes.get();
+   }
+
+   /**
+    * @return the number of compacted messages not yet expanded
+    */
+   public static long getCount()
+   {
+      return CompactedMessage.count.get();
+   }
+
+   long getMessageID()
+   {
+      return messageID;
+   }
+
+   int getMemoryEstimate()
+   {
+      return memoryEstimate;
+   }
+
+   /**
+    * Decodes the message back, with the reference counts it had, and releases the off heap bytes.
+    * It can only be called once.
+    */
+   ServerMessageImpl expand()
+   {
+      ServerMessageImpl message = new ServerMessageImpl(messageID, 50);
+
+      HornetQBuffer wrapper = HornetQBuffers.wrappedBuffer(buffer);
+
+      wrapper.writerIndex(buffer.limit());
+
+      message.decode(wrapper);
+
+      release();
+
+      message.setMemoryEstimate(memoryEstimate);
+
+      for (int i = 0; i < durableRefCount; i++)
+      {
+         message.incrementDurableRefCount();
+      }
+
+      try
+      {
+         // without a paging store it only counts
+         message.incrementRefCount();
+      }
+      catch (Exception e)
+      {
+         throw new IllegalStateException(e);
+      }
+
+      if (pagingStore != null)
+      {
+         message.setPagingStore(pagingStore);
+
+         pagingStore.addSize(memoryEstimate - CompactedMessage.MEMORY_ESTIMATE);
+      }
+
+      return message;
+   }
+
+   /**
+    * Releases the off heap bytes of a message that won't be expanded.
+    */
+   void release()
+   {
+      CompactedMessage.bytes.addAndGet(-buffer.capacity());
+
+      CompactedMessage.count.decrementAndGet();
+
+      NativeBufferPool.getShared().release(buffer);
+   }
+
+   @Override
+   public String toString()
+   {
+      return "CompactedMessage[messageID=" + messageID + ", bytes=" + buffer.limit() + "]";
+   }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.core.server.impl;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hornetq.core.server.MessageReference;
+
+/**
+ * The references a consumer delivered and that weren't acknowledged yet.
+ * <p>
+ * They are kept in delivery order for the regular acknowledgements, and indexed by message ID so
+ * individual acknowledgements, cancellations and expiries unlink a reference in constant time,
+ * whatever the size of the consumer window.
+ * <p>
+ * The same message is not expected twice on one consumer, but if that happens the references are
+ * still removed by message ID in delivery order.
+ */
+public final class DeliveringRefs
+{
+   private static final class Node
+   {
+      final MessageReference ref;
+
+      final long messageID;
+
+      Node prev;
+
+      Node next;
+
+      /** The next reference delivered for the same message ID */
+      Node sameID;
+
+      Node(final MessageReference ref, final long messageID)
+      {
+         this.ref = ref;
+         this.messageID = messageID;
+      }
+   }
+
+   /** The oldest node for each message ID */
+   private final Map<Long, Node> index = new HashMap<Long, Node>();
+
+   private Node head;
+
+   private Node tail;
+
+   private int size;
+
+   public synchronized void add(final MessageReference ref)
+   {
+      Node node = new Node(ref, ref.getMessage().getMessageID());
+
+      Node first = index.put(node.messageID, node);
+
+      if (first != null)
+      {
+         // keep the oldest on the index
+         index.put(node.messageID, first);
+
+         Node last = first;
+         while (last.sameID != null)
+         {
+            last = last.sameID;
+         }
+         last.sameID = node;
+      }
+
+      if (tail == null)
+      {
+         head = node;
+      }
+      else
+      {
+         tail.next = node;
+         node.prev = tail;
+      }
+
+      tail = node;
+
+      size++;
+   }
+
+   /**
+    * @return the oldest reference, or null if there are none
+    */
+   public synchronized MessageReference poll()
+   {
+      Node node = head;
+
+      if (node == null)
+      {
+         return null;
+      }
+
+      // the oldest reference is always the oldest of its message ID as well
+      unlink(node);
+
+      return node.ref;
+   }
+
+   /**
+    * @return the oldest reference delivered for messageID, or null if there are none
+    */
+   public synchronized MessageReference removeByID(final long messageID)
+   {
+      Node node = index.get(messageID);
+
+      if (node == null)
+      {
+         return null;
+      }
+
+      unlink(node);
+
+      return node.ref;
+   }
+
+   public synchronized boolean isEmpty()
+   {
+      return head == null;
+   }
+
+   public synchronized int size()
+   {
+      return size;
+   }
+
+   /**
+    * Adds all the references to refs, in delivery order.
+    */
+   public synchronized void copyTo(final Collection<MessageReference> refs)
+   {
+      for (Node node = head; node != null; node = node.next)
+      {
+         refs.add(node.ref);
+      }
+   }
+
+   public synchronized void clear()
+   {
+      index.clear();
+      head = null;
+      tail = null;
+      size = 0;
+   }
+
+   // Private -------------------------------------------------------
+
+   /** The node has to be the oldest of its message ID */
+   private void unlink(final Node node)
+   {
+      if (node.sameID == null)
+      {
+         index.remove(node.messageID);
+      }
+      else
+      {
+         index.put(node.messageID, node.sameID);
+      }
+
+      if (node.prev == null)
+      {
+         head = node.next;
+      }
+      else
+      {
+         node.prev.next = node.next;
+      }
+
+      if (node.next == null)
+      {
+         tail = node.prev;
+      }
+      else
+      {
+         node.next.prev = node.prev;
+      }
+
+      size--;
+   }
+}
@@ -100,6 +100,7 @@ import org.hornetq.core.postoffice.PostOffice;
 import org.hornetq.core.postoffice.QueueBinding;
 import org.hornetq.core.postoffice.impl.DivertBinding;
 import org.hornetq.core.postoffice.impl.LocalQueueBinding;
+import org.hornetq.core.postoffice.impl.QueueShards;
 import org.hornetq.core.postoffice.impl.PostOfficeImpl;
 import org.hornetq.core.protocol.ServerPacketDecoder;
 import org.hornetq.core.protocol.core.Channel;
@@ -295,6 +296,13 @@ public class HornetQServerImpl implements HornetQServer
    private final Object failbackCheckerGuard = new Object();
    private boolean cancelFailBackChecker;
 
+   // Timing of the last load of the message journal, in milliseconds
+   private volatile long journalScanTime;
+
+   private volatile long journalMergeTime;
+
+   private volatile long queueRebuildTime;
+
    // Constructors
    // ---------------------------------------------------------------------------------
 
@@ -937,6 +945,21 @@ public class HornetQServerImpl implements HornetQServer
       return version;
    }
 
+   public long getJournalScanTime()
+   {
+      return journalScanTime;
+   }
+
+   public long getJournalMergeTime()
+   {
+      return journalMergeTime;
+   }
+
+   public long getQueueRebuildTime()
+   {
+      return queueRebuildTime;
+   }
+
    public boolean isStarted()
    {
       return state == SERVER_STATE.STARTED;
@@ -1103,6 +1126,21 @@ public class HornetQServerImpl implements HornetQServer
       return createQueue(address, queueName, filterString, durable, temporary, false, false);
    }
 
+   public Queue createShardedQueue(final SimpleString address,
+                                   final SimpleString queueName,
+                                   final SimpleString filterString,
+                                   final boolean durable,
+                                   final boolean temporary,
+                                   final int shards) throws Exception
+   {
+      if (shards < 1)
+      {
+         throw new IllegalArgumentException("A sharded queue needs at least one shard, not " + shards);
+      }
+
+      return createQueue(address, queueName, filterString, durable, temporary, false, false, shards);
+   }
+
 
    /**
     * Creates a transient queue. A queue that will exist as long as there are consumers.
@@ -1200,8 +1238,12 @@ public class HornetQServerImpl implements HornetQServer
 
       Queue queue = (Queue)binding.getBindable();
 
+      QueueShards shards = binding instanceof LocalQueueBinding ? ((LocalQueueBinding)binding).getShards() : null;
+
+      int consumerCount = shards != null ? shards.getConsumerCount() : queue.getConsumerCount();
+
       // This check is only valid if checkConsumerCount == true
-      if (checkConsumerCount && queue.getConsumerCount() != 0)
+      if (checkConsumerCount && consumerCount != 0)
       {
          throw HornetQMessageBundle.BUNDLE.cannotDeleteQueue(queue.getName(), queueName, binding.getClass().getName());
       }
@@ -1220,7 +1262,18 @@ public class HornetQServerImpl implements HornetQServer
          }
       }
 
-      queue.deleteQueue();
+      if (shards != null)
+      {
+         // a sharded queue is deleted whole
+         for (LocalQueueBinding shard : shards.getShards())
+         {
+            shard.getQueue().deleteQueue();
+         }
+      }
+      else
+      {
+         queue.deleteQueue();
+      }
    }
 
 
@@ -1387,7 +1440,8 @@ public class HornetQServerImpl implements HornetQServer
          scheduledPool,
          executorFactory,
          configuration.isJournalSyncNonTransactional(),
-         shutdownOnCriticalIO),
+         shutdownOnCriticalIO,
+         configuration.getJournalType() == JournalType.MAPPED),
       addressSettingsRepository);
    }
 
@@ -1699,6 +1753,7 @@ public class HornetQServerImpl implements HornetQServer
 
       Map<Long, Queue> queues = new HashMap<Long, Queue>();
       Map<Long, QueueBindingInfo> queueBindingInfosMap = new HashMap<Long, QueueBindingInfo>();
+      Map<SimpleString, QueueShards> shardsByName = new HashMap<SimpleString, QueueShards>();
 
       // Used to rename the queue in case there's a duplication
       int duplicateID = 0;
@@ -1748,7 +1803,28 @@ public class HornetQServerImpl implements HornetQServer
             true,
             false);
 
-         Binding binding = new LocalQueueBinding(queueBindingInfo.getAddress(), queue, nodeManager.getNodeId());
+         QueueShards shards = null;
+
+         if (queueBindingInfo.getRoutingName() != null)
+         {
+            shards = shardsByName.get(queueBindingInfo.getRoutingName());
+
+            if (shards == null)
+            {
+               shards = new QueueShards(queueBindingInfo.getRoutingName());
+               shardsByName.put(queueBindingInfo.getRoutingName(), shards);
+            }
+         }
+
+         LocalQueueBinding binding = new LocalQueueBinding(queueBindingInfo.getAddress(),
+                                                           queue,
+                                                           nodeManager.getNodeId(),
+                                                           shards);
+
+         if (shards != null)
+         {
+            shards.addShard(binding);
+         }
 
          queues.put(queueBindingInfo.getId(), queue);
 
@@ -1773,6 +1849,8 @@ public class HornetQServerImpl implements HornetQServer
 
       HashSet<Pair<Long, Long>> pendingLargeMessages = new HashSet<Pair<Long, Long>>();
 
+      long loadStart = System.currentTimeMillis();
+
       journalInfo[1] = storageManager.loadMessageJournal(postOffice,
          pagingManager,
          resourceManager,
@@ -1781,6 +1859,11 @@ public class HornetQServerImpl implements HornetQServer
          duplicateIDMap,
          pendingLargeMessages);
 
+      // whatever wasn't spent reading and applying the journal records went on rebuilding the queues
+      journalScanTime = journalInfo[1].getScanTime();
+      journalMergeTime = journalInfo[1].getMergeTime();
+      queueRebuildTime = Math.max(0, System.currentTimeMillis() - loadStart - journalScanTime - journalMergeTime);
+
       for (Map.Entry<SimpleString, List<Pair<byte[], Long>>> entry : duplicateIDMap.entrySet())
       {
          SimpleString address = entry.getKey();
@@ -1840,6 +1923,22 @@ public class HornetQServerImpl implements HornetQServer
                              final boolean temporary,
                              final boolean ignoreIfExists,
                              final boolean transientQueue) throws Exception
+   {
+      return createQueue(address, queueName, filterString, durable, temporary, ignoreIfExists, transientQueue, 1);
+   }
+
+   /**
+    * @param shardCount the number of shards of the queue, 1 for a queue that isn't sharded
+    * @return the queue, or its first shard
+    */
+   private Queue createQueue(final SimpleString address,
+                             final SimpleString queueName,
+                             final SimpleString filterString,
+                             final boolean durable,
+                             final boolean temporary,
+                             final boolean ignoreIfExists,
+                             final boolean transientQueue,
+                             final int shardCount) throws Exception
    {
       QueueBinding binding = (QueueBinding)postOffice.getBinding(queueName);
 
@@ -1855,47 +1954,83 @@ public class HornetQServerImpl implements HornetQServer
          }
       }
 
-      Filter filter = FilterImpl.createFilter(filterString);
+      QueueShards shards = null;
 
-      long txID = storageManager.generateUniqueID();
-      long queueID = storageManager.generateUniqueID();
+      if (shardCount > 1)
+      {
+         shards = new QueueShards(queueName);
 
-      PageSubscription pageSubscription;
+         for (int i = 1; i < shardCount; i++)
+         {
+            SimpleString shardName = QueueShards.getShardName(queueName, i);
 
-      if (filterString != null && filterString.toString().equals(GENERIC_IGNORED_FILTER))
-      {
-         pageSubscription = null;
-      }
-      else
-      {
-         pageSubscription = pagingManager.getPageStore(address)
-            .getCursorProvider()
-            .createSubscription(queueID, filter, durable);
+            if (postOffice.getBinding(shardName) != null)
+            {
+               throw HornetQMessageBundle.BUNDLE.queueAlreadyExists(shardName);
+            }
+         }
       }
 
-      final Queue queue = queueFactory.createQueue(queueID,
-         address,
-         queueName,
-         filter,
-         pageSubscription,
-         durable,
-         temporary);
+      Filter filter = FilterImpl.createFilter(filterString);
 
-      if (transientQueue)
-      {
-         queue.setConsumersRefCount(this);
-      }
+      long txID = storageManager.generateUniqueID();
 
-      binding = new LocalQueueBinding(address, queue, nodeManager.getNodeId());
+      List<LocalQueueBinding> bindings = new ArrayList<LocalQueueBinding>(shardCount);
 
-      if (durable)
-      {
-         storageManager.addQueueBinding(txID, binding);
-      }
+      PageSubscription pageSubscription = null;
+
+      Queue queue = null;
 
       try
       {
-         postOffice.addBinding(binding);
+         for (int i = 0; i < shardCount; i++)
+         {
+            long queueID = storageManager.generateUniqueID();
+
+            if (filterString != null && filterString.toString().equals(GENERIC_IGNORED_FILTER))
+            {
+               pageSubscription = null;
+            }
+            else
+            {
+               pageSubscription = pagingManager.getPageStore(address)
+                  .getCursorProvider()
+                  .createSubscription(queueID, filter, durable);
+            }
+
+            queue = queueFactory.createQueue(queueID,
+               address,
+               QueueShards.getShardName(queueName, i),
+               filter,
+               pageSubscription,
+               durable,
+               temporary);
+
+            if (transientQueue)
+            {
+               queue.setConsumersRefCount(this);
+            }
+
+            LocalQueueBinding shardBinding = new LocalQueueBinding(address, queue, nodeManager.getNodeId(), shards);
+
+            if (shards != null)
+            {
+               shards.addShard(shardBinding);
+            }
+
+            if (durable)
+            {
+               storageManager.addQueueBinding(txID, shardBinding);
+            }
+
+            postOffice.addBinding(shardBinding);
+
+            bindings.add(shardBinding);
+
+            queue = null;
+            pageSubscription = null;
+         }
+
          if (durable)
          {
             storageManager.commitBindings(txID);
@@ -1917,6 +2052,15 @@ public class HornetQServerImpl implements HornetQServer
             {
                pageSubscription.destroy();
             }
+            for (LocalQueueBinding added : bindings)
+            {
+               // closes the queue as well
+               postOffice.removeBinding(added.getUniqueName(), null);
+               if (added.getQueue().getPageSubscription() != null)
+               {
+                  added.getQueue().getPageSubscription().destroy();
+               }
+            }
          }
          catch (Throwable ignored)
          {
@@ -1927,9 +2071,13 @@ public class HornetQServerImpl implements HornetQServer
 
 
       managementService.registerAddress(address);
-      managementService.registerQueue(queue, address, storageManager);
 
-      return queue;
+      for (LocalQueueBinding shardBinding : bindings)
+      {
+         managementService.registerQueue(shardBinding.getQueue(), address, storageManager);
+      }
+
+      return bindings.get(0).getQueue();
    }
 
    private void deployDiverts() throws Exception
@@ -71,6 +71,9 @@ public class LastValueQueue extends QueueImpl
             storageManager,
             addressSettingsRepository,
             executor);
+
+      // a holder gets the message of every new value, so it can't stay indexed by the first one
+      disableReferenceIndexes();
    }
 
    @Override
@@ -19,14 +19,20 @@ import org.hornetq.core.server.MessageReference;
 import org.hornetq.core.server.Queue;
 import org.hornetq.core.server.ServerMessage;
 import org.hornetq.core.transaction.Transaction;
+import org.hornetq.utils.IngressQueue;
 import org.hornetq.utils.MemorySize;
 
 /**
  * Implementation of a MessageReference
+ * <p>
+ * It links itself on the ingress of its queue, so routing to a queue doesn't allocate a node.
+ * <p>
+ * Its queue may compact its message while it waits deep in the queue, in which case the message is
+ * expanded back the first time it is asked for, and compacted again if a filter skipped it.
  *
  * @author <a href="mailto:tim.fox@jboss.com>Tim Fox</a>
  */
-public class MessageReferenceImpl implements MessageReference
+public class MessageReferenceImpl extends IngressQueue.Node<MessageReference> implements MessageReference
 {
    private final AtomicInteger deliveryCount = new AtomicInteger();
 
@@ -34,7 +40,10 @@ public class MessageReferenceImpl implements MessageReference
 
    private volatile long scheduledDeliveryTime;
 
-   private final ServerMessage message;
+   // null while the message is compacted
+   private volatile ServerMessage message;
+
+   private volatile CompactedMessage compacted;
 
    private final Queue queue;
 
@@ -74,7 +83,7 @@ public class MessageReferenceImpl implements MessageReference
 
       scheduledDeliveryTime = other.scheduledDeliveryTime;
 
-      message = other.message;
+      message = other.getMessage();
 
       this.queue = queue;
    }
@@ -86,6 +95,14 @@ public class MessageReferenceImpl implements MessageReference
       this.queue = queue;
    }
 
+   // IngressQueue.Node implementation -----------------------------
+
+   @Override
+   protected MessageReference getIngressElement()
+   {
+      return this;
+   }
+
    // MessageReference implementation -------------------------------
 
    /**
@@ -147,6 +164,75 @@ public class MessageReferenceImpl implements MessageReference
 
    public ServerMessage getMessage()
    {
+      ServerMessage current = message;
+
+      if (current == null)
+      {
+         current = expand();
+      }
+
+      return current;
+   }
+
+   /**
+    * Keeps the message off heap until it is asked for. The queue calls it with its lock held, when
+    * the reference is added and when a filter skipped it.
+    *
+    * @return true if the message was compacted
+    */
+   synchronized boolean compact()
+   {
+      CompactedMessage newCompacted = CompactedMessage.compact(message);
+
+      if (newCompacted == null)
+      {
+         return false;
+      }
+
+      compacted = newCompacted;
+
+      message = null;
+
+      return true;
+   }
+
+   public boolean isCompacted()
+   {
+      return compacted != null;
+   }
+
+   /**
+    * @return the ID of the compacted message, or -1 if the message isn't compacted
+    */
+   long getCompactedMessageID()
+   {
+      CompactedMessage currentCompacted = compacted;
+
+      return currentCompacted == null ? -1 : currentCompacted.getMessageID();
+   }
+
+   /**
+    * Releases the compacted message of a reference that won't be delivered, as its queue is closed.
+    */
+   synchronized void releaseCompacted()
+   {
+      if (compacted != null)
+      {
+         compacted.release();
+
+         compacted = null;
+      }
+   }
+
+   private synchronized ServerMessage expand()
+   {
+      if (message == null && compacted != null)
+      {
+         message = compacted.expand();
+
+         compacted = null;
+      }
+
       return message;
    }
 
@@ -177,12 +263,34 @@ public class MessageReferenceImpl implements MessageReference
 
    public int getMessageMemoryEstimate()
    {
-      return message.getMemoryEstimate();
+      ServerMessage current = message;
+
+      if (current == null)
+      {
+         CompactedMessage currentCompacted = compacted;
+
+         if (currentCompacted != null)
+         {
+            return currentCompacted.getMemoryEstimate();
+         }
+
+         current = getMessage();
+      }
+
+      return current.getMemoryEstimate();
    }
 
    @Override
    public String toString()
    {
+      CompactedMessage currentCompacted = compacted;
+
+      if (currentCompacted != null)
+      {
+         // logging the reference shouldn't expand it
+         return "Reference[" + currentCompacted.getMessageID() + "]:COMPACTED";
+      }
+
       return "Reference[" + getMessage().getMessageID() +
              "]:" +
              (getMessage().isDurable() ? "RELIABLE" : "NON-RELIABLE") +
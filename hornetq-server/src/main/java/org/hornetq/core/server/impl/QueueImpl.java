@@ -23,7 +23,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.RejectedExecutionException;
@@ -40,6 +39,7 @@ import org.hornetq.core.paging.cursor.PagedReference;
 import org.hornetq.core.persistence.StorageManager;
 import org.hornetq.core.postoffice.Bindings;
 import org.hornetq.core.postoffice.DuplicateIDCache;
+import org.hornetq.core.postoffice.ExpiryIndex;
 import org.hornetq.core.postoffice.PostOffice;
 import org.hornetq.core.server.Consumer;
 import org.hornetq.core.server.HandleStatus;
@@ -61,6 +61,8 @@ import org.hornetq.core.transaction.impl.BindingsTransactionImpl;
 import org.hornetq.core.transaction.impl.TransactionImpl;
 import org.hornetq.utils.ConcurrentHashSet;
 import org.hornetq.utils.FutureLatch;
+import org.hornetq.utils.IDSupplier;
+import org.hornetq.utils.IngressQueue;
 import org.hornetq.utils.LinkedListIterator;
 import org.hornetq.utils.PriorityLinkedList;
 import org.hornetq.utils.PriorityLinkedListImpl;
@@ -97,6 +99,51 @@ public class QueueImpl implements Queue
 
    private static final int FLUSH_TIMEOUT = 10000;
 
+   /** If the queues index all their references by message ID, for the management operations on a single message */
+   public static final String MESSAGE_ID_INDEX_PROPERTY = "org.hornetq.opt.queuemessageidindex";
+
+   /** How many references a consumer may be handed on its turn of the round robin, 1 by default */
+   public static final String DELIVERY_BATCH_PROPERTY = "org.hornetq.opt.deliverybatch";
+
+   /** The depth past which the messages added to a queue are compacted until delivered, 0 (never) by default */
+   public static final String COMPACT_DEPTH_PROPERTY = "org.hornetq.opt.compactdepth";
+
+   // Only the references whose messages expire are indexed on messageReferences, for the expiry index to find them
+   private static final IDSupplier<MessageReference> EXPIRING_REFERENCES = new IDSupplier<MessageReference>()
+   {
+      public long getID(final MessageReference ref)
+      {
+         if (QueueImpl.isCompacted(ref))
+         {
+            // only the messages that don't expire are compacted
+            return -1;
+         }
+
+         ServerMessage message = ref.getMessage();
+
+         return message.getExpiration() == 0 ? -1 : message.getMessageID();
+      }
+   };
+
+   private static final IDSupplier<MessageReference> ALL_REFERENCES = new IDSupplier<MessageReference>()
+   {
+      public long getID(final MessageReference ref)
+      {
+         if (ref instanceof MessageReferenceImpl)
+         {
+            // indexing a compacted reference shouldn't expand it
+            long id = ((MessageReferenceImpl)ref).getCompactedMessageID();
+
+            if (id >= 0)
+            {
+               return id;
+            }
+         }
+
+         return ref.getMessage().getMessageID();
+      }
+   };
+
    private final long id;
 
    private final SimpleString name;
@@ -120,11 +167,35 @@ public class QueueImpl implements Queue
    // Messages will first enter intermediateMessageReferences
    // Before they are added to messageReferences
    // This is to avoid locking the queue on the producer
-   private final ConcurrentLinkedQueue<MessageReference> intermediateMessageReferences = new ConcurrentLinkedQueue<MessageReference>();
+   private final IngressQueue<MessageReference> intermediateMessageReferences = new IngressQueue<MessageReference>();
+
+   // The references taken from intermediateMessageReferences, added to messageReferences from ingressedPosition on
+   // a chunk at a time. Guarded by the queue lock
+   private final ArrayList<MessageReference> ingressedReferences = new ArrayList<MessageReference>();
+
+   private int ingressedPosition;
+
+   // The references of ingressedReferences still to be added, read without the queue lock
+   private volatile int ingressedPending;
 
    // This is where messages are stored
    private final PriorityLinkedList<MessageReference> messageReferences = new PriorityLinkedListImpl<MessageReference>(QueueImpl.NUM_PRIORITIES);
 
+   // The references of messageReferences whose messages expire, shared by all the queues of the server
+   // null if the expiry reaper is disabled, when ExpiryScanner scans the whole queue instead
+   private ExpiryIndex expiryIndex;
+
+   // If all the references of messageReferences are indexed by message ID, otherwise the operations on a single
+   // message scan the queue
+   private boolean messageIDIndexed = Boolean.getBoolean(QueueImpl.MESSAGE_ID_INDEX_PROPERTY);
+
+   // false on queues whose references change their message
+   private boolean referencesIndexable = true;
+
+   private volatile int deliveryBatchSize = Math.max(1, Integer.getInteger(QueueImpl.DELIVERY_BATCH_PROPERTY, 1));
+
+   private volatile int compactDepth = Integer.getInteger(QueueImpl.COMPACT_DEPTH_PROPERTY, 0);
+
    // The quantity of pagedReferences on messageReferences priority list
    private final AtomicInteger pagedReferences = new AtomicInteger(0);
 
@@ -213,12 +284,14 @@ public class QueueImpl implements Queue
          out.println("consumer: " + holder.consumer.debug());
       }
 
-      for (MessageReference reference : intermediateMessageReferences)
+      List<MessageReference> intermediateReferences = getIntermediateReferences();
+
+      for (MessageReference reference : intermediateReferences)
       {
          out.print("Intermediate reference:" + reference);
       }
 
-      if (intermediateMessageReferences.isEmpty())
+      if (intermediateReferences.isEmpty())
       {
          out.println("No intermediate references");
       }
@@ -333,6 +406,9 @@ public class QueueImpl implements Queue
 
       this.executor = executor;
 
+      this.expiryIndex = postOffice == null ? null : postOffice.getExpiryIndex();
+
+      updateIDSupplier();
    }
 
    // Bindable implementation -------------------------------------------------------------------------------------
@@ -477,6 +553,7 @@ public class QueueImpl implements Queue
              lastDirectDeliveryCheck = System.currentTimeMillis();
 
              if (intermediateMessageReferences.isEmpty() &&
+                 ingressedPending == 0 &&
                  messageReferences.isEmpty() &&
                  !pageIterator.hasNext() &&
                  !pageSubscription.isPaging())
@@ -597,6 +674,11 @@ public class QueueImpl implements Queue
       {
          addressSettingsRepository.unRegisterListener(addressSettingsRepositoryListener);
       }
+
+      if (CompactedMessage.getCount() > 0)
+      {
+         releaseCompactedReferences();
+      }
    }
 
    public Executor getExecutor()
@@ -881,6 +963,11 @@ public class QueueImpl implements Queue
 
    public synchronized MessageReference getReference(final long id1)
    {
+      if (messageIDIndexed)
+      {
+         return messageReferences.getWithID(id1);
+      }
+
       LinkedListIterator<MessageReference> iterator = iterator();
 
       try
@@ -948,6 +1035,21 @@ public class QueueImpl implements Queue
       return scheduledDeliveryHandler.getScheduledReferences();
    }
 
+   public long getScheduledDeliveredCount()
+   {
+      return scheduledDeliveryHandler.getDeliveredCount();
+   }
+
+   public long getScheduledDeliveryLag()
+   {
+      return scheduledDeliveryHandler.getDeliveryLag();
+   }
+
+   public long getMaxScheduledDeliveryLag()
+   {
+      return scheduledDeliveryHandler.getMaxDeliveryLag();
+   }
+
    public Map<String, List<MessageReference>> getDeliveringMessages()
    {
 
@@ -1278,6 +1380,24 @@ public class QueueImpl implements Queue
 
       Transaction tx = new TransactionImpl(storageManager);
 
+      if (messageIDIndexed)
+      {
+         MessageReference ref = messageReferences.getWithID(messageID);
+
+         if (ref != null)
+         {
+            deliveringCount.incrementAndGet();
+            acknowledge(tx, ref);
+            messageReferences.removeWithID(messageID);
+            refRemoved(ref);
+            deleted = true;
+         }
+
+         tx.commit();
+
+         return deleted;
+      }
+
       LinkedListIterator<MessageReference> iter = iterator();
       try
       {
@@ -1351,6 +1471,22 @@ public class QueueImpl implements Queue
          return false;
       }
 
+      if (messageIDIndexed)
+      {
+         MessageReference ref = messageReferences.getWithID(messageID);
+
+         if (ref == null)
+         {
+            return false;
+         }
+
+         deliveringCount.incrementAndGet();
+         expire(ref);
+         messageReferences.removeWithID(messageID);
+         refRemoved(ref);
+         return true;
+      }
+
       LinkedListIterator<MessageReference> iter = iterator();
       try
       {
@@ -1426,6 +1562,12 @@ public class QueueImpl implements Queue
          return;
       }
 
+      if (expiryIndex != null)
+      {
+         // This hands the expired references to their queues, this one included
+         expiryIndex.expire();
+      }
+
       if (!queueDestroyed && expiryScanner.scannerRunning.get() == 0)
       {
          expiryScanner.scannerRunning.incrementAndGet();
@@ -1433,6 +1575,69 @@ public class QueueImpl implements Queue
       }
    }
 
+   public void expireReferences(final List<MessageReference> refs)
+   {
+      if (expiryAddress != null && expiryAddress.equals(this.address))
+      {
+         // they will be expired when delivered
+         return;
+      }
+
+      getExecutor().execute(new Runnable()
+      {
+         public void run()
+         {
+            synchronized (QueueImpl.this)
+            {
+               if (queueDestroyed)
+               {
+                  return;
+               }
+
+               boolean expired = false;
+
+               for (MessageReference ref : refs)
+               {
+                  // It may have been delivered or removed after it was taken from the index
+                  if (!ref.getMessage().isExpired())
+                  {
+                     continue;
+                  }
+
+                  MessageReference queued = messageReferences.removeWithID(ref.getMessage().getMessageID());
+
+                  if (queued == null)
+                  {
+                     continue;
+                  }
+
+                  try
+                  {
+                     deliveringCount.incrementAndGet();
+                     expire(queued);
+                     refRemoved(queued);
+                     expired = true;
+                  }
+                  catch (Exception e)
+                  {
+                     HornetQServerLogger.LOGGER.errorExpiringReferencesOnQueue(e, queued);
+                     deliveringCount.decrementAndGet();
+                     // back where it was, to be tried again on the next tick
+                     messageReferences.addHead(queued, queued.getMessage().getPriority());
+                     expiryIndex.add(queued);
+                  }
+               }
+
+               // We need to schedule depaging to make sure we would depage expired messages as well
+               if (expired && pageIterator != null && pageIterator.hasNext())
+               {
+                  scheduleDepage(true);
+               }
+            }
+         }
+      });
+   }
+
    class ExpiryScanner implements Runnable
    {
       public AtomicInteger scannerRunning = new AtomicInteger(0);
@@ -1446,6 +1651,23 @@ public class QueueImpl implements Queue
                return;
             }
 
+            if (expiryIndex != null)
+            {
+               // the index already found the expired references, an empty queue may still have expired messages on paging
+               try
+               {
+                  if (messageReferences.isEmpty() && pageIterator != null && pageIterator.hasNext())
+                  {
+                     scheduleDepage(true);
+                  }
+               }
+               finally
+               {
+                  scannerRunning.decrementAndGet();
+               }
+               return;
+            }
+
             LinkedListIterator<MessageReference> iter = iterator();
 
             try
@@ -1497,6 +1719,22 @@ public class QueueImpl implements Queue
 
    public synchronized boolean sendMessageToDeadLetterAddress(final long messageID) throws Exception
    {
+      if (messageIDIndexed)
+      {
+         MessageReference ref = messageReferences.getWithID(messageID);
+
+         if (ref == null)
+         {
+            return false;
+         }
+
+         deliveringCount.incrementAndGet();
+         sendToDeadLetterAddress(ref);
+         messageReferences.removeWithID(messageID);
+         refRemoved(ref);
+         return true;
+      }
+
       LinkedListIterator<MessageReference> iter = iterator();
 
       try
@@ -1557,6 +1795,29 @@ public class QueueImpl implements Queue
                                              final SimpleString toAddress,
                                              final boolean rejectDuplicate) throws Exception
    {
+      if (messageIDIndexed)
+      {
+         MessageReference ref = messageReferences.removeWithID(messageID);
+
+         if (ref == null)
+         {
+            return false;
+         }
+
+         refRemoved(ref);
+         deliveringCount.incrementAndGet();
+         try
+         {
+            move(toAddress, ref, false, rejectDuplicate);
+         }
+         catch (Exception e)
+         {
+            deliveringCount.decrementAndGet();
+            throw e;
+         }
+         return true;
+      }
+
       LinkedListIterator<MessageReference> iter = iterator();
 
       try
@@ -1633,6 +1894,21 @@ public class QueueImpl implements Queue
 
    public synchronized boolean changeReferencePriority(final long messageID, final byte newPriority) throws Exception
    {
+      if (messageIDIndexed)
+      {
+         MessageReference ref = messageReferences.removeWithID(messageID);
+
+         if (ref == null)
+         {
+            return false;
+         }
+
+         refRemoved(ref);
+         ref.getMessage().setPriority(newPriority);
+         addTail(ref, false);
+         return true;
+      }
+
       LinkedListIterator<MessageReference> iter = iterator();
 
       try
@@ -1777,6 +2053,14 @@ public class QueueImpl implements Queue
    {
       refAdded(ref);
       messageReferences.addTail(ref, ref.getMessage().getPriority());
+
+      // the references near the head will be delivered soon, compacting them would be a waste
+      int depth = compactDepth;
+
+      if (depth > 0 && ref instanceof MessageReferenceImpl && messageReferences.size() > depth)
+      {
+         ((MessageReferenceImpl)ref).compact();
+      }
    }
 
    /**
@@ -1794,22 +2078,64 @@ public class QueueImpl implements Queue
 
    private synchronized void doInternalPoll()
    {
+      if (ingressedPosition == ingressedReferences.size())
+      {
+         // the references are taken all at once, and added a chunk at a time
+         intermediateMessageReferences.drainTo(ingressedReferences);
+      }
 
-      int added = 0;
-      MessageReference ref;
+      int end = Math.min(ingressedReferences.size(), ingressedPosition + MAX_DELIVERIES_IN_LOOP);
 
-      while ((ref = intermediateMessageReferences.poll()) != null)
+      while (ingressedPosition < end)
       {
+         MessageReference ref = ingressedReferences.set(ingressedPosition++, null);
+
          internalAddTail(ref);
 
          messagesAdded++;
-         if (added++ > MAX_DELIVERIES_IN_LOOP)
-         {
-            // if we just keep polling from the intermediate we could starve in case there's a sustained load
-            deliverAsync();
-            return;
-         }
       }
+
+      ingressedPending = ingressedReferences.size() - ingressedPosition;
+
+      if (ingressedPending > 0)
+      {
+         // if we just keep adding from the intermediate we could starve in case there's a sustained load
+         deliverAsync();
+
+         return;
+      }
+
+      if (ingressedReferences.size() > MAX_DELIVERIES_IN_LOOP)
+      {
+         // don't hold on to the capacity of a burst
+         ingressedReferences.clear();
+
+         ingressedReferences.trimToSize();
+      }
+      else
+      {
+         ingressedReferences.clear();
+      }
+
+      ingressedPosition = 0;
+   }
+
+   /**
+    * @return the references added to this queue that aren't on messageReferences yet, in the order they were added
+    */
+   private List<MessageReference> getIntermediateReferences()
+   {
+      List<MessageReference> references;
+
+      synchronized (this)
+      {
+         references = new ArrayList<MessageReference>(ingressedReferences.subList(ingressedPosition,
+                                                                                  ingressedReferences.size()));
+      }
+
+      references.addAll(intermediateMessageReferences.snapshot());
+
+      return references;
    }
 
    /**
@@ -1836,9 +2162,12 @@ public class QueueImpl implements Queue
 
       long timeout = System.currentTimeMillis() + DELIVERY_TIMEOUT;
 
+      // the references handed to the consumer after the first one on its turn
+      List<MessageReference> batch = new ArrayList<MessageReference>();
+
       while (true)
       {
-         if (handled == MAX_DELIVERIES_IN_LOOP)
+         if (handled >= MAX_DELIVERIES_IN_LOOP)
          {
             // Schedule another one - we do this to prevent a single thread getting caught up in this loop for too
             // long
@@ -1917,6 +2246,8 @@ public class QueueImpl implements Queue
             }
             else
             {
+               boolean compacted = QueueImpl.isCompacted(ref);
+
                if (checkExpired(ref))
                {
                   if (isTrace)
@@ -1972,6 +2303,11 @@ public class QueueImpl implements Queue
                   }
 
                   handled++;
+
+                  if (groupID == null)
+                  {
+                     handled += handleBatch(holder, consumer, batch);
+                  }
                }
                else if (status == HandleStatus.BUSY)
                {
@@ -1981,7 +2317,12 @@ public class QueueImpl implements Queue
                }
                else if (status == HandleStatus.NO_MATCH)
                {
-                  // nothing to be done on this case, the iterators will just jump next
+                  // the iterators will just jump next. The reference keeps waiting where it was, so if
+                  // it was compacted the filter only expanded it for a look
+                  if (compacted)
+                  {
+                     ((MessageReferenceImpl)ref).compact();
+                  }
                }
             }
 
@@ -2021,6 +2362,13 @@ public class QueueImpl implements Queue
           if (handledconsumer != null)
           {
               proceedDeliver(handledconsumer, ref);
+
+              for (MessageReference batched : batch)
+              {
+                 proceedDeliver(handledconsumer, batched);
+              }
+
+              batch.clear();
           }
       }
 
@@ -2040,6 +2388,10 @@ public class QueueImpl implements Queue
       {
          pagedReferences.decrementAndGet();
       }
+      if (expiryIndex != null)
+      {
+         expiryIndex.remove(ref);
+      }
    }
 
    /**
@@ -2051,6 +2403,114 @@ public class QueueImpl implements Queue
       {
          pagedReferences.incrementAndGet();
       }
+      if (expiryIndex != null)
+      {
+         expiryIndex.add(ref);
+      }
+   }
+
+   /**
+    * For queues whose references can change their message after added, which can't be indexed by their message.
+    * It has to be called before any reference is added.
+    */
+   protected synchronized void disableReferenceIndexes()
+   {
+      referencesIndexable = false;
+      expiryIndex = null;
+      messageIDIndexed = false;
+      updateIDSupplier();
+   }
+
+   /**
+    * Indexes all the references by message ID, so the operations on a single message (as from management) don't
+    * have to scan the queue, at the cost of an index entry for every reference.
+    */
+   public synchronized void setMessageIDIndexed(final boolean indexed)
+   {
+      if (referencesIndexable && indexed != messageIDIndexed)
+      {
+         messageIDIndexed = indexed;
+         updateIDSupplier();
+      }
+   }
+
+   public synchronized boolean isMessageIDIndexed()
+   {
+      return messageIDIndexed;
+   }
+
+   /**
+    * Lets a consumer take up to batchSize references on its turn of the round robin, so they are delivered and
+    * written together. Consumers still take turns, and the ones without credits or not matching are skipped as usual.
+    */
+   public void setDeliveryBatchSize(final int batchSize)
+   {
+      deliveryBatchSize = Math.max(1, batchSize);
+   }
+
+   public int getDeliveryBatchSize()
+   {
+      return deliveryBatchSize;
+   }
+
+   /**
+    * @param depth the depth past which the messages added are compacted, 0 to never compact them
+    */
+   public void setCompactDepth(final int depth)
+   {
+      compactDepth = Math.max(0, depth);
+   }
+
+   public int getCompactDepth()
+   {
+      return compactDepth;
+   }
+
+   /**
+    * The references left on a closed queue won't be delivered, so their compacted messages are
+    * released.
+    */
+   private synchronized void releaseCompactedReferences()
+   {
+      LinkedListIterator<MessageReference> iter = messageReferences.iterator();
+
+      try
+      {
+         while (iter.hasNext())
+         {
+            MessageReference ref = iter.next();
+
+            if (ref instanceof MessageReferenceImpl)
+            {
+               ((MessageReferenceImpl)ref).releaseCompacted();
+            }
+         }
+      }
+      finally
+      {
+         iter.close();
+      }
+   }
+
+   private static boolean isCompacted(final MessageReference ref)
+   {
+      return ref instanceof MessageReferenceImpl && ((MessageReferenceImpl)ref).isCompacted();
+   }
+
+   private void updateIDSupplier()
+   {
+      if (messageIDIndexed)
+      {
+         messageReferences.setIDSupplier(QueueImpl.ALL_REFERENCES);
+      }
+      else if (expiryIndex != null)
+      {
+         messageReferences.setIDSupplier(QueueImpl.EXPIRING_REFERENCES);
+      }
+      else
+      {
+         messageReferences.setIDSupplier(null);
+      }
    }
 
    private void scheduleDepage(final boolean scheduleExpiry)
@@ -2119,7 +2579,7 @@ public class QueueImpl implements Queue
                       maxSize +
                       ". Depaged " +
                       depaged +
-                      " messages, pendingDelivery=" +  messageReferences.size() + ", intermediateMessageReferences= " + intermediateMessageReferences.size() +
+                      " messages, pendingDelivery=" +  messageReferences.size() + ", intermediateMessageReferences= " + (intermediateMessageReferences.size() + ingressedPending) +
                       ", queueDelivering=" + deliveringCount.get());
 
          }
@@ -2436,6 +2896,66 @@ public class QueueImpl implements Queue
       }
    }
 
+   /**
+    * Hands the consumer the next references of its iterator, after the one it has just handled, up to the delivery
+    * batch size. Stops on the first one it doesn't handle, or of a group, which is left for the next turn.
+    *
+    * @return the number of references removed from the queue
+    */
+   private int handleBatch(final ConsumerHolder holder, final Consumer consumer, final List<MessageReference> batch)
+   {
+      int removed = 0;
+
+      while (batch.size() + 1 < deliveryBatchSize && holder.iter.hasNext())
+      {
+         MessageReference ref = holder.iter.next();
+
+         if (checkExpired(ref))
+         {
+            holder.iter.remove();
+
+            refRemoved(ref);
+
+            removed++;
+
+            continue;
+         }
+
+         if (ref.getMessage().getSimpleStringProperty(Message.HDR_GROUP_ID) != null)
+         {
+            holder.iter.repeat();
+
+            break;
+         }
+
+         HandleStatus status = handle(ref, consumer);
+
+         if (status == HandleStatus.HANDLED)
+         {
+            deliveriesInTransit.countUp();
+
+            holder.iter.remove();
+
+            refRemoved(ref);
+
+            batch.add(ref);
+
+            removed++;
+         }
+         else
+         {
+            if (status == HandleStatus.BUSY)
+            {
+               holder.iter.repeat();
+            }
+
+            break;
+         }
+      }
+
+      return removed;
+   }
+
    private boolean checkExpired(final MessageReference reference)
    {
       if (reference.getMessage().isExpired())
@@ -2857,7 +3377,7 @@ public class QueueImpl implements Queue
          {
             pageIter = pageSubscription.iterator();
          }
-         interIterator = intermediateMessageReferences.iterator();
+         interIterator = getIntermediateReferences().iterator();
          messagesIterator = new SynchronizedIterator(messageReferences.iterator());
       }
 
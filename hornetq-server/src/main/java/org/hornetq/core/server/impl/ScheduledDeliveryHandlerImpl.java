@@ -13,22 +13,24 @@
 package org.hornetq.core.server.impl;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.TreeSet;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 import org.hornetq.core.filter.Filter;
 import org.hornetq.core.server.HornetQServerLogger;
 import org.hornetq.core.server.MessageReference;
-import org.hornetq.core.server.Queue;
 import org.hornetq.core.server.ScheduledDeliveryHandler;
 
 /**
  * Handles scheduling deliveries to a queue at the correct time.
+ * <p>
+ * The scheduled references are kept sorted by delivery time, so scheduling one is O(log n) however many are
+ * waiting. Only the earliest delivery time is scheduled on the executor: every run hands all the references due by
+ * then to the queue in a single batch, and schedules the next one.
  *
  * @author <a href="mailto:tim.fox@jboss.com">Tim Fox</a>
  * @author <a href="ataylor@redhat.com">Andy Taylor</a>
@@ -43,7 +45,23 @@ public class ScheduledDeliveryHandlerImpl implements ScheduledDeliveryHandler
 
    private final Object lockDelivery = new Object();
 
-   private final LinkedList<MessageReference> scheduledReferences = new LinkedList<MessageReference>();
+   private final TreeSet<ScheduledReference> scheduledReferences = new TreeSet<ScheduledReference>();
+
+   // The fields below are guarded by scheduledReferences
+
+   // orders the references scheduled for the same time, see ScheduledReference
+   private long sequence;
+
+   // the run on the executor, null if none is pending
+   private ScheduledDeliveryRunnable pendingRunnable;
+
+   private ScheduledFuture<?> pendingFuture;
+
+   private long deliveredCount;
+
+   private long lastDeliveryLag;
+
+   private long maxDeliveryLag;
 
    public ScheduledDeliveryHandlerImpl(final ScheduledExecutorService scheduledExecutor)
    {
@@ -61,23 +79,15 @@ public class ScheduledDeliveryHandlerImpl implements ScheduledDeliveryHandler
             HornetQServerLogger.LOGGER.trace("Scheduling delivery for " + ref + " to occur at " + deliveryTime);
          }
 
-         ScheduledDeliveryRunnable runnable = new ScheduledDeliveryRunnable(ref.getScheduledDeliveryTime());
-
          synchronized (scheduledReferences)
          {
-            if (tail)
-            {
-               // We do the opposite what the parameter says as the Runnable will always add it to the head
-               scheduledReferences.addFirst(ref);
-            }
-            else
-            {
-               // We do the opposite what the parameter says as the Runnable will always add it to the head
-               scheduledReferences.add(ref);
-            }
-         }
+            sequence++;
 
-         scheduleDelivery(runnable, deliveryTime);
+            // references added to the head go before the ones of the same time added to the tail, the last added first
+            scheduledReferences.add(new ScheduledReference(ref, deliveryTime, tail ? sequence : -sequence));
+
+            scheduleNextDelivery();
+         }
 
          return true;
       }
@@ -98,7 +108,10 @@ public class ScheduledDeliveryHandlerImpl implements ScheduledDeliveryHandler
 
       synchronized (scheduledReferences)
       {
-         refs.addAll(scheduledReferences);
+         for (ScheduledReference scheduled : scheduledReferences)
+         {
+            refs.add(scheduled.ref);
+         }
       }
       return refs;
    }
@@ -109,11 +122,11 @@ public class ScheduledDeliveryHandlerImpl implements ScheduledDeliveryHandler
 
       synchronized (scheduledReferences)
       {
-         Iterator<MessageReference> iter = scheduledReferences.iterator();
+         Iterator<ScheduledReference> iter = scheduledReferences.iterator();
 
          while (iter.hasNext())
          {
-            MessageReference ref = iter.next();
+            MessageReference ref = iter.next().ref;
             if (filter == null || filter.match(ref.getMessage()))
             {
                iter.remove();
@@ -128,10 +141,10 @@ public class ScheduledDeliveryHandlerImpl implements ScheduledDeliveryHandler
    {
       synchronized (scheduledReferences)
       {
-         Iterator<MessageReference> iter = scheduledReferences.iterator();
+         Iterator<ScheduledReference> iter = scheduledReferences.iterator();
          while (iter.hasNext())
          {
-            MessageReference ref = iter.next();
+            MessageReference ref = iter.next().ref;
             if (ref.getMessage().getMessageID() == id)
             {
                iter.remove();
@@ -143,18 +156,89 @@ public class ScheduledDeliveryHandlerImpl implements ScheduledDeliveryHandler
       return null;
    }
 
-   private void scheduleDelivery(final ScheduledDeliveryRunnable runnable, final long deliveryTime)
+   public long getDeliveredCount()
+   {
+      synchronized (scheduledReferences)
+      {
+         return deliveredCount;
+      }
+   }
+
+   public long getDeliveryLag()
+   {
+      synchronized (scheduledReferences)
+      {
+         return lastDeliveryLag;
+      }
+   }
+
+   public long getMaxDeliveryLag()
    {
-      long now = System.currentTimeMillis();
+      synchronized (scheduledReferences)
+      {
+         return maxDeliveryLag;
+      }
+   }
+
+   /**
+    * Makes sure a run is pending for the earliest reference, replacing a later one.
+    * Has to be called holding the lock on scheduledReferences.
+    */
+   private void scheduleNextDelivery()
+   {
+      if (scheduledReferences.isEmpty())
+      {
+         return;
+      }
+
+      long deliveryTime = scheduledReferences.first().deliveryTime;
 
-      long delay = deliveryTime - now;
+      if (pendingRunnable != null)
+      {
+         if (pendingRunnable.scheduledTime <= deliveryTime)
+         {
+            return;
+         }
+
+         pendingFuture.cancel(false);
+      }
+
+      long delay = deliveryTime - System.currentTimeMillis();
 
       if (delay < 0)
       {
          delay = 0;
       }
 
-      scheduledExecutor.schedule(runnable, delay, TimeUnit.MILLISECONDS);
+      pendingRunnable = new ScheduledDeliveryRunnable(deliveryTime);
+      pendingFuture = scheduledExecutor.schedule(pendingRunnable, delay, TimeUnit.MILLISECONDS);
+   }
+
+   private static final class ScheduledReference implements Comparable<ScheduledReference>
+   {
+      private final MessageReference ref;
+
+      private final long deliveryTime;
+
+      // positive when added to the tail, so the first added goes first; negative when added to the head
+      private final long sequence;
+
+      ScheduledReference(final MessageReference ref, final long deliveryTime, final long sequence)
+      {
+         this.ref = ref;
+         this.deliveryTime = deliveryTime;
+         this.sequence = sequence;
+      }
+
+      public int compareTo(final ScheduledReference other)
+      {
+         if (deliveryTime != other.deliveryTime)
+         {
+            return deliveryTime < other.deliveryTime ? -1 : 1;
+         }
+
+         return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+      }
    }
 
    private class ScheduledDeliveryRunnable implements Runnable
@@ -168,43 +252,55 @@ public class ScheduledDeliveryHandlerImpl implements ScheduledDeliveryHandler
 
       public void run()
       {
-         HashMap<Queue, LinkedList<MessageReference>> refs = new HashMap<Queue, LinkedList<MessageReference>>();
+         // in the order they have to be on the queue
+         ArrayList<MessageReference> refs = new ArrayList<MessageReference>();
 
          synchronized (lockDelivery)
          {
             synchronized (scheduledReferences)
             {
-
-               Iterator<MessageReference> iter = scheduledReferences.iterator();
-               while (iter.hasNext())
+               if (pendingRunnable == this)
                {
-                  MessageReference reference = iter.next();
-                  if (reference.getScheduledDeliveryTime() <= this.scheduledTime)
-                  {
-                     iter.remove();
+                  pendingRunnable = null;
+                  pendingFuture = null;
+               }
 
-                     reference.setScheduledDeliveryTime(0);
+               long now = System.currentTimeMillis();
 
-                     LinkedList<MessageReference> references = refs.get(reference.getQueue());
+               long deliveryTime = Math.max(now, scheduledTime);
 
-                     if (references == null)
-                     {
-                        references = new LinkedList<MessageReference>();
-                        refs.put(reference.getQueue(), references);
-                     }
+               while (!scheduledReferences.isEmpty() && scheduledReferences.first().deliveryTime <= deliveryTime)
+               {
+                  ScheduledReference scheduled = scheduledReferences.pollFirst();
 
-                     references.add(reference);
+                  if (refs.isEmpty())
+                  {
+                     lastDeliveryLag = Math.max(now - scheduled.deliveryTime, 0);
+                     maxDeliveryLag = Math.max(maxDeliveryLag, lastDeliveryLag);
                   }
+
+                  scheduled.ref.setScheduledDeliveryTime(0);
+
+                  refs.add(scheduled.ref);
                }
+
+               deliveredCount += refs.size();
+
+               scheduleNextDelivery();
             }
 
-            for (Map.Entry<Queue, LinkedList<MessageReference>> entry : refs.entrySet())
+            if (!refs.isEmpty())
             {
-               entry.getKey().addHead(entry.getValue());
-            }
+               // all the references are of the same queue, which adds each one to the head
+               ArrayList<MessageReference> reversed = new ArrayList<MessageReference>(refs.size());
 
-            // Just to speed up GC
-            refs.clear();
+               for (int i = refs.size() - 1; i >= 0; i--)
+               {
+                  reversed.add(refs.get(i));
+               }
+
+               refs.get(0).getQueue().addHead(reversed);
+            }
          }
       }
    }
@@ -13,10 +13,10 @@
 
 package org.hornetq.core.server.impl;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -35,6 +35,8 @@ import org.hornetq.core.message.BodyEncoder;
 import org.hornetq.core.persistence.StorageManager;
 import org.hornetq.core.postoffice.Binding;
 import org.hornetq.core.postoffice.QueueBinding;
+import org.hornetq.core.postoffice.impl.LocalQueueBinding;
+import org.hornetq.core.postoffice.impl.QueueShards;
 import org.hornetq.core.server.HandleStatus;
 import org.hornetq.core.server.HornetQServerLogger;
 import org.hornetq.core.server.HornetQMessageBundle;
@@ -94,6 +96,14 @@ public class ServerConsumerImpl implements ServerConsumer, ReadyListener
     */
    private final ReadWriteLock lockDelivery = new ReentrantReadWriteLock();
 
+   /**
+    * The references handled and not delivered yet. When the queue hands more than one at once, the messages are held
+    * on the connection until the last one is delivered, so they are written together
+    */
+   private final AtomicInteger pendingDeliveries = new AtomicInteger(0);
+
+   private final AtomicBoolean deliveriesHeld = new AtomicBoolean(false);
+
    private volatile AtomicInteger availableCredits = new AtomicInteger(0);
 
    private boolean started;
@@ -117,7 +127,7 @@ public class ServerConsumerImpl implements ServerConsumer, ReadyListener
 
    private final StorageManager storageManager;
 
-   private final java.util.Queue<MessageReference> deliveringRefs = new ConcurrentLinkedQueue<MessageReference>();
+   private final DeliveringRefs deliveringRefs = new DeliveringRefs();
 
    private final SessionCallback callback;
 
@@ -241,7 +251,7 @@ public class ServerConsumerImpl implements ServerConsumer, ReadyListener
    {
       synchronized(lock)
       {
-         refList.addAll(deliveringRefs);
+         deliveringRefs.copyTo(refList);
       }
    }
 
@@ -346,6 +356,21 @@ public class ServerConsumerImpl implements ServerConsumer, ReadyListener
          {
             largeMessageDeliverer = new LargeMessageDeliverer((LargeServerMessage) message, ref);
          }
+         else
+         {
+            AtomicInteger credits = availableCredits;
+
+            if (credits != null)
+            {
+               // taken until the message is delivered, for the next reference handled before to see the credits left
+               credits.addAndGet(-message.getEncodeSize());
+            }
+         }
+
+         if (pendingDeliveries.incrementAndGet() > 1 && deliveriesHeld.compareAndSet(false, true))
+         {
+            callback.holdDeliveries();
+         }
 
          lockDelivery.readLock().lock();
 
@@ -380,6 +405,11 @@ public class ServerConsumerImpl implements ServerConsumer, ReadyListener
       finally
       {
          lockDelivery.readLock().unlock();
+
+         if (pendingDeliveries.decrementAndGet() == 0 && deliveriesHeld.compareAndSet(true, false))
+         {
+            callback.releaseDeliveries();
+         }
       }
    }
 
@@ -427,6 +457,14 @@ public class ServerConsumerImpl implements ServerConsumer, ReadyListener
 
       tx.rollback();
 
+      QueueShards shards = binding instanceof LocalQueueBinding ? ((LocalQueueBinding)binding).getShards() : null;
+
+      if (shards != null && !browseOnly)
+      {
+         // the shard may be left without consumers, with the messages just cancelled to it
+         shards.consumersChanged();
+      }
+
       if (!browseOnly)
       {
          TypedProperties props = new TypedProperties();
@@ -537,7 +575,11 @@ public class ServerConsumerImpl implements ServerConsumer, ReadyListener
 
       if (!deliveringRefs.isEmpty())
       {
-         for (MessageReference ref : deliveringRefs)
+         List<MessageReference> delivering = new ArrayList<MessageReference>(deliveringRefs.size());
+
+         deliveringRefs.copyTo(delivering);
+
+         for (MessageReference ref : delivering)
          {
             if (isTrace)
             {
@@ -815,26 +857,7 @@ public class ServerConsumerImpl implements ServerConsumer, ReadyListener
       }
 
       // Expiries can come in out of sequence with respect to delivery order
-
-      Iterator<MessageReference> iter = deliveringRefs.iterator();
-
-      MessageReference ref = null;
-
-      while (iter.hasNext())
-      {
-         MessageReference theRef = iter.next();
-
-         if (theRef.getMessage().getMessageID() == messageID)
-         {
-            iter.remove();
-
-            ref = theRef;
-
-            break;
-         }
-      }
-
-      return ref;
+      return deliveringRefs.removeByID(messageID);
    }
 
    public void readyForWriting(final boolean ready)
@@ -912,9 +935,12 @@ public class ServerConsumerImpl implements ServerConsumer, ReadyListener
    {
       int packetSize = callback.sendMessage(message, id, ref.getDeliveryCount());
 
-      if (availableCredits != null)
+      AtomicInteger credits = availableCredits;
+
+      if (credits != null)
       {
-         availableCredits.addAndGet(-packetSize);
+         // handle took the encode size of the message already
+         credits.addAndGet(message.getEncodeSize() - packetSize);
 
          if (HornetQServerLogger.LOGGER.isTraceEnabled())
          {
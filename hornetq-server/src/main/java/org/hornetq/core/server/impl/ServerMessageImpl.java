@@ -173,6 +173,11 @@ public class ServerMessageImpl extends MessageImpl implements ServerMessage
       return refCount.get();
    }
 
+   public int getDurableRefCount()
+   {
+      return durableRefCount.get();
+   }
+
    public boolean isLargeMessage()
    {
       return false;
@@ -190,6 +195,15 @@ public class ServerMessageImpl extends MessageImpl implements ServerMessage
       return memoryEstimate;
    }
 
+   /**
+    * A message expanded from a {@link CompactedMessage} keeps the estimate of the original, so
+    * what was counted for the original on the queue and the paging store is taken back exactly.
+    */
+   void setMemoryEstimate(final int memoryEstimate)
+   {
+      this.memoryEstimate = memoryEstimate;
+   }
+
    public ServerMessage copy(final long newID)
    {
       ServerMessage m = new ServerMessageImpl(this);
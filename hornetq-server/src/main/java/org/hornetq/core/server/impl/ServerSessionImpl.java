@@ -48,6 +48,8 @@ import org.hornetq.core.postoffice.BindingType;
 import org.hornetq.core.postoffice.Bindings;
 import org.hornetq.core.postoffice.PostOffice;
 import org.hornetq.core.postoffice.QueueBinding;
+import org.hornetq.core.postoffice.impl.LocalQueueBinding;
+import org.hornetq.core.postoffice.impl.QueueShards;
 import org.hornetq.core.remoting.CloseListener;
 import org.hornetq.core.remoting.FailureListener;
 import org.hornetq.core.security.CheckType;
@@ -359,6 +361,14 @@ public class ServerSessionImpl implements ServerSession, FailureListener
 
       securityStore.check(binding.getAddress(), CheckType.CONSUME, this);
 
+      QueueShards shards = binding instanceof LocalQueueBinding ? ((LocalQueueBinding)binding).getShards() : null;
+
+      if (shards != null && queueName.equals(shards.getName()))
+      {
+         // a consumer of a sharded queue consumes from one of its shards
+         binding = shards.getShardForConsumer();
+      }
+
       Filter filter = FilterImpl.createFilter(filterString);
 
       ServerConsumer consumer = new ServerConsumerImpl(consumerID,
@@ -376,6 +386,11 @@ public class ServerSessionImpl implements ServerSession, FailureListener
 
       consumers.put(consumer.getID(), consumer);
 
+      if (shards != null && !browseOnly)
+      {
+         shards.consumersChanged();
+      }
+
       if (!browseOnly)
       {
          TypedProperties props = new TypedProperties();
@@ -572,13 +587,29 @@ public class ServerSessionImpl implements ServerSession, FailureListener
 
          SimpleString filterString = filter == null ? null : filter.getFilterString();
 
-         response = new QueueQueryResult(name,
-                                         binding.getAddress(),
-                                         queue.isDurable(),
-                                         queue.isTemporary(),
-                                         filterString,
-                                         queue.getConsumerCount(),
-                                         queue.getMessageCount(QueueImpl.DELIVERY_TIMEOUT));
+         QueueShards shards = binding instanceof LocalQueueBinding ? ((LocalQueueBinding)binding).getShards() : null;
+
+         if (shards != null && name.equals(shards.getName()))
+         {
+            // the sharded queue is queried as a whole
+            response = new QueueQueryResult(name,
+                                            binding.getAddress(),
+                                            queue.isDurable(),
+                                            queue.isTemporary(),
+                                            filterString,
+                                            shards.getConsumerCount(),
+                                            shards.getMessageCount(QueueImpl.DELIVERY_TIMEOUT));
+         }
+         else
+         {
+            response = new QueueQueryResult(name,
+                                            binding.getAddress(),
+                                            queue.isDurable(),
+                                            queue.isTemporary(),
+                                            filterString,
+                                            queue.getConsumerCount(),
+                                            queue.getMessageCount(QueueImpl.DELIVERY_TIMEOUT));
+         }
       }
       // make an exception for the management address (see HORNETQ-29)
       else if (name.equals(managementAddress))
@@ -36,6 +36,14 @@ public interface SessionCallback
 
    int sendLargeMessageContinuation(long consumerID, byte[] body, boolean continues, boolean requiresResponse);
 
+   /**
+    * Holds the messages sent until {@link #releaseDeliveries()}, so the ones delivered together are written
+    * together.
+    */
+   void holdDeliveries();
+
+   void releaseDeliveries();
+
    void closed();
 
    void addReadyListener(ReadyListener listener);
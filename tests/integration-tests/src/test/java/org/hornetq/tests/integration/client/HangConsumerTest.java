@@ -612,6 +612,18 @@ public class HangConsumerTest extends ServiceTestBase
          targetCallback.removeReadyListener(listener);
       }
 
+      @Override
+      public void holdDeliveries()
+      {
+         targetCallback.holdDeliveries();
+      }
+
+      @Override
+      public void releaseDeliveries()
+      {
+         targetCallback.releaseDeliveries();
+      }
+
 
    }
 
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.integration.journal;
+import java.nio.ByteBuffer;
+
+import org.hornetq.core.journal.SequentialFile;
+import org.hornetq.core.journal.SequentialFileFactory;
+import org.hornetq.core.journal.impl.MappedSequentialFileFactory;
+import org.hornetq.tests.unit.core.journal.impl.SequentialFileFactoryTestBase;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A MappedSequentialFileFactoryTest
+ */
+public class MappedSequentialFileFactoryTest extends SequentialFileFactoryTestBase
+{
+
+   @Override
+   protected SequentialFileFactory createFactory()
+   {
+      return new MappedSequentialFileFactory(getTestDir(), true);
+   }
+
+   @Test
+   public void testGrowAcrossRegions() throws Exception
+   {
+      MappedSequentialFileFactory smallRegions = new MappedSequentialFileFactory(getTestDir(),
+                                                                                 false,
+                                                                                 100,
+                                                                                 100,
+                                                                                 false,
+                                                                                 4096,
+                                                                                 1024,
+                                                                                 null);
+      smallRegions.start();
+      try
+      {
+         SequentialFile file = smallRegions.createSequentialFile("grow.hq", 1);
+         file.open();
+
+         final int records = 100;
+         final int recordSize = 101;
+
+         for (int i = 0; i < records; i++)
+         {
+            ByteBuffer buffer = smallRegions.newBuffer(recordSize);
+            for (int j = 0; j < recordSize; j++)
+            {
+               buffer.put((byte)i);
+            }
+            buffer.rewind();
+            file.writeDirect(buffer, i % 10 == 0);
+         }
+
+         Assert.assertEquals(records * recordSize, file.size());
+
+         file.close();
+
+         // the space pre-allocated while growing is given back on close
+         Assert.assertEquals(records * recordSize, file.getJavaFile().length());
+
+         file.open();
+
+         ByteBuffer read = smallRegions.newBuffer(records * recordSize);
+         Assert.assertEquals(records * recordSize, file.read(read));
+
+         for (int i = 0; i < records; i++)
+         {
+            for (int j = 0; j < recordSize; j++)
+            {
+               Assert.assertEquals((byte)i, read.get());
+            }
+         }
+
+         file.delete();
+      }
+      finally
+      {
+         smallRegions.stop();
+      }
+   }
+
+}
@@ -0,0 +1,464 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.integration.journal;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.hornetq.core.journal.SequentialFileFactory;
+import org.hornetq.core.journal.impl.JournalImpl;
+import org.hornetq.core.journal.impl.NIOSequentialFileFactory;
+import org.hornetq.tests.unit.core.journal.impl.JournalImplTestBase;
+import org.hornetq.tests.unit.core.journal.impl.fakes.SimpleEncoding;
+import org.hornetq.utils.IDGenerator;
+import org.hornetq.utils.SimpleIDGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the journal checkpoints, which let the load skip reading the files they cover.
+ */
+public class NIOJournalCheckpointTest extends JournalImplTestBase
+{
+   private static final int FILE_SIZE = 60 * 1024;
+
+   private static final int RECORDS_PER_FILE = 40;
+
+   private final IDGenerator idGenerator = new SimpleIDGenerator(100000);
+
+   @Test
+   public void testLoadFromCheckpoint() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      startJournal();
+      load();
+
+      ArrayList<Long> kept = addAndDeleteFiles(4);
+
+      for (int i = 0; i < kept.size(); i += 2)
+      {
+         update(kept.get(i));
+      }
+
+      journal.testCheckpoint();
+
+      long checkpointFileID = ((JournalImpl)journal).getCheckpointFileID();
+
+      Assert.assertTrue(checkpointFileID >= 0);
+
+      // the tail, which is read after the checkpoint
+      addAndDeleteFiles(1);
+
+      for (int i = 1; i < kept.size(); i += 2)
+      {
+         delete(kept.get(i));
+      }
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+
+      Assert.assertEquals(checkpointFileID, ((JournalImpl)journal).getCheckpointFileID());
+
+      // the restored counters still reclaim the files
+      for (int i = 0; i < kept.size(); i += 2)
+      {
+         delete(kept.get(i));
+      }
+
+      journal.forceMoveNextFile();
+
+      checkAndReclaimFiles();
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+   }
+
+   @Test
+   public void testTransactionOpenOnCheckpoint() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      startJournal();
+      load();
+
+      long committed = idGenerator.generateID();
+
+      long prepared = idGenerator.generateID();
+
+      addTx(committed, idGenerator.generateID(), idGenerator.generateID());
+
+      addTx(prepared, idGenerator.generateID());
+
+      prepare(prepared, new SimpleEncoding(10, (byte)0));
+
+      addAndDeleteFiles(2);
+
+      journal.testCheckpoint();
+
+      Assert.assertTrue(((JournalImpl)journal).getCheckpointFileID() >= 0);
+
+      // committed after the cut, so read with the tail
+      commit(committed);
+
+      journal.forceMoveNextFile();
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+
+      commit(prepared);
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+   }
+
+   @Test
+   public void testCheckpointResumesFromPrevious() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      startJournal();
+      load();
+
+      long prepared = idGenerator.generateID();
+
+      addTx(prepared, idGenerator.generateID());
+
+      prepare(prepared, new SimpleEncoding(10, (byte)0));
+
+      ArrayList<Long> kept = addAndDeleteFiles(3);
+
+      journal.testCheckpoint();
+
+      long firstCut = ((JournalImpl)journal).getCheckpointFileID();
+
+      for (int i = 0; i < kept.size(); i += 2)
+      {
+         update(kept.get(i));
+      }
+
+      for (int i = 1; i < kept.size(); i += 2)
+      {
+         delete(kept.get(i));
+      }
+
+      addAndDeleteFiles(2);
+
+      // only the files after the first cut are read
+      journal.testCheckpoint();
+
+      Assert.assertTrue(((JournalImpl)journal).getCheckpointFileID() > firstCut);
+
+      long secondCut = ((JournalImpl)journal).getCheckpointFileID();
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+
+      Assert.assertEquals(secondCut, ((JournalImpl)journal).getCheckpointFileID());
+
+      commit(prepared);
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+   }
+
+   @Test
+   public void testTemporaryCheckpoint() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      startJournal();
+      load();
+
+      addAndDeleteFiles(3);
+
+      journal.testCheckpoint();
+
+      long checkpointFileID = ((JournalImpl)journal).getCheckpointFileID();
+
+      stopJournal();
+
+      // as a crash between removing the previous checkpoint and renaming the new one leaves it
+      File checkpointFile = getCheckpointFile();
+
+      File tmpFile = new File(checkpointFile.getPath() + ".tmp");
+
+      Assert.assertTrue(checkpointFile.renameTo(tmpFile));
+
+      createJournal();
+      startJournal();
+      loadAndCheck();
+
+      Assert.assertEquals(checkpointFileID, ((JournalImpl)journal).getCheckpointFileID());
+      Assert.assertNotNull(getCheckpointFile());
+      Assert.assertFalse(tmpFile.exists());
+
+      stopJournal();
+
+      // and a crash while writing one leaves it without its header
+      checkpointFile = getCheckpointFile();
+
+      Assert.assertTrue(checkpointFile.renameTo(tmpFile));
+
+      RandomAccessFile randomFile = new RandomAccessFile(tmpFile, "rw");
+      try
+      {
+         randomFile.write(new byte[4]);
+      }
+      finally
+      {
+         randomFile.close();
+      }
+
+      createJournal();
+      startJournal();
+      loadAndCheck();
+
+      Assert.assertEquals(-1, ((JournalImpl)journal).getCheckpointFileID());
+      Assert.assertFalse(tmpFile.exists());
+   }
+
+   @Test
+   public void testFilesReclaimedAfterCheckpoint() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      startJournal();
+      load();
+
+      ArrayList<Long> kept = addAndDeleteFiles(4);
+
+      journal.testCheckpoint();
+
+      long checkpointFileID = ((JournalImpl)journal).getCheckpointFileID();
+
+      int filesBefore = journal.getDataFilesCount();
+
+      for (Long id : kept.subList(0, kept.size() / 2))
+      {
+         delete(id);
+      }
+
+      journal.forceMoveNextFile();
+
+      checkAndReclaimFiles();
+
+      Assert.assertTrue(journal.getDataFilesCount() < filesBefore);
+
+      // otherwise the file of the deletes is reclaimed too, and the load appends to a covered file
+      add(idGenerator.generateID());
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+
+      Assert.assertEquals(checkpointFileID, ((JournalImpl)journal).getCheckpointFileID());
+   }
+
+   @Test
+   public void testCompactInvalidatesCheckpoint() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      startJournal();
+      load();
+
+      addAndDeleteFiles(3);
+
+      journal.testCheckpoint();
+
+      Assert.assertTrue(((JournalImpl)journal).getCheckpointFileID() >= 0);
+
+      journal.testCompact();
+
+      Assert.assertEquals(-1, ((JournalImpl)journal).getCheckpointFileID());
+
+      Assert.assertNull(getCheckpointFile());
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+
+      Assert.assertEquals(-1, ((JournalImpl)journal).getCheckpointFileID());
+   }
+
+   @Test
+   public void testIncrementalCompactRewritesCheckpoint() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      ((JournalImpl)journal).setCompactMaxFiles(2);
+      startJournal();
+      load();
+
+      ArrayList<Long> kept = addAndDeleteFiles(4);
+
+      journal.testCheckpoint();
+
+      long checkpointFileID = ((JournalImpl)journal).getCheckpointFileID();
+
+      Assert.assertTrue(checkpointFileID >= 0);
+
+      // updates of the records of the compacted files, on the covered files the pass keeps
+      for (int i = 0; i < kept.size(); i += 2)
+      {
+         update(kept.get(i));
+      }
+
+      addAndDeleteFiles(1);
+
+      journal.testCompactIncremental();
+
+      Assert.assertTrue(((JournalImpl)journal).getCheckpointFileID() >= checkpointFileID);
+
+      Assert.assertNotNull(getCheckpointFile());
+
+      for (int i = 1; i < kept.size(); i += 2)
+      {
+         delete(kept.get(i));
+      }
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+
+      Assert.assertTrue(((JournalImpl)journal).getCheckpointFileID() >= checkpointFileID);
+
+      // the counters of the files written by the pass still reclaim them
+      for (int i = 0; i < kept.size(); i += 2)
+      {
+         delete(kept.get(i));
+      }
+
+      journal.forceMoveNextFile();
+
+      checkAndReclaimFiles();
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+   }
+
+   @Test
+   public void testCorruptCheckpoint() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      startJournal();
+      load();
+
+      addAndDeleteFiles(3);
+
+      journal.testCheckpoint();
+
+      stopJournal();
+
+      File checkpointFile = getCheckpointFile();
+
+      Assert.assertNotNull(checkpointFile);
+
+      RandomAccessFile randomFile = new RandomAccessFile(checkpointFile, "rw");
+      try
+      {
+         randomFile.seek(randomFile.length() / 2);
+         randomFile.write(new byte[]{1, 2, 3, 4});
+      }
+      finally
+      {
+         randomFile.close();
+      }
+
+      // all the files are read instead
+      createJournal();
+      startJournal();
+      loadAndCheck();
+
+      Assert.assertEquals(-1, ((JournalImpl)journal).getCheckpointFileID());
+      Assert.assertNull(getCheckpointFile());
+   }
+
+   private File getCheckpointFile()
+   {
+      File[] files = new File(getTestDir()).listFiles();
+
+      for (File file : files)
+      {
+         if (file.getName().endsWith(".checkpoint"))
+         {
+            return file;
+         }
+      }
+
+      return null;
+   }
+
+   /**
+    * @return the records left on the files
+    */
+   private ArrayList<Long> addAndDeleteFiles(final int files) throws Exception
+   {
+      ArrayList<Long> kept = new ArrayList<Long>();
+
+      for (int file = 0; file < files; file++)
+      {
+         for (int i = 0; i < RECORDS_PER_FILE; i++)
+         {
+            long id = idGenerator.generateID();
+            add(id);
+            if (i % 8 == 0)
+            {
+               kept.add(id);
+            }
+            else
+            {
+               delete(id);
+            }
+         }
+         journal.forceMoveNextFile();
+      }
+
+      return kept;
+   }
+
+   @Override
+   protected SequentialFileFactory getFileFactory() throws Exception
+   {
+      return new NIOSequentialFileFactory(getTestDir());
+   }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.integration.journal;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+
+import org.hornetq.core.journal.SequentialFileFactory;
+import org.hornetq.core.journal.impl.JournalFile;
+import org.hornetq.core.journal.impl.JournalImpl;
+import org.hornetq.core.journal.impl.NIOSequentialFileFactory;
+import org.hornetq.core.journal.impl.VerifyJournal;
+import org.hornetq.tests.unit.core.journal.impl.JournalImplTestBase;
+import org.hornetq.tests.unit.core.journal.impl.fakes.SimpleEncoding;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the journal files with a CRC on every record.
+ */
+public class NIOJournalChecksumTest extends JournalImplTestBase
+{
+   private static final int FILE_SIZE = 60 * 1024;
+
+   @Test
+   public void testLoadWithChecksum() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createChecksumJournal(true);
+      startJournal();
+      load();
+
+      for (long id = 1; id <= 100; id++)
+      {
+         add(id);
+      }
+
+      update(10, 20, 30);
+
+      delete(1, 2, 3);
+
+      addTx(1000, 101, 102);
+      updateTx(1000, 10);
+      deleteTx(1000, 4);
+      commit(1000);
+
+      addTx(1001, 103);
+      rollback(1001);
+
+      addTx(1002, 104);
+      prepare(1002, new SimpleEncoding(10, (byte)0));
+
+      for (JournalFile file : journal.getDataFiles())
+      {
+         Assert.assertEquals(JournalImpl.CHECKSUM_FORMAT_VERSION, file.getJournalVersion());
+      }
+
+      Assert.assertEquals(JournalImpl.CHECKSUM_FORMAT_VERSION,
+                          ((JournalImpl)journal).getCurrentFile().getJournalVersion());
+
+      stopJournal();
+      createChecksumJournal(true);
+      startJournal();
+      loadAndCheck();
+
+      commit(1002);
+
+      journal.testCompact();
+
+      stopJournal();
+      createChecksumJournal(true);
+      startJournal();
+      loadAndCheck();
+   }
+
+   @Test
+   public void testLiveSizeReloaded() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createChecksumJournal(true);
+      startJournal();
+      load();
+
+      for (long id = 1; id <= 100; id++)
+      {
+         add(id);
+      }
+
+      update(10, 20, 30);
+
+      addTx(1000, 101, 102);
+      updateTx(1000, 40);
+      commit(1000);
+
+      int liveSize = getLiveSize();
+
+      stopJournal();
+      createChecksumJournal(true);
+      startJournal();
+      loadAndCheck();
+
+      Assert.assertEquals(liveSize, getLiveSize());
+   }
+
+   private int getLiveSize()
+   {
+      int liveSize = ((JournalImpl)journal).getCurrentFile().getLiveSize();
+
+      for (JournalFile file : journal.getDataFiles())
+      {
+         liveSize += file.getLiveSize();
+      }
+
+      return liveSize;
+   }
+
+   @Test
+   public void testMixedFormats() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createChecksumJournal(false);
+      startJournal();
+      load();
+
+      for (long id = 1; id <= 100; id++)
+      {
+         add(id);
+      }
+
+      stopJournal();
+      createChecksumJournal(true);
+      startJournal();
+      loadAndCheck();
+
+      for (long id = 101; id <= 200; id++)
+      {
+         add(id);
+      }
+
+      delete(50, 150);
+
+      stopJournal();
+      createChecksumJournal(false);
+      startJournal();
+      loadAndCheck();
+
+      update(60, 160);
+
+      stopJournal();
+      createChecksumJournal(true);
+      startJournal();
+      loadAndCheck();
+   }
+
+   @Test
+   public void testDamagedRecordIgnored() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createChecksumJournal(true);
+      startJournal();
+      load();
+
+      add(1);
+
+      String fileName = ((JournalImpl)journal).getCurrentFile().getFile().getFileName();
+
+      add(2, 3);
+
+      stopJournal();
+
+      Assert.assertTrue(VerifyJournal.verifyJournal(getTestDir(), filePrefix, fileExtension, FILE_SIZE, 2, getNullOutput()));
+
+      // A byte of the body, which leaves the sizes of the record valid
+      damage(new File(getTestDir(), fileName), JournalImpl.SIZE_HEADER + JournalImpl.SIZE_ADD_RECORD + 10);
+
+      Assert.assertFalse(VerifyJournal.verifyJournal(getTestDir(), filePrefix, fileExtension, FILE_SIZE, 2, getNullOutput()));
+
+      removeRecordsForID(1);
+
+      createChecksumJournal(true);
+      startJournal();
+      loadAndCheck();
+   }
+
+   private void createChecksumJournal(final boolean checksum) throws Exception
+   {
+      createJournal();
+      ((JournalImpl)journal).setChecksum(checksum);
+   }
+
+   private static void damage(final File file, final int position) throws Exception
+   {
+      RandomAccessFile randomFile = new RandomAccessFile(file, "rw");
+      try
+      {
+         randomFile.seek(position);
+         int value = randomFile.read();
+         randomFile.seek(position);
+         randomFile.write(value ^ 0xFF);
+      }
+      finally
+      {
+         randomFile.close();
+      }
+   }
+
+   private static PrintStream getNullOutput()
+   {
+      return new PrintStream(new OutputStream()
+      {
+         @Override
+         public void write(final int b)
+         {
+         }
+      });
+   }
+
+   @Override
+   protected SequentialFileFactory getFileFactory() throws Exception
+   {
+      return new NIOSequentialFileFactory(getTestDir());
+   }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.integration.journal;
+
+import java.util.ArrayList;
+
+import org.hornetq.core.journal.SequentialFileFactory;
+import org.hornetq.core.journal.impl.JournalFile;
+import org.hornetq.core.journal.impl.JournalImpl;
+import org.hornetq.core.journal.impl.NIOSequentialFileFactory;
+import org.hornetq.tests.unit.core.journal.impl.JournalImplTestBase;
+import org.hornetq.utils.IDGenerator;
+import org.hornetq.utils.SimpleIDGenerator;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the incremental compacting, which compacts only the oldest files of the journal.
+ */
+public class NIOJournalIncrementalCompactTest extends JournalImplTestBase
+{
+   private static final int FILE_SIZE = 60 * 1024;
+
+   private static final int RECORDS_PER_FILE = 40;
+
+   private final IDGenerator idGenerator = new SimpleIDGenerator(100000);
+
+   private int compactMaxFiles = 2;
+
+   private int compactRate = 0;
+
+   @Override
+   public void createJournal() throws Exception
+   {
+      super.createJournal();
+      ((JournalImpl)journal).setCompactMaxFiles(compactMaxFiles);
+      ((JournalImpl)journal).setCompactRate(compactRate);
+   }
+
+   @Test
+   public void testCompactOldestFiles() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      startJournal();
+      load();
+
+      ArrayList<Long> kept = new ArrayList<Long>();
+
+      for (int file = 0; file < 6; file++)
+      {
+         for (int i = 0; i < RECORDS_PER_FILE; i++)
+         {
+            long id = idGenerator.generateID();
+            add(id);
+            if (i % 10 == 0)
+            {
+               kept.add(id);
+            }
+            else
+            {
+               delete(id);
+            }
+         }
+         journal.forceMoveNextFile();
+      }
+
+      // updates of the old records on the newest files, which are not compacted
+      for (Long id : kept)
+      {
+         update(id);
+      }
+
+      journal.forceMoveNextFile();
+
+      int filesBefore = journal.getDataFilesCount();
+
+      journal.testCompactIncremental();
+
+      // the two oldest files became one
+      Assert.assertEquals(filesBefore - 1, journal.getDataFilesCount());
+      Assert.assertEquals(1, ((JournalImpl)journal).getCompactTimes().getCount());
+
+      journal.testCompactIncremental();
+
+      Assert.assertEquals(2, ((JournalImpl)journal).getCompactTimes().getCount());
+
+      for (Long id : kept)
+      {
+         update(id);
+      }
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+
+      // the records taken from the compacted files are still counted, so they can be deleted
+      for (Long id : kept)
+      {
+         delete(id);
+      }
+
+      journal.forceMoveNextFile();
+
+      checkAndReclaimFiles();
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+   }
+
+   @Test
+   public void testPendingTransactionOnOldestFile() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      startJournal();
+      load();
+
+      long tx = idGenerator.generateID();
+
+      addTx(tx, idGenerator.generateID(), idGenerator.generateID());
+
+      addAndDeleteFiles(3);
+
+      int filesBefore = journal.getDataFilesCount();
+
+      journal.testCompactIncremental();
+
+      // nothing can be compacted before the transaction is done
+      Assert.assertEquals(filesBefore, journal.getDataFilesCount());
+      // and a pass that did nothing isn't timed
+      Assert.assertEquals(0, ((JournalImpl)journal).getCompactTimes().getCount());
+
+      commit(tx);
+
+      journal.forceMoveNextFile();
+
+      // the passes over the transaction are abandoned until one reaches its commit
+      for (int i = 0; i < 4 && journal.getDataFilesCount() == filesBefore + 1; i++)
+      {
+         journal.testCompactIncremental();
+      }
+
+      Assert.assertTrue(journal.getDataFilesCount() < filesBefore + 1);
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+   }
+
+   @Test
+   public void testTransactionCommittedOnLaterFile() throws Exception
+   {
+      compactMaxFiles = 1;
+
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      startJournal();
+      load();
+
+      long tx = idGenerator.generateID();
+
+      addTx(tx, idGenerator.generateID(), idGenerator.generateID());
+
+      addAndDeleteFiles(1);
+
+      commit(tx);
+
+      addAndDeleteFiles(2);
+
+      JournalFile firstFile = journal.getDataFiles()[0];
+
+      // the transaction is split between the file of the pass and the next one
+      journal.testCompactIncremental();
+
+      Assert.assertSame(firstFile, journal.getDataFiles()[0]);
+
+      // the abandoned pass isn't timed, and the file it wrote was recycled
+      Assert.assertEquals(0, ((JournalImpl)journal).getCompactTimes().getCount());
+      Assert.assertEquals(0, fileFactory.listFiles("cmp").size());
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+
+      int filesBefore = journal.getDataFilesCount();
+
+      firstFile = journal.getDataFiles()[0];
+
+      // the journal was restarted, so this pass is the one with the single file again
+      journal.testCompactIncremental();
+
+      Assert.assertSame(firstFile, journal.getDataFiles()[0]);
+
+      // which was abandoned, so the next pass takes the commit too
+      journal.testCompactIncremental();
+
+      Assert.assertNotSame(firstFile, journal.getDataFiles()[0]);
+      Assert.assertTrue(journal.getDataFilesCount() < filesBefore);
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+   }
+
+   @Test
+   public void testConcurrentUpdatesAndDeletes() throws Exception
+   {
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      startJournal();
+      load();
+
+      ArrayList<Long> kept = new ArrayList<Long>();
+
+      for (int file = 0; file < 4; file++)
+      {
+         for (int i = 0; i < RECORDS_PER_FILE; i++)
+         {
+            long id = idGenerator.generateID();
+            add(id);
+            if (i % 4 == 0)
+            {
+               kept.add(id);
+            }
+            else
+            {
+               delete(id);
+            }
+         }
+         journal.forceMoveNextFile();
+      }
+
+      startCompact(true);
+
+      for (int i = 0; i < kept.size(); i++)
+      {
+         if (i % 2 == 0)
+         {
+            update(kept.get(i));
+         }
+         else
+         {
+            delete(kept.get(i));
+         }
+      }
+
+      long tx = idGenerator.generateID();
+      addTx(tx, idGenerator.generateID());
+      updateTx(tx, kept.get(0));
+      commit(tx);
+
+      add(idGenerator.generateID());
+
+      finishCompact();
+
+      journal.forceMoveNextFile();
+
+      checkAndReclaimFiles();
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+   }
+
+   @Test
+   public void testCompactRate() throws Exception
+   {
+      compactRate = 1;
+
+      setup(2, FILE_SIZE, false);
+
+      createJournal();
+      startJournal();
+      load();
+
+      addAndDeleteFiles(3);
+
+      journal.testCompactIncremental();
+
+      // two files read at 1MiB/s
+      Assert.assertTrue(((JournalImpl)journal).getCompactTimes().getMax() >= 2 * FILE_SIZE * 1000L / (1024 * 1024) - 10);
+
+      stopJournal();
+      createJournal();
+      startJournal();
+      loadAndCheck();
+   }
+
+   private void addAndDeleteFiles(final int files) throws Exception
+   {
+      for (int file = 0; file < files; file++)
+      {
+         for (int i = 0; i < RECORDS_PER_FILE; i++)
+         {
+            long id = idGenerator.generateID();
+            add(id);
+            if (i % 8 != 0)
+            {
+               delete(id);
+            }
+         }
+         journal.forceMoveNextFile();
+      }
+   }
+
+   @Override
+   protected SequentialFileFactory getFileFactory() throws Exception
+   {
+      return new NIOSequentialFileFactory(getTestDir());
+   }
+}
@@ -26,6 +26,7 @@ import org.junit.Assert;
 import org.hornetq.api.config.HornetQDefaultConfiguration;
 import org.hornetq.api.core.SimpleString;
 import org.hornetq.api.core.TransportConfiguration;
+import org.hornetq.api.core.client.ClientConsumer;
 import org.hornetq.api.core.client.ClientMessage;
 import org.hornetq.api.core.client.ClientProducer;
 import org.hornetq.api.core.client.ClientSession;
@@ -268,6 +269,133 @@ public class AddressControlTest extends ManagementTestBase
          Assert.assertEquals("# of pages is 2", 2, addressControl.getNumberOfPages());
    }
 
+   @Test
+   public void testGetPageCacheCounters() throws Exception
+   {
+      session.close();
+      server.stop();
+      server.getConfiguration().setPersistenceEnabled(true);
+
+      SimpleString address = RandomUtil.randomSimpleString();
+
+      AddressSettings addressSettings = new AddressSettings();
+      addressSettings.setPageSizeBytes(1024);
+      addressSettings.setMaxSizeBytes(10 * 1024);
+      addressSettings.setPageCacheMaxSize(1);
+      final int NUMBER_OF_MESSAGES = 50;
+
+      server.getAddressSettingsRepository().addMatch(address.toString(), addressSettings);
+      server.start();
+      ServerLocator locator2 =
+               HornetQClient.createServerLocatorWithoutHA(new TransportConfiguration(
+                                                                                     UnitTestCase.INVM_CONNECTOR_FACTORY));
+      addServerLocator(locator2);
+      ClientSessionFactory sf2 = createSessionFactory(locator2);
+
+      session = sf2.createSession(false, true, false);
+      session.createQueue(address, address, true);
+
+      ClientProducer producer = session.createProducer(address);
+
+      for (int i = 0; i < NUMBER_OF_MESSAGES; i++)
+      {
+         ClientMessage msg = session.createMessage(true);
+         msg.getBodyBuffer().writeBytes(new byte[512]);
+         producer.send(msg);
+      }
+      session.commit();
+      session.close();
+
+      Assert.assertTrue(createManagementControl(address).getNumberOfPages() > 2);
+
+      // the pages are read back into the cache after a restart
+      server.stop();
+      server.start();
+
+      sf2 = createSessionFactory(locator2);
+      session = sf2.createSession(false, true, false);
+      session.start();
+
+      ClientConsumer consumer = session.createConsumer(address);
+
+      for (int i = 0; i < NUMBER_OF_MESSAGES; i++)
+      {
+         ClientMessage msg = consumer.receive(5000);
+         Assert.assertNotNull(msg);
+         msg.acknowledge();
+      }
+      session.commit();
+
+      AddressControl addressControl = createManagementControl(address);
+
+      Assert.assertTrue(addressControl.getPageCacheMisses() > 1);
+      Assert.assertTrue(addressControl.getPageCacheHits() > 0);
+      // only one page of the address is cached at a time
+      Assert.assertTrue(addressControl.getPageCacheEvictions() > 0);
+   }
+
+   @Test
+   public void testGetPagePrefetchCounters() throws Exception
+   {
+      session.close();
+      server.stop();
+      server.getConfiguration().setPersistenceEnabled(true);
+
+      SimpleString address = RandomUtil.randomSimpleString();
+
+      AddressSettings addressSettings = new AddressSettings();
+      addressSettings.setPageSizeBytes(1024);
+      addressSettings.setMaxSizeBytes(10 * 1024);
+      final int NUMBER_OF_MESSAGES = 50;
+
+      server.getAddressSettingsRepository().addMatch(address.toString(), addressSettings);
+      server.start();
+      ServerLocator locator2 =
+               HornetQClient.createServerLocatorWithoutHA(new TransportConfiguration(
+                                                                                     UnitTestCase.INVM_CONNECTOR_FACTORY));
+      addServerLocator(locator2);
+      ClientSessionFactory sf2 = createSessionFactory(locator2);
+
+      session = sf2.createSession(false, true, false);
+      session.createQueue(address, address, true);
+
+      ClientProducer producer = session.createProducer(address);
+
+      for (int i = 0; i < NUMBER_OF_MESSAGES; i++)
+      {
+         ClientMessage msg = session.createMessage(true);
+         msg.getBodyBuffer().writeBytes(new byte[512]);
+         producer.send(msg);
+      }
+      session.commit();
+      session.close();
+
+      server.stop();
+      server.start();
+
+      sf2 = createSessionFactory(locator2);
+      session = sf2.createSession(false, true, false);
+      session.start();
+
+      ClientConsumer consumer = session.createConsumer(address);
+
+      for (int i = 0; i < NUMBER_OF_MESSAGES; i++)
+      {
+         ClientMessage msg = consumer.receive(5000);
+         Assert.assertNotNull(msg);
+         msg.acknowledge();
+      }
+      session.commit();
+
+      AddressControl addressControl = createManagementControl(address);
+
+      // the first page is always waited for, the pages after it are read ahead
+      Assert.assertTrue(addressControl.getPagePrefetchHitRate() > 0);
+      Assert.assertTrue(addressControl.getPagePrefetchHitRate() < 1);
+      Assert.assertTrue(addressControl.getPagePrefetchDepth() >= 1);
+      Assert.assertTrue(addressControl.getPageReadStallTime() >= 0);
+   }
+
    @Test
    public void testGetNumberOfBytesPerPage() throws Exception
    {
@@ -43,6 +43,7 @@ import org.hornetq.api.core.management.QueueControl;
 import org.hornetq.api.core.management.RoleInfo;
 import org.hornetq.core.asyncio.impl.AsynchronousFileImpl;
 import org.hornetq.core.config.Configuration;
+import org.hornetq.core.journal.impl.NativeBufferPool;
 import org.hornetq.core.messagecounter.impl.MessageCounterManagerImpl;
 import org.hornetq.core.remoting.impl.invm.InVMAcceptorFactory;
 import org.hornetq.core.remoting.impl.invm.InVMConnectorFactory;
@@ -51,6 +52,7 @@ import org.hornetq.core.server.HornetQServers;
 import org.hornetq.core.transaction.impl.XidImpl;
 import org.hornetq.tests.util.RandomUtil;
 import org.hornetq.tests.util.UnitTestCase;
+import org.hornetq.utils.DurationHistogram;
 import org.hornetq.utils.UUIDGenerator;
 import org.hornetq.utils.json.JSONArray;
 import org.hornetq.utils.json.JSONObject;
@@ -151,6 +153,47 @@ public class HornetQServerControlTest extends ManagementTestBase
       Assert.assertEquals(conf.getJournalCompactPercentage(), serverControl.getJournalCompactPercentage());
       Assert.assertEquals(conf.isPersistenceEnabled(), serverControl.isPersistenceEnabled());
       Assert.assertEquals(conf.isFailoverOnServerShutdown(), serverControl.isFailoverOnServerShutdown());
+      Assert.assertEquals(server.getJournalScanTime(), serverControl.getJournalScanTime());
+      Assert.assertEquals(server.getJournalMergeTime(), serverControl.getJournalMergeTime());
+      Assert.assertEquals(server.getQueueRebuildTime(), serverControl.getQueueRebuildTime());
+   }
+
+   @Test
+   public void testGetJournalCompactTimes() throws Exception
+   {
+      HornetQServerControl serverControl = createManagementControl();
+
+      JSONObject times = new JSONObject(serverControl.getJournalCompactTimesAsJSON());
+      long passes = times.getLong("count");
+
+      server.getStorageManager().getMessageJournal().scheduleCompactAndBlock(60);
+
+      times = new JSONObject(serverControl.getJournalCompactTimesAsJSON());
+      Assert.assertEquals(passes + 1, times.getLong("count"));
+
+      JSONArray buckets = times.getJSONArray("buckets");
+      Assert.assertEquals(DurationHistogram.DEFAULT_BUCKETS, buckets.length());
+      Assert.assertEquals(-1, buckets.getJSONObject(buckets.length() - 1).getLong("upTo"));
+
+      long total = 0;
+      for (int i = 0; i < buckets.length(); i++)
+      {
+         total += buckets.getJSONObject(i).getLong("count");
+      }
+      Assert.assertEquals(passes + 1, total);
+   }
+
+   @Test
+   public void testGetBufferPoolUsage() throws Exception
+   {
+      HornetQServerControl serverControl = createManagementControl();
+
+      JSONObject usage = new JSONObject(serverControl.getBufferPoolUsageAsJSON());
+
+      Assert.assertEquals(NativeBufferPool.getShared().getAllocatorName(), usage.getString("allocator"));
+      Assert.assertTrue(usage.getLong("allocatedBytes") >= usage.getLong("pooledBytes"));
+      Assert.assertTrue(usage.getLong("inUseBuffers") >= 0);
+      Assert.assertEquals(NativeBufferPool.getShared().isTrackLeaks(), usage.has("borrowedBySite"));
    }
 
    @Test
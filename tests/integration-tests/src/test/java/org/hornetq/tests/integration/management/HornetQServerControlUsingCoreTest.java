@@ -134,6 +134,15 @@ public class HornetQServerControlUsingCoreTest extends HornetQServerControlTest
             proxy.invokeOperation("createQueue", address, name, durable);
          }
 
+         public void createShardedQueue(final String address,
+                                        final String name,
+                                        final String filter,
+                                        final boolean durable,
+                                        final int shards) throws Exception
+         {
+            proxy.invokeOperation("createShardedQueue", address, name, filter, durable, shards);
+         }
+
          public void deployQueue(final String address, final String name, final String filter, final boolean durable) throws Exception
          {
             proxy.invokeOperation("deployQueue", address, name, filter, durable);
@@ -379,6 +388,31 @@ public class HornetQServerControlUsingCoreTest extends HornetQServerControlTest
             return (Boolean)proxy.retrieveAttributeValue("started");
          }
 
+         public long getJournalScanTime()
+         {
+            return (Long)proxy.retrieveAttributeValue("journalScanTime", Long.class);
+         }
+
+         public long getJournalMergeTime()
+         {
+            return (Long)proxy.retrieveAttributeValue("journalMergeTime", Long.class);
+         }
+
+         public long getQueueRebuildTime()
+         {
+            return (Long)proxy.retrieveAttributeValue("queueRebuildTime", Long.class);
+         }
+
+         public String getJournalCompactTimesAsJSON() throws Exception
+         {
+            return (String)proxy.retrieveAttributeValue("journalCompactTimesAsJSON");
+         }
+
+         public String getBufferPoolUsageAsJSON() throws Exception
+         {
+            return (String)proxy.retrieveAttributeValue("bufferPoolUsageAsJSON");
+         }
+
          public boolean isWildcardRoutingEnabled()
          {
             return (Boolean)proxy.retrieveAttributeValue("wildcardRoutingEnabled");
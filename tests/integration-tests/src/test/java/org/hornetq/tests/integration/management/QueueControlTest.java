@@ -306,11 +306,15 @@ public class QueueControlTest extends ManagementTestBase
       }
 
       Assert.assertEquals(1, queueControl.getScheduledCount());
+      Assert.assertEquals(0, queueControl.getScheduledDeliveredCount());
       ManagementTestBase.consumeMessages(0, session, queue);
 
       Thread.sleep(delay * 2);
 
       Assert.assertEquals(0, queueControl.getScheduledCount());
+      Assert.assertEquals(1, queueControl.getScheduledDeliveredCount());
+      Assert.assertTrue(queueControl.getScheduledDeliveryLag() >= 0);
+      Assert.assertTrue(queueControl.getMaxScheduledDeliveryLag() >= queueControl.getScheduledDeliveryLag());
       ManagementTestBase.consumeMessages(1, session, queue);
 
       session.deleteQueue(queue);
@@ -128,6 +128,21 @@ public class QueueControlUsingCoreTest extends QueueControlTest
             return (Long)proxy.retrieveAttributeValue("scheduledCount", Long.class);
          }
 
+         public long getScheduledDeliveredCount()
+         {
+            return (Long)proxy.retrieveAttributeValue("scheduledDeliveredCount", Long.class);
+         }
+
+         public long getScheduledDeliveryLag()
+         {
+            return (Long)proxy.retrieveAttributeValue("scheduledDeliveryLag", Long.class);
+         }
+
+         public long getMaxScheduledDeliveryLag()
+         {
+            return (Long)proxy.retrieveAttributeValue("maxScheduledDeliveryLag", Long.class);
+         }
+
          public boolean isDurable()
          {
             return (Boolean)proxy.retrieveAttributeValue("durable");
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2010 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.integration.persistence;
+
+import org.hornetq.api.core.HornetQIllegalStateException;
+import org.hornetq.core.config.Configuration;
+import org.hornetq.core.persistence.impl.journal.JournalStorageManager;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * A JournalStripesTest
+ */
+public class JournalStripesTest extends StorageManagerTestBase
+{
+
+   @Override
+   @After
+   public void tearDown() throws Exception
+   {
+      System.clearProperty(JournalStorageManager.JOURNAL_STRIPES_PROPERTY);
+
+      super.tearDown();
+   }
+
+   @Test
+   public void testRaiseStripes() throws Exception
+   {
+      System.setProperty(JournalStorageManager.JOURNAL_STRIPES_PROPERTY, "2");
+
+      createStorage();
+
+      journal.stop();
+
+      System.setProperty(JournalStorageManager.JOURNAL_STRIPES_PROPERTY, "3");
+
+      createStorage();
+
+      journal.stop();
+
+      System.setProperty(JournalStorageManager.JOURNAL_STRIPES_PROPERTY, "2");
+
+      try
+      {
+         createStorage();
+         fail("the journal was written with 3 stripes");
+      }
+      catch (HornetQIllegalStateException expected)
+      {
+         // expected
+      }
+   }
+
+   @Test
+   public void testStripesNotRemoved() throws Exception
+   {
+      System.setProperty(JournalStorageManager.JOURNAL_STRIPES_PROPERTY, "2");
+
+      createStorage();
+
+      journal.stop();
+
+      System.clearProperty(JournalStorageManager.JOURNAL_STRIPES_PROPERTY);
+
+      try
+      {
+         createStorage();
+         fail("the journal was written with 2 stripes");
+      }
+      catch (HornetQIllegalStateException expected)
+      {
+         // expected
+      }
+   }
+
+   @Test
+   public void testStripesNotReplicated() throws Exception
+   {
+      System.setProperty(JournalStorageManager.JOURNAL_STRIPES_PROPERTY, "2");
+
+      Configuration configuration = createDefaultConfig();
+
+      configuration.setSharedStore(false);
+
+      try
+      {
+         createJournalStorageManager(configuration);
+         fail("a replicating live can't use stripes");
+      }
+      catch (IllegalArgumentException expected)
+      {
+         // expected
+      }
+   }
+}
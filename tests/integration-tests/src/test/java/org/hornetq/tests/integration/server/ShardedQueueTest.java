@@ -0,0 +1,423 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.hornetq.tests.integration.server;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.hornetq.api.core.Message;
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.api.core.client.ClientConsumer;
+import org.hornetq.api.core.client.ClientMessage;
+import org.hornetq.api.core.client.ClientProducer;
+import org.hornetq.api.core.client.ClientSession;
+import org.hornetq.api.core.client.ClientSessionFactory;
+import org.hornetq.api.core.client.ServerLocator;
+import org.hornetq.core.postoffice.impl.LocalQueueBinding;
+import org.hornetq.core.postoffice.impl.QueueShards;
+import org.hornetq.core.server.HornetQServer;
+import org.hornetq.core.server.Queue;
+import org.hornetq.core.server.ServerMessage;
+import org.hornetq.core.server.impl.ServerMessageImpl;
+import org.hornetq.tests.util.ServiceTestBase;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShardedQueueTest extends ServiceTestBase
+{
+   private static final int SHARDS = 4;
+
+   private final SimpleString address = new SimpleString("ShardedQueueTestAddress");
+
+   private final SimpleString queueName = new SimpleString("ShardedQueueTestQ");
+
+   private HornetQServer server;
+
+   private ServerLocator locator;
+
+   @Override
+   @Before
+   public void setUp() throws Exception
+   {
+      super.setUp();
+
+      server = createServer(true);
+      server.start();
+
+      locator = createInVMNonHALocator();
+      locator.setBlockOnNonDurableSend(true);
+      locator.setBlockOnDurableSend(true);
+   }
+
+   @Test
+   public void testConsumersAreSpreadOverShards() throws Exception
+   {
+      server.createShardedQueue(address, queueName, null, true, false, SHARDS);
+
+      ClientSessionFactory sf = createSessionFactory(locator);
+      ClientSession session = addClientSession(sf.createSession(false, true, true));
+
+      ClientConsumer[] consumers = new ClientConsumer[SHARDS];
+
+      for (int i = 0; i < SHARDS; i++)
+      {
+         consumers[i] = session.createConsumer(queueName);
+      }
+
+      QueueShards shards = getShards();
+
+      Assert.assertEquals(SHARDS, shards.getShardCount());
+
+      for (LocalQueueBinding shard : shards.getShards())
+      {
+         Assert.assertEquals(queueName, shard.getRoutingName());
+         Assert.assertEquals(1, shard.consumerCount());
+      }
+
+      ClientProducer producer = session.createProducer(address);
+
+      int messages = 100;
+
+      for (int i = 0; i < messages; i++)
+      {
+         ClientMessage message = session.createMessage(true);
+         message.putIntProperty("i", i);
+         producer.send(message);
+      }
+
+      Assert.assertEquals(messages, session.queueQuery(queueName).getMessageCount());
+
+      session.start();
+
+      int received = 0;
+
+      for (ClientConsumer consumer : consumers)
+      {
+         ClientMessage message;
+
+         while ((message = consumer.receive(500)) != null)
+         {
+            message.acknowledge();
+            received++;
+         }
+      }
+
+      // each message went to one shard only
+      Assert.assertEquals(messages, received);
+   }
+
+   @Test
+   public void testGroupsKeepTheirShard() throws Exception
+   {
+      server.createShardedQueue(address, queueName, null, true, false, SHARDS);
+
+      ClientSessionFactory sf = createSessionFactory(locator);
+      ClientSession session = addClientSession(sf.createSession(false, true, true));
+
+      ClientProducer producer = session.createProducer(address);
+
+      int groups = 10;
+      int messages = 20;
+
+      for (int i = 0; i < messages; i++)
+      {
+         for (int g = 0; g < groups; g++)
+         {
+            ClientMessage message = session.createMessage(true);
+            message.putStringProperty(Message.HDR_GROUP_ID, new SimpleString("group" + g));
+            message.putIntProperty("i", i);
+            producer.send(message);
+         }
+      }
+
+      QueueShards shards = getShards();
+
+      for (int g = 0; g < groups; g++)
+      {
+         SimpleString groupID = new SimpleString("group" + g);
+
+         ServerMessage message = new ServerMessageImpl(1, 50);
+
+         message.putStringProperty(Message.HDR_GROUP_ID, groupID);
+
+         Assert.assertSame(shards.getShardForGroup(groupID, message), shards.getShardForGroup(groupID, message));
+      }
+
+      ClientConsumer[] consumers = new ClientConsumer[SHARDS];
+
+      for (int i = 0; i < SHARDS; i++)
+      {
+         consumers[i] = session.createConsumer(queueName);
+      }
+
+      session.start();
+
+      Map<String, Integer> next = new HashMap<String, Integer>();
+      Map<String, ClientConsumer> groupConsumers = new HashMap<String, ClientConsumer>();
+
+      int received = 0;
+
+      for (ClientConsumer consumer : consumers)
+      {
+         ClientMessage message;
+
+         while ((message = consumer.receive(500)) != null)
+         {
+            message.acknowledge();
+
+            String group = message.getStringProperty(Message.HDR_GROUP_ID);
+
+            Integer expected = next.get(group);
+
+            Assert.assertEquals(expected == null ? 0 : expected.intValue(), message.getIntProperty("i").intValue());
+
+            next.put(group, message.getIntProperty("i") + 1);
+
+            ClientConsumer groupConsumer = groupConsumers.get(group);
+
+            Assert.assertTrue(groupConsumer == null || groupConsumer == consumer);
+
+            groupConsumers.put(group, consumer);
+
+            received++;
+         }
+      }
+
+      Assert.assertEquals(groups * messages, received);
+   }
+
+   @Test
+   public void testFewerConsumersThanShards() throws Exception
+   {
+      server.createShardedQueue(address, queueName, null, true, false, SHARDS);
+
+      getShards().setRedistributionDelay(100);
+
+      ClientSessionFactory sf = createSessionFactory(locator);
+      ClientSession session = addClientSession(sf.createSession(false, true, true));
+
+      ClientProducer producer = session.createProducer(address);
+
+      int messages = 100;
+
+      // without consumers the messages are spread over all the shards
+      for (int i = 0; i < messages; i++)
+      {
+         producer.send(session.createMessage(true));
+      }
+
+      for (LocalQueueBinding shard : getShards().getShards())
+      {
+         Assert.assertTrue(shard.getQueue().getMessageCount() > 0);
+      }
+
+      ClientConsumer consumer = session.createConsumer(queueName);
+
+      session.start();
+
+      for (int i = 0; i < messages; i++)
+      {
+         ClientMessage message = consumer.receive(5000);
+
+         Assert.assertNotNull("message " + i, message);
+
+         message.acknowledge();
+      }
+
+      Assert.assertNull(consumer.receiveImmediate());
+
+      Assert.assertEquals(0, session.queueQuery(queueName).getMessageCount());
+
+      // messages sent with a consumer go to its shard
+      for (int i = 0; i < messages; i++)
+      {
+         producer.send(session.createMessage(true));
+      }
+
+      for (int i = 0; i < messages; i++)
+      {
+         ClientMessage message = consumer.receive(5000);
+
+         Assert.assertNotNull("message " + i, message);
+
+         message.acknowledge();
+      }
+
+      Assert.assertNull(consumer.receiveImmediate());
+   }
+
+   @Test
+   public void testGroupsMoveOnlyWhenDrained() throws Exception
+   {
+      server.createShardedQueue(address, queueName, null, true, false, SHARDS);
+
+      QueueShards shards = getShards();
+
+      ClientSessionFactory sf = createSessionFactory(locator);
+      ClientSession session = addClientSession(sf.createSession(false, true, true));
+
+      ClientProducer producer = session.createProducer(address);
+
+      int groups = 10;
+      int messages = 20;
+
+      ClientConsumer consumer1 = session.createConsumer(queueName);
+
+      session.start();
+
+      LocalQueueBinding shard1 = shards.getShards()[0];
+
+      Assert.assertEquals(1, shard1.consumerCount());
+
+      Map<String, Integer> next = new HashMap<String, Integer>();
+
+      // the groups whose home shard has no consumer go to the consumer's shard
+      sendGroups(session, producer, groups, 0, messages);
+
+      assertGroupsOn(shards, groups, shard1);
+
+      ClientConsumer consumer2 = session.createConsumer(queueName);
+
+      LocalQueueBinding shard2 = shards.getShards()[1];
+
+      Assert.assertEquals(1, shard2.consumerCount());
+
+      // the groups stay on a shard with a consumer, even if their home shard now has one
+      sendGroups(session, producer, groups, messages, messages);
+
+      assertGroupsOn(shards, groups, shard1);
+
+      receiveGroups(consumer1, groups * messages * 2, next);
+
+      Assert.assertNull(consumer2.receiveImmediate());
+
+      consumer1.close();
+
+      Assert.assertEquals(0, shard1.getQueue().getMessageCount());
+
+      // the first shard has neither a consumer nor messages left, so its groups can move
+      sendGroups(session, producer, groups, messages * 2, messages);
+
+      assertGroupsOn(shards, groups, shard2);
+
+      receiveGroups(consumer2, groups * messages, next);
+   }
+
+   private void sendGroups(final ClientSession session,
+                           final ClientProducer producer,
+                           final int groups,
+                           final int first,
+                           final int messages) throws Exception
+   {
+      for (int i = first; i < first + messages; i++)
+      {
+         for (int g = 0; g < groups; g++)
+         {
+            ClientMessage message = session.createMessage(true);
+            message.putStringProperty(Message.HDR_GROUP_ID, new SimpleString("group" + g));
+            message.putIntProperty("i", i);
+            producer.send(message);
+         }
+      }
+   }
+
+   private void assertGroupsOn(final QueueShards shards, final int groups, final LocalQueueBinding shard)
+   {
+      for (int g = 0; g < groups; g++)
+      {
+         SimpleString groupID = new SimpleString("group" + g);
+
+         ServerMessage message = new ServerMessageImpl(1, 50);
+
+         message.putStringProperty(Message.HDR_GROUP_ID, groupID);
+
+         Assert.assertSame(shard, shards.getShardForGroup(groupID, message));
+      }
+   }
+
+   private void receiveGroups(final ClientConsumer consumer, final int messages, final Map<String, Integer> next) throws Exception
+   {
+      for (int i = 0; i < messages; i++)
+      {
+         ClientMessage message = consumer.receive(5000);
+
+         Assert.assertNotNull("message " + i, message);
+
+         message.acknowledge();
+
+         String group = message.getStringProperty(Message.HDR_GROUP_ID);
+
+         Integer expected = next.get(group);
+
+         Assert.assertEquals(expected == null ? 0 : expected.intValue(), message.getIntProperty("i").intValue());
+
+         next.put(group, message.getIntProperty("i") + 1);
+      }
+
+      Assert.assertNull(consumer.receiveImmediate());
+   }
+
+   @Test
+   public void testShardsRecovered() throws Exception
+   {
+      server.createShardedQueue(address, queueName, null, true, false, SHARDS);
+
+      ClientSessionFactory sf = createSessionFactory(locator);
+      ClientSession session = addClientSession(sf.createSession(false, true, true));
+
+      ClientProducer producer = session.createProducer(address);
+
+      int messages = 40;
+
+      for (int i = 0; i < messages; i++)
+      {
+         producer.send(session.createMessage(true));
+      }
+
+      session.close();
+      sf.close();
+
+      server.stop();
+      server.start();
+
+      QueueShards shards = getShards();
+
+      Assert.assertEquals(SHARDS, shards.getShardCount());
+
+      long count = 0;
+
+      for (LocalQueueBinding shard : shards.getShards())
+      {
+         count += shard.getQueue().getMessageCount();
+      }
+
+      Assert.assertEquals(messages, count);
+
+      server.destroyQueue(queueName);
+
+      for (int i = 0; i < SHARDS; i++)
+      {
+         Assert.assertNull(server.getPostOffice().getBinding(QueueShards.getShardName(queueName, i)));
+      }
+   }
+
+   private QueueShards getShards() throws Exception
+   {
+      Queue queue = server.locateQueue(queueName);
+
+      Assert.assertNotNull(queue);
+
+      return ((LocalQueueBinding)server.getPostOffice().getBinding(queueName)).getShards();
+   }
+}
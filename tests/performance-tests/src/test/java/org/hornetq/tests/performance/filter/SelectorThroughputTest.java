@@ -0,0 +1,216 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.performance.filter;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.core.filter.Filter;
+import org.hornetq.core.filter.impl.FilterImpl;
+import org.hornetq.core.filter.impl.FilterParser;
+import org.hornetq.core.filter.impl.Identifier;
+import org.hornetq.core.filter.impl.Operator;
+import org.hornetq.core.server.ServerMessage;
+import org.hornetq.core.server.impl.ServerMessageImpl;
+import org.hornetq.tests.util.UnitTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Measures the evaluation of common JMS selector shapes by {@link FilterImpl}, from one and from
+ * several threads sharing the same filter, against the interpreted {@link Operator} tree guarded
+ * by a lock as filters were evaluated before they were compiled.
+ */
+public class SelectorThroughputTest extends UnitTestCase
+{
+   private static final String[] SELECTORS = new String[]{"color = 'red'",
+                                                          "weight > 500",
+                                                          "weight BETWEEN 100 AND 900",
+                                                          "region IN ('EU', 'US', 'APAC')",
+                                                          "symbol LIKE 'ORCL%'",
+                                                          "color = 'red' AND weight > 500 OR urgent = TRUE",
+                                                          "price * 2 > 100.5",
+                                                          "missing IS NULL"};
+
+   private static final String[] COLORS = new String[]{"red", "green", "blue"};
+
+   private static final String[] REGIONS = new String[]{"EU", "US", "APAC", "LATAM"};
+
+   private static final String[] SYMBOLS = new String[]{"ORCL", "RHT", "ORCLX", "IBM"};
+
+   private static final int MESSAGES = 1024;
+
+   private static final int EVALUATIONS = 2000000;
+
+   private static final int THREADS = 4;
+
+   private interface Matcher
+   {
+      boolean match(ServerMessage message) throws Exception;
+   }
+
+   @Test
+   public void testSelectorThroughput() throws Exception
+   {
+      ServerMessage[] messages = createMessages();
+
+      for (String selector : SELECTORS)
+      {
+         Matcher compiled = compiled(selector);
+         Matcher interpreted = interpreted(selector);
+
+         for (ServerMessage message : messages)
+         {
+            Assert.assertEquals(selector, interpreted.match(message), compiled.match(message));
+         }
+
+         // warm up
+         measure(compiled, messages, 1);
+         measure(interpreted, messages, 1);
+
+         System.out.println(selector + ": compiled " +
+                            measure(compiled, messages, 1) +
+                            " / " +
+                            measure(compiled, messages, THREADS) +
+                            " matches/s, interpreted " +
+                            measure(interpreted, messages, 1) +
+                            " / " +
+                            measure(interpreted, messages, THREADS) +
+                            " matches/s (1 / " +
+                            THREADS +
+                            " threads)");
+      }
+   }
+
+   /**
+    * @return the evaluations per second of all the threads together
+    */
+   private long measure(final Matcher matcher, final ServerMessage[] messages, final int threads) throws Exception
+   {
+      final CountDownLatch start = new CountDownLatch(1);
+      final AtomicLong matched = new AtomicLong(0);
+      final int evaluations = EVALUATIONS / threads;
+
+      Thread[] workers = new Thread[threads];
+
+      for (int t = 0; t < threads; t++)
+      {
+         final int offset = t * 31;
+
+         workers[t] = new Thread()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  start.await();
+
+                  long count = 0;
+
+                  for (int i = 0; i < evaluations; i++)
+                  {
+                     if (matcher.match(messages[(i + offset) & (MESSAGES - 1)]))
+                     {
+                        count++;
+                     }
+                  }
+
+                  matched.addAndGet(count);
+               }
+               catch (Exception e)
+               {
+                  e.printStackTrace();
+               }
+            }
+         };
+
+         workers[t].start();
+      }
+
+      long begin = System.nanoTime();
+
+      start.countDown();
+
+      for (Thread worker : workers)
+      {
+         worker.join();
+      }
+
+      long elapsed = Math.max(System.nanoTime() - begin, 1);
+
+      Assert.assertTrue(matched.get() >= 0);
+
+      return evaluations * (long)threads * 1000000000L / elapsed;
+   }
+
+   private Matcher compiled(final String selector) throws Exception
+   {
+      final Filter filter = FilterImpl.createFilter(selector);
+
+      return new Matcher()
+      {
+         public boolean match(final ServerMessage message)
+         {
+            return filter.match(message);
+         }
+      };
+   }
+
+   private Matcher interpreted(final String selector) throws Exception
+   {
+      final Map<SimpleString, Identifier> identifiers = new HashMap<SimpleString, Identifier>();
+
+      final Object result = new FilterParser().parse(new SimpleString(selector), identifiers);
+
+      return new Matcher()
+      {
+         public synchronized boolean match(final ServerMessage message) throws Exception
+         {
+            for (Identifier id : identifiers.values())
+            {
+               id.setValue(message.getObjectProperty(id.getName()));
+            }
+
+            Object value = ((Operator)result).apply();
+
+            return value != null && (Boolean)value;
+         }
+      };
+   }
+
+   private ServerMessage[] createMessages()
+   {
+      ServerMessage[] messages = new ServerMessage[MESSAGES];
+
+      for (int i = 0; i < MESSAGES; i++)
+      {
+         ServerMessage message = new ServerMessageImpl(i, 1000);
+
+         message.putStringProperty(new SimpleString("color"), new SimpleString(COLORS[i % COLORS.length]));
+         message.putIntProperty(new SimpleString("weight"), i);
+         message.putStringProperty(new SimpleString("region"), new SimpleString(REGIONS[i % REGIONS.length]));
+         message.putStringProperty(new SimpleString("symbol"), new SimpleString(SYMBOLS[i % SYMBOLS.length]));
+         message.putBooleanProperty(new SimpleString("urgent"), i % 10 == 0);
+         message.putDoubleProperty(new SimpleString("price"), i / 10.0);
+
+         messages[i] = message;
+      }
+
+      return messages;
+   }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.performance.journal;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hornetq.api.core.HornetQBuffer;
+import org.hornetq.api.core.HornetQBuffers;
+import org.hornetq.core.journal.IOAsyncTask;
+import org.hornetq.core.journal.impl.JournalConstants;
+import org.hornetq.core.journal.impl.RingTimedBuffer;
+import org.hornetq.core.journal.impl.TimedBuffer;
+import org.hornetq.core.journal.impl.TimedBufferObserver;
+import org.hornetq.tests.util.UnitTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Compares {@link TimedBuffer} and {@link RingTimedBuffer} with many threads appending at the
+ * same time. The observer doesn't write anywhere, so this measures only the buffer itself.
+ */
+public class TimedBufferContentionTest extends UnitTestCase
+{
+   private static final int NUMBER_OF_THREADS = 64;
+
+   private static final int RECORDS_PER_THREAD = 20000;
+
+   private static final int RECORD_SIZE = 100;
+
+   private static final int SYNC_EVERY = 100;
+
+   @Test
+   public void testTimedBuffer() throws Exception
+   {
+      TimedBuffer buffer = new TimedBuffer(JournalConstants.DEFAULT_JOURNAL_BUFFER_SIZE_NIO,
+                                           JournalConstants.DEFAULT_JOURNAL_BUFFER_TIMEOUT_NIO,
+                                           false);
+      // warm up
+      measure("TimedBuffer", buffer, true);
+      measure("TimedBuffer", buffer, true);
+   }
+
+   @Test
+   public void testRingTimedBuffer() throws Exception
+   {
+      TimedBuffer buffer = new RingTimedBuffer(JournalConstants.DEFAULT_JOURNAL_BUFFER_SIZE_NIO,
+                                               JournalConstants.DEFAULT_JOURNAL_BUFFER_TIMEOUT_NIO,
+                                               1);
+      // warm up
+      measure("RingTimedBuffer", buffer, false);
+      measure("RingTimedBuffer", buffer, false);
+   }
+
+   private void measure(final String name, final TimedBuffer timedBuffer, final boolean lockAppend) throws Exception
+   {
+      final CountingObserver observer = new CountingObserver();
+
+      final AtomicLong callbacks = new AtomicLong(0);
+
+      final IOAsyncTask callback = new IOAsyncTask()
+      {
+         public void done()
+         {
+            callbacks.incrementAndGet();
+         }
+
+         public void onError(final int errorCode, final String errorMessage)
+         {
+         }
+      };
+
+      timedBuffer.start();
+
+      try
+      {
+         timedBuffer.setObserver(observer);
+
+         final CountDownLatch latchAlign = new CountDownLatch(NUMBER_OF_THREADS);
+
+         final CountDownLatch latchStart = new CountDownLatch(1);
+
+         class Appender extends Thread
+         {
+            Throwable e;
+
+            @Override
+            public void run()
+            {
+               try
+               {
+                  HornetQBuffer record = HornetQBuffers.wrappedBuffer(new byte[RECORD_SIZE]);
+
+                  latchAlign.countDown();
+                  UnitTestCase.waitForLatch(latchStart);
+
+                  for (int i = 0; i < RECORDS_PER_THREAD; i++)
+                  {
+                     record.readerIndex(0);
+                     boolean sync = i % SYNC_EVERY == 0;
+                     if (lockAppend)
+                     {
+                        // TimedBuffer needs checkSize and addBytes to happen atomically
+                        synchronized (timedBuffer)
+                        {
+                           timedBuffer.checkSize(RECORD_SIZE);
+                           timedBuffer.addBytes(record, sync, callback);
+                        }
+                     }
+                     else
+                     {
+                        timedBuffer.checkSize(RECORD_SIZE);
+                        timedBuffer.addBytes(record, sync, callback);
+                     }
+                  }
+               }
+               catch (Throwable e)
+               {
+                  this.e = e;
+               }
+            }
+         }
+
+         Appender[] appenders = new Appender[NUMBER_OF_THREADS];
+
+         for (int i = 0; i < NUMBER_OF_THREADS; i++)
+         {
+            appenders[i] = new Appender();
+            appenders[i].start();
+         }
+
+         UnitTestCase.waitForLatch(latchAlign);
+
+         long start = System.currentTimeMillis();
+
+         latchStart.countDown();
+
+         for (Appender appender : appenders)
+         {
+            appender.join();
+            if (appender.e != null)
+            {
+               throw new Exception("Exception on appender", appender.e);
+            }
+         }
+
+         timedBuffer.flush();
+
+         long end = System.currentTimeMillis();
+
+         long records = (long)NUMBER_OF_THREADS * RECORDS_PER_THREAD;
+
+         Assert.assertEquals(records, callbacks.get());
+         Assert.assertEquals(records * RECORD_SIZE, observer.bytes.get());
+
+         System.out.println(name + ": " +
+                            NUMBER_OF_THREADS +
+                            " threads appended " +
+                            records +
+                            " records in " +
+                            (end - start) +
+                            " milliseconds, " +
+                            (records * 1000 / Math.max(1, end - start)) +
+                            " records/second, " +
+                            observer.flushes.get() +
+                            " flushes");
+      }
+      finally
+      {
+         timedBuffer.stop();
+      }
+   }
+
+   private static class CountingObserver implements TimedBufferObserver
+   {
+      final AtomicLong bytes = new AtomicLong(0);
+
+      final AtomicLong flushes = new AtomicLong(0);
+
+      public void flushBuffer(final ByteBuffer buffer, final boolean sync, final List<IOAsyncTask> callbacks)
+      {
+         buffer.flip();
+         bytes.addAndGet(buffer.limit());
+         flushes.incrementAndGet();
+         for (IOAsyncTask callback : callbacks)
+         {
+            callback.done();
+         }
+      }
+
+      public ByteBuffer newBuffer(final int size, final int limit)
+      {
+         return ByteBuffer.allocate(limit);
+      }
+
+      public int getRemainingBytes()
+      {
+         return Integer.MAX_VALUE;
+      }
+   }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.performance.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.hornetq.core.server.MessageReference;
+import org.hornetq.core.server.impl.DeliveringRefs;
+import org.hornetq.tests.util.UnitTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Measures individual acknowledgements in random order against the number of references in
+ * flight on a consumer, on {@link DeliveringRefs} and on the linear scan it replaced.
+ */
+public class DeliveringRefsAckTest extends UnitTestCase
+{
+   private static final int[] DEPTHS = new int[]{100, 1000, 10000, 50000};
+
+   private static final int ACKS = 200000;
+
+   @Test
+   public void testAckThroughput() throws Exception
+   {
+      for (int depth : DEPTHS)
+      {
+         List<MessageReference> refs = createRefs(depth);
+
+         // warm up
+         measureIndexed(refs, depth);
+         measureScan(refs, depth);
+
+         long indexed = measureIndexed(refs, depth);
+         long scan = measureScan(refs, depth);
+
+         System.out.println("depth=" + depth +
+                            " indexed=" +
+                            (ACKS * 1000000000L / Math.max(indexed, 1)) +
+                            " acks/s, scan=" +
+                            (ACKS * 1000000000L / Math.max(scan, 1)) +
+                            " acks/s");
+      }
+   }
+
+   /**
+    * Keeps depth references in flight, acknowledging one at random and delivering a new one.
+    */
+   private long measureIndexed(final List<MessageReference> refs, final int depth)
+   {
+      DeliveringRefs delivering = new DeliveringRefs();
+
+      for (int i = 0; i < depth; i++)
+      {
+         delivering.add(refs.get(i));
+      }
+
+      Random random = new Random(1);
+
+      long start = System.nanoTime();
+
+      for (int i = 0; i < ACKS; i++)
+      {
+         MessageReference acked = delivering.removeByID(random.nextInt(depth));
+         Assert.assertNotNull(acked);
+         delivering.add(acked);
+      }
+
+      return System.nanoTime() - start;
+   }
+
+   private long measureScan(final List<MessageReference> refs, final int depth)
+   {
+      ConcurrentLinkedQueue<MessageReference> delivering = new ConcurrentLinkedQueue<MessageReference>();
+
+      for (int i = 0; i < depth; i++)
+      {
+         delivering.add(refs.get(i));
+      }
+
+      Random random = new Random(1);
+
+      // the scan is quadratic, so it runs fewer acks on deep windows to finish in a reasonable time
+      int acks = Math.min(ACKS, ACKS * 100 / depth);
+
+      long start = System.nanoTime();
+
+      for (int i = 0; i < acks; i++)
+      {
+         long id = random.nextInt(depth);
+
+         MessageReference acked = null;
+
+         Iterator<MessageReference> iter = delivering.iterator();
+         while (iter.hasNext())
+         {
+            MessageReference ref = iter.next();
+            if (ref.getMessage().getMessageID() == id)
+            {
+               iter.remove();
+               acked = ref;
+               break;
+            }
+         }
+
+         Assert.assertNotNull(acked);
+         delivering.add(acked);
+      }
+
+      return (System.nanoTime() - start) * ACKS / acks;
+   }
+
+   private List<MessageReference> createRefs(final int depth)
+   {
+      List<MessageReference> refs = new ArrayList<MessageReference>(depth);
+
+      for (int i = 0; i < depth; i++)
+      {
+         refs.add(generateReference(null, i));
+      }
+
+      Collections.shuffle(refs, new Random(2));
+
+      return refs;
+   }
+}
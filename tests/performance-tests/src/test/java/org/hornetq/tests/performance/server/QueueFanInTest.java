@@ -0,0 +1,149 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.hornetq.tests.performance.server;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.core.server.MessageReference;
+import org.hornetq.core.server.impl.QueueImpl;
+import org.hornetq.tests.util.UnitTestCase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures adding to one queue from 1 to 64 producer threads, with the references taken by the
+ * delivery executor as they come.
+ */
+public class QueueFanInTest extends UnitTestCase
+{
+   private static final int[] PRODUCERS = new int[]{1, 2, 4, 8, 16, 32, 64};
+
+   private static final int MESSAGES = 1280000;
+
+   private ScheduledExecutorService scheduledExecutor;
+
+   private ExecutorService executor;
+
+   @Override
+   @Before
+   public void setUp() throws Exception
+   {
+      super.setUp();
+      scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+      executor = Executors.newSingleThreadExecutor();
+   }
+
+   @Override
+   @After
+   public void tearDown() throws Exception
+   {
+      scheduledExecutor.shutdownNow();
+      executor.shutdownNow();
+      super.tearDown();
+   }
+
+   @Test
+   public void testFanIn() throws Exception
+   {
+      // warm up
+      measure(4);
+
+      for (int producers : PRODUCERS)
+      {
+         System.out.println("producers=" + producers + " added=" + measure(producers) + " msgs/s");
+      }
+   }
+
+   /**
+    * @return the references added per second by all the producers together
+    */
+   private long measure(final int producers) throws Exception
+   {
+      final QueueImpl queue = new QueueImpl(1,
+                                            new SimpleString("address"),
+                                            new SimpleString("queue"),
+                                            null,
+                                            false,
+                                            true,
+                                            scheduledExecutor,
+                                            null,
+                                            null,
+                                            null,
+                                            executor);
+
+      final int messages = MESSAGES / producers;
+
+      final MessageReference[][] refs = new MessageReference[producers][messages];
+
+      for (int p = 0; p < producers; p++)
+      {
+         for (int i = 0; i < messages; i++)
+         {
+            refs[p][i] = generateReference(queue, p * messages + i);
+         }
+      }
+
+      final CountDownLatch start = new CountDownLatch(1);
+
+      Thread[] threads = new Thread[producers];
+
+      for (int p = 0; p < producers; p++)
+      {
+         final MessageReference[] produced = refs[p];
+
+         threads[p] = new Thread()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  start.await();
+               }
+               catch (InterruptedException e)
+               {
+                  return;
+               }
+
+               for (MessageReference ref : produced)
+               {
+                  queue.addTail(ref);
+               }
+            }
+         };
+
+         threads[p].start();
+      }
+
+      long begin = System.nanoTime();
+
+      start.countDown();
+
+      for (Thread thread : threads)
+      {
+         thread.join();
+      }
+
+      long elapsed = Math.max(System.nanoTime() - begin, 1);
+
+      Assert.assertEquals(messages * (long)producers, queue.getMessageCount());
+
+      return messages * (long)producers * 1000000000L / elapsed;
+   }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.hornetq.tests.performance.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.core.server.MessageReference;
+import org.hornetq.core.server.impl.QueueImpl;
+import org.hornetq.tests.util.UnitTestCase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Measures scheduling messages at random times on a queue already holding many scheduled
+ * messages, as delayed retries do, and how late they are delivered once due.
+ */
+public class ScheduledDeliveryTest extends UnitTestCase
+{
+   private static final int[] DEPTHS = new int[]{10000, 100000, 300000};
+
+   /** the due messages are spread over this window, in milliseconds */
+   private static final long WINDOW = 2000;
+
+   private ScheduledExecutorService scheduledExecutor;
+
+   private ExecutorService executor;
+
+   @Override
+   @Before
+   public void setUp() throws Exception
+   {
+      super.setUp();
+      scheduledExecutor = Executors.newSingleThreadScheduledExecutor();
+      executor = Executors.newSingleThreadExecutor();
+   }
+
+   @Override
+   @After
+   public void tearDown() throws Exception
+   {
+      scheduledExecutor.shutdownNow();
+      executor.shutdownNow();
+      super.tearDown();
+   }
+
+   @Test
+   public void testScheduleAndDeliver() throws Exception
+   {
+      for (int depth : DEPTHS)
+      {
+         QueueImpl queue = new QueueImpl(1,
+                                         new SimpleString("address"),
+                                         new SimpleString("queue" + depth),
+                                         null,
+                                         false,
+                                         true,
+                                         scheduledExecutor,
+                                         null,
+                                         null,
+                                         null,
+                                         executor);
+
+         List<MessageReference> refs = new ArrayList<MessageReference>(depth);
+
+         for (int i = 0; i < depth; i++)
+         {
+            refs.add(generateReference(queue, i));
+         }
+
+         Random random = new Random(1);
+
+         long due = System.currentTimeMillis() + WINDOW;
+
+         long start = System.nanoTime();
+
+         for (MessageReference ref : refs)
+         {
+            ref.setScheduledDeliveryTime(due + random.nextInt((int)WINDOW));
+            queue.addTail(ref);
+         }
+
+         long scheduling = Math.max(System.nanoTime() - start, 1);
+
+         Assert.assertEquals(depth, queue.getScheduledCount());
+
+         long timeout = System.currentTimeMillis() + WINDOW * 10;
+         while (timeout > System.currentTimeMillis() && queue.getScheduledCount() != 0)
+         {
+            Thread.sleep(50);
+         }
+
+         Assert.assertEquals(0, queue.getScheduledCount());
+         Assert.assertEquals(depth, queue.getScheduledDeliveredCount());
+
+         System.out.println("depth=" + depth +
+                            " scheduled=" +
+                            (depth * 1000000000L / scheduling) +
+                            " msgs/s, max delivery lag=" +
+                            queue.getMaxScheduledDeliveryLag() +
+                            " ms");
+      }
+   }
+}
@@ -19,7 +19,6 @@ import org.junit.Test;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
@@ -280,10 +279,10 @@ public class JournalCleanupCompactStressTest extends ServiceTestBase
 
       reloadJournal();
 
-      Collection<Long> records = journal.getRecords().keySet();
+      long[] records = journal.getRecords().keys();
 
       System.out.println("Deleting everything!");
-      for (Long delInfo : records)
+      for (long delInfo : records)
       {
          journal.appendDeleteRecord(delInfo, false);
       }
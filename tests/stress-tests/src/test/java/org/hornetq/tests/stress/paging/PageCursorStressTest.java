@@ -31,6 +31,7 @@ import org.hornetq.api.core.HornetQBuffer;
 import org.hornetq.api.core.SimpleString;
 import org.hornetq.core.config.Configuration;
 import org.hornetq.core.filter.Filter;
+import org.hornetq.core.paging.PagedMessage;
 import org.hornetq.core.paging.cursor.PageCache;
 import org.hornetq.core.paging.cursor.PageCursorProvider;
 import org.hornetq.core.paging.cursor.PageSubscription;
@@ -111,6 +112,40 @@ public class PageCursorStressTest extends ServiceTestBase
       System.out.println("Cache size = " + cursorProvider.getCacheSize());
    }
 
+   @Test
+   public void testReadEvictedPage() throws Exception
+   {
+
+      final int NUM_MESSAGES = 100;
+
+      int numberOfPages = addMessages(NUM_MESSAGES, 1024 * 1024);
+
+      assertTrue(numberOfPages > 1);
+
+      PageCursorProviderImpl cursorProvider = new PageCursorProviderImpl(lookupPageStore(ADDRESS),
+                                                                         server.getStorageManager(),
+                                                                         server.getExecutorFactory().getExecutor(),
+                                                                         1);
+
+      PageCache cache = cursorProvider.getPageCache(1);
+      int numberOfMessages = cache.getNumberOfMessages();
+      PagedMessage first = cache.getMessage(0);
+
+      // evicts page 1, its index is kept
+      cursorProvider.getPageCache(2).getMessages();
+
+      cache = cursorProvider.getPageCache(1);
+      assertEquals(numberOfMessages, cache.getNumberOfMessages());
+      assertEquals(first.getMessage().getIntProperty("key"), cache.getMessage(0).getMessage().getIntProperty("key"));
+
+      PagedMessage[] messages = cache.getMessages();
+      assertEquals(numberOfMessages, messages.length);
+      for (int i = 0; i < messages.length; i++)
+      {
+         assertEquals(i, messages[i].getMessage().getIntProperty("key").intValue());
+      }
+   }
+
    @Test
    public void testSimpleCursor() throws Exception
    {
@@ -0,0 +1,261 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.unit.core.filter.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.core.filter.impl.FilterParser;
+import org.hornetq.core.filter.impl.Identifier;
+import org.hornetq.core.filter.impl.Operator;
+import org.hornetq.core.filter.impl.SelectorCompiler;
+import org.hornetq.tests.util.UnitTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks compiled selectors give the same results as the {@link Operator} tree they come from.
+ */
+public class SelectorCompilerTest extends UnitTestCase
+{
+   private static final Object ERROR = "error";
+
+   private static final String[] SELECTORS = new String[]{"color = 'red'",
+                                                          "color <> 'red'",
+                                                          "color = 'red' AND weight > 10",
+                                                          "color = 'red' OR weight > 10",
+                                                          "NOT (color = 'red')",
+                                                          "weight = 10",
+                                                          "weight <> 10",
+                                                          "weight > 10",
+                                                          "weight >= 10.5",
+                                                          "weight < 10",
+                                                          "weight <= 10",
+                                                          "weight = price",
+                                                          "weight < price",
+                                                          "weight BETWEEN 5 AND 15",
+                                                          "weight NOT BETWEEN 5 AND 15",
+                                                          "weight + 1 > price * 2",
+                                                          "weight - price / 2 = 0",
+                                                          "-weight < 0",
+                                                          "weight / 0 = 1",
+                                                          "color IN ('red', 'blue')",
+                                                          "color NOT IN ('red', 'blue')",
+                                                          "color LIKE 'r%'",
+                                                          "color NOT LIKE '_ed'",
+                                                          "color LIKE 'r!_%' ESCAPE '!'",
+                                                          "color IS NULL",
+                                                          "color IS NOT NULL",
+                                                          "urgent",
+                                                          "urgent = TRUE",
+                                                          "urgent AND weight > 1",
+                                                          "color > 1",
+                                                          "color = 1",
+                                                          "weight = 'red'"};
+
+   @Test
+   public void testSameResultsAsOperator() throws Exception
+   {
+      Object[] colors = new Object[]{null, new SimpleString("red"), new SimpleString("r_d"), new SimpleString("blue"), 3};
+      Object[] weights = new Object[]{null, 10, 10L, (short)3, (byte)20, 10.5d, 9.5f, new SimpleString("heavy")};
+      Object[] prices = new Object[]{null, 5L, 20.0d};
+      Object[] flags = new Object[]{null, Boolean.TRUE, Boolean.FALSE};
+
+      for (String selector : SELECTORS)
+      {
+         Map<SimpleString, Identifier> identifiers = new HashMap<SimpleString, Identifier>();
+         Object parsed = new FilterParser().parse(new SimpleString(selector), identifiers);
+
+         SelectorCompiler.Expression<Map<SimpleString, Object>> expression = SelectorCompiler.compile(parsed,
+                                                                                                     new MapReaders());
+
+         for (Object color : colors)
+         {
+            for (Object weight : weights)
+            {
+               for (Object price : prices)
+               {
+                  for (Object urgent : flags)
+                  {
+                     Map<SimpleString, Object> message = new HashMap<SimpleString, Object>();
+                     message.put(new SimpleString("color"), color);
+                     message.put(new SimpleString("weight"), weight);
+                     message.put(new SimpleString("price"), price);
+                     message.put(new SimpleString("urgent"), urgent);
+
+                     Assert.assertEquals(selector + " on " + message,
+                                         interpret(parsed, identifiers, message),
+                                         evaluate(expression, message));
+                  }
+               }
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testDoubleAgainstLong() throws Exception
+   {
+      Map<SimpleString, Object> message = new HashMap<SimpleString, Object>();
+      message.put(new SimpleString("weight"), -0.5d);
+
+      Assert.assertEquals(Boolean.FALSE, compile("weight >= 0").evaluate(message));
+      Assert.assertEquals(Boolean.TRUE, compile("weight < 0").evaluate(message));
+   }
+
+   @Test
+   public void testInvalidEscapeFailsOnEvaluation() throws Exception
+   {
+      SelectorCompiler.Expression<Map<SimpleString, Object>> expression = compile("color LIKE 'r%' ESCAPE '!!'");
+
+      Map<SimpleString, Object> message = new HashMap<SimpleString, Object>();
+
+      Assert.assertNull(expression.evaluate(message));
+
+      message.put(new SimpleString("color"), new SimpleString("red"));
+
+      try
+      {
+         expression.evaluate(message);
+         Assert.fail("the escape is invalid");
+      }
+      catch (Exception expected)
+      {
+      }
+   }
+
+   @Test
+   public void testConcurrentEvaluation() throws Exception
+   {
+      final SelectorCompiler.Expression<Map<SimpleString, Object>> expression = compile("color = 'red' AND weight BETWEEN 5 AND 15");
+
+      final int threads = 8;
+      final int evaluations = 100000;
+      final AtomicInteger errors = new AtomicInteger(0);
+      final CountDownLatch start = new CountDownLatch(1);
+
+      List<Thread> workers = new ArrayList<Thread>();
+
+      for (int t = 0; t < threads; t++)
+      {
+         final int thread = t;
+
+         Thread worker = new Thread()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  start.await();
+
+                  for (int i = 0; i < evaluations; i++)
+                  {
+                     int weight = (i + thread) % 20;
+
+                     Map<SimpleString, Object> message = new HashMap<SimpleString, Object>();
+                     message.put(new SimpleString("color"), new SimpleString("red"));
+                     message.put(new SimpleString("weight"), weight);
+
+                     if (expression.matches(message) != (weight >= 5 && weight <= 15))
+                     {
+                        errors.incrementAndGet();
+                     }
+                  }
+               }
+               catch (Exception e)
+               {
+                  errors.incrementAndGet();
+               }
+            }
+         };
+
+         worker.start();
+         workers.add(worker);
+      }
+
+      start.countDown();
+
+      for (Thread worker : workers)
+      {
+         worker.join();
+      }
+
+      Assert.assertEquals(0, errors.get());
+   }
+
+   // Private -------------------------------------------------------
+
+   private static final class MapReaders implements SelectorCompiler.ValueReaderFactory<Map<SimpleString, Object>>
+   {
+      public SelectorCompiler.ValueReader<Map<SimpleString, Object>> createReader(final SimpleString identifier)
+      {
+         return new SelectorCompiler.ValueReader<Map<SimpleString, Object>>()
+         {
+            public Object read(final Map<SimpleString, Object> message)
+            {
+               return message.get(identifier);
+            }
+         };
+      }
+   }
+
+   private SelectorCompiler.Expression<Map<SimpleString, Object>> compile(final String selector) throws Exception
+   {
+      Object parsed = new FilterParser().parse(new SimpleString(selector), new HashMap<SimpleString, Identifier>());
+
+      return SelectorCompiler.compile(parsed, new MapReaders());
+   }
+
+   private Object interpret(final Object parsed,
+                            final Map<SimpleString, Identifier> identifiers,
+                            final Map<SimpleString, Object> message)
+   {
+      for (Identifier id : identifiers.values())
+      {
+         id.setValue(message.get(id.getName()));
+      }
+
+      try
+      {
+         if (parsed instanceof Identifier)
+         {
+            return ((Identifier)parsed).getValue();
+         }
+         return ((Operator)parsed).apply();
+      }
+      catch (Exception e)
+      {
+         return ERROR;
+      }
+   }
+
+   private Object evaluate(final SelectorCompiler.Expression<Map<SimpleString, Object>> expression,
+                           final Map<SimpleString, Object> message)
+   {
+      try
+      {
+         return expression.evaluate(message);
+      }
+      catch (Exception e)
+      {
+         return ERROR;
+      }
+   }
+}
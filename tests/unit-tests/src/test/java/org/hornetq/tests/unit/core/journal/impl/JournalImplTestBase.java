@@ -172,6 +172,11 @@ public abstract class JournalImplTestBase extends UnitTestCase
    // It will start compacting, but it will let the thread in wait mode at onCompactDone, so we can validate command
    // executions
    protected void startCompact() throws Exception
+   {
+      startCompact(false);
+   }
+
+   protected void startCompact(final boolean incremental) throws Exception
    {
       latchDone.setCount(1);
       latchWait.setCount(1);
@@ -182,7 +187,14 @@ public abstract class JournalImplTestBase extends UnitTestCase
          {
             try
             {
-               journal.testCompact();
+               if (incremental)
+               {
+                  journal.testCompactIncremental();
+               }
+               else
+               {
+                  journal.testCompact();
+               }
             }
             catch (Throwable e)
             {
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.unit.core.journal.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+import org.hornetq.core.journal.impl.NativeBufferPool;
+import org.hornetq.tests.util.UnitTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A NativeBufferPoolTest
+ */
+public class NativeBufferPoolTest extends UnitTestCase
+{
+   private static class CountingAllocator implements NativeBufferPool.Allocator
+   {
+      int allocated;
+
+      int freed;
+
+      public ByteBuffer allocate(final int size)
+      {
+         allocated++;
+         return ByteBuffer.allocateDirect(size);
+      }
+
+      public void free(final ByteBuffer buffer)
+      {
+         freed++;
+      }
+
+      public void clear(final ByteBuffer buffer)
+      {
+         for (int i = 0; i < buffer.limit(); i++)
+         {
+            buffer.put(i, (byte)0);
+         }
+      }
+
+      public String getName()
+      {
+         return "counting";
+      }
+   }
+
+   @Test
+   public void testSizeClasses() throws Exception
+   {
+      NativeBufferPool pool = new NativeBufferPool(new CountingAllocator());
+
+      ByteBuffer buffer = pool.borrow(1);
+      Assert.assertEquals(512, buffer.capacity());
+      Assert.assertEquals(1, buffer.limit());
+      Assert.assertEquals(0, buffer.position());
+      pool.release(buffer);
+
+      buffer = pool.borrow(513);
+      Assert.assertEquals(1024, buffer.capacity());
+      pool.release(buffer);
+
+      buffer = pool.borrow(NativeBufferPool.MAX_CLASS_SIZE);
+      Assert.assertEquals(NativeBufferPool.MAX_CLASS_SIZE, buffer.capacity());
+      pool.release(buffer);
+
+      buffer = pool.borrow(NativeBufferPool.MAX_CLASS_SIZE + 1);
+      Assert.assertEquals(NativeBufferPool.MAX_CLASS_SIZE + 512, buffer.capacity());
+      pool.release(buffer);
+   }
+
+   @Test
+   public void testReuseIsZeroed() throws Exception
+   {
+      CountingAllocator allocator = new CountingAllocator();
+      NativeBufferPool pool = new NativeBufferPool(allocator);
+
+      ByteBuffer buffer = pool.borrow(100);
+      for (int i = 0; i < 100; i++)
+      {
+         buffer.put((byte)1);
+      }
+      pool.release(buffer);
+
+      ByteBuffer reused = pool.borrow(200);
+      Assert.assertSame(buffer, reused);
+      Assert.assertEquals(200, reused.limit());
+      for (int i = 0; i < 200; i++)
+      {
+         Assert.assertEquals(0, reused.get(i));
+      }
+      pool.release(reused);
+
+      Assert.assertEquals(1, allocator.allocated);
+      Assert.assertEquals(1, pool.getHits());
+      Assert.assertEquals(1, pool.getMisses());
+      Assert.assertEquals(512, pool.getPooledBytes());
+      Assert.assertEquals(0, pool.getInUseBytes());
+      Assert.assertEquals(0, pool.getInUseBuffers());
+   }
+
+   @Test
+   public void testMaxPooledBytes() throws Exception
+   {
+      CountingAllocator allocator = new CountingAllocator();
+      NativeBufferPool pool = new NativeBufferPool(allocator);
+      pool.setMaxPooledBytes(1024);
+
+      ByteBuffer[] buffers = new ByteBuffer[3];
+      for (int i = 0; i < buffers.length; i++)
+      {
+         buffers[i] = pool.borrow(512);
+      }
+      for (ByteBuffer buffer : buffers)
+      {
+         pool.release(buffer);
+      }
+
+      Assert.assertEquals(1024, pool.getPooledBytes());
+      Assert.assertEquals(1, allocator.freed);
+      Assert.assertEquals(1024, pool.getAllocatedBytes());
+
+      pool.clear();
+
+      Assert.assertEquals(0, pool.getPooledBytes());
+      Assert.assertEquals(0, pool.getAllocatedBytes());
+      Assert.assertEquals(3, allocator.freed);
+   }
+
+   @Test
+   public void testTrackLeaks() throws Exception
+   {
+      NativeBufferPool pool = new NativeBufferPool(new CountingAllocator());
+      pool.setTrackLeaks(true);
+
+      ByteBuffer buffer = pool.borrow(10);
+
+      Map<String, Integer> sites = pool.getBorrowedBySite();
+      Assert.assertEquals(1, sites.size());
+      Assert.assertTrue(sites.keySet().iterator().next().contains(NativeBufferPoolTest.class.getName()));
+
+      pool.release(buffer);
+
+      Assert.assertTrue(pool.getBorrowedBySite().isEmpty());
+   }
+
+   @Test
+   public void testHeapBuffersIgnored() throws Exception
+   {
+      NativeBufferPool pool = new NativeBufferPool(new CountingAllocator());
+
+      pool.release(ByteBuffer.allocate(512));
+
+      Assert.assertEquals(0, pool.getPooledBytes());
+   }
+}
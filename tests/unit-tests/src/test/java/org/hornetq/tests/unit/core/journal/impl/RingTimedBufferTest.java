@@ -0,0 +1,332 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.unit.core.journal.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hornetq.api.core.HornetQBuffer;
+import org.hornetq.api.core.HornetQBuffers;
+import org.hornetq.core.journal.IOAsyncTask;
+import org.hornetq.core.journal.impl.RingTimedBuffer;
+import org.hornetq.core.journal.impl.TimedBufferObserver;
+import org.hornetq.tests.util.UnitTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A RingTimedBufferTest
+ */
+public class RingTimedBufferTest extends UnitTestCase
+{
+   private static final int ONE_SECOND_IN_NANOS = 1000000000;
+
+   private static final IOAsyncTask dummyCallback = new IOAsyncTask()
+   {
+      public void done()
+      {
+      }
+
+      public void onError(final int errorCode, final String errorMessage)
+      {
+      }
+   };
+
+   private static class TestObserver implements TimedBufferObserver
+   {
+      final List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+
+      final List<Boolean> syncs = new ArrayList<Boolean>();
+
+      final AtomicInteger flushTimes = new AtomicInteger(0);
+
+      int remainingBytes;
+
+      TestObserver(final int remainingBytes)
+      {
+         this.remainingBytes = remainingBytes;
+      }
+
+      public synchronized void flushBuffer(final ByteBuffer buffer, final boolean sync, final List<IOAsyncTask> callbacks)
+      {
+         buffer.flip();
+         remainingBytes -= buffer.limit();
+         buffers.add(buffer);
+         syncs.add(sync);
+         flushTimes.incrementAndGet();
+         for (IOAsyncTask callback : callbacks)
+         {
+            callback.done();
+         }
+      }
+
+      public ByteBuffer newBuffer(final int size, final int limit)
+      {
+         return ByteBuffer.allocate(limit);
+      }
+
+      public synchronized int getRemainingBytes()
+      {
+         return remainingBytes;
+      }
+
+      synchronized byte[] allBytes()
+      {
+         int size = 0;
+         for (ByteBuffer buffer : buffers)
+         {
+            size += buffer.limit();
+         }
+
+         byte[] bytes = new byte[size];
+         int pos = 0;
+         for (ByteBuffer buffer : buffers)
+         {
+            buffer.rewind();
+            int limit = buffer.limit();
+            buffer.get(bytes, pos, limit);
+            pos += limit;
+         }
+         return bytes;
+      }
+   }
+
+   @Test
+   public void testFlushOnSize() throws Exception
+   {
+      TestObserver observer = new TestObserver(1024 * 1024);
+
+      RingTimedBuffer timedBuffer = new RingTimedBuffer(100, RingTimedBufferTest.ONE_SECOND_IN_NANOS, 1);
+
+      timedBuffer.start();
+
+      try
+      {
+         timedBuffer.setObserver(observer);
+
+         int x = 0;
+         for (int i = 0; i < 10; i++)
+         {
+            byte[] bytes = new byte[10];
+            for (int j = 0; j < 10; j++)
+            {
+               bytes[j] = UnitTestCase.getSamplebyte(x++);
+            }
+
+            Assert.assertTrue(timedBuffer.checkSize(10));
+            timedBuffer.addBytes(HornetQBuffers.wrappedBuffer(bytes), false, dummyCallback);
+         }
+
+         long timeout = System.currentTimeMillis() + 5000;
+         while (observer.flushTimes.get() == 0 && System.currentTimeMillis() < timeout)
+         {
+            Thread.sleep(10);
+         }
+
+         Assert.assertEquals(1, observer.flushTimes.get());
+
+         byte[] flushed = observer.allBytes();
+
+         Assert.assertEquals(100, flushed.length);
+
+         for (int i = 0; i < 100; i++)
+         {
+            Assert.assertEquals(UnitTestCase.getSamplebyte(i), flushed[i]);
+         }
+      }
+      finally
+      {
+         timedBuffer.stop();
+      }
+   }
+
+   @Test
+   public void testSyncIsFlushedOnTimeout() throws Exception
+   {
+      TestObserver observer = new TestObserver(1024 * 1024);
+
+      // 10 milliseconds
+      RingTimedBuffer timedBuffer = new RingTimedBuffer(1024, RingTimedBufferTest.ONE_SECOND_IN_NANOS / 100, 1);
+
+      timedBuffer.start();
+
+      try
+      {
+         timedBuffer.setObserver(observer);
+
+         final CountDownLatch latch = new CountDownLatch(1);
+
+         timedBuffer.addBytes(HornetQBuffers.wrappedBuffer(new byte[10]), true, new IOAsyncTask()
+         {
+            public void done()
+            {
+               latch.countDown();
+            }
+
+            public void onError(final int errorCode, final String errorMessage)
+            {
+            }
+         });
+
+         Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+
+         Assert.assertEquals(1, observer.flushTimes.get());
+
+         Assert.assertTrue(observer.syncs.get(0));
+      }
+      finally
+      {
+         timedBuffer.stop();
+      }
+   }
+
+   @Test
+   public void testCheckSizeOnFileLimit() throws Exception
+   {
+      TestObserver observer = new TestObserver(100);
+
+      RingTimedBuffer timedBuffer = new RingTimedBuffer(1024, RingTimedBufferTest.ONE_SECOND_IN_NANOS, 1);
+
+      timedBuffer.start();
+
+      try
+      {
+         timedBuffer.setObserver(observer);
+
+         // close to the end of the file the check is exact
+         Assert.assertTrue(timedBuffer.checkSize(100));
+
+         Assert.assertFalse(timedBuffer.checkSize(101));
+
+         Assert.assertTrue(timedBuffer.checkSize(11));
+
+         timedBuffer.addBytes(HornetQBuffers.wrappedBuffer(new byte[11]), false, dummyCallback);
+
+         timedBuffer.flush();
+
+         Assert.assertEquals(1, observer.flushTimes.get());
+
+         // an odd sized buffer was flushed with no padding
+         Assert.assertTrue(timedBuffer.checkSize(89));
+
+         Assert.assertFalse(timedBuffer.checkSize(90));
+      }
+      finally
+      {
+         timedBuffer.stop();
+      }
+   }
+
+   @Test
+   public void testConcurrentProducers() throws Exception
+   {
+      final int numberOfThreads = 8;
+
+      final int recordsPerThread = 2000;
+
+      TestObserver observer = new TestObserver(Integer.MAX_VALUE);
+
+      final RingTimedBuffer timedBuffer = new RingTimedBuffer(1024, RingTimedBufferTest.ONE_SECOND_IN_NANOS / 1000, 1);
+
+      timedBuffer.start();
+
+      try
+      {
+         timedBuffer.setObserver(observer);
+
+         final AtomicInteger callbacksDone = new AtomicInteger(0);
+
+         final IOAsyncTask countingCallback = new IOAsyncTask()
+         {
+            public void done()
+            {
+               callbacksDone.incrementAndGet();
+            }
+
+            public void onError(final int errorCode, final String errorMessage)
+            {
+            }
+         };
+
+         final CountDownLatch start = new CountDownLatch(1);
+
+         Thread[] threads = new Thread[numberOfThreads];
+
+         for (int t = 0; t < numberOfThreads; t++)
+         {
+            final int threadID = t;
+            threads[t] = new Thread()
+            {
+               @Override
+               public void run()
+               {
+                  try
+                  {
+                     start.await();
+                     for (int i = 0; i < recordsPerThread; i++)
+                     {
+                        HornetQBuffer buffer = HornetQBuffers.fixedBuffer(8);
+                        buffer.writeInt(threadID);
+                        buffer.writeInt(i);
+                        timedBuffer.addBytes(buffer, i % 100 == 0, countingCallback);
+                     }
+                  }
+                  catch (Exception e)
+                  {
+                     e.printStackTrace();
+                  }
+               }
+            };
+            threads[t].start();
+         }
+
+         start.countDown();
+
+         for (Thread thread : threads)
+         {
+            thread.join();
+         }
+
+         timedBuffer.flush();
+
+         Assert.assertEquals(numberOfThreads * recordsPerThread, callbacksDone.get());
+
+         HornetQBuffer flushed = HornetQBuffers.wrappedBuffer(observer.allBytes());
+
+         Assert.assertEquals(numberOfThreads * recordsPerThread * 8, flushed.readableBytes());
+
+         // records from each thread are intact and in order
+         int[] next = new int[numberOfThreads];
+         while (flushed.readable())
+         {
+            int threadID = flushed.readInt();
+            int sequence = flushed.readInt();
+            Assert.assertEquals(next[threadID]++, sequence);
+         }
+
+         for (int i = 0; i < numberOfThreads; i++)
+         {
+            Assert.assertEquals(recordsPerThread, next[i]);
+         }
+      }
+      finally
+      {
+         timedBuffer.stop();
+      }
+   }
+}
@@ -79,6 +79,84 @@ public class PageTest extends UnitTestCase
       testDamagedPage(new FakeSequentialFileFactory(1, false), 100);
    }
 
+   @Test
+   public void testIndexedReadWithNIO() throws Exception
+   {
+      recreateDirectory(getTestDir());
+      testIndexedRead(new NIOSequentialFileFactory(getTestDir()), 1000);
+   }
+
+   @Test
+   public void testIndexedRead() throws Exception
+   {
+      testIndexedRead(new FakeSequentialFileFactory(1, false), 100);
+   }
+
+   @Test
+   public void testBatchedWrites() throws Exception
+   {
+      SequentialFileFactory factory = new FakeSequentialFileFactory(1, false);
+
+      SequentialFile file = factory.createSequentialFile("00010.page", 1);
+
+      int writeBufferSize = Page.getWriteBufferSize();
+
+      Page.setWriteBufferSize(1024);
+
+      try
+      {
+         Page impl = new Page(new SimpleString("something"), new NullStorageManager(), factory, file, 10);
+
+         impl.open();
+
+         SimpleString simpleDestination = new SimpleString("Test");
+
+         addPageElements(simpleDestination, impl, 1);
+
+         // batched until flushed
+         Assert.assertEquals(0, file.size());
+
+         impl.flush();
+
+         Assert.assertEquals(impl.getSize(), file.size());
+
+         ArrayList<HornetQBuffer> buffers = addPageElements(simpleDestination, impl, 100);
+
+         // the batches written as the buffer filled up, the last one still batched
+         Assert.assertTrue(file.size() > 0);
+         Assert.assertTrue(file.size() < impl.getSize());
+
+         impl.sync();
+
+         Assert.assertEquals(impl.getSize(), file.size());
+
+         impl.close();
+
+         file = factory.createSequentialFile("00010.page", 1);
+         file.open();
+         impl = new Page(new SimpleString("something"), new NullStorageManager(), factory, file, 10);
+
+         List<PagedMessage> msgs = impl.read(new NullStorageManager());
+
+         Assert.assertEquals(101, msgs.size());
+
+         for (int i = 0; i < buffers.size(); i++)
+         {
+            UnitTestCase.assertEqualsByteArrays(buffers.get(i).toByteBuffer().array(), msgs.get(i + 1)
+                                                                                           .getMessage()
+                                                                                           .getBodyBuffer()
+                                                                                           .toByteBuffer()
+                                                                                           .array());
+         }
+
+         impl.delete(null);
+      }
+      finally
+      {
+         Page.setWriteBufferSize(writeBufferSize);
+      }
+   }
+
    /** Validate if everything we add is recovered */
    protected void testAdd(final SequentialFileFactory factory, final int numberOfElements) throws Exception
    {
@@ -127,6 +205,91 @@ public class PageTest extends UnitTestCase
 
    }
 
+   /** Validate the messages are read from any position through a read buffer smaller than some of them */
+   protected void testIndexedRead(final SequentialFileFactory factory, final int numberOfElements) throws Exception
+   {
+      SequentialFile file = factory.createSequentialFile("00010.page", 1);
+
+      Page impl = new Page(new SimpleString("something"), new NullStorageManager(), factory, file, 10);
+
+      impl.open();
+
+      SimpleString simpleDestination = new SimpleString("Test");
+
+      int[] encodeSizes = new int[numberOfElements];
+
+      for (int i = 0; i < numberOfElements; i++)
+      {
+         ServerMessage msg = new ServerMessageImpl(i, 100);
+
+         // some messages are larger than the read buffer
+         for (int j = 0; j < i % 7 * 100; j++)
+         {
+            msg.getBodyBuffer().writeByte((byte)'b');
+         }
+
+         msg.setAddress(simpleDestination);
+
+         encodeSizes[i] = msg.getEncodeSize();
+
+         impl.write(new PagedMessageImpl(msg, new long[0]));
+      }
+
+      impl.sync();
+      impl.close();
+
+      int readBufferSize = Page.getReadBufferSize();
+
+      Page.setReadBufferSize(512);
+
+      try
+      {
+         file = factory.createSequentialFile("00010.page", 1);
+         impl = new Page(new SimpleString("something"), new NullStorageManager(), factory, file, 10);
+
+         int[] index = impl.readIndex(new NullStorageManager());
+
+         Assert.assertEquals(numberOfElements, index.length);
+
+         Assert.assertEquals(numberOfElements, impl.getNumberOfMessages());
+
+         Assert.assertFalse(file.isOpen());
+
+         for (int first : new int[]{numberOfElements - 1, numberOfElements / 2, 0})
+         {
+            List<PagedMessage> msgs = impl.read(new NullStorageManager(), index, first);
+
+            Assert.assertFalse(msgs.isEmpty());
+
+            Assert.assertTrue(first + msgs.size() <= numberOfElements);
+
+            for (int i = 0; i < msgs.size(); i++)
+            {
+               Assert.assertEquals(first + i, msgs.get(i).getMessage().getMessageID());
+
+               Assert.assertEquals(encodeSizes[first + i], msgs.get(i).getMessage().getEncodeSize());
+            }
+         }
+
+         file.open();
+
+         List<PagedMessage> msgs = impl.read(new NullStorageManager());
+
+         Assert.assertEquals(numberOfElements, msgs.size());
+
+         for (int i = 0; i < msgs.size(); i++)
+         {
+            Assert.assertEquals(i, msgs.get(i).getMessage().getMessageID());
+         }
+      }
+      finally
+      {
+         Page.setReadBufferSize(readBufferSize);
+      }
+
+      impl.delete(null);
+   }
+
    protected void testDamagedPage(final SequentialFileFactory factory, final int numberOfElements) throws Exception
    {
 
@@ -150,11 +313,13 @@ public class PageTest extends UnitTestCase
 
       // Add one record that will be damaged
       addPageElements(simpleDestination, impl, 1);
+      impl.flush();
 
       long positionB = file.position();
 
       // Add more 10 as they will need to be ignored
       addPageElements(simpleDestination, impl, 10);
+      impl.flush();
 
       // Damage data... position the file on the middle between points A and B
       file.position(positionA + (positionB - positionA) / 2);
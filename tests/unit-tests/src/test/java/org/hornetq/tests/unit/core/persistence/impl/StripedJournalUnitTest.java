@@ -0,0 +1,341 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.unit.core.persistence.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.hornetq.core.journal.Journal;
+import org.hornetq.core.journal.PreparedTransactionInfo;
+import org.hornetq.core.journal.RecordInfo;
+import org.hornetq.core.journal.impl.JournalImpl;
+import org.hornetq.core.journal.impl.NIOSequentialFileFactory;
+import org.hornetq.core.persistence.impl.journal.JournalRecordIds;
+import org.hornetq.core.persistence.impl.journal.StripedJournal;
+import org.hornetq.tests.util.UnitTestCase;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StripedJournalUnitTest extends UnitTestCase
+{
+   private static final byte RECORD = 100;
+
+   private StripedJournal journal;
+
+   /** The stripe failing the next commit, -1 for none */
+   private int failCommitOn = -1;
+
+   /** If the next striped commit record fails */
+   private boolean failCommitRecord;
+
+   @Override
+   @After
+   public void tearDown() throws Exception
+   {
+      if (journal != null && journal.isStarted())
+      {
+         journal.stop();
+      }
+      super.tearDown();
+   }
+
+   @Test
+   public void testRecordsSpreadOverStripes() throws Exception
+   {
+      journal = openJournal(3);
+
+      loadEmpty();
+
+      for (long id = 1; id <= 30; id++)
+      {
+         journal.appendAddRecord(id, RECORD, new byte[]{1}, false);
+      }
+
+      for (long id = 5; id <= 30; id += 5)
+      {
+         journal.appendDeleteRecord(id, false);
+      }
+
+      journal.stop();
+
+      journal = openJournal(3);
+
+      List<RecordInfo> records = new ArrayList<RecordInfo>();
+
+      journal.load(records, new ArrayList<PreparedTransactionInfo>(), null);
+
+      Assert.assertEquals(24, records.size());
+      Assert.assertEquals(24, journal.getNumberOfRecords());
+
+      for (int i = 0; i < 3; i++)
+      {
+         Assert.assertTrue(journal.getStripe(i).getNumberOfRecords() > 0);
+      }
+   }
+
+   @Test
+   public void testTransactionOverStripes() throws Exception
+   {
+      journal = openJournal(2);
+
+      loadEmpty();
+
+      journal.appendAddRecordTransactional(100, 1, RECORD, new byte[]{1});
+      journal.appendAddRecordTransactional(100, 2, RECORD, new byte[]{2});
+      journal.appendCommitRecord(100, true);
+
+      journal.stop();
+
+      journal = openJournal(2);
+
+      List<RecordInfo> records = new ArrayList<RecordInfo>();
+
+      journal.load(records, new ArrayList<PreparedTransactionInfo>(), null);
+
+      Assert.assertEquals(setOf(1, 2), idsOf(records));
+   }
+
+   @Test
+   public void testCommitCompletedOnLoad() throws Exception
+   {
+      journal = openJournal(2);
+
+      loadEmpty();
+
+      journal.appendAddRecord(1, RECORD, new byte[]{1}, false);
+
+      journal.appendAddRecordTransactional(100, 2, RECORD, new byte[]{2});
+      journal.appendAddRecordTransactional(100, 3, RECORD, new byte[]{3});
+      journal.appendDeleteRecordTransactional(100, 1);
+
+      failCommitOn = 1;
+
+      try
+      {
+         journal.appendCommitRecord(100, true);
+         Assert.fail("exception expected");
+      }
+      catch (IllegalStateException expected)
+      {
+      }
+
+      journal.stop();
+
+      journal = openJournal(2);
+
+      List<RecordInfo> records = new ArrayList<RecordInfo>();
+
+      List<PreparedTransactionInfo> prepared = new ArrayList<PreparedTransactionInfo>();
+
+      journal.load(records, prepared, null);
+
+      // the commit record was written, so stripe 1 is committed too
+      Assert.assertEquals(setOf(2, 3), idsOf(records));
+      Assert.assertTrue(prepared.isEmpty());
+
+      journal.stop();
+
+      journal = openJournal(2);
+
+      records.clear();
+
+      journal.load(records, prepared, null);
+
+      Assert.assertEquals(setOf(2, 3), idsOf(records));
+      Assert.assertTrue(prepared.isEmpty());
+   }
+
+   @Test
+   public void testCommitRolledBackOnLoad() throws Exception
+   {
+      journal = openJournal(2);
+
+      loadEmpty();
+
+      journal.appendAddRecordTransactional(100, 2, RECORD, new byte[]{2});
+      journal.appendAddRecordTransactional(100, 3, RECORD, new byte[]{3});
+
+      failCommitRecord = true;
+
+      try
+      {
+         journal.appendCommitRecord(100, true);
+         Assert.fail("exception expected");
+      }
+      catch (IllegalStateException expected)
+      {
+      }
+
+      journal.stop();
+
+      journal = openJournal(2);
+
+      List<RecordInfo> records = new ArrayList<RecordInfo>();
+
+      List<PreparedTransactionInfo> prepared = new ArrayList<PreparedTransactionInfo>();
+
+      journal.load(records, prepared, null);
+
+      Assert.assertTrue(records.isEmpty());
+      Assert.assertTrue(prepared.isEmpty());
+   }
+
+   @Test
+   public void testPreparedTransactionMerged() throws Exception
+   {
+      journal = openJournal(2);
+
+      loadEmpty();
+
+      journal.appendAddRecordTransactional(100, 2, RECORD, new byte[]{2});
+      journal.appendAddRecordTransactional(100, 3, RECORD, new byte[]{3});
+      journal.appendPrepareRecord(100, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12}, true);
+
+      journal.stop();
+
+      journal = openJournal(2);
+
+      List<RecordInfo> records = new ArrayList<RecordInfo>();
+
+      List<PreparedTransactionInfo> prepared = new ArrayList<PreparedTransactionInfo>();
+
+      journal.load(records, prepared, null);
+
+      Assert.assertTrue(records.isEmpty());
+      Assert.assertEquals(1, prepared.size());
+      Assert.assertEquals(setOf(2, 3), idsOf(prepared.get(0).records));
+
+      journal.appendCommitRecord(100, true);
+
+      journal.stop();
+
+      journal = openJournal(2);
+
+      prepared.clear();
+
+      journal.load(records, prepared, null);
+
+      Assert.assertEquals(setOf(2, 3), idsOf(records));
+      Assert.assertTrue(prepared.isEmpty());
+   }
+
+   @Test
+   public void testMoreStripes() throws Exception
+   {
+      journal = openJournal(2);
+
+      loadEmpty();
+
+      for (long id = 1; id <= 10; id++)
+      {
+         journal.appendAddRecord(id, RECORD, new byte[]{1}, false);
+      }
+
+      journal.stop();
+
+      journal = openJournal(3);
+
+      List<RecordInfo> records = new ArrayList<RecordInfo>();
+
+      journal.load(records, new ArrayList<PreparedTransactionInfo>(), null);
+
+      Assert.assertEquals(10, records.size());
+
+      // the records are found on their old stripes
+      for (long id = 1; id <= 10; id++)
+      {
+         journal.appendUpdateRecord(id, RECORD, new byte[]{2}, false);
+         journal.appendDeleteRecord(id, false);
+      }
+
+      journal.stop();
+
+      journal = openJournal(3);
+
+      records.clear();
+
+      journal.load(records, new ArrayList<PreparedTransactionInfo>(), null);
+
+      Assert.assertTrue(records.isEmpty());
+   }
+
+   private void loadEmpty() throws Exception
+   {
+      journal.load(new ArrayList<RecordInfo>(), new ArrayList<PreparedTransactionInfo>(), null);
+   }
+
+   private StripedJournal openJournal(final int stripes) throws Exception
+   {
+      Journal[] journals = new Journal[stripes];
+
+      for (int i = 0; i < stripes; i++)
+      {
+         final int stripe = i;
+
+         journals[i] = new JournalImpl(10 * 1024, 2, 0, 0, new NIOSequentialFileFactory(getTestDir()), "test-data", "tst" + i, 1)
+         {
+            @Override
+            public void appendCommitRecord(final long txID, final boolean sync) throws Exception
+            {
+               if (failCommitOn == stripe)
+               {
+                  failCommitOn = -1;
+                  throw new IllegalStateException("simulated crash");
+               }
+               super.appendCommitRecord(txID, sync);
+            }
+
+            @Override
+            public void appendAddRecord(final long id, final byte recordType, final byte[] record, final boolean sync) throws Exception
+            {
+               if (failCommitRecord && recordType == JournalRecordIds.STRIPED_COMMIT_RECORD)
+               {
+                  failCommitRecord = false;
+                  throw new IllegalStateException("simulated crash");
+               }
+               super.appendAddRecord(id, recordType, record, sync);
+            }
+         };
+      }
+
+      StripedJournal striped = new StripedJournal(journals);
+
+      striped.start();
+
+      return striped;
+   }
+
+   private static Set<Long> idsOf(final List<RecordInfo> records)
+   {
+      Set<Long> ids = new HashSet<Long>();
+      for (RecordInfo record : records)
+      {
+         ids.add(record.id);
+      }
+      return ids;
+   }
+
+   private static Set<Long> setOf(final long... ids)
+   {
+      Set<Long> set = new HashSet<Long>();
+      for (long id : ids)
+      {
+         set.add(id);
+      }
+      return set;
+   }
+}
@@ -15,6 +15,7 @@ package org.hornetq.tests.unit.core.postoffice.impl;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
@@ -24,6 +25,7 @@ import javax.transaction.xa.Xid;
 import org.hornetq.api.core.HornetQException;
 import org.hornetq.api.core.SimpleString;
 import org.hornetq.core.filter.Filter;
+import org.hornetq.core.filter.impl.FilterImpl;
 import org.hornetq.core.postoffice.Binding;
 import org.hornetq.core.postoffice.BindingType;
 import org.hornetq.core.postoffice.Bindings;
@@ -37,6 +39,7 @@ import org.hornetq.core.server.impl.ServerMessageImpl;
 import org.hornetq.core.transaction.Transaction;
 import org.hornetq.core.transaction.TransactionOperation;
 import org.hornetq.tests.util.UnitTestCase;
+import org.junit.Assert;
 
 /**
  * A BindingImplTest
@@ -79,6 +82,103 @@ public class BindingsImplTest extends UnitTestCase
       }
    }
 
+   @Test
+   public void testRouteUsingFilterIndex() throws Exception
+   {
+      String[] selectors = new String[]{null,
+                                        "color = 'red'",
+                                        "color = 'blue' AND weight > 10",
+                                        "color IN ('red', 'green')",
+                                        "weight > 50",
+                                        "weight >= 50.5",
+                                        "20 > weight",
+                                        "weight BETWEEN 30 AND 40",
+                                        "weight = 7",
+                                        "urgent",
+                                        "urgent = FALSE",
+                                        "color = 'red' OR weight < 5",
+                                        "HQPriority > 5",
+                                        "weight > 10 AND color = 'green'"};
+
+      BindingsImpl indexed = new BindingsImpl(null, null, null);
+      indexed.setFilterIndexThreshold(1);
+
+      BindingsImpl scanned = new BindingsImpl(null, null, null);
+      scanned.setFilterIndexThreshold(0);
+
+      List<FilterBinding> indexedBindings = new ArrayList<FilterBinding>();
+      List<FilterBinding> scannedBindings = new ArrayList<FilterBinding>();
+
+      // several bindings per selector, and enough indexed ones for the index to be used
+      for (int i = 0; i < selectors.length * 4; i++)
+      {
+         String selector = selectors[i % selectors.length];
+
+         if (selector == null && i >= selectors.length)
+         {
+            selector = "weight = " + i;
+         }
+
+         FilterBinding binding = new FilterBinding(new SimpleString("sub" + i), FilterImpl.createFilter(selector));
+         indexed.addBinding(binding);
+         indexedBindings.add(binding);
+
+         binding = new FilterBinding(new SimpleString("sub" + i), FilterImpl.createFilter(selector));
+         scanned.addBinding(binding);
+         scannedBindings.add(binding);
+      }
+
+      // removed bindings are not routed to
+      indexed.removeBinding(indexedBindings.remove(1));
+      scanned.removeBinding(scannedBindings.remove(1));
+
+      String[] colors = new String[]{null, "red", "green", "blue"};
+      Object[] weights = new Object[]{null, 7, 7.0d, 10L, 11, 19.5f, 20, 35, 50, 50.5d, 51, (short)-3, "heavy"};
+
+      int id = 0;
+      int routed = 0;
+
+      for (String color : colors)
+      {
+         for (Object weight : weights)
+         {
+            for (int urgent = 0; urgent < 3; urgent++)
+            {
+               ServerMessage message = new ServerMessageImpl(id++, 100);
+               if (color != null)
+               {
+                  message.putStringProperty(new SimpleString("color"), new SimpleString(color));
+               }
+               if (weight != null)
+               {
+                  message.putObjectProperty(new SimpleString("weight"),
+                                            weight instanceof String ? new SimpleString((String)weight) : weight);
+               }
+               if (urgent > 0)
+               {
+                  message.putBooleanProperty(new SimpleString("urgent"), urgent == 1);
+               }
+               message.setPriority((byte)(id % 10));
+
+               indexed.route(message, new RoutingContextImpl(new FakeTransaction()));
+               scanned.route(message, new RoutingContextImpl(new FakeTransaction()));
+
+               for (int i = 0; i < indexedBindings.size(); i++)
+               {
+                  Assert.assertEquals(scannedBindings.get(i).getFilter().getFilterString() + " on " + message,
+                                      scannedBindings.get(i).routed,
+                                      indexedBindings.get(i).routed);
+                  routed += indexedBindings.get(i).routed;
+                  indexedBindings.get(i).routed = 0;
+                  scannedBindings.get(i).routed = 0;
+               }
+            }
+         }
+      }
+
+      Assert.assertTrue(routed > 0);
+   }
+
    private void internalTest(final boolean route) throws Exception
    {
       final FakeBinding fake = new FakeBinding(new SimpleString("a"));
@@ -277,7 +377,41 @@ public class BindingsImplTest extends UnitTestCase
 
    }
 
-   private final class FakeBinding implements Binding
+   /**
+    * A binding counting the messages routed to it
+    */
+   private final class FilterBinding extends FakeBinding
+   {
+      private final Filter filter;
+
+      int routed;
+
+      FilterBinding(final SimpleString name, final Filter filter)
+      {
+         super(name);
+         this.filter = filter;
+      }
+
+      @Override
+      public Filter getFilter()
+      {
+         return filter;
+      }
+
+      @Override
+      public boolean isHighAcceptPriority(final ServerMessage message)
+      {
+         return true;
+      }
+
+      @Override
+      public void route(final ServerMessage message, final RoutingContext context) throws Exception
+      {
+         routed++;
+      }
+   }
+
+   private class FakeBinding implements Binding
    {
 
       public void close() throws Exception
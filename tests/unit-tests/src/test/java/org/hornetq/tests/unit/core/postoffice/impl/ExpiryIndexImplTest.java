@@ -0,0 +1,176 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.unit.core.postoffice.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hornetq.api.core.SimpleString;
+import org.hornetq.core.postoffice.impl.ExpiryIndexImpl;
+import org.hornetq.core.server.MessageReference;
+import org.hornetq.core.server.ServerMessage;
+import org.hornetq.tests.util.UnitTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A ExpiryIndexImplTest
+ */
+public class ExpiryIndexImplTest extends UnitTestCase
+{
+   /** The size of the wheel, beyond it the references go to the overflow */
+   private static final int WHEEL_TICKS = 4096;
+
+   private static final class ExpiringQueue extends FakeQueue
+   {
+      final List<MessageReference> expired = new ArrayList<MessageReference>();
+
+      ExpiringQueue(final String name)
+      {
+         super(new SimpleString(name));
+      }
+
+      @Override
+      public void expireReferences(final List<MessageReference> refs)
+      {
+         expired.addAll(refs);
+      }
+   }
+
+   private MessageReference createReference(final ExpiringQueue queue, final long id, final long expiration)
+   {
+      ServerMessage message = generateMessage(id);
+      message.setExpiration(expiration);
+      return message.createReference(queue);
+   }
+
+   @Test
+   public void testOnlyExpiredAreHanded() throws Exception
+   {
+      ExpiryIndexImpl index = new ExpiryIndexImpl(100);
+      ExpiringQueue queue = new ExpiringQueue("queue");
+
+      long now = System.currentTimeMillis();
+
+      MessageReference past = createReference(queue, 1, now - 1000);
+      MessageReference soon = createReference(queue, 2, now + 300);
+      MessageReference later = createReference(queue, 3, now + 3600000);
+      MessageReference never = createReference(queue, 4, 0);
+
+      index.add(past);
+      index.add(soon);
+      index.add(later);
+      index.add(never);
+
+      Assert.assertEquals(3, index.size());
+
+      index.expire();
+
+      Assert.assertEquals(1, queue.expired.size());
+      Assert.assertSame(past, queue.expired.get(0));
+
+      long timeout = System.currentTimeMillis() + 5000;
+      while (queue.expired.size() < 2 && System.currentTimeMillis() < timeout)
+      {
+         Thread.sleep(50);
+         index.expire();
+      }
+
+      Assert.assertEquals(2, queue.expired.size());
+      Assert.assertSame(soon, queue.expired.get(1));
+      Assert.assertTrue(soon.getMessage().isExpired());
+      Assert.assertEquals(1, index.size());
+   }
+
+   @Test
+   public void testRemovedAreNotHanded() throws Exception
+   {
+      ExpiryIndexImpl index = new ExpiryIndexImpl(100);
+      ExpiringQueue queue = new ExpiringQueue("queue");
+
+      long now = System.currentTimeMillis();
+
+      // on the wheel, on the overflow and already expired
+      MessageReference[] refs = new MessageReference[]{createReference(queue, 1, now + 200),
+                                                       createReference(queue, 2, now + 100L * ExpiryIndexImplTest.WHEEL_TICKS * 2),
+                                                       createReference(queue, 3, now - 10)};
+
+      for (MessageReference ref : refs)
+      {
+         index.add(ref);
+      }
+
+      Assert.assertEquals(3, index.size());
+
+      for (MessageReference ref : refs)
+      {
+         index.remove(ref);
+      }
+
+      Assert.assertEquals(0, index.size());
+
+      Thread.sleep(300);
+
+      index.expire();
+
+      Assert.assertTrue(queue.expired.isEmpty());
+   }
+
+   @Test
+   public void testGroupedByQueue() throws Exception
+   {
+      ExpiryIndexImpl index = new ExpiryIndexImpl(100);
+      ExpiringQueue queue1 = new ExpiringQueue("queue1");
+      ExpiringQueue queue2 = new ExpiringQueue("queue2");
+
+      long now = System.currentTimeMillis();
+
+      for (int i = 0; i < 10; i++)
+      {
+         index.add(createReference(i % 2 == 0 ? queue1 : queue2, i, now - i));
+      }
+
+      index.expire();
+
+      Assert.assertEquals(5, queue1.expired.size());
+      Assert.assertEquals(5, queue2.expired.size());
+      Assert.assertEquals(0, index.size());
+   }
+
+   @Test
+   public void testOverflowCascades() throws Exception
+   {
+      // one millisecond ticks, so the overflow is reached in a few seconds
+      ExpiryIndexImpl index = new ExpiryIndexImpl(1);
+      ExpiringQueue queue = new ExpiringQueue("queue");
+
+      long now = System.currentTimeMillis();
+
+      MessageReference far = createReference(queue, 1, now + ExpiryIndexImplTest.WHEEL_TICKS + 500);
+      index.add(far);
+
+      index.expire();
+      Assert.assertTrue(queue.expired.isEmpty());
+
+      long timeout = System.currentTimeMillis() + 10000;
+      while (queue.expired.isEmpty() && System.currentTimeMillis() < timeout)
+      {
+         Thread.sleep(100);
+         index.expire();
+      }
+
+      Assert.assertEquals(1, queue.expired.size());
+      Assert.assertTrue(far.getMessage().isExpired());
+   }
+}
@@ -263,6 +263,12 @@ public class FakeQueue implements Queue
       return 0;
    }
 
+   @Override
+   public void expireReferences(final List<MessageReference> refs)
+   {
+      // no-op
+   }
+
    @Override
    public int getConsumerCount()
    {
@@ -362,6 +368,27 @@ public class FakeQueue implements Queue
       return 0;
    }
 
+   @Override
+   public long getScheduledDeliveredCount()
+   {
+      // no-op
+      return 0;
+   }
+
+   @Override
+   public long getScheduledDeliveryLag()
+   {
+      // no-op
+      return 0;
+   }
+
+   @Override
+   public long getMaxScheduledDeliveryLag()
+   {
+      // no-op
+      return 0;
+   }
+
    @Override
    public List<MessageReference> getScheduledMessages()
    {
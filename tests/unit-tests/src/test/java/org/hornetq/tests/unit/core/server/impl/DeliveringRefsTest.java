@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.unit.core.server.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hornetq.core.server.MessageReference;
+import org.hornetq.core.server.impl.DeliveringRefs;
+import org.hornetq.tests.util.UnitTestCase;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * A DeliveringRefsTest
+ */
+public class DeliveringRefsTest extends UnitTestCase
+{
+   @Test
+   public void testPollInDeliveryOrder() throws Exception
+   {
+      DeliveringRefs refs = new DeliveringRefs();
+
+      for (int i = 0; i < 10; i++)
+      {
+         refs.add(generateReference(null, i));
+      }
+
+      Assert.assertEquals(10, refs.size());
+
+      for (int i = 0; i < 10; i++)
+      {
+         Assert.assertEquals(i, refs.poll().getMessage().getMessageID());
+      }
+
+      Assert.assertNull(refs.poll());
+      Assert.assertTrue(refs.isEmpty());
+   }
+
+   @Test
+   public void testRemoveByIDOutOfOrder() throws Exception
+   {
+      DeliveringRefs refs = new DeliveringRefs();
+
+      for (int i = 0; i < 10; i++)
+      {
+         refs.add(generateReference(null, i));
+      }
+
+      Assert.assertEquals(5, refs.removeByID(5).getMessage().getMessageID());
+      Assert.assertEquals(0, refs.removeByID(0).getMessage().getMessageID());
+      Assert.assertEquals(9, refs.removeByID(9).getMessage().getMessageID());
+      Assert.assertNull(refs.removeByID(5));
+      Assert.assertNull(refs.removeByID(100));
+
+      Assert.assertEquals(7, refs.size());
+
+      List<MessageReference> remaining = new ArrayList<MessageReference>();
+      refs.copyTo(remaining);
+
+      long[] expected = new long[]{1, 2, 3, 4, 6, 7, 8};
+      Assert.assertEquals(expected.length, remaining.size());
+      for (int i = 0; i < expected.length; i++)
+      {
+         Assert.assertEquals(expected[i], remaining.get(i).getMessage().getMessageID());
+      }
+
+      // the removals must have kept the links consistent
+      for (long id : expected)
+      {
+         Assert.assertEquals(id, refs.poll().getMessage().getMessageID());
+      }
+      Assert.assertTrue(refs.isEmpty());
+
+      refs.add(generateReference(null, 20));
+      Assert.assertEquals(20, refs.poll().getMessage().getMessageID());
+   }
+
+   @Test
+   public void testSameMessageTwice() throws Exception
+   {
+      DeliveringRefs refs = new DeliveringRefs();
+
+      MessageReference first = generateReference(null, 1);
+      MessageReference other = generateReference(null, 2);
+      MessageReference second = first.getMessage().createReference(null);
+
+      refs.add(first);
+      refs.add(other);
+      refs.add(second);
+
+      Assert.assertSame(first, refs.removeByID(1));
+      Assert.assertSame(other, refs.poll());
+      Assert.assertSame(second, refs.removeByID(1));
+      Assert.assertNull(refs.removeByID(1));
+      Assert.assertTrue(refs.isEmpty());
+   }
+
+   @Test
+   public void testClear() throws Exception
+   {
+      DeliveringRefs refs = new DeliveringRefs();
+
+      for (int i = 0; i < 10; i++)
+      {
+         refs.add(generateReference(null, i));
+      }
+
+      refs.clear();
+
+      Assert.assertEquals(0, refs.size());
+      Assert.assertNull(refs.removeByID(3));
+      Assert.assertNull(refs.poll());
+   }
+}
@@ -35,7 +35,10 @@ import org.hornetq.core.server.Consumer;
 import org.hornetq.core.server.HandleStatus;
 import org.hornetq.core.server.MessageReference;
 import org.hornetq.core.server.ServerMessage;
+import org.hornetq.core.server.impl.CompactedMessage;
+import org.hornetq.core.server.impl.MessageReferenceImpl;
 import org.hornetq.core.server.impl.QueueImpl;
+import org.hornetq.core.server.impl.ServerMessageImpl;
 import org.hornetq.tests.unit.core.server.impl.fakes.FakeConsumer;
 import org.hornetq.tests.unit.core.server.impl.fakes.FakeFilter;
 import org.hornetq.tests.unit.core.server.impl.fakes.FakePostOffice;
@@ -747,6 +750,272 @@ public class QueueImplTest extends UnitTestCase
       }
    }
 
+   @Test
+   public void testRoundRobinWithDeliveryBatch() throws Exception
+   {
+      QueueImpl queue = new QueueImpl(1,
+                                      QueueImplTest.address1,
+                                      QueueImplTest.queue1,
+                                      null,
+                                      false,
+                                      true,
+                                      scheduledExecutor,
+                                      null,
+                                      null,
+                                      null,
+                                      executor);
+
+      queue.setDeliveryBatchSize(3);
+
+      final int numMessages = 12;
+
+      List<MessageReference> refs = new ArrayList<MessageReference>();
+
+      queue.pause();
+
+      for (int i = 0; i < numMessages; i++)
+      {
+         MessageReference ref = generateReference(queue, i);
+
+         refs.add(ref);
+
+         queue.addTail(ref);
+      }
+
+      FakeConsumer cons1 = new FakeConsumer();
+
+      FakeConsumer cons2 = new FakeConsumer();
+
+      queue.addConsumer(cons1);
+
+      queue.addConsumer(cons2);
+
+      queue.resume();
+
+      long timeout = System.currentTimeMillis() + 1000;
+      while ((cons1.getReferences().size() != numMessages / 2 || cons2.getReferences().size() != numMessages / 2) && timeout > System.currentTimeMillis())
+      {
+         Thread.sleep(1);
+      }
+
+      Assert.assertEquals(numMessages / 2, cons1.getReferences().size());
+
+      Assert.assertEquals(numMessages / 2, cons2.getReferences().size());
+
+      // each consumer takes 3 on its turn
+      for (int i = 0; i < numMessages; i++)
+      {
+         FakeConsumer consumer = i / 3 % 2 == 0 ? cons1 : cons2;
+
+         Assert.assertEquals(refs.get(i), consumer.getReferences().get(i / 6 * 3 + i % 3));
+      }
+   }
+
+   @Test
+   public void testCompactDeepReferences() throws Exception
+   {
+      QueueImpl queue = new QueueImpl(1,
+                                      QueueImplTest.address1,
+                                      QueueImplTest.queue1,
+                                      null,
+                                      false,
+                                      true,
+                                      scheduledExecutor,
+                                      null,
+                                      null,
+                                      null,
+                                      executor);
+
+      queue.setCompactDepth(2);
+
+      final int numMessages = 5;
+
+      long compactedBefore = CompactedMessage.getCount();
+
+      List<MessageReference> refs = new ArrayList<MessageReference>();
+
+      queue.pause();
+
+      for (int i = 0; i < numMessages; i++)
+      {
+         MessageReference ref = generateReference(queue, i);
+
+         // only a message on a single queue is compacted
+         ref.getMessage().incrementRefCount();
+
+         refs.add(ref);
+
+         queue.addTail(ref);
+      }
+
+      Assert.assertEquals(numMessages, queue.getMessageCount());
+
+      for (int i = 0; i < numMessages; i++)
+      {
+         Assert.assertEquals(i >= 2, ((MessageReferenceImpl)refs.get(i)).isCompacted());
+      }
+
+      Assert.assertEquals(compactedBefore + numMessages - 2, CompactedMessage.getCount());
+
+      FakeConsumer consumer = new FakeConsumer();
+
+      queue.addConsumer(consumer);
+
+      queue.resume();
+
+      long timeout = System.currentTimeMillis() + 1000;
+      while (consumer.getReferences().size() != numMessages && timeout > System.currentTimeMillis())
+      {
+         Thread.sleep(1);
+      }
+
+      Assert.assertEquals(numMessages, consumer.getReferences().size());
+
+      for (int i = 0; i < numMessages; i++)
+      {
+         MessageReference ref = consumer.getReferences().get(i);
+
+         Assert.assertEquals(refs.get(i), ref);
+
+         Assert.assertEquals(i, ref.getMessage().getMessageID());
+
+         Assert.assertEquals(1, ref.getMessage().getRefCount());
+
+         Assert.assertFalse(((MessageReferenceImpl)ref).isCompacted());
+      }
+
+      Assert.assertEquals(compactedBefore, CompactedMessage.getCount());
+   }
+
+   @Test
+   public void testCompactReferencesSkippedByFilter() throws Exception
+   {
+      QueueImpl queue = new QueueImpl(1,
+                                      QueueImplTest.address1,
+                                      QueueImplTest.queue1,
+                                      null,
+                                      false,
+                                      true,
+                                      scheduledExecutor,
+                                      null,
+                                      null,
+                                      null,
+                                      executor);
+
+      queue.setCompactDepth(1);
+
+      final int numMessages = 4;
+
+      long compactedBefore = CompactedMessage.getCount();
+
+      List<MessageReference> refs = new ArrayList<MessageReference>();
+
+      for (int i = 0; i < numMessages; i++)
+      {
+         MessageReference ref = generateReference(queue, i);
+
+         ref.getMessage().putStringProperty(new SimpleString("fruit"), new SimpleString("banana"));
+
+         ref.getMessage().incrementRefCount();
+
+         refs.add(ref);
+
+         queue.addTail(ref);
+      }
+
+      Assert.assertEquals(numMessages, queue.getMessageCount());
+
+      Assert.assertEquals(compactedBefore + numMessages - 1, CompactedMessage.getCount());
+
+      FakeConsumer filtered = new FakeConsumer(new FakeFilter("fruit", "orange"));
+
+      queue.addConsumer(filtered);
+
+      queue.deliverNow();
+
+      Assert.assertTrue(filtered.getReferences().isEmpty());
+
+      Assert.assertEquals(numMessages, queue.getMessageCount());
+
+      // the filter expanded them to look, they went back off heap
+      for (int i = 0; i < numMessages; i++)
+      {
+         Assert.assertEquals(i >= 1, ((MessageReferenceImpl)refs.get(i)).isCompacted());
+      }
+
+      Assert.assertEquals(compactedBefore + numMessages - 1, CompactedMessage.getCount());
+
+      queue.removeConsumer(filtered);
+
+      FakeConsumer consumer = new FakeConsumer();
+
+      queue.addConsumer(consumer);
+
+      queue.deliverNow();
+
+      Assert.assertEquals(numMessages, consumer.getReferences().size());
+
+      for (int i = 0; i < numMessages; i++)
+      {
+         MessageReference ref = consumer.getReferences().get(i);
+
+         Assert.assertEquals(refs.get(i), ref);
+
+         Assert.assertEquals("banana", ref.getMessage().getStringProperty(new SimpleString("fruit")));
+
+         Assert.assertEquals(1, ref.getMessage().getRefCount());
+      }
+
+      Assert.assertEquals(compactedBefore, CompactedMessage.getCount());
+   }
+
+   @Test
+   public void testSmallMessagesNotCompacted() throws Exception
+   {
+      QueueImpl queue = new QueueImpl(1,
+                                      QueueImplTest.address1,
+                                      QueueImplTest.queue1,
+                                      null,
+                                      false,
+                                      true,
+                                      scheduledExecutor,
+                                      null,
+                                      null,
+                                      null,
+                                      executor);
+
+      queue.setCompactDepth(1);
+
+      final int numMessages = 4;
+
+      long compactedBefore = CompactedMessage.getCount();
+
+      List<MessageReference> refs = new ArrayList<MessageReference>();
+
+      for (int i = 0; i < numMessages; i++)
+      {
+         // a buffer off heap would take more than the message on heap
+         ServerMessage message = new ServerMessageImpl(i, 10);
+
+         message.incrementRefCount();
+
+         MessageReference ref = message.createReference(queue);
+
+         refs.add(ref);
+
+         queue.addTail(ref);
+      }
+
+      Assert.assertEquals(numMessages, queue.getMessageCount());
+
+      for (MessageReference ref : refs)
+      {
+         Assert.assertFalse(((MessageReferenceImpl)ref).isCompacted());
+      }
+
+      Assert.assertEquals(compactedBefore, CompactedMessage.getCount());
+   }
+
    @Test
    public void testWithPriorities() throws Exception
    {
@@ -869,6 +1138,73 @@ public class QueueImplTest extends UnitTestCase
       assertRefListsIdenticalRefs(refs, list);
    }
 
+   @Test
+   public void testScheduledDeliveryOrder() throws Exception
+   {
+      QueueImpl queue = new QueueImpl(1,
+                                      QueueImplTest.address1,
+                                      QueueImplTest.queue1,
+                                      null,
+                                      false,
+                                      true,
+                                      scheduledExecutor,
+                                      null,
+                                      null,
+                                      null,
+                                      executor);
+
+      long now = System.currentTimeMillis();
+
+      List<MessageReference> refs = new ArrayList<MessageReference>();
+
+      for (int i = 0; i < 5; i++)
+      {
+         refs.add(generateReference(queue, i));
+      }
+
+      for (int i = 0; i < 3; i++)
+      {
+         refs.get(i).setScheduledDeliveryTime(now + 300);
+         queue.addTail(refs.get(i));
+      }
+
+      refs.get(3).setScheduledDeliveryTime(now + 200);
+      queue.addTail(refs.get(3));
+
+      // cancelled back, it goes before the ones sent for the same time
+      refs.get(4).setScheduledDeliveryTime(now + 300);
+      queue.addHead(refs.get(4));
+
+      Assert.assertEquals(5, queue.getScheduledCount());
+
+      long timeout = System.currentTimeMillis() + 5000;
+      while (timeout > System.currentTimeMillis() && queue.getScheduledCount() != 0)
+      {
+         Thread.sleep(10);
+      }
+
+      awaitExecution();
+
+      Assert.assertEquals(0, queue.getScheduledCount());
+      Assert.assertEquals(5, queue.getScheduledDeliveredCount());
+      Assert.assertTrue(queue.getMaxScheduledDeliveryLag() >= queue.getScheduledDeliveryLag());
+
+      List<MessageReference> expected = new ArrayList<MessageReference>();
+      expected.add(refs.get(3));
+      expected.add(refs.get(4));
+      expected.add(refs.get(0));
+      expected.add(refs.get(1));
+      expected.add(refs.get(2));
+
+      Iterator<MessageReference> iterator = queue.iterator();
+      List<MessageReference> list = new ArrayList<MessageReference>();
+      while (iterator.hasNext())
+      {
+         list.add(iterator.next());
+      }
+      assertRefListsIdenticalRefs(expected, list);
+   }
+
    private void awaitExecution()
    {
       FutureLatch future = new FutureLatch();
@@ -1378,6 +1714,42 @@ public class QueueImplTest extends UnitTestCase
 
    }
 
+   @Test
+   public void testGetReferenceWithMessageIDIndex() throws Exception
+   {
+      QueueImpl queue = new QueueImpl(1,
+                                      QueueImplTest.address1,
+                                      QueueImplTest.queue1,
+                                      null,
+                                      false,
+                                      true,
+                                      scheduledExecutor,
+                                      null,
+                                      null,
+                                      null,
+                                      executor);
+      MessageReference messageReference = generateReference(queue, 1);
+      MessageReference messageReference2 = generateReference(queue, 2);
+      queue.addTail(messageReference);
+
+      // the references already queued are indexed too
+      queue.setMessageIDIndexed(true);
+
+      queue.addTail(messageReference2);
+      Assert.assertEquals(messageReference, queue.getReference(1));
+      Assert.assertEquals(messageReference2, queue.getReference(2));
+      Assert.assertNull(queue.getReference(5));
+
+      Assert.assertTrue(queue.changeReferencePriority(1, (byte)9));
+      Assert.assertFalse(queue.changeReferencePriority(5, (byte)9));
+      Assert.assertEquals(messageReference, queue.getReference(1));
+      Assert.assertEquals(9, messageReference.getMessage().getPriority());
+      Assert.assertEquals(2, queue.getMessageCount());
+
+      queue.setMessageIDIndexed(false);
+      Assert.assertEquals(messageReference2, queue.getReference(2));
+   }
+
    /**
     * Test the paused and resumed states with async deliveries.
     * @throws Exception
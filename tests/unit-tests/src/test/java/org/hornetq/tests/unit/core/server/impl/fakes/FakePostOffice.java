@@ -19,6 +19,7 @@ import org.hornetq.core.persistence.impl.nullpm.NullStorageManager;
 import org.hornetq.core.postoffice.Binding;
 import org.hornetq.core.postoffice.Bindings;
 import org.hornetq.core.postoffice.DuplicateIDCache;
+import org.hornetq.core.postoffice.ExpiryIndex;
 import org.hornetq.core.postoffice.PostOffice;
 import org.hornetq.core.postoffice.impl.DuplicateIDCacheImpl;
 import org.hornetq.core.server.MessageReference;
@@ -85,6 +86,12 @@ public class FakePostOffice implements PostOffice
       return new DuplicateIDCacheImpl(address, 2000, new NullStorageManager(), false);
    }
 
+   @Override
+   public ExpiryIndex getExpiryIndex()
+   {
+      return null;
+   }
+
    @Override
    public Bindings getMatchingBindings(final SimpleString address)
    {
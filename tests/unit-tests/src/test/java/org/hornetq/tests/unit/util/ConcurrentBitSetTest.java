@@ -0,0 +1,125 @@
+/*
+ * Copyright 2010 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.unit.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hornetq.tests.util.UnitTestCase;
+import org.hornetq.utils.ConcurrentBitSet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcurrentBitSetTest extends UnitTestCase
+{
+   @Test
+   public void testSetAndGet()
+   {
+      ConcurrentBitSet bits = new ConcurrentBitSet();
+
+      Assert.assertFalse(bits.get(0));
+      Assert.assertFalse(bits.get(-1));
+      Assert.assertFalse(bits.get(ConcurrentBitSet.CHUNK_BITS * 3));
+
+      Assert.assertTrue(bits.set(0));
+      Assert.assertFalse(bits.set(0));
+
+      Assert.assertTrue(bits.set(63));
+      Assert.assertTrue(bits.set(64));
+
+      // on a chunk far from the others
+      Assert.assertTrue(bits.set(ConcurrentBitSet.CHUNK_BITS * 3 + 1));
+
+      Assert.assertTrue(bits.get(0));
+      Assert.assertTrue(bits.get(63));
+      Assert.assertTrue(bits.get(64));
+      Assert.assertFalse(bits.get(65));
+      Assert.assertFalse(bits.get(ConcurrentBitSet.CHUNK_BITS));
+      Assert.assertTrue(bits.get(ConcurrentBitSet.CHUNK_BITS * 3 + 1));
+
+      Assert.assertEquals(4, bits.cardinality());
+
+      try
+      {
+         bits.set(-1);
+         Assert.fail("negative index");
+      }
+      catch (IndexOutOfBoundsException expected)
+      {
+      }
+   }
+
+   @Test
+   public void testConcurrentSet() throws Exception
+   {
+      final int threads = 8;
+      final int bitCount = ConcurrentBitSet.CHUNK_BITS * 16;
+
+      final ConcurrentBitSet bits = new ConcurrentBitSet();
+
+      final CountDownLatch start = new CountDownLatch(1);
+
+      // every thread sets every bit, only one of them may see it unset
+      final AtomicInteger newlySet = new AtomicInteger(0);
+
+      Thread[] setters = new Thread[threads];
+
+      for (int t = 0; t < threads; t++)
+      {
+         final int offset = t;
+
+         setters[t] = new Thread()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  start.await();
+               }
+               catch (InterruptedException e)
+               {
+                  return;
+               }
+
+               for (int i = 0; i < bitCount; i++)
+               {
+                  if (bits.set((i + offset * 997) % bitCount))
+                  {
+                     newlySet.incrementAndGet();
+                  }
+               }
+            }
+         };
+
+         setters[t].start();
+      }
+
+      start.countDown();
+
+      for (Thread setter : setters)
+      {
+         setter.join();
+      }
+
+      Assert.assertEquals(bitCount, newlySet.get());
+
+      Assert.assertEquals(bitCount, bits.cardinality());
+
+      for (int i = 0; i < bitCount; i++)
+      {
+         Assert.assertTrue(bits.get(i));
+      }
+   }
+}
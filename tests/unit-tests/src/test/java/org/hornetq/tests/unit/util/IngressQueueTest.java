@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010 Red Hat, Inc.
+ * Red Hat licenses this file to you under the Apache License, version
+ * 2.0 (the "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or
+ * implied.  See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.hornetq.tests.unit.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.hornetq.tests.util.UnitTestCase;
+import org.hornetq.utils.IngressQueue;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IngressQueueTest extends UnitTestCase
+{
+   private static final class Element extends IngressQueue.Node<Element>
+   {
+      final int producer;
+
+      final int sequence;
+
+      Element(final int producer, final int sequence)
+      {
+         this.producer = producer;
+         this.sequence = sequence;
+      }
+
+      @Override
+      protected Element getIngressElement()
+      {
+         return this;
+      }
+   }
+
+   @Test
+   public void testDrainInOrder()
+   {
+      IngressQueue<Object> queue = new IngressQueue<Object>();
+
+      Assert.assertTrue(queue.isEmpty());
+
+      Element linked = new Element(0, 0);
+
+      queue.add("a");
+      queue.add(linked);
+      queue.add("b");
+
+      Assert.assertFalse(queue.isEmpty());
+      Assert.assertEquals(3, queue.size());
+      Assert.assertEquals(3, queue.snapshot().size());
+      Assert.assertSame(linked, queue.snapshot().get(1));
+
+      List<Object> drained = new ArrayList<Object>();
+      drained.add("before");
+
+      Assert.assertEquals(3, queue.drainTo(drained));
+      Assert.assertEquals(4, drained.size());
+      Assert.assertEquals("before", drained.get(0));
+      Assert.assertEquals("a", drained.get(1));
+      Assert.assertSame(linked, drained.get(2));
+      Assert.assertEquals("b", drained.get(3));
+
+      Assert.assertTrue(queue.isEmpty());
+      Assert.assertEquals(0, queue.drainTo(drained));
+
+      // a drained node can be added again
+      queue.add(linked);
+      queue.add("c");
+
+      drained.clear();
+      queue.drainTo(drained);
+      Assert.assertEquals(2, drained.size());
+      Assert.assertSame(linked, drained.get(0));
+      Assert.assertEquals("c", drained.get(1));
+   }
+
+   @Test
+   public void testDrainedNodesAreUnlinked()
+   {
+      IngressQueue<Element> queue = new IngressQueue<Element>();
+
+      Element first = new Element(0, 0);
+      Element last = new Element(0, 1);
+
+      queue.add(first);
+      queue.add(last);
+
+      List<Element> drained = new ArrayList<Element>();
+
+      Assert.assertEquals(2, queue.drainTo(drained));
+
+      WeakReference<Element> firstReference = new WeakReference<Element>(first);
+
+      first = null;
+      drained.clear();
+
+      // last was linked to first, holding it shouldn't keep first reachable
+      UnitTestCase.checkWeakReferences(firstReference);
+
+      Assert.assertEquals(1, last.sequence);
+   }
+
+   @Test
+   public void testConcurrentProducers() throws Exception
+   {
+      final int producers = 8;
+      final int elements = 100000;
+
+      final IngressQueue<Element> queue = new IngressQueue<Element>();
+      final CountDownLatch start = new CountDownLatch(1);
+
+      List<Thread> threads = new ArrayList<Thread>();
+
+      for (int p = 0; p < producers; p++)
+      {
+         final int producer = p;
+
+         Thread thread = new Thread()
+         {
+            @Override
+            public void run()
+            {
+               try
+               {
+                  start.await();
+               }
+               catch (InterruptedException e)
+               {
+                  return;
+               }
+
+               for (int i = 0; i < elements; i++)
+               {
+                  queue.add(new Element(producer, i));
+               }
+            }
+         };
+
+         thread.start();
+         threads.add(thread);
+      }
+
+      start.countDown();
+
+      int[] next = new int[producers];
+      int received = 0;
+
+      List<Element> drained = new ArrayList<Element>();
+
+      long timeout = System.currentTimeMillis() + 30000;
+
+      while (received < producers * elements && System.currentTimeMillis() < timeout)
+      {
+         queue.drainTo(drained);
+
+         for (Element element : drained)
+         {
+            // each producer's elements come in the order it added them
+            Assert.assertEquals(next[element.producer]++, element.sequence);
+         }
+
+         received += drained.size();
+
+         drained.clear();
+      }
+
+      for (Thread thread : threads)
+      {
+         thread.join();
+      }
+
+      Assert.assertEquals(producers * elements, received);
+      Assert.assertTrue(queue.isEmpty());
+   }
+}
@@ -23,6 +23,7 @@ import java.util.NoSuchElementException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.hornetq.tests.util.UnitTestCase;
+import org.hornetq.utils.IDSupplier;
 import org.hornetq.utils.LinkedListImpl;
 import org.hornetq.utils.LinkedListIterator;
 
@@ -1307,4 +1308,102 @@ public class LinkedListTest extends UnitTestCase
       assertEquals(0, list.numIters());
 
    }
+
+   @Test
+   public void testRemoveWithID()
+   {
+      // only the even numbers are indexed
+      list.setIDSupplier(new IDSupplier<Integer>()
+      {
+         public long getID(final Integer element)
+         {
+            return element % 2 == 0 ? element : -1;
+         }
+      });
+
+      for (int i = 0; i < 10; i++)
+      {
+         list.addTail(i);
+      }
+
+      LinkedListIterator<Integer> iter = list.iterator();
+
+      assertEquals(0, iter.next().intValue());
+      assertEquals(1, iter.next().intValue());
+
+      assertNull(list.removeWithID(1));
+      assertEquals(4, list.removeWithID(4).intValue());
+      assertNull(list.removeWithID(4));
+      // the one after the iterator
+      assertEquals(2, list.removeWithID(2).intValue());
+      assertEquals(0, list.removeWithID(0).intValue());
+
+      assertEquals(7, list.size());
+
+      assertEquals(3, iter.next().intValue());
+      assertEquals(5, iter.next().intValue());
+
+      iter.remove();
+
+      assertEquals(6, list.removeWithID(6).intValue());
+
+      assertEquals(7, iter.next().intValue());
+      assertEquals(8, iter.next().intValue());
+      assertEquals(9, iter.next().intValue());
+      assertFalse(iter.hasNext());
+
+      iter.close();
+
+      assertEquals(1, list.poll().intValue());
+      assertEquals(3, list.poll().intValue());
+      assertEquals(7, list.poll().intValue());
+      assertEquals(8, list.poll().intValue());
+      assertNull(list.removeWithID(8));
+      assertEquals(9, list.poll().intValue());
+      assertNull(list.poll());
+   }
+
+   @Test
+   public void testDuplicateIDs()
+   {
+      // 0 and 10 share an ID, and so do 1, 11 and 21
+      list.setIDSupplier(new IDSupplier<Integer>()
+      {
+         public long getID(final Integer element)
+         {
+            return element % 10;
+         }
+      });
+
+      list.addTail(0);
+      list.addTail(1);
+      list.addTail(10);
+      list.addTail(11);
+      list.addTail(21);
+
+      assertEquals(0, list.getWithID(0).intValue());
+      assertEquals(1, list.getWithID(1).intValue());
+      assertNull(list.getWithID(2));
+
+      // the oldest goes first
+      assertEquals(0, list.removeWithID(0).intValue());
+      assertEquals(10, list.getWithID(0).intValue());
+
+      // a shadowed one removed by an iterator doesn't come back
+      LinkedListIterator<Integer> iter = list.iterator();
+      assertEquals(1, iter.next().intValue());
+      assertEquals(10, iter.next().intValue());
+      assertEquals(11, iter.next().intValue());
+      iter.remove();
+      iter.close();
+
+      assertEquals(1, list.removeWithID(1).intValue());
+      assertEquals(21, list.removeWithID(1).intValue());
+      assertNull(list.removeWithID(1));
+
+      assertEquals(10, list.removeWithID(0).intValue());
+      assertNull(list.getWithID(0));
+
+      assertEquals(0, list.size());
+   }
 }